@@ -0,0 +1,155 @@
+package com.androzic.dem;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class ElevationProfileServiceTest extends TestCase
+{
+	private File directory;
+
+	@Override
+	protected void setUp() throws IOException
+	{
+		directory = File.createTempFile("dem", "");
+		assertTrue(directory.delete());
+		assertTrue(directory.mkdir());
+	}
+
+	@Override
+	protected void tearDown()
+	{
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				assertTrue(file.delete());
+		assertTrue(directory.delete());
+	}
+
+	public void testRecordedElevation()
+	{
+		// 10 km along a meridian, up by 100 meters and back down
+		ElevationProfileService.Geometry geometry = new ElevationProfileService.Geometry(1);
+		geometry.setPart(0, 3);
+		geometry.setPoint(0, 0, 45, 7.5, 100);
+		geometry.setPoint(0, 1, 45.045, 7.5, 200);
+		geometry.setPoint(0, 2, 45.09, 7.5, 100);
+
+		ElevationProfile profile = ElevationProfileService.calculateProfile(new ElevationService(directory), geometry);
+		assertNotNull(profile);
+		assertTrue(profile.hasData());
+		assertEquals(10007, profile.length, 10);
+		// Changes below threshold are ignored
+		assertEquals(100, profile.ascent, 5);
+		assertEquals(100, profile.descent, 5);
+		assertEquals(100, profile.minElevation, 1e-3);
+		// Inner path vertices are not sampled exactly
+		assertEquals(200, profile.maxElevation, 1);
+		// About 330 samples at default spacing are downsampled for display
+		assertEquals(ElevationProfileService.DISPLAY_POINTS, profile.distances.length);
+		assertEquals(0, profile.distances[0], 1e-3);
+		assertEquals(profile.length, profile.distances[profile.distances.length - 1], 1);
+		for (int i = 1; i < profile.distances.length; i++)
+			assertTrue(profile.distances[i] > profile.distances[i - 1]);
+	}
+
+	public void testNoElevation()
+	{
+		ElevationProfileService.Geometry geometry = new ElevationProfileService.Geometry(1);
+		geometry.setPart(0, 2);
+		geometry.setPoint(0, 0, 45, 7.5, Double.NaN);
+		geometry.setPoint(0, 1, 45.01, 7.5, Double.NaN);
+
+		ElevationProfile profile = ElevationProfileService.calculateProfile(new ElevationService(directory), geometry);
+		assertNotNull(profile);
+		assertFalse(profile.hasData());
+		assertEquals(1112, profile.length, 1);
+	}
+
+	public void testDemElevation() throws IOException
+	{
+		// Terrain rises northwards by one meter per 3" sample
+		writeTile("N45E007.hgt", 1201);
+		ElevationService elevationService = new ElevationService(directory);
+		assertEquals(92.66, elevationService.getResolution(45.5, 7.5), 0.01);
+		assertTrue(Double.isNaN(elevationService.getResolution(46.5, 7.5)));
+
+		ElevationProfileService.Geometry geometry = new ElevationProfileService.Geometry(2);
+		geometry.setPart(0, 2);
+		geometry.setPoint(0, 0, 45.1, 7.5, Double.NaN);
+		geometry.setPoint(0, 1, 45.2, 7.5, Double.NaN);
+		// Second part lies outside of DEM, recorded elevation is used
+		geometry.setPart(1, 2);
+		geometry.setPoint(1, 0, 46.5, 7.5, 0);
+		geometry.setPoint(1, 1, 46.501, 7.5, 0);
+		assertEquals(92.66, ElevationProfileService.getResolution(elevationService, geometry, 4), 0.01);
+
+		ElevationProfile profile = ElevationProfileService.calculateProfile(elevationService, geometry);
+		assertNotNull(profile);
+		assertEquals(120, profile.ascent, 5);
+		assertEquals(1240, profile.descent, 5);
+		assertEquals(0, profile.minElevation, 1e-3);
+		assertEquals(1240, profile.maxElevation, 1e-3);
+		// Profile is sampled at DEM resolution
+		assertEquals(124, profile.distances.length);
+	}
+
+	public void testDownsampleShortProfile()
+	{
+		float[] x = {0, 1, 2, 3};
+		float[] y = {5, 6, 7, 8};
+		int[] indices = ElevationProfileService.downsample(x, y, 4, 10);
+		assertEquals(4, indices.length);
+		for (int i = 0; i < indices.length; i++)
+			assertEquals(i, indices[i]);
+	}
+
+	public void testDownsampleKeepsPeaks()
+	{
+		int n = 1000;
+		float[] x = new float[n];
+		float[] y = new float[n];
+		for (int i = 0; i < n; i++)
+		{
+			x[i] = i * 30;
+			y[i] = 100;
+		}
+		y[333] = 500;
+		y[777] = -200;
+
+		int[] indices = ElevationProfileService.downsample(x, y, n, 50);
+		assertEquals(50, indices.length);
+		assertEquals(0, indices[0]);
+		assertEquals(n - 1, indices[indices.length - 1]);
+		boolean peak = false, pit = false;
+		for (int i = 0; i < indices.length; i++)
+		{
+			if (i > 0)
+				assertTrue(indices[i] > indices[i - 1]);
+			peak |= indices[i] == 333;
+			pit |= indices[i] == 777;
+		}
+		assertTrue(peak);
+		assertTrue(pit);
+	}
+
+	private void writeTile(String name, int size) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(size * size * 2);
+		for (int row = 0; row < size; row++)
+			for (int col = 0; col < size; col++)
+				buffer.putShort((short) (1000 + size - 1 - row));
+		FileOutputStream out = new FileOutputStream(new File(directory, name));
+		try
+		{
+			out.write(buffer.array());
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package com.androzic.location;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import android.location.Location;
+import android.os.DeadObjectException;
+import android.os.RemoteException;
+
+import junit.framework.TestCase;
+
+public class LocationDispatcherTest extends TestCase
+{
+	/**
+	 * Runs tasks only when asked, emulates busy thread.
+	 */
+	private static class ManualExecutor implements Executor
+	{
+		final List<Runnable> tasks = new ArrayList<>();
+
+		@Override
+		public void execute(Runnable command)
+		{
+			tasks.add(command);
+		}
+
+		void runAll()
+		{
+			while (!tasks.isEmpty())
+				tasks.remove(0).run();
+		}
+	}
+
+	public void testCoalescing()
+	{
+		LocationDispatcher dispatcher = new LocationDispatcher();
+		ManualExecutor executor = new ManualExecutor();
+		final List<Double> received = new ArrayList<>();
+		dispatcher.subscribe(this, new LocationDispatcher.Subscriber("test") {
+			@Override
+			protected void onLocationChanged(LocationDispatcher.LocationEvent event)
+			{
+				received.add(event.location.getLatitude());
+			}
+		}, executor);
+
+		for (int i = 1; i <= 10; i++)
+			dispatcher.publishLocation(createLocation(i), true, false, 0, 0);
+		assertEquals(1, executor.tasks.size());
+		executor.runAll();
+		assertEquals(1, received.size());
+		assertEquals(10, received.get(0), 0);
+
+		LocationDispatcher.Statistics statistics = dispatcher.getStatistics().get(0);
+		assertEquals(1, statistics.delivered);
+		assertEquals(9, statistics.coalesced);
+	}
+
+	public void testBatching()
+	{
+		LocationDispatcher dispatcher = new LocationDispatcher();
+		ManualExecutor executor = new ManualExecutor();
+		final List<Long> received = new ArrayList<>();
+		dispatcher.subscribe(this, new LocationDispatcher.Subscriber("test") {
+			@Override
+			protected void onNewPoint(LocationDispatcher.PointEvent event)
+			{
+				received.add(event.time);
+			}
+		}, executor);
+
+		for (int i = 0; i < 5; i++)
+			dispatcher.publishPoint(true, 0, 0, 0, 0, 0, 0, i);
+		executor.runAll();
+		assertEquals(5, received.size());
+		for (int i = 0; i < 5; i++)
+			assertEquals(i, (long) received.get(i));
+
+		LocationDispatcher.Statistics statistics = dispatcher.getStatistics().get(0);
+		assertEquals(1, statistics.batches);
+		assertEquals(5, statistics.maxBatch);
+		assertEquals(0, statistics.dropped);
+	}
+
+	public void testPendingPoint()
+	{
+		LocationDispatcher dispatcher = new LocationDispatcher();
+		ManualExecutor executor = new ManualExecutor();
+		final List<String> received = new ArrayList<>();
+		dispatcher.subscribe(this, new LocationDispatcher.Subscriber("test") {
+			@Override
+			protected void onNewPoint(LocationDispatcher.PointEvent event)
+			{
+				received.add("point " + event.time);
+			}
+
+			@Override
+			protected void onPendingPoint(LocationDispatcher.PointEvent event)
+			{
+				received.add("pending " + event.time);
+			}
+		}, executor);
+
+		// Only the latest pending point is delivered, after stored points
+		dispatcher.publishPendingPoint(0, 0, 0, 0, 0, 0, 1);
+		dispatcher.publishPoint(true, 0, 0, 0, 0, 0, 0, 1);
+		dispatcher.publishPendingPoint(0, 0, 0, 0, 0, 0, 2);
+		dispatcher.publishPendingPoint(0, 0, 0, 0, 0, 0, 3);
+		executor.runAll();
+		assertEquals(2, received.size());
+		assertEquals("point 1", received.get(0));
+		assertEquals("pending 3", received.get(1));
+
+		// Stored point supersedes pending one
+		received.clear();
+		dispatcher.publishPendingPoint(0, 0, 0, 0, 0, 0, 4);
+		dispatcher.publishPoint(true, 0, 0, 0, 0, 0, 0, 4);
+		executor.runAll();
+		assertEquals(1, received.size());
+		assertEquals("point 4", received.get(0));
+	}
+
+	public void testSlowSubscriber() throws InterruptedException
+	{
+		LocationDispatcher dispatcher = new LocationDispatcher();
+		ExecutorService executor = Executors.newCachedThreadPool();
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch fast = new CountDownLatch(3);
+		dispatcher.subscribe("slow", new LocationDispatcher.Subscriber("slow") {
+			@Override
+			protected void onNewPoint(LocationDispatcher.PointEvent event)
+			{
+				try
+				{
+					release.await();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		}, executor);
+		dispatcher.subscribe("fast", new LocationDispatcher.Subscriber("fast") {
+			@Override
+			protected void onNewPoint(LocationDispatcher.PointEvent event)
+			{
+				fast.countDown();
+			}
+		}, executor);
+
+		for (int i = 0; i < 3; i++)
+			dispatcher.publishPoint(true, 0, 0, 0, 0, 0, 0, i);
+		assertTrue(fast.await(5, TimeUnit.SECONDS));
+		release.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+
+		for (LocationDispatcher.Statistics statistics : dispatcher.getStatistics())
+			assertEquals(3, statistics.delivered);
+	}
+
+	public void testFailure()
+	{
+		LocationDispatcher dispatcher = new LocationDispatcher();
+		ManualExecutor executor = new ManualExecutor();
+		dispatcher.subscribe(this, new LocationDispatcher.Subscriber("test") {
+			@Override
+			protected void onLocationChanged(LocationDispatcher.LocationEvent event) throws RemoteException
+			{
+				throw new DeadObjectException();
+			}
+		}, executor);
+		dispatcher.publishLocation(createLocation(1), true, false, 0, 0);
+		executor.runAll();
+		assertEquals(0, dispatcher.getSubscriberCount());
+	}
+
+	public void testLocalFailure()
+	{
+		LocationDispatcher dispatcher = new LocationDispatcher();
+		ManualExecutor executor = new ManualExecutor();
+		final int[] calls = new int[1];
+		dispatcher.subscribe(this, new LocationDispatcher.Subscriber("test") {
+			@Override
+			protected void onLocationChanged(LocationDispatcher.LocationEvent event)
+			{
+				calls[0]++;
+				throw new IllegalStateException("Bug");
+			}
+		}, executor);
+		dispatcher.publishLocation(createLocation(1), true, false, 0, 0);
+		try
+		{
+			executor.runAll();
+			fail("Exception of local subscriber should be propagated");
+		}
+		catch (IllegalStateException ignore)
+		{
+		}
+		// Subscriber is kept and receives following updates
+		assertEquals(1, dispatcher.getSubscriberCount());
+		dispatcher.publishLocation(createLocation(2), true, false, 0, 0);
+		try
+		{
+			executor.runAll();
+		}
+		catch (IllegalStateException ignore)
+		{
+		}
+		assertEquals(2, calls[0]);
+	}
+
+	private static Location createLocation(double latitude)
+	{
+		Location location = new Location("test");
+		location.setLatitude(latitude);
+		return location;
+	}
+}
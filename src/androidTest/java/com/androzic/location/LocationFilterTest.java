@@ -0,0 +1,104 @@
+package com.androzic.location;
+
+import android.location.Location;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Runs filter over synthetic noisy fixes of eastbound movement.
+ */
+public class LocationFilterTest extends TestCase
+{
+	private static final double METERS_PER_DEGREE = 111319.49;
+	private static final double LATITUDE = 55.75;
+	private static final double LONGITUDE = 37.6;
+	private static final double SPEED = 10;
+
+	private final Random random = new Random(1);
+
+	public void testSmoothing()
+	{
+		LocationFilter filter = new LocationFilter();
+		double rawError = 0;
+		double filteredError = 0;
+		int rejected = 0;
+		for (int i = 0; i < 300; i++)
+		{
+			double dx = random.nextGaussian() * 5;
+			double dy = random.nextGaussian() * 5;
+			Location location = createFix(i, SPEED * i + dx, dy);
+			if (!filter.filter(location))
+				rejected++;
+			if (i > 20)
+			{
+				rawError += Math.hypot(dx, dy);
+				filteredError += error(location, i);
+				assertEquals(SPEED, location.getSpeed(), 1.0);
+				assertEquals(90, location.getBearing(), 5);
+			}
+		}
+		// Gate may reject rare honest fixes
+		assertTrue(rejected <= 3);
+		assertTrue(filteredError < rawError / 2);
+		assertEquals(SPEED, filter.getAverageSpeed(), 0.5);
+	}
+
+	public void testOutlier()
+	{
+		LocationFilter filter = new LocationFilter();
+		for (int i = 0; i < 30; i++)
+			assertTrue(filter.filter(createFix(i, SPEED * i, 0)));
+		// Half a kilometer jump
+		Location outlier = createFix(30, SPEED * 30, 500);
+		assertFalse(filter.filter(outlier));
+		assertTrue(error(outlier, 30) < 10);
+		assertTrue(filter.filter(createFix(31, SPEED * 31, 0)));
+	}
+
+	public void testRelocation()
+	{
+		LocationFilter filter = new LocationFilter();
+		for (int i = 0; i < 30; i++)
+			filter.filter(createFix(i, SPEED * i, 0));
+		// Persistent jump is accepted after few fixes
+		boolean accepted = false;
+		for (int i = 30; i < 35 && !accepted; i++)
+			accepted = filter.filter(createFix(i, SPEED * i, 1000));
+		assertTrue(accepted);
+	}
+
+	public void testGap()
+	{
+		LocationFilter filter = new LocationFilter();
+		for (int i = 0; i < 10; i++)
+			filter.filter(createFix(i, SPEED * i, 0));
+		// After long gap filter starts over from the fix
+		Location location = createFix(100, 5000, 0);
+		assertTrue(filter.filter(location));
+		assertTrue(error(location, 500) < 1e-3);
+	}
+
+	private static Location createFix(int second, double x, double y)
+	{
+		Location location = new Location("test");
+		location.setLatitude(LATITUDE + y / METERS_PER_DEGREE);
+		location.setLongitude(LONGITUDE + x / (METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE))));
+		location.setAccuracy(5);
+		location.setSpeed((float) SPEED);
+		location.setBearing(90);
+		location.setTime(1000000L + second * 1000L);
+		return location;
+	}
+
+	/**
+	 * Returns distance from true position at given second, meters.
+	 */
+	private static double error(Location location, int second)
+	{
+		double x = (location.getLongitude() - LONGITUDE) * METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE));
+		double y = (location.getLatitude() - LATITUDE) * METERS_PER_DEGREE;
+		return Math.hypot(x - SPEED * second, y);
+	}
+}
@@ -0,0 +1,135 @@
+package com.androzic.location;
+
+import android.os.Environment;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares NMEA parsing with String.split() and with {@link NmeaTokenizer}. Put recorded NMEA
+ * logs (*.nmea) to Androzic/benchmark folder on external storage, results are written to log.
+ */
+public class NmeaBenchmark extends TestCase
+{
+	private static final String TAG = "NmeaBenchmark";
+	private static final int ROUNDS = 20;
+
+	public void testParsing() throws IOException
+	{
+		File folder = new File(Environment.getExternalStorageDirectory(), "Androzic/benchmark");
+		List<String> corpus = new ArrayList<>();
+		File[] files = folder.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				if (!file.getName().endsWith(".nmea"))
+					continue;
+				BufferedReader reader = new BufferedReader(new FileReader(file));
+				String line;
+				while ((line = reader.readLine()) != null)
+					if (line.length() > 0)
+						corpus.add(line + "\r\n");
+				reader.close();
+			}
+		}
+		if (corpus.isEmpty())
+		{
+			Log.w(TAG, "No NMEA logs in " + folder.getAbsolutePath() + ", benchmark skipped");
+			return;
+		}
+
+		// Warm up both parsers
+		parseWithSplit(corpus);
+		parseWithTokenizer(corpus);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			parseWithSplit(corpus);
+		long split = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < ROUNDS; i++)
+			parseWithTokenizer(corpus);
+		long tokenizer = System.nanoTime() - start;
+
+		long sentences = (long) corpus.size() * ROUNDS;
+		Log.i(TAG, String.format("%d sentences: split %.0f ns, tokenizer %.0f ns per sentence", corpus.size(), (double) split / sentences, (double) tokenizer / sentences));
+	}
+
+	/**
+	 * Former LocationService parsing, sums parsed values to keep the work from being optimized out.
+	 */
+	private static double parseWithSplit(List<String> corpus)
+	{
+		double sum = 0;
+		for (String nmea : corpus)
+		{
+			int n = nmea.indexOf('\n');
+			if (n == 0)
+				continue;
+			if (n > 0)
+				nmea = nmea.substring(0, n - 1);
+			int len = nmea.length();
+			if (len < 9)
+				continue;
+			if (nmea.charAt(len - 3) == '*')
+				nmea = nmea.substring(0, len - 3);
+			String[] tokens = nmea.split(",");
+			String sentenceId = tokens[0].length() > 5 ? tokens[0].substring(3, 6) : "";
+			try
+			{
+				if (sentenceId.equals("GGA") && tokens.length > 11)
+				{
+					if (!"".equals(tokens[11]))
+						sum += Float.parseFloat(tokens[11]);
+				}
+				else if (sentenceId.equals("GSA") && tokens.length > 17)
+				{
+					if (!"".equals(tokens[16]))
+						sum += Float.parseFloat(tokens[16]);
+					if (!"".equals(tokens[17]))
+						sum += Float.parseFloat(tokens[17]);
+				}
+			}
+			catch (NumberFormatException ignore)
+			{
+			}
+		}
+		return sum;
+	}
+
+	private static double parseWithTokenizer(List<String> corpus)
+	{
+		NmeaTokenizer tokenizer = new NmeaTokenizer();
+		double sum = 0;
+		for (String nmea : corpus)
+		{
+			if (!tokenizer.tokenize(nmea))
+				continue;
+			if (tokenizer.isType("GGA") && tokenizer.getFieldCount() > 11)
+			{
+				float value = tokenizer.getFloat(11);
+				if (!Float.isNaN(value))
+					sum += value;
+			}
+			else if (tokenizer.isType("GSA") && tokenizer.getFieldCount() > 17)
+			{
+				float value = tokenizer.getFloat(16);
+				if (!Float.isNaN(value))
+					sum += value;
+				value = tokenizer.getFloat(17);
+				if (!Float.isNaN(value))
+					sum += value;
+			}
+		}
+		return sum;
+	}
+}
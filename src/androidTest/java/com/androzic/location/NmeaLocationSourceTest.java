@@ -0,0 +1,182 @@
+package com.androzic.location;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds location source from local socket stand-ins of external receiver.
+ */
+public class NmeaLocationSourceTest extends TestCase
+{
+	private HandlerThread handlerThread;
+	private Handler handler;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		handlerThread = new HandlerThread("NmeaLocationSourceTest");
+		handlerThread.start();
+		handler = new Handler(handlerThread.getLooper());
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		handlerThread.quit();
+	}
+
+	public void testAddress()
+	{
+		assertTrue(NmeaLocationSource.isValidAddress("tcp://192.168.1.1:10110"));
+		assertTrue(NmeaLocationSource.isValidAddress("udp://10110"));
+		assertTrue(NmeaLocationSource.isValidAddress("file:///dev/ttyUSB0"));
+		assertFalse(NmeaLocationSource.isValidAddress(""));
+		assertFalse(NmeaLocationSource.isValidAddress("tcp://10110"));
+		assertFalse(NmeaLocationSource.isValidAddress("tcp://host:port"));
+		assertFalse(NmeaLocationSource.isValidAddress("http://host:80"));
+	}
+
+	public void testTcpStream() throws Exception
+	{
+		final ServerSocket server = new ServerSocket(0);
+		Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				try
+				{
+					// First connection breaks after few fixes, source should reconnect
+					for (int c = 0; c < 2; c++)
+					{
+						Socket socket = server.accept();
+						OutputStream out = socket.getOutputStream();
+						for (int i = 0; i < 5; i++)
+						{
+							out.write(epoch(c * 5 + i).getBytes("US-ASCII"));
+							out.flush();
+							Thread.sleep(50);
+						}
+						// Corrupted sentence
+						out.write("$GPRMC,120000,A,5545.000,N,03737.000,E,1.0,90.0,150615,,*00\r\n".getBytes("US-ASCII"));
+						socket.close();
+					}
+				}
+				catch (Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+		});
+		receiver.start();
+
+		Recorder recorder = new Recorder(6);
+		NmeaLocationSource source = new NmeaLocationSource("tcp://127.0.0.1:" + server.getLocalPort(), "test", handler, recorder);
+		source.start();
+		assertTrue(recorder.latch.await(10, TimeUnit.SECONDS));
+		source.stop();
+		receiver.join(5000);
+		server.close();
+
+		NmeaLocationSource.Statistics stats = source.getStatistics();
+		assertTrue(stats.reconnects >= 1);
+		assertTrue(stats.rejected >= 1);
+		synchronized (recorder)
+		{
+			assertTrue(recorder.connected >= 2);
+			Location location = recorder.locations.get(0);
+			assertEquals("test", location.getProvider());
+			assertEquals(55.75, location.getLatitude(), 1e-6);
+			assertTrue(location.getLongitude() > 37.6);
+			assertTrue(location.hasSpeed());
+			// Fixes are strictly ordered in time
+			for (int i = 1; i < recorder.locations.size(); i++)
+				assertTrue(recorder.locations.get(i).getTime() > recorder.locations.get(i - 1).getTime());
+		}
+	}
+
+	public void testUdpDatagrams() throws Exception
+	{
+		DatagramSocket probe = new DatagramSocket(0);
+		int port = probe.getLocalPort();
+		probe.close();
+
+		Recorder recorder = new Recorder(3);
+		NmeaLocationSource source = new NmeaLocationSource("udp://" + port, "test", handler, recorder);
+		source.start();
+		DatagramSocket sender = new DatagramSocket();
+		InetAddress localhost = InetAddress.getByName("127.0.0.1");
+		for (int i = 0; i < 20 && recorder.latch.getCount() > 0; i++)
+		{
+			byte[] data = epoch(i).getBytes("US-ASCII");
+			sender.send(new DatagramPacket(data, data.length, localhost, port));
+			Thread.sleep(100);
+		}
+		sender.close();
+		assertTrue(recorder.latch.await(5, TimeUnit.SECONDS));
+		source.stop();
+		assertEquals(0, source.getStatistics().rejected);
+	}
+
+	/**
+	 * Returns RMC and GGA sentences of one second epoch moving east.
+	 */
+	private static String epoch(int second)
+	{
+		String time = String.format("1200%02d", second);
+		String lon = String.format("%08.3f", 3737.0 + second * 0.01);
+		return sentence("GPRMC," + time + ",A,5545.000,N," + lon + ",E,10.0,90.0,150615,,") + sentence("GPGGA," + time + ",5545.000,N," + lon + ",E,1,08,0.9,150.0,M,14.0,M,,");
+	}
+
+	private static String sentence(String body)
+	{
+		int checksum = 0;
+		for (int i = 0; i < body.length(); i++)
+			checksum ^= body.charAt(i);
+		return String.format("$%s*%02X\r\n", body, checksum);
+	}
+
+	private static class Recorder implements NmeaLocationSource.OnNmeaLocationListener
+	{
+		final CountDownLatch latch;
+		final List<Location> locations = new ArrayList<>();
+		int connected;
+
+		Recorder(int count)
+		{
+			latch = new CountDownLatch(count);
+		}
+
+		@Override
+		public synchronized void onSourceConnected(NmeaLocationSource source)
+		{
+			connected++;
+		}
+
+		@Override
+		public void onSourceDisconnected(NmeaLocationSource source)
+		{
+		}
+
+		@Override
+		public synchronized void onLocationChanged(NmeaLocationSource source, Location location)
+		{
+			locations.add(location);
+			latch.countDown();
+		}
+	}
+}
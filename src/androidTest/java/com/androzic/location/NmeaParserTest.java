@@ -0,0 +1,79 @@
+package com.androzic.location;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+import android.location.Location;
+
+import junit.framework.TestCase;
+
+public class NmeaParserTest extends TestCase
+{
+	public void testAccuracyFromHdop()
+	{
+		NmeaParser parser = new NmeaParser("test");
+		assertFalse(parser.parseSentence(sentence("GPRMC,120000,A,5545.000,N,03737.000,E,10.0,90.0,150615,,")));
+		assertFalse(parser.parseSentence(sentence("GPGGA,120000,5545.000,N,03737.000,E,1,08,0.9,150.0,M,14.0,M,,")));
+		assertTrue(parser.parseSentence(sentence("GPRMC,120001,A,5545.000,N,03737.010,E,10.0,90.0,150615,,")));
+		Location location = parser.getLocation();
+		assertTrue(location.hasAccuracy());
+		assertEquals(4.5f, location.getAccuracy(), 1e-3);
+		assertEquals(150, location.getAltitude(), 1e-3);
+		assertEquals(utc(2015, 6, 15, 12, 0, 0), location.getTime());
+	}
+
+	public void testGgaOnly()
+	{
+		NmeaParser parser = new NmeaParser("test");
+		long now = System.currentTimeMillis();
+		Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+		calendar.setTimeInMillis(now - 60000);
+		String time = String.format("%02d%02d%02d", calendar.get(Calendar.HOUR_OF_DAY), calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND));
+		calendar.setTimeInMillis(now - 59000);
+		String next = String.format("%02d%02d%02d", calendar.get(Calendar.HOUR_OF_DAY), calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND));
+
+		assertFalse(parser.parseSentence(sentence("GPGGA," + time + ",5545.000,N,03737.000,E,1,08,1.2,150.0,M,14.0,M,,")));
+		assertTrue(parser.parseSentence(sentence("GPGGA," + next + ",5545.000,N,03737.010,E,1,08,1.2,150.0,M,14.0,M,,")));
+		Location location = parser.getLocation();
+		// Date is taken from system clock
+		assertEquals(now - 60000, location.getTime(), 1000);
+		assertEquals(55.75, location.getLatitude(), 1e-6);
+		assertEquals(6f, location.getAccuracy(), 1e-3);
+	}
+
+	public void testGgaOnlyMidnight()
+	{
+		NmeaParser parser = new NmeaParser("test");
+		assertFalse(parser.parseSentence(sentence("GPGGA,235959,5545.000,N,03737.000,E,1,08,1.2,150.0,M,14.0,M,,")));
+		assertTrue(parser.parseSentence(sentence("GPGGA,000000,5545.000,N,03737.010,E,1,08,1.2,150.0,M,14.0,M,,")));
+		long first = parser.getLocation().getTime();
+		assertTrue(parser.parseSentence(sentence("GPGGA,000001,5545.000,N,03737.020,E,1,08,1.2,150.0,M,14.0,M,,")));
+		// Time keeps going over midnight
+		assertEquals(1000, parser.getLocation().getTime() - first);
+	}
+
+	public void testGgaWithoutFix()
+	{
+		NmeaParser parser = new NmeaParser("test");
+		assertFalse(parser.parseSentence(sentence("GPGGA,120000,,,,,0,00,,,M,,M,,")));
+		assertFalse(parser.parseSentence(sentence("GPGGA,120001,,,,,0,00,,,M,,M,,")));
+		assertNull(parser.getLocation());
+	}
+
+	private static long utc(int year, int month, int day, int hour, int minute, int second)
+	{
+		Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+		calendar.clear();
+		calendar.set(year, month - 1, day, hour, minute, second);
+		return calendar.getTimeInMillis();
+	}
+
+	private static String sentence(String body)
+	{
+		int checksum = 0;
+		for (int i = 0; i < body.length(); i++)
+			checksum ^= body.charAt(i);
+		return String.format("$%s*%02X\r\n", body, checksum);
+	}
+}
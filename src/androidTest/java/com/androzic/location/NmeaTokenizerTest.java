@@ -0,0 +1,69 @@
+package com.androzic.location;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks field splitting, in place number parsing and checksum validation.
+ */
+public class NmeaTokenizerTest extends TestCase
+{
+	private static final String GGA = "$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47\r\n";
+	private static final String RMC = "$GPRMC,081836,A,3751.65,S,14507.36,E,000.0,360.0,130998,011.3,E*62";
+
+	public void testFields()
+	{
+		NmeaTokenizer tokenizer = new NmeaTokenizer();
+		assertTrue(tokenizer.tokenize(GGA));
+		assertTrue(tokenizer.hasChecksum());
+		assertTrue(tokenizer.isType("GGA"));
+		assertFalse(tokenizer.isType("GSA"));
+		assertEquals(15, tokenizer.getFieldCount());
+		assertEquals((12 * 60 + 35) * 60000 + 19000, tokenizer.getTimeOfDay(1));
+		assertEquals(48.1173, tokenizer.getCoordinate(2), 1e-6);
+		assertEquals(11.516667, tokenizer.getCoordinate(4), 1e-6);
+		assertEquals(8, tokenizer.getInt(7, -1));
+		assertEquals(0.9f, tokenizer.getFloat(8));
+		assertEquals(545.4, tokenizer.getDouble(9), 1e-9);
+		assertEquals(46.9f, tokenizer.getFloat(11));
+		assertTrue(tokenizer.isEmpty(13));
+		assertTrue(Float.isNaN(tokenizer.getFloat(13)));
+		assertEquals(-1, tokenizer.getInt(20, -1));
+	}
+
+	public void testHemispheresAndDate()
+	{
+		NmeaTokenizer tokenizer = new NmeaTokenizer();
+		assertTrue(tokenizer.tokenize(RMC));
+		assertTrue(tokenizer.isType("RMC"));
+		assertEquals('A', tokenizer.getChar(2));
+		assertEquals(-37.860833, tokenizer.getCoordinate(3), 1e-6);
+		assertEquals(145.122667, tokenizer.getCoordinate(5), 1e-6);
+		assertEquals(13, tokenizer.getDigits(9, 0, 2));
+		assertEquals(9, tokenizer.getDigits(9, 2, 2));
+		assertEquals(98, tokenizer.getDigits(9, 4, 2));
+	}
+
+	public void testChecksum()
+	{
+		NmeaTokenizer tokenizer = new NmeaTokenizer();
+		assertFalse(tokenizer.tokenize(GGA.replace("*47", "*48")));
+		assertFalse(tokenizer.tokenize(GGA.replace("*47", "*4Z")));
+		// Corrupted field
+		assertFalse(tokenizer.tokenize(GGA.replace("545.4", "545.5")));
+		// Sentences without checksum are accepted
+		assertTrue(tokenizer.tokenize("$GPGSA,A,3,04,05,,09,12,,,24,,,,,2.5,1.3,2.1"));
+		assertFalse(tokenizer.hasChecksum());
+		assertEquals(2.1f, tokenizer.getFloat(17));
+	}
+
+	public void testMalformed()
+	{
+		NmeaTokenizer tokenizer = new NmeaTokenizer();
+		assertFalse(tokenizer.tokenize(""));
+		assertFalse(tokenizer.tokenize("\r\n"));
+		assertTrue(tokenizer.tokenize("$GPGGA,12a519,48.07.038,N,,E"));
+		assertEquals(-1, tokenizer.getTimeOfDay(1));
+		assertTrue(Double.isNaN(tokenizer.getCoordinate(2)));
+		assertTrue(Double.isNaN(tokenizer.getCoordinate(4)));
+	}
+}
@@ -0,0 +1,119 @@
+package com.androzic.location;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.androzic.data.Track;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays generated recordings at high speed.
+ */
+public class ReplayLocationSourceTest extends TestCase
+{
+	private static final int EPOCHS = 60;
+
+	private HandlerThread handlerThread;
+	private Handler handler;
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		handlerThread = new HandlerThread("ReplayLocationSourceTest");
+		handlerThread.start();
+		handler = new Handler(handlerThread.getLooper());
+		file = File.createTempFile("replay", ".nmea");
+		FileWriter writer = new FileWriter(file);
+		for (int i = 0; i < EPOCHS; i++)
+		{
+			String time = String.format("12%02d%02d", i / 60, i % 60);
+			String lon = String.format("%08.3f", 3737.0 + i * 0.01);
+			writer.write(sentence("GPRMC," + time + ",A,5545.000,N," + lon + ",E,10.0,90.0,150615,,"));
+			writer.write(sentence("GPGGA," + time + ",5545.000,N," + lon + ",E,1,08,0.9,150.0,M,14.0,M,,"));
+		}
+		writer.close();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		handlerThread.quit();
+		file.delete();
+	}
+
+	public void testFromTrack()
+	{
+		Track track = new Track();
+		track.addPoint(true, 55.75, 37.60, 150, 0, 0, 0, 1000000);
+		track.addPoint(true, 55.75, 37.61, 150, 0, 0, 0, 1060000);
+		// Point without time
+		track.addPoint(true, 55.75, 37.62, 150, 0, 0, 0, 0);
+		List<Location> locations = ReplayLocationSource.fromTrack(track, "test");
+		assertEquals(3, locations.size());
+		assertEquals(60000, locations.get(1).getTime() - locations.get(0).getTime());
+		assertEquals(1000, locations.get(2).getTime() - locations.get(1).getTime());
+		// About 627 meters in a minute
+		assertEquals(10.45, locations.get(1).getSpeed(), 0.1);
+		assertEquals(90, locations.get(1).getBearing(), 0.1);
+	}
+
+	public void testAcceleratedReplay() throws Exception
+	{
+		final CountDownLatch finished = new CountDownLatch(1);
+		final List<Location> locations = new ArrayList<>();
+		final ReplayLocationSource.Report[] report = new ReplayLocationSource.Report[1];
+		ReplayLocationSource source = new ReplayLocationSource(file, "UTF-8", "test", 100, handler, new ReplayLocationSource.OnReplayListener() {
+			@Override
+			public void onLocationChanged(ReplayLocationSource source, Location location)
+			{
+				long start = System.nanoTime();
+				locations.add(location);
+				source.recordStage(ReplayLocationSource.STAGE_PROCESSING, System.nanoTime() - start);
+			}
+
+			@Override
+			public void onReplayFinished(ReplayLocationSource source, ReplayLocationSource.Report r)
+			{
+				report[0] = r;
+				finished.countDown();
+			}
+		});
+		long start = System.currentTimeMillis();
+		source.start();
+		// A minute of recording at 100x speed
+		assertTrue(finished.await(10, TimeUnit.SECONDS));
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue(elapsed > 500);
+
+		ReplayLocationSource.Report r = report[0];
+		assertNull(r.error);
+		// Last epoch is not closed by the next one
+		assertEquals(EPOCHS - 1, r.locations);
+		assertEquals(r.delivered + r.dropped, r.locations);
+		assertEquals(r.delivered, locations.size());
+		assertEquals(r.delivered, r.stages[ReplayLocationSource.STAGE_DELIVERY].count);
+		assertEquals(r.delivered, r.stages[ReplayLocationSource.STAGE_PROCESSING].count);
+		assertTrue(r.getRate() > 50);
+		// Original time spacing is kept
+		for (int i = 1; i < locations.size(); i++)
+			assertTrue(locations.get(i).getTime() > locations.get(i - 1).getTime());
+	}
+
+	private static String sentence(String body)
+	{
+		int checksum = 0;
+		for (int i = 0; i < body.length(); i++)
+			checksum ^= body.charAt(i);
+		return String.format("$%s*%02X\r\n", body, checksum);
+	}
+}
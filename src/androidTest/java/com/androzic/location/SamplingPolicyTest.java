@@ -0,0 +1,85 @@
+package com.androzic.location;
+
+import junit.framework.TestCase;
+
+public class SamplingPolicyTest extends TestCase
+{
+	public void testStationary()
+	{
+		SamplingPolicy policy = new SamplingPolicy();
+		long t = 0;
+		for (; t < 60000; t += 1000)
+			policy.update(t, 0.2f, Double.NaN);
+		assertEquals(SamplingPolicy.MODE_SLOW, policy.getMode());
+		assertTrue(policy.update(t, 0.2f, Double.NaN));
+		assertEquals(SamplingPolicy.MODE_STATIONARY, policy.getMode());
+		assertTrue(policy.getInterval() > 2000);
+
+		// Noise below moving speed does not wake it up
+		assertFalse(policy.update(t + 10000, 1.2f, Double.NaN));
+		assertEquals(SamplingPolicy.MODE_STATIONARY, policy.getMode());
+		assertTrue(policy.update(t + 20000, 2f, Double.NaN));
+		assertEquals(SamplingPolicy.MODE_SLOW, policy.getMode());
+	}
+
+	public void testFastHysteresis()
+	{
+		SamplingPolicy policy = new SamplingPolicy();
+		policy.update(0, 3f, Double.NaN);
+		assertEquals(SamplingPolicy.MODE_SLOW, policy.getMode());
+		policy.update(1000, 7f, Double.NaN);
+		assertEquals(SamplingPolicy.MODE_FAST, policy.getMode());
+		policy.update(2000, 5f, Double.NaN);
+		assertEquals(SamplingPolicy.MODE_FAST, policy.getMode());
+		// Slowing down is accepted only after holding mode
+		policy.update(3000, 3f, Double.NaN);
+		assertEquals(SamplingPolicy.MODE_FAST, policy.getMode());
+		policy.update(20000, 3f, Double.NaN);
+		assertEquals(SamplingPolicy.MODE_SLOW, policy.getMode());
+	}
+
+	public void testApproach()
+	{
+		SamplingPolicy policy = new SamplingPolicy();
+		policy.setScreenOn(false);
+		policy.update(0, 1f, 1000);
+		assertEquals(SamplingPolicy.MODE_SLOW, policy.getMode());
+		long slow = policy.getInterval();
+		assertTrue(policy.update(1000, 1f, 250));
+		assertEquals(SamplingPolicy.MODE_APPROACH, policy.getMode());
+		assertTrue(policy.getInterval() < slow);
+		policy.update(20000, 1f, 400);
+		assertEquals(SamplingPolicy.MODE_APPROACH, policy.getMode());
+		policy.update(40000, 1f, 500);
+		assertEquals(SamplingPolicy.MODE_SLOW, policy.getMode());
+		policy.update(60000, 1f, Double.NaN);
+		assertEquals(SamplingPolicy.MODE_SLOW, policy.getMode());
+	}
+
+	public void testScreenAndLimit()
+	{
+		SamplingPolicy policy = new SamplingPolicy();
+		long interval = policy.getInterval();
+		assertTrue(policy.setScreenOn(false));
+		assertTrue(policy.getInterval() > interval);
+		assertTrue(policy.setMaxInterval(interval));
+		assertEquals(interval, policy.getInterval());
+		assertTrue(policy.setMaxInterval(0));
+		assertTrue(policy.setScreenOn(true));
+		assertEquals(interval, policy.getInterval());
+	}
+
+	public void testAccounting()
+	{
+		SamplingPolicy policy = new SamplingPolicy();
+		policy.update(0, 2f, Double.NaN);
+		policy.update(10000, 8f, Double.NaN);
+		policy.update(15000, 8f, Double.NaN);
+		long[] times = policy.getTimeInModes(25000);
+		long[] fixes = policy.getFixesInModes();
+		assertEquals(10000, times[SamplingPolicy.MODE_SLOW]);
+		assertEquals(15000, times[SamplingPolicy.MODE_FAST]);
+		assertEquals(2, fixes[SamplingPolicy.MODE_SLOW]);
+		assertEquals(1, fixes[SamplingPolicy.MODE_FAST]);
+	}
+}
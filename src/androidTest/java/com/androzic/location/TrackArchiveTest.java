@@ -0,0 +1,76 @@
+package com.androzic.location;
+
+import junit.framework.TestCase;
+
+public class TrackArchiveTest extends TestCase
+{
+	public void testRoundTrip()
+	{
+		TrackArchive.Encoder encoder = new TrackArchive.Encoder();
+		long time = 1420070400000L;
+		for (int i = 0; i < 1000; i++)
+		{
+			double latitude = 55.75 + i * 0.00002;
+			double longitude = -37.6 - i * 0.00001;
+			encoder.add(i % 100 != 0, latitude, longitude, 150.3 - i * 0.1, 1.25f, i % 360, 4.5f, time + i * 1000L);
+		}
+		assertEquals(1000, encoder.getCount());
+		assertEquals(time, encoder.getStartTime());
+		assertEquals(time + 999000L, encoder.getEndTime());
+		byte[] data = encoder.toByteArray();
+		// Much denser than database row
+		assertTrue(data.length < 1000 * 16);
+
+		TrackArchive.Decoder decoder = new TrackArchive.Decoder(data);
+		int i = 0;
+		while (decoder.moveToNext())
+		{
+			assertEquals(i % 100 != 0, decoder.continous);
+			assertEquals(55.75 + i * 0.00002, decoder.latitude, 1e-7);
+			assertEquals(-37.6 - i * 0.00001, decoder.longitude, 1e-7);
+			assertEquals(150.3 - i * 0.1, decoder.elevation, 0.05);
+			assertEquals(1.25f, decoder.speed, 0.005);
+			assertEquals(i % 360, decoder.bearing, 0.05);
+			assertEquals(4.5f, decoder.accuracy, 0.05);
+			assertEquals(time + i * 1000L, decoder.time);
+			i++;
+		}
+		assertEquals(1000, i);
+	}
+
+	public void testUnknownTime()
+	{
+		TrackArchive.Encoder encoder = new TrackArchive.Encoder();
+		encoder.add(true, 0, 0, 0, 0, 0, 0, 0);
+		encoder.add(true, 0, 0, 0, 0, 0, 0, 2000);
+		encoder.add(true, 0, 0, 0, 0, 0, 0, 1000);
+		assertEquals(1000, encoder.getStartTime());
+		assertEquals(2000, encoder.getEndTime());
+	}
+
+	public void testInvalidData()
+	{
+		try
+		{
+			new TrackArchive.Decoder(new byte[] {0});
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+		TrackArchive.Encoder encoder = new TrackArchive.Encoder();
+		encoder.add(true, 10, 20, 30, 0, 0, 0, 1000);
+		byte[] data = encoder.toByteArray();
+		byte[] truncated = new byte[data.length - 1];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+		TrackArchive.Decoder decoder = new TrackArchive.Decoder(truncated);
+		try
+		{
+			decoder.moveToNext();
+			fail();
+		}
+		catch (IllegalArgumentException e)
+		{
+		}
+	}
+}
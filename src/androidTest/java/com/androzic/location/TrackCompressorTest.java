@@ -0,0 +1,183 @@
+package com.androzic.location;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import android.location.Location;
+
+import junit.framework.TestCase;
+
+public class TrackCompressorTest extends TestCase
+{
+	private static final double METERS_PER_DEGREE = 111319.49;
+	private static final double LATITUDE = 55.75;
+	private static final double LONGITUDE = 37.6;
+	private static final double TOLERANCE = 5;
+
+	public void testStraightLine()
+	{
+		TrackCompressor compressor = new TrackCompressor(TOLERANCE);
+		List<Location> stored = new ArrayList<>();
+		for (int i = 0; i < 1000; i++)
+			store(stored, compressor.add(createPoint(i * 20, i * 10)));
+		store(stored, compressor.flush());
+		assertEquals(2, stored.size());
+		assertEquals(500, compressor.getRatio(), 0.1);
+	}
+
+	public void testCorner()
+	{
+		TrackCompressor compressor = new TrackCompressor(TOLERANCE);
+		List<Location> stored = new ArrayList<>();
+		for (int i = 0; i <= 50; i++)
+			store(stored, compressor.add(createPoint(i * 10, 0)));
+		for (int i = 1; i <= 50; i++)
+			store(stored, compressor.add(createPoint(500, i * 10)));
+		store(stored, compressor.flush());
+		assertEquals(3, stored.size());
+		assertEquals(500, x(stored.get(1)), 0.01);
+		assertEquals(0, y(stored.get(1)), 0.01);
+	}
+
+	public void testTurnBack()
+	{
+		TrackCompressor compressor = new TrackCompressor(TOLERANCE);
+		List<Location> stored = new ArrayList<>();
+		for (int i = 0; i <= 50; i++)
+			store(stored, compressor.add(createPoint(i * 10, 0)));
+		for (int i = 49; i >= 0; i--)
+			store(stored, compressor.add(createPoint(i * 10, 0)));
+		store(stored, compressor.flush());
+		assertEquals(3, stored.size());
+		assertEquals(500, x(stored.get(1)), 0.01);
+	}
+
+	public void testOvershoot()
+	{
+		TrackCompressor compressor = new TrackCompressor(TOLERANCE);
+		List<Location> track = new ArrayList<>();
+		List<Location> stored = new ArrayList<>();
+		for (int i = 0; i <= 10; i++)
+			track.add(createPoint(i * 10, 0));
+		// Falls back a bit short of the farthest point, slightly aside
+		track.add(createPoint(95.5, 3));
+		for (Location point : track)
+			store(stored, compressor.add(point));
+		store(stored, compressor.flush());
+		assertEquals(3, stored.size());
+		assertEquals(100, x(stored.get(1)), 0.01);
+		assertErrorBound(track, stored);
+	}
+
+	public void testErrorBound()
+	{
+		Random random = new Random(1);
+		TrackCompressor compressor = new TrackCompressor(TOLERANCE);
+		List<Location> track = new ArrayList<>();
+		List<Location> stored = new ArrayList<>();
+		double x = 0, y = 0, heading = 0;
+		for (int i = 0; i < 5000; i++)
+		{
+			heading += random.nextGaussian() * 0.2;
+			x += Math.cos(heading) * 5;
+			y += Math.sin(heading) * 5;
+			Location point = createPoint(x, y);
+			track.add(point);
+			store(stored, compressor.add(point));
+		}
+		store(stored, compressor.flush());
+		assertTrue(stored.size() < track.size() / 3);
+		assertErrorBound(track, stored);
+	}
+
+	public void testNoisyErrorBound()
+	{
+		// Slow walk with position noise comparable to tolerance
+		Random random = new Random(2);
+		TrackCompressor compressor = new TrackCompressor(TOLERANCE);
+		List<Location> track = new ArrayList<>();
+		List<Location> stored = new ArrayList<>();
+		for (int i = 0; i < 5000; i++)
+		{
+			Location point = createPoint(i * 1.5 + random.nextGaussian() * 3, random.nextGaussian() * 3);
+			track.add(point);
+			store(stored, compressor.add(point));
+		}
+		store(stored, compressor.flush());
+		assertTrue(stored.size() < track.size());
+		assertErrorBound(track, stored);
+	}
+
+	public void testPending()
+	{
+		TrackCompressor compressor = new TrackCompressor(TOLERANCE);
+		Location first = createPoint(0, 0);
+		assertTrue(compressor.add(first) == first);
+		assertNull(compressor.getPending());
+		Location second = createPoint(10, 0);
+		assertNull(compressor.add(second));
+		assertTrue(compressor.getPending() == second);
+		assertTrue(compressor.flush() == second);
+		assertNull(compressor.getPending());
+	}
+
+	public void testDisabled()
+	{
+		TrackCompressor compressor = new TrackCompressor(0);
+		for (int i = 0; i < 10; i++)
+		{
+			Location point = createPoint(i * 10, 0);
+			assertTrue(compressor.add(point) == point);
+		}
+		assertNull(compressor.flush());
+		assertEquals(1, compressor.getRatio(), 0.001);
+	}
+
+	private static void assertErrorBound(List<Location> track, List<Location> stored)
+	{
+		int segment = 0;
+		for (Location point : track)
+		{
+			if (point == stored.get(segment + 1))
+			{
+				segment++;
+				continue;
+			}
+			assertTrue(distance(point, stored.get(segment), stored.get(segment + 1)) <= TOLERANCE + 0.01);
+		}
+	}
+
+	private static void store(List<Location> stored, Location location)
+	{
+		if (location != null)
+			stored.add(location);
+	}
+
+	private static double distance(Location p, Location a, Location b)
+	{
+		double px = x(p), py = y(p), ax = x(a), ay = y(a), bx = x(b), by = y(b);
+		double dx = bx - ax, dy = by - ay;
+		double l = dx * dx + dy * dy;
+		double t = l > 0 ? Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / l)) : 0;
+		return Math.hypot(px - ax - t * dx, py - ay - t * dy);
+	}
+
+	private static double x(Location location)
+	{
+		return (location.getLongitude() - LONGITUDE) * METERS_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE));
+	}
+
+	private static double y(Location location)
+	{
+		return (location.getLatitude() - LATITUDE) * METERS_PER_DEGREE;
+	}
+
+	private static Location createPoint(double x, double y)
+	{
+		Location location = new Location("test");
+		location.setLatitude(LATITUDE + y / METERS_PER_DEGREE);
+		location.setLongitude(LONGITUDE + x / METERS_PER_DEGREE / Math.cos(Math.toRadians(LATITUDE)));
+		return location;
+	}
+}
@@ -0,0 +1,104 @@
+package com.androzic.location;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+
+import junit.framework.TestCase;
+
+public class TrackReaderTest extends TestCase
+{
+	private static final long TIME = 1420070400000L;
+
+	private SQLiteDatabase db;
+
+	@Override
+	protected void setUp()
+	{
+		db = SQLiteDatabase.create(null);
+		db.execSQL("CREATE TABLE track (_id INTEGER PRIMARY KEY, latitude REAL, longitude REAL, code INTEGER, elevation REAL, speed REAL, track REAL, accuracy REAL, datetime INTEGER)");
+		db.execSQL("CREATE TABLE archive (_id INTEGER PRIMARY KEY, starttime INTEGER, endtime INTEGER, size INTEGER, data BLOB)");
+		// Two archived partitions of 100 points and 50 points in track table
+		addPartition(0, 100);
+		addPartition(100, 100);
+		for (int i = 200; i < 250; i++)
+		{
+			ContentValues values = new ContentValues();
+			values.put("latitude", latitude(i));
+			values.put("longitude", 37.6);
+			values.put("code", 0);
+			values.put("elevation", 150);
+			values.put("speed", 1.5);
+			values.put("track", 90);
+			values.put("accuracy", 5);
+			values.put("datetime", TIME + i * 1000L);
+			db.insert("track", null, values);
+		}
+	}
+
+	@Override
+	protected void tearDown()
+	{
+		db.close();
+	}
+
+	public void testWholeTrack()
+	{
+		assertPoints(new TrackReader(db, 0), 0, 250);
+	}
+
+	public void testTrackTableTail()
+	{
+		assertPoints(new TrackReader(db, 30), 220, 250);
+	}
+
+	public void testArchivedTail()
+	{
+		// Only the last partition is needed
+		assertPoints(new TrackReader(db, 120), 130, 250);
+		assertPoints(new TrackReader(db, 1000), 0, 250);
+	}
+
+	public void testPeriod()
+	{
+		assertPoints(new TrackReader(db, TIME + 150000L, TIME + 210000L), 150, 211);
+		assertPoints(new TrackReader(db, TIME + 10000L, TIME + 20000L), 10, 21);
+	}
+
+	public void testWithoutArchive()
+	{
+		db.execSQL("DROP TABLE archive");
+		assertPoints(new TrackReader(db, 0), 200, 250);
+		assertPoints(new TrackReader(db, 1000), 200, 250);
+	}
+
+	private void addPartition(int first, int count)
+	{
+		TrackArchive.Encoder encoder = new TrackArchive.Encoder();
+		for (int i = first; i < first + count; i++)
+			encoder.add(true, latitude(i), 37.6, 150, 1.5f, 90, 5, TIME + i * 1000L);
+		ContentValues values = new ContentValues();
+		values.put("starttime", encoder.getStartTime());
+		values.put("endtime", encoder.getEndTime());
+		values.put("size", encoder.getCount());
+		values.put("data", encoder.toByteArray());
+		db.insert("archive", null, values);
+	}
+
+	private static double latitude(int i)
+	{
+		return 55.75 + i * 0.0001;
+	}
+
+	private static void assertPoints(TrackReader reader, int first, int end)
+	{
+		int i = first;
+		while (reader.moveToNext())
+		{
+			assertEquals(latitude(i), reader.latitude, 1e-7);
+			assertEquals(TIME + i * 1000L, reader.time);
+			i++;
+		}
+		reader.close();
+		assertEquals(end, i);
+	}
+}
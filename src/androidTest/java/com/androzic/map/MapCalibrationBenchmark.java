@@ -0,0 +1,78 @@
+package com.androzic.map;
+
+import android.util.Log;
+
+import com.jhlabs.Point2D;
+import com.jhlabs.map.proj.Projection;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares coordinate conversion speed of exact and affine paths, results are written to log.
+ */
+public class MapCalibrationBenchmark extends TestCase
+{
+	private static final String TAG = "MapCalibrationBenchmark";
+	private static final int WIDTH = 8000;
+	private static final int HEIGHT = 6000;
+	private static final int ITERATIONS = 200000;
+
+	public void testConversionSpeed()
+	{
+		Projection projection = MapCalibrationTest.createProjection("+proj=tmerc +lon_0=39 +k=0.9996 +x_0=500000");
+		Point2D.Double nw = new Point2D.Double(500000, 560000);
+		Point2D.Double se = new Point2D.Double(nw.x + WIDTH, nw.y - HEIGHT);
+		List<MapPoint> points = new ArrayList<>();
+		points.add(MapCalibrationTest.createPoint(projection, 0, 0, nw.x, nw.y));
+		points.add(MapCalibrationTest.createPoint(projection, WIDTH, 0, se.x, nw.y));
+		points.add(MapCalibrationTest.createPoint(projection, WIDTH, HEIGHT, se.x, se.y));
+		points.add(MapCalibrationTest.createPoint(projection, 0, HEIGHT, nw.x, se.y));
+		MapCalibration calibration = MapCalibration.create(points, projection, WIDTH, HEIGHT, MapCalibration.DEFAULT_TOLERANCE);
+		assertNotNull(calibration);
+		assertTrue(calibration.isAffine());
+
+		double[] lats = new double[1000];
+		double[] lons = new double[lats.length];
+		double[] ll = new double[2];
+		for (int i = 0; i < lats.length; i++)
+		{
+			calibration.getLatLonByXYExact(i * 7919 % WIDTH, i * 104729 % HEIGHT, ll);
+			lats[i] = ll[0];
+			lons[i] = ll[1];
+		}
+
+		int[] xy = new int[2];
+		// Warm up both paths
+		for (int i = 0; i < ITERATIONS / 10; i++)
+		{
+			calibration.getXYByLatLonExact(lats[i % lats.length], lons[i % lons.length], xy);
+			calibration.getXYByLatLon(lats[i % lats.length], lons[i % lons.length], xy);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			calibration.getXYByLatLonExact(lats[i % lats.length], lons[i % lons.length], xy);
+		long exact = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			calibration.getXYByLatLon(lats[i % lats.length], lons[i % lons.length], xy);
+		long affine = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			calibration.getLatLonByXYExact(i % WIDTH, i % HEIGHT, ll);
+		long exactInverse = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++)
+			calibration.getLatLonByXY(i % WIDTH, i % HEIGHT, ll);
+		long affineInverse = System.nanoTime() - start;
+
+		Log.i(TAG, String.format("getXYByLatLon: exact %.0f ns, affine %.0f ns", (double) exact / ITERATIONS, (double) affine / ITERATIONS));
+		Log.i(TAG, String.format("getLatLonByXY: exact %.0f ns, affine %.0f ns", (double) exactInverse / ITERATIONS, (double) affineInverse / ITERATIONS));
+	}
+}
@@ -0,0 +1,163 @@
+package com.androzic.map;
+
+import com.jhlabs.Point2D;
+import com.jhlabs.map.proj.Projection;
+import com.jhlabs.map.proj.ProjectionFactory;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that affine fast path is used only where it matches exact conversion.
+ */
+public class MapCalibrationTest extends TestCase
+{
+	private static final int WIDTH = 8000;
+	private static final int HEIGHT = 6000;
+
+	public void testLatLonMapIsAffine()
+	{
+		Projection projection = createProjection("+proj=longlat");
+		MapCalibration calibration = createCalibration(projection, 55, 37, 0.0001);
+		assertTrue(calibration.isAffine());
+		assertConsistent(calibration);
+	}
+
+	public void testSmallUtmMapIsAffine()
+	{
+		Projection projection = createProjection("+proj=tmerc +lon_0=39 +k=0.9996 +x_0=500000");
+		// About 9 by 7 kilometers
+		MapCalibration calibration = createCalibration(projection, 5, 38.5, 0.00001);
+		assertTrue(calibration.isAffine());
+		assertConsistent(calibration);
+	}
+
+	public void testLargeMercatorMapIsExact()
+	{
+		Projection projection = createProjection("+proj=merc");
+		// About 20 degrees, Mercator latitude scale changes noticeably
+		MapCalibration calibration = createCalibration(projection, 50, 30, 0.0025);
+		assertFalse(calibration.isAffine());
+		assertTrue(calibration.getMaxError() > MapCalibration.DEFAULT_TOLERANCE);
+		assertConsistent(calibration);
+	}
+
+	public void testDegeneratePoints()
+	{
+		Projection projection = createProjection("+proj=longlat");
+		List<MapPoint> points = new ArrayList<>();
+		points.add(createPoint(projection, 0, 0, 0, 0));
+		points.add(createPoint(projection, 100, 100, 1, 1));
+		points.add(createPoint(projection, 200, 200, 2, 2));
+		assertNull(MapCalibration.create(points, projection, WIDTH, HEIGHT, MapCalibration.DEFAULT_TOLERANCE));
+	}
+
+	public void testAffineFromMapConversion()
+	{
+		MapCalibration utm = createCalibration(createProjection("+proj=tmerc +lon_0=39 +k=0.9996 +x_0=500000"), 5, 38.5, 0.00001);
+		MapCalibration affine = MapCalibration.createAffine(exact(utm), WIDTH, HEIGHT, MapCalibration.DEFAULT_TOLERANCE);
+		assertNotNull(affine);
+		int[] xy = new int[2];
+		double[] ll = new double[2];
+		for (int x = 0; x <= WIDTH; x += WIDTH / 10)
+		{
+			for (int y = 0; y <= HEIGHT; y += HEIGHT / 10)
+			{
+				utm.getLatLonByXYExact(x, y, ll);
+				affine.getXYByLatLon(ll[0], ll[1], xy);
+				assertEquals(x, xy[0], 1);
+				assertEquals(y, xy[1], 1);
+			}
+		}
+
+		MapCalibration mercator = createCalibration(createProjection("+proj=merc"), 50, 30, 0.0025);
+		assertNull(MapCalibration.createAffine(exact(mercator), WIDTH, HEIGHT, MapCalibration.DEFAULT_TOLERANCE));
+	}
+
+	public void testInvert()
+	{
+		double[] a = {10, 2, 0.5, -20, -0.3, 3};
+		double[] b = MapCalibration.invert(a);
+		double u = 12.5, v = -7.25;
+		double x = a[0] + a[1] * u + a[2] * v;
+		double y = a[3] + a[4] * u + a[5] * v;
+		assertEquals(u, b[0] + b[1] * x + b[2] * y, 1e-9);
+		assertEquals(v, b[3] + b[4] * x + b[5] * y, 1e-9);
+	}
+
+	/**
+	 * Checks that both paths agree within one pixel over the map.
+	 */
+	private static void assertConsistent(MapCalibration calibration)
+	{
+		int[] xy = new int[2];
+		int[] exact = new int[2];
+		double[] ll = new double[2];
+		for (int x = 0; x <= WIDTH; x += WIDTH / 10)
+		{
+			for (int y = 0; y <= HEIGHT; y += HEIGHT / 10)
+			{
+				calibration.getLatLonByXYExact(x, y, ll);
+				calibration.getXYByLatLon(ll[0], ll[1], xy);
+				calibration.getXYByLatLonExact(ll[0], ll[1], exact);
+				assertEquals(x, exact[0], 1);
+				assertEquals(y, exact[1], 1);
+				assertEquals(exact[0], xy[0], 1);
+				assertEquals(exact[1], xy[1], 1);
+			}
+		}
+	}
+
+	private static MapCalibration.Conversion exact(final MapCalibration calibration)
+	{
+		return new MapCalibration.Conversion() {
+			@Override
+			public boolean getLatLonByXY(int x, int y, double[] ll)
+			{
+				return calibration.getLatLonByXYExact(x, y, ll);
+			}
+		};
+	}
+
+	/**
+	 * Creates calibration with four corner points, pixel size is given in degrees.
+	 */
+	private static MapCalibration createCalibration(Projection projection, double north, double west, double degreesPerPixel)
+	{
+		Point2D.Double nw = new Point2D.Double();
+		projection.transform(west, north, nw);
+		Point2D.Double se = new Point2D.Double();
+		projection.transform(west + WIDTH * degreesPerPixel, north - HEIGHT * degreesPerPixel, se);
+
+		// Calibrate in projected coordinates as OziExplorer does
+		List<MapPoint> points = new ArrayList<>();
+		points.add(createPoint(projection, 0, 0, nw.x, nw.y));
+		points.add(createPoint(projection, WIDTH, 0, se.x, nw.y));
+		points.add(createPoint(projection, WIDTH, HEIGHT, se.x, se.y));
+		points.add(createPoint(projection, 0, HEIGHT, nw.x, se.y));
+		MapCalibration calibration = MapCalibration.create(points, projection, WIDTH, HEIGHT, MapCalibration.DEFAULT_TOLERANCE);
+		assertNotNull(calibration);
+		return calibration;
+	}
+
+	static MapPoint createPoint(Projection projection, int x, int y, double e, double n)
+	{
+		Point2D.Double ll = new Point2D.Double();
+		projection.inverseTransform(new Point2D.Double(e, n), ll);
+		MapPoint point = new MapPoint();
+		point.x = x;
+		point.y = y;
+		point.lat = ll.y;
+		point.lon = ll.x;
+		return point;
+	}
+
+	static Projection createProjection(String spec)
+	{
+		Projection projection = ProjectionFactory.fromPROJ4Specification(spec.split(" "));
+		projection.initialize();
+		return projection;
+	}
+}
@@ -0,0 +1,80 @@
+package com.androzic.map;
+
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class TilePackBuilderTest extends TestCase
+{
+	public void testPixelsRoundTrip()
+	{
+		double[] xy = new double[2];
+		double[] ll = new double[2];
+		TilePackBuilder.toPixels(55.75, 37.62, 15, xy);
+		TilePackBuilder.fromPixels(xy[0], xy[1], 15, ll);
+		assertEquals(55.75, ll[0], 1e-9);
+		assertEquals(37.62, ll[1], 1e-9);
+
+		// World center is in the middle of zoom level
+		TilePackBuilder.toPixels(0, 0, 1, xy);
+		assertEquals(256, xy[0], 1e-9);
+		assertEquals(256, xy[1], 1e-9);
+	}
+
+	public void testTileNumbers()
+	{
+		// Well known tile of Moscow center
+		assertEquals(19808, TilePackBuilder.lonToTileX(37.62, 15));
+		assertEquals(10244, TilePackBuilder.latToTileY(55.75, 15));
+		// Coordinates out of mercator range are clamped
+		assertEquals(0, TilePackBuilder.latToTileY(89.9, 3));
+		assertEquals(7, TilePackBuilder.latToTileY(-89.9, 3));
+		assertEquals(7, TilePackBuilder.lonToTileX(180, 3));
+	}
+
+	public void testGroundResolution()
+	{
+		assertEquals(156543.03, TilePackBuilder.groundResolution(0, 0), 0.01);
+		assertEquals(156543.03 / 2 / 1024, TilePackBuilder.groundResolution(60, 10), 0.01);
+	}
+
+	public void testSelectArea()
+	{
+		Set<Long> tiles = TilePackBuilder.selectArea(55.7, 37.5, 55.8, 37.7, 12);
+		int x1 = TilePackBuilder.lonToTileX(37.5, 12), x2 = TilePackBuilder.lonToTileX(37.7, 12);
+		int y1 = TilePackBuilder.latToTileY(55.8, 12), y2 = TilePackBuilder.latToTileY(55.7, 12);
+		assertEquals((x2 - x1 + 1) * (y2 - y1 + 1), tiles.size());
+		assertTrue(tiles.contains(TilePackBuilder.key(x1, y1)));
+		assertTrue(tiles.contains(TilePackBuilder.key(x2, y2)));
+	}
+
+	public void testSelectRoute()
+	{
+		double[][] route = {{55.75, 37.5}, {55.75, 37.7}};
+		Set<Long> tiles = TilePackBuilder.selectRoute(route, 10, 14);
+		int y = TilePackBuilder.latToTileY(55.75, 14);
+		int x1 = TilePackBuilder.lonToTileX(37.5, 14), x2 = TilePackBuilder.lonToTileX(37.7, 14);
+		// Narrow corridor along parallel covers one row unless it is close to tile edge
+		for (int x = x1; x <= x2; x++)
+			assertTrue(tiles.contains(TilePackBuilder.key(x, y)));
+		assertTrue(tiles.size() <= (x2 - x1 + 1) * 2);
+		// Wide corridor covers neighbour rows
+		tiles = TilePackBuilder.selectRoute(route, 5000, 14);
+		assertTrue(tiles.contains(TilePackBuilder.key(x1, y - 1)));
+		assertTrue(tiles.contains(TilePackBuilder.key(x2, y + 1)));
+	}
+
+	public void testKey()
+	{
+		long key = TilePackBuilder.key(123456, 654321);
+		assertEquals(123456, (int) (key >>> 32));
+		assertEquals(654321, (int) key);
+	}
+
+	public void testSourceSize()
+	{
+		assertEquals(208, TilePackBuilder.getSourceSize(0, 200));
+		// Always even
+		assertEquals(210, TilePackBuilder.getSourceSize(0, 201));
+	}
+}
@@ -0,0 +1,113 @@
+package com.androzic.map.forge;
+
+import android.app.Application;
+import android.os.Environment;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.android.graphics.AndroidGraphicFactory;
+import org.mapsforge.map.layer.cache.InMemoryTileCache;
+import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.reader.MapFile;
+import org.mapsforge.map.reader.MultiMapDataStore;
+import org.mapsforge.map.rendertheme.InternalRenderTheme;
+import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures vector tile rendering throughput against the number of rendering threads.
+ * Put .map files to Androzic/benchmark folder on external storage, results are written to log.
+ */
+public class RenderThreadsBenchmark extends AndroidTestCase
+{
+	private static final String TAG = "RenderThreadsBenchmark";
+	private static final byte ZOOM = 14;
+	private static final int TILES = 12;
+
+	public void testRenderThreads() throws Exception
+	{
+		File folder = new File(Environment.getExternalStorageDirectory(), "Androzic/benchmark");
+		File[] files = folder.listFiles();
+		if (files == null)
+		{
+			Log.w(TAG, "No maps in " + folder.getAbsolutePath() + ", benchmark skipped");
+			return;
+		}
+
+		AndroidGraphicFactory.createInstance((Application) getContext().getApplicationContext());
+
+		MultiMapDataStore mapDataStore = new MultiMapDataStore(MultiMapDataStore.DataPolicy.RETURN_ALL);
+		for (File file : files)
+			if (file.getName().endsWith(".map"))
+				mapDataStore.addMapDataStore(new MapFile(file), false, false);
+
+		DisplayModel displayModel = new DisplayModel();
+		RenderThemeFuture renderTheme = new RenderThemeFuture(AndroidGraphicFactory.INSTANCE, InternalRenderTheme.OSMARENDER, displayModel);
+		renderTheme.run();
+
+		// Fixed set of tiles around data center
+		LatLong center = mapDataStore.boundingBox().getCenterPoint();
+		int tileSize = displayModel.getTileSize();
+		int cx = MercatorProjection.longitudeToTileX(center.longitude, ZOOM);
+		int cy = MercatorProjection.latitudeToTileY(center.latitude, ZOOM);
+		List<Tile> tiles = new ArrayList<>();
+		for (int x = cx - TILES / 2; x < cx + TILES / 2; x++)
+			for (int y = cy - TILES / 2; y < cy + TILES / 2; y++)
+				tiles.add(new Tile(x, y, ZOOM, tileSize));
+
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads <= cores; threads++)
+		{
+			// Text scale is varied to avoid hitting renderer label cache of previous run
+			float textScale = 1f + threads * 0.001f;
+			double rate = render(mapDataStore, renderTheme, displayModel, textScale, tiles, threads);
+			Log.i(TAG, String.format("%d thread(s): %.1f tiles/s", threads, rate));
+		}
+
+		mapDataStore.close();
+	}
+
+	private double render(final MultiMapDataStore mapDataStore, final RenderThemeFuture renderTheme, final DisplayModel displayModel, final float textScale, final List<Tile> tiles, int threads) throws InterruptedException
+	{
+		final AtomicInteger next = new AtomicInteger();
+		final InMemoryTileCache tileCache = new InMemoryTileCache(tiles.size());
+		Thread[] workers = new Thread[threads];
+
+		long start = System.nanoTime();
+		for (int i = 0; i < threads; i++)
+		{
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					DatabaseRenderer renderer = new DatabaseRenderer(mapDataStore, AndroidGraphicFactory.INSTANCE, tileCache);
+					int n;
+					while ((n = next.getAndIncrement()) < tiles.size())
+					{
+						RendererJob job = new RendererJob(tiles.get(n), mapDataStore, renderTheme, displayModel, textScale, false, false);
+						TileBitmap bitmap = renderer.executeJob(job);
+						if (bitmap != null)
+							bitmap.decrementRefCount();
+					}
+				}
+			});
+			workers[i].start();
+		}
+		for (Thread worker : workers)
+			worker.join();
+		long elapsed = System.nanoTime() - start;
+
+		tileCache.destroy();
+		return tiles.size() * 1e9 / elapsed;
+	}
+}
@@ -0,0 +1,202 @@
+package com.androzic.map.online;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Tests tile server selection against local stand-in servers with artificial delays.
+ */
+public class TileServerSelectorTest extends TestCase
+{
+	private StandInServer fast;
+	private StandInServer slow;
+	private StandInServer failing;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		fast = new StandInServer(10, 200);
+		slow = new StandInServer(300, 200);
+		failing = new StandInServer(10, 500);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		fast.close();
+		slow.close();
+		failing.close();
+	}
+
+	public void testTemplate()
+	{
+		TileUriTemplate template = new TileUriTemplate("http://{s}.tile.example.org/{z}/{x}/{y}.png?key=1");
+		assertEquals("http://b.tile.example.org/12/2345/1234.png?key=1", template.build("b", 2345, 1234, (byte) 12));
+	}
+
+	public void testPrefersFastestHealthyServer()
+	{
+		TileServerSelector selector = createSelector();
+		selector.probe();
+
+		assertTrue(selector.getLatency(1) > selector.getLatency(0));
+		assertFalse(selector.isHealthy(2));
+		assertEquals(1., selector.getErrorRate(2));
+
+		int[] counts = new int[3];
+		for (int i = 0; i < 100; i++)
+			counts[selector.select()]++;
+		assertEquals(0, counts[2]);
+		assertTrue(counts[0] > counts[1]);
+	}
+
+	public void testBacksOffFailingServer()
+	{
+		TileServerSelector selector = createSelector();
+		selector.report(0, 10, false);
+		selector.report(1, 10, false);
+		selector.report(2, 10, true);
+		for (int i = 0; i < 10; i++)
+			assertEquals(2, selector.select());
+		selector.report(2, 10, false);
+		selector.report(2, 10, false);
+		// All servers fail, the one with the shortest backoff is used
+		int server = selector.select();
+		assertTrue(server == 0 || server == 1);
+	}
+
+	public void testPrefersReliableServer()
+	{
+		TileServerSelector selector = createSelector();
+		for (int i = 0; i < 20; i++)
+		{
+			selector.report(0, 100, true);
+			selector.report(1, 100, i % 2 == 0);
+			selector.report(2, 100, true);
+		}
+		// Keep second server out of backoff
+		selector.report(1, 100, true);
+		assertTrue(selector.getErrorRate(1) > 0.3);
+
+		int[] counts = new int[3];
+		for (int i = 0; i < 1000; i++)
+			counts[selector.select()]++;
+		assertTrue(counts[1] > 0);
+		assertTrue(counts[0] > counts[1]);
+		assertTrue(counts[2] > counts[1]);
+	}
+
+	public void testTracksTileDownloads()
+	{
+		TileServerSelector selector = createSelector();
+		selector.report(0, 100, true);
+		selector.report(1, 10000, true);
+		selector.report(2, 10000, true);
+
+		String uri = selector.getTileUri(1, 2, (byte) 3);
+		int server = uri.startsWith("http://127.0.0.1:" + fast.getPort()) ? 0 : uri.startsWith("http://127.0.0.1:" + slow.getPort()) ? 1 : 2;
+		assertTrue(selector.isHealthy(server));
+		// Next request without report means that previous download has failed
+		selector.getTileUri(1, 2, (byte) 3);
+		assertFalse(selector.isHealthy(server));
+		selector.onTileDownloaded();
+
+		for (int i = 0; i < 5; i++)
+		{
+			selector.getTileUri(i, 0, (byte) 3);
+			selector.onTileDownloaded();
+		}
+		assertTrue(selector.getErrorRate(0) < 1);
+	}
+
+	public void testTracksDownloadsPerThread() throws InterruptedException
+	{
+		final TileServerSelector selector = createSelector();
+		selector.getTileUri(0, 0, (byte) 3);
+		// Another loader thread does not complete download of this one
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				selector.getTileUri(1, 0, (byte) 3);
+				selector.onTileDownloaded();
+			}
+		});
+		thread.start();
+		thread.join();
+		selector.onTileDownloaded();
+		for (int i = 0; i < 3; i++)
+		{
+			assertTrue(selector.isHealthy(i));
+			assertEquals(0., selector.getErrorRate(i));
+		}
+	}
+
+	private TileServerSelector createSelector()
+	{
+		TileUriTemplate template = new TileUriTemplate("http://127.0.0.1:{s}/{z}/{x}/{y}.png");
+		// Background probing is disabled so that it does not interfere with reported results
+		return new TileServerSelector(template, new String[] {fast.getPort(), slow.getPort(), failing.getPort()}, 0);
+	}
+
+	private static class StandInServer implements Runnable
+	{
+		private final ServerSocket socket;
+		private final long delay;
+		private final int status;
+
+		StandInServer(long delay, int status) throws IOException
+		{
+			this.delay = delay;
+			this.status = status;
+			socket = new ServerSocket(0);
+			Thread thread = new Thread(this);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		String getPort()
+		{
+			return String.valueOf(socket.getLocalPort());
+		}
+
+		void close() throws IOException
+		{
+			socket.close();
+		}
+
+		@Override
+		public void run()
+		{
+			while (!socket.isClosed())
+			{
+				try
+				{
+					Socket client = socket.accept();
+					InputStream in = client.getInputStream();
+					// Read request headers
+					int b, n = 0;
+					while ((b = in.read()) != -1)
+					{
+						n = b == '\r' || b == '\n' ? n + 1 : 0;
+						if (n == 4)
+							break;
+					}
+					Thread.sleep(delay);
+					OutputStream out = client.getOutputStream();
+					out.write(("HTTP/1.0 " + status + " Stand-in\r\nContent-Length: 4\r\nConnection: close\r\n\r\ntile").getBytes());
+					out.flush();
+					client.close();
+				}
+				catch (IOException | InterruptedException ignore)
+				{
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package com.androzic.track;
+
+import com.androzic.data.Track;
+
+import junit.framework.TestCase;
+
+public class TrackStatisticsTest extends TestCase
+{
+	private static final double METERS_PER_DEGREE = 111319.49;
+	private static final double LATITUDE = 55.75;
+	private static final double LONGITUDE = 37.6;
+
+	public void testMovement()
+	{
+		TrackStatistics statistics = new TrackStatistics();
+		// Ten minutes at 2 m/s, then ten minutes standing still
+		for (int i = 0; i <= 600; i++)
+			statistics.addPoint(true, LATITUDE + i * 2 / METERS_PER_DEGREE, LONGITUDE, 0, (i + 1) * 1000L);
+		for (int i = 601; i <= 1200; i++)
+			statistics.addPoint(true, LATITUDE + 1200 / METERS_PER_DEGREE, LONGITUDE, 0, (i + 1) * 1000L);
+
+		assertEquals(1201, statistics.pointCount);
+		assertEquals(1, statistics.segmentCount);
+		assertEquals(1200, statistics.distance, 5);
+		assertEquals(1200000, statistics.totalTime);
+		assertEquals(600000, statistics.movingTime, 1000);
+		assertEquals(2, statistics.getMovingSpeed(), 0.05);
+		assertEquals(1, statistics.getAverageSpeed(), 0.05);
+		assertEquals(2, statistics.maxSpeed, 0.05);
+		assertFalse(statistics.hasElevation());
+	}
+
+	public void testSegments()
+	{
+		TrackStatistics statistics = new TrackStatistics();
+		statistics.addPoint(true, LATITUDE, LONGITUDE, 0, 1000);
+		statistics.addPoint(true, LATITUDE + 100 / METERS_PER_DEGREE, LONGITUDE, 0, 101000);
+		// Gap between segments is not counted
+		statistics.addPoint(false, LATITUDE + 1000 / METERS_PER_DEGREE, LONGITUDE, 0, 1000000);
+		statistics.addPoint(true, LATITUDE + 1100 / METERS_PER_DEGREE, LONGITUDE, 0, 1100000);
+		assertEquals(2, statistics.segmentCount);
+		assertEquals(200, statistics.distance, 1);
+		assertEquals(200000, statistics.totalTime);
+		assertEquals(1000, statistics.startTime);
+		assertEquals(1100000, statistics.endTime);
+	}
+
+	public void testElevationHysteresis()
+	{
+		TrackStatistics statistics = new TrackStatistics();
+		double[] elevations = {100, 102, 99, 101, 98, 103, 104, 110, 120, 118, 121, 112, 100, 103};
+		for (int i = 0; i < elevations.length; i++)
+			statistics.addPoint(true, LATITUDE, LONGITUDE + i / METERS_PER_DEGREE, elevations[i], i * 1000L);
+		// Noise below threshold is ignored: 100 -> 110 -> 120 -> 112 -> 100
+		assertEquals(20, statistics.elevationGain, 0.001);
+		assertEquals(20, statistics.elevationLoss, 0.001);
+		assertEquals(98, statistics.minElevation, 0.001);
+		assertEquals(121, statistics.maxElevation, 0.001);
+	}
+
+	public void testPersistence()
+	{
+		TrackStatistics statistics = new TrackStatistics();
+		for (int i = 0; i < 10; i++)
+			statistics.addPoint(true, LATITUDE + i * 3 / METERS_PER_DEGREE, LONGITUDE, 100 + i * 2, i * 1000L);
+		TrackStatistics restored = TrackStatistics.fromByteArray(statistics.toByteArray());
+		assertNotNull(restored);
+		// Restored statistics continues accumulation seamlessly
+		statistics.addPoint(true, LATITUDE + 30 / METERS_PER_DEGREE, LONGITUDE, 130, 10000);
+		restored.addPoint(true, LATITUDE + 30 / METERS_PER_DEGREE, LONGITUDE, 130, 10000);
+		assertEquals(statistics.pointCount, restored.pointCount);
+		assertEquals(statistics.distance, restored.distance, 0);
+		assertEquals(statistics.elevationGain, restored.elevationGain, 0);
+		assertEquals(statistics.movingTime, restored.movingTime);
+		assertNull(TrackStatistics.fromByteArray(new byte[] {0, 0, 0, 0}));
+	}
+
+	public void testCachedStatistics()
+	{
+		Track track = new Track();
+		for (int i = 0; i < 10; i++)
+			track.addPoint(true, LATITUDE + i * 10 / METERS_PER_DEGREE, LONGITUDE, 0, 0, 0, 0, (i + 1) * 1000L);
+		assertEquals(90, TrackStatistics.of(track).distance, 0.5);
+
+		// Appended points are accounted, including new segment
+		track.addPoint(true, LATITUDE + 100 / METERS_PER_DEGREE, LONGITUDE, 0, 0, 0, 0, 11000);
+		track.addPoint(false, LATITUDE + 1000 / METERS_PER_DEGREE, LONGITUDE, 0, 0, 0, 0, 100000);
+		track.addPoint(true, LATITUDE + 1010 / METERS_PER_DEGREE, LONGITUDE, 0, 0, 0, 0, 101000);
+		TrackStatistics statistics = TrackStatistics.of(track);
+		assertEquals(13, statistics.pointCount);
+		assertEquals(2, statistics.segmentCount);
+		assertEquals(110, statistics.distance, 0.5);
+
+		// Points edited in place are accounted after invalidation
+		track.getPoint(5).latitude = LATITUDE + 100 / METERS_PER_DEGREE;
+		TrackStatistics.invalidate(track);
+		assertEquals(190, TrackStatistics.of(track).distance, 0.5);
+	}
+}
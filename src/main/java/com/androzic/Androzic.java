@@ -66,6 +66,8 @@ import com.androzic.data.Route;
 import com.androzic.data.Track;
 import com.androzic.data.Waypoint;
 import com.androzic.data.WaypointSet;
+import com.androzic.dem.ElevationProfileService;
+import com.androzic.dem.ElevationService;
 import com.androzic.location.ILocationListener;
 import com.androzic.location.ILocationService;
 import com.androzic.location.LocationService;
@@ -75,6 +77,7 @@ import com.androzic.map.MapIndex;
 import com.androzic.map.MockMap;
 import com.androzic.map.ozf.OzfDecoder;
 import com.androzic.map.forge.ForgeMap;
+import com.androzic.map.online.MonitoredOnlineMap;
 import com.androzic.map.online.OnlineMap;
 import com.androzic.map.online.OpenStreetMapTileProvider;
 import com.androzic.map.online.TileFactory;
@@ -211,6 +214,8 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 	public String iconPath;
 	public String markerPath;
 	private File cacheDir;
+	private ElevationService elevationService;
+	private ElevationProfileService elevationProfileService;
 	public boolean mapsInited = false;
 	private MapHolder mapHolder;
 	protected OverlayManager overlayManager;
@@ -1403,7 +1408,11 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 			}
 			if (selectedProviders.contains(map.code) && map.instance == null)
 			{
-				OnlineMap onlineMap = new OnlineMap(map, zoom);
+				OnlineMap onlineMap;
+				if (map instanceof OpenStreetMapTileProvider)
+					onlineMap = new MonitoredOnlineMap(map, zoom, ((OpenStreetMapTileProvider) map).getServerSelector());
+				else
+					onlineMap = new OnlineMap(map, zoom);
 				onlineMap.setPrescaleFactor(onlineMapPrescaleFactor);
 				maps.addMap(onlineMap);
 				map.instance = onlineMap;
@@ -1888,6 +1897,28 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 	public void setRootPath(String path)
 	{
 		rootPath = path;
+		synchronized (this)
+		{
+			elevationService = null;
+			elevationProfileService = null;
+		}
+	}
+
+	/**
+	 * Returns application wide elevation data source. DEM (.hgt) files are looked up in "dem" folder under root folder.
+	 */
+	public synchronized ElevationService getElevationService()
+	{
+		if (elevationService == null)
+			elevationService = new ElevationService(new File(rootPath, "dem"));
+		return elevationService;
+	}
+
+	public synchronized ElevationProfileService getElevationProfileService()
+	{
+		if (elevationProfileService == null)
+			elevationProfileService = new ElevationProfileService(getElevationService(), getUIHandler());
+		return elevationProfileService;
 	}
 
 	@Override
@@ -2490,6 +2521,10 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 			ForgeMap.textScale = Float.parseFloat(sharedPreferences.getString(getString(R.string.pref_vectormap_textscale), "1.0"));
 			ForgeMap.onRenderThemeChanged();
 		}
+		else if (getString(R.string.pref_vectormap_renderthreads).equals(key))
+		{
+			ForgeMap.setRenderThreads(sharedPreferences.getInt(key, resources.getInteger(R.integer.def_vectormaprenderthreads)));
+		}
 		else if (getString(R.string.pref_onlinemap).equals(key) || getString(R.string.pref_onlinemapscale).equals(key))
 		{
 			setOnlineMaps(sharedPreferences.getString(getString(R.string.pref_onlinemap), resources.getString(R.string.def_onlinemap)));
@@ -2541,6 +2576,10 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 		{
 			overlayManager.setAccuracyOverlayEnabled(sharedPreferences.getBoolean(key, true));
 		}
+		else if (getString(R.string.pref_showhillshade).equals(key))
+		{
+			overlayManager.setHillShadeOverlayEnabled(sharedPreferences.getBoolean(key, resources.getBoolean(R.bool.def_showhillshade)));
+		}
 		else if (getString(R.string.pref_showdistance_int).equals(key))
 		{
 			int showDistance = Integer.parseInt(sharedPreferences.getString(key, getString(R.string.def_showdistance)));
@@ -2662,6 +2701,7 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 		onSharedPreferenceChanged(settings, getString(R.string.pref_unitsunrise));
 		onSharedPreferenceChanged(settings, getString(R.string.pref_mapadjacent));
 		onSharedPreferenceChanged(settings, getString(R.string.pref_vectormap_textscale));
+		onSharedPreferenceChanged(settings, getString(R.string.pref_vectormap_renderthreads));
 		onSharedPreferenceChanged(settings, getString(R.string.pref_onlinemapprescalefactor));
 		onSharedPreferenceChanged(settings, getString(R.string.pref_onlinemapexpiration));
 		onSharedPreferenceChanged(settings, getString(R.string.pref_mapcropborder));
@@ -2669,6 +2709,7 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 		onSharedPreferenceChanged(settings, getString(R.string.pref_showwaypoints));
 		onSharedPreferenceChanged(settings, getString(R.string.pref_showcurrenttrack));
 		onSharedPreferenceChanged(settings, getString(R.string.pref_showaccuracy));
+		onSharedPreferenceChanged(settings, getString(R.string.pref_showhillshade));
 		onSharedPreferenceChanged(settings, getString(R.string.pref_showdistance_int));
 
 		settings.registerOnSharedPreferenceChangeListener(this);
@@ -2784,6 +2825,15 @@ public class Androzic extends BaseApplication implements OnSharedPreferenceChang
 		Log.w(TAG, "  finished clearing");
 	}
 
+	/**
+	 * Returns string identifying selected render theme style and overlays.
+	 */
+	public String getRenderThemeStyle()
+	{
+		SharedPreferences settings = PreferenceManager.getDefaultSharedPreferences(this);
+		return settings.getString(getString(R.string.pref_vectormap_theme), "") + "|" + settings.getString(getString(R.string.pref_vectormap_poi), "---");
+	}
+
 	@Override
 	public Set<String> getCategories(XmlRenderThemeStyleMenu menuStyle)
 	{
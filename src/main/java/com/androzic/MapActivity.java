@@ -36,6 +36,7 @@ import android.widget.SeekBar;
 import android.widget.TextView;
 
 import com.androzic.data.Track;
+import com.androzic.track.TrackStatistics;
 import com.androzic.util.StringFormatter;
 
 public class MapActivity extends AppCompatActivity implements View.OnClickListener, SeekBar.OnSeekBarChangeListener
@@ -198,6 +199,7 @@ public class MapActivity extends AppCompatActivity implements View.OnClickListen
 				trackBar.setProgress(na);
 				break;
 			case R.id.finishtrackedit:
+				TrackStatistics.invalidate(application.editingTrack);
 				application.editingTrack.editing = false;
 				application.editingTrack.editingPos = -1;
 				application.editingTrack = null;
@@ -34,7 +34,6 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.os.Bundle;
 import android.os.Environment;
@@ -58,6 +57,7 @@ import android.widget.TextView;
 
 import com.androzic.data.Route;
 import com.androzic.data.Track;
+import com.androzic.location.TrackReader;
 import com.androzic.overlay.CurrentTrackOverlay;
 import com.androzic.util.AutoloadedRouteFilenameFilter;
 import com.androzic.util.FileList;
@@ -390,33 +390,23 @@ public class Splash extends Activity implements OnClickListener
 				if (settings.getBoolean(getString(R.string.pref_tracking_currentload), resources.getBoolean(R.bool.def_tracking_currentload)))
 				{
 					int length = Integer.parseInt(settings.getString(getString(R.string.pref_tracking_currentlength), getString(R.string.def_tracking_currentlength)));
-					// TODO Move this to proper class
 					File path = new File(application.dataPath, "myTrack.db");
 					try
 					{
 						SQLiteDatabase trackDB = SQLiteDatabase.openDatabase(path.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
-						Cursor cursor = trackDB.rawQuery("SELECT * FROM track ORDER BY _id DESC LIMIT " + length, null);
-						if (cursor.getCount() > 0)
+						try
 						{
-							Track track = new Track();
-							for (boolean hasItem = cursor.moveToLast(); hasItem; hasItem = cursor.moveToPrevious())
+							Track track = new TrackReader(trackDB, length).readTo(new Track());
+							if (track.getPointCount() > 0)
 							{
-								double latitude = cursor.getDouble(cursor.getColumnIndex("latitude"));
-								double longitude = cursor.getDouble(cursor.getColumnIndex("longitude"));
-								double altitude = cursor.getDouble(cursor.getColumnIndex("elevation"));
-								double speed = cursor.getDouble(cursor.getColumnIndex("speed"));
-								double bearing = cursor.getDouble(cursor.getColumnIndex("track"));
-								double accuracy = cursor.getDouble(cursor.getColumnIndex("accuracy"));
-								int code = cursor.getInt(cursor.getColumnIndex("code"));
-								long time = cursor.getLong(cursor.getColumnIndex("datetime"));
-								boolean continous = cursor.isFirst() || cursor.isLast() ? false : code == 0;
-								track.addPoint(continous, latitude, longitude, altitude, speed, bearing, accuracy, time);
+								track.show = true;
+								application.overlayManager.currentTrackOverlay.setTrack(track);
 							}
-							track.show = true;
-							application.overlayManager.currentTrackOverlay.setTrack(track);
 						}
-						cursor.close();
-						trackDB.close();
+						finally
+						{
+							trackDB.close();
+						}
 					}
 					catch (Exception e)
 					{
@@ -0,0 +1,64 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.dem;
+
+/**
+ * Elevation profile of a track or route. Profile points are downsampled for display,
+ * statistics are calculated on full resolution profile.
+ */
+public class ElevationProfile
+{
+	/**
+	 * Distance of each profile point from the start, in meters
+	 */
+	public final float[] distances;
+	/**
+	 * Elevation of each profile point, in meters
+	 */
+	public final float[] elevations;
+	/**
+	 * Total length of the path, in meters
+	 */
+	public final double length;
+	public final double ascent;
+	public final double descent;
+	public final double minElevation;
+	public final double maxElevation;
+
+	ElevationProfile(float[] distances, float[] elevations, double length, double ascent, double descent, double minElevation, double maxElevation)
+	{
+		this.distances = distances;
+		this.elevations = elevations;
+		this.length = length;
+		this.ascent = ascent;
+		this.descent = descent;
+		this.minElevation = minElevation;
+		this.maxElevation = maxElevation;
+	}
+
+	/**
+	 * Returns true if profile contains any elevation data.
+	 */
+	public boolean hasData()
+	{
+		return elevations.length > 0;
+	}
+}
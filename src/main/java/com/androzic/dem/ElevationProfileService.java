@@ -0,0 +1,496 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.dem;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.Process;
+
+import com.androzic.data.Route;
+import com.androzic.data.Track;
+import com.androzic.data.Waypoint;
+import com.androzic.util.Geo;
+
+/**
+ * Calculates elevation profiles of tracks and routes from DEM in background. Path is sampled
+ * at resolution of DEM it crosses, long paths are sampled sparser to limit number of samples.
+ * Track points recorded elevation is used where DEM has no data. Profiles are cached per object
+ * and recalculated only if object geometry changes.
+ */
+public class ElevationProfileService
+{
+	public interface OnElevationProfileListener
+	{
+		/**
+		 * Called on UI thread when profile is ready.
+		 */
+		void onElevationProfileReady(Object source, ElevationProfile profile);
+	}
+
+	/**
+	 * Sample spacing, in meters, used if path does not cross DEM, close to resolution of the best DEM
+	 */
+	static final double DEFAULT_SPACING = 30;
+	static final int MAX_SAMPLES = 10000;
+	/**
+	 * Number of path vertices probed for DEM resolution
+	 */
+	private static final int RESOLUTION_PROBES = 64;
+	static final int DISPLAY_POINTS = 300;
+	/**
+	 * Elevation changes smaller than this are considered noise when calculating ascent and descent
+	 */
+	private static final double ELEVATION_THRESHOLD = 5;
+
+	private final ElevationService elevationService;
+	private final Handler handler;
+	private final ExecutorService executor;
+	private final Map<Object, CacheEntry> cache = new WeakHashMap<>();
+	private final Map<Object, Future<?>> tasks = new HashMap<>();
+
+	public ElevationProfileService(ElevationService elevationService, Handler handler)
+	{
+		this.elevationService = elevationService;
+		this.handler = handler;
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r)
+			{
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run()
+					{
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "ElevationProfile");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Requests elevation profile of a track. Listener is called immediately if profile is cached.
+	 */
+	public void getProfile(Track track, OnElevationProfileListener listener)
+	{
+		Geometry geometry;
+		synchronized (track)
+		{
+			List<Track.TrackSegment> segments = track.getSegments();
+			geometry = new Geometry(segments.size());
+			for (int i = 0; i < segments.size(); i++)
+			{
+				Track.TrackSegment segment = segments.get(i);
+				synchronized (segment)
+				{
+					List<Track.TrackPoint> points = segment.getPoints();
+					geometry.setPart(i, points.size());
+					for (int j = 0; j < points.size(); j++)
+					{
+						Track.TrackPoint tp = points.get(j);
+						geometry.setPoint(i, j, tp.latitude, tp.longitude, tp.elevation != 0 ? tp.elevation : Double.NaN);
+					}
+				}
+			}
+		}
+		getProfile(track, geometry, listener);
+	}
+
+	/**
+	 * Requests elevation profile of a route. Listener is called immediately if profile is cached.
+	 */
+	public void getProfile(Route route, OnElevationProfileListener listener)
+	{
+		Geometry geometry = new Geometry(1);
+		synchronized (route)
+		{
+			List<Waypoint> waypoints = route.getWaypoints();
+			geometry.setPart(0, waypoints.size());
+			for (int i = 0; i < waypoints.size(); i++)
+			{
+				Waypoint wpt = waypoints.get(i);
+				geometry.setPoint(0, i, wpt.latitude, wpt.longitude, Double.NaN);
+			}
+		}
+		getProfile(route, geometry, listener);
+	}
+
+	/**
+	 * Returns cached profile regardless of object changes or null if there is no profile.
+	 */
+	public synchronized ElevationProfile getCachedProfile(Object source)
+	{
+		CacheEntry entry = cache.get(source);
+		return entry != null ? entry.profile : null;
+	}
+
+	/**
+	 * Cancels profile calculation, listener will not be called.
+	 */
+	public synchronized void cancel(Object source)
+	{
+		Future<?> task = tasks.remove(source);
+		if (task != null)
+			task.cancel(true);
+	}
+
+	/**
+	 * Clears cached profiles, should be called when DEM files are added.
+	 */
+	public synchronized void clear()
+	{
+		cache.clear();
+	}
+
+	private synchronized void getProfile(final Object source, final Geometry geometry, final OnElevationProfileListener listener)
+	{
+		CacheEntry entry = cache.get(source);
+		if (entry != null && entry.signature == geometry.signature)
+		{
+			final ElevationProfile profile = entry.profile;
+			handler.post(new Runnable() {
+				@Override
+				public void run()
+				{
+					listener.onElevationProfileReady(source, profile);
+				}
+			});
+			return;
+		}
+
+		cancel(source);
+		Future<?> task = executor.submit(new Runnable() {
+			@Override
+			public void run()
+			{
+				final ElevationProfile profile = calculateProfile(elevationService, geometry);
+				if (profile == null)
+					return;
+				synchronized (ElevationProfileService.this)
+				{
+					if (Thread.currentThread().isInterrupted())
+						return;
+					tasks.remove(source);
+					cache.put(source, new CacheEntry(geometry.signature, profile));
+				}
+				handler.post(new Runnable() {
+					@Override
+					public void run()
+					{
+						listener.onElevationProfileReady(source, profile);
+					}
+				});
+			}
+		});
+		tasks.put(source, task);
+	}
+
+	/**
+	 * Calculates elevation profile.
+	 *
+	 * @return profile or null if calculation was interrupted
+	 */
+	static ElevationProfile calculateProfile(ElevationService elevationService, Geometry geometry)
+	{
+		// Calculate path length to select sample spacing
+		double length = 0;
+		int count = 0;
+		for (int i = 0; i < geometry.latitudes.length; i++)
+		{
+			double[] lats = geometry.latitudes[i];
+			double[] lons = geometry.longitudes[i];
+			for (int j = 1; j < lats.length; j++)
+				length += Geo.distance(lats[j - 1], lons[j - 1], lats[j], lons[j]);
+			count += lats.length;
+		}
+		double spacing = Math.max(getResolution(elevationService, geometry, count), length / MAX_SAMPLES);
+
+		// Sample path evenly, path vertices are used only as part ends
+		SampleBuffer samples = new SampleBuffer((int) (length / spacing) + geometry.latitudes.length * 2 + 1);
+		double distance = 0;
+		for (int i = 0; i < geometry.latitudes.length; i++)
+		{
+			double[] lats = geometry.latitudes[i];
+			double[] lons = geometry.longitudes[i];
+			double[] elevations = geometry.elevations[i];
+			if (lats.length == 0)
+				continue;
+			samples.add(lats[0], lons[0], elevations[0], distance);
+			double next = distance + spacing;
+			for (int j = 1; j < lats.length; j++)
+			{
+				double d = Geo.distance(lats[j - 1], lons[j - 1], lats[j], lons[j]);
+				while (next < distance + d)
+				{
+					double t = (next - distance) / d;
+					samples.add(lats[j - 1] + (lats[j] - lats[j - 1]) * t, lons[j - 1] + (lons[j] - lons[j - 1]) * t,
+							elevations[j - 1] + (elevations[j] - elevations[j - 1]) * t, next);
+					next += spacing;
+				}
+				distance += d;
+				if ((j & 0x3ff) == 0 && Thread.currentThread().isInterrupted())
+					return null;
+			}
+			int last = lats.length - 1;
+			if (last > 0)
+				samples.add(lats[last], lons[last], elevations[last], distance);
+		}
+		if (Thread.currentThread().isInterrupted())
+			return null;
+		samples.trim();
+
+		int n = samples.size;
+		float[] dem = new float[n];
+		elevationService.getElevations(samples.latitudes, samples.longitudes, dem);
+		if (Thread.currentThread().isInterrupted())
+			return null;
+
+		// Merge DEM data with recorded elevations and drop unknown samples
+		int m = 0;
+		float[] profileDistances = new float[n];
+		float[] profileElevations = new float[n];
+		for (int i = 0; i < n; i++)
+		{
+			double e = Float.isNaN(dem[i]) ? samples.elevations[i] : dem[i];
+			if (Double.isNaN(e))
+				continue;
+			profileDistances[m] = (float) samples.distances[i];
+			profileElevations[m] = (float) e;
+			m++;
+		}
+
+		double ascent = 0, descent = 0;
+		double min = Double.NaN, max = Double.NaN;
+		if (m > 0)
+		{
+			double reference = profileElevations[0];
+			min = max = reference;
+			for (int i = 1; i < m; i++)
+			{
+				double e = profileElevations[i];
+				if (e - reference >= ELEVATION_THRESHOLD)
+				{
+					ascent += e - reference;
+					reference = e;
+				}
+				else if (reference - e >= ELEVATION_THRESHOLD)
+				{
+					descent += reference - e;
+					reference = e;
+				}
+				if (e < min)
+					min = e;
+				if (e > max)
+					max = e;
+			}
+		}
+
+		int[] indices = downsample(profileDistances, profileElevations, m, DISPLAY_POINTS);
+		float[] displayDistances = new float[indices.length];
+		float[] displayElevations = new float[indices.length];
+		for (int i = 0; i < indices.length; i++)
+		{
+			displayDistances[i] = profileDistances[indices[i]];
+			displayElevations[i] = profileElevations[indices[i]];
+		}
+		return new ElevationProfile(displayDistances, displayElevations, length, ascent, descent, min, max);
+	}
+
+	/**
+	 * Returns the finest DEM resolution found at evenly selected path vertices, finer sampling
+	 * does not add any details to profile.
+	 */
+	static double getResolution(ElevationService elevationService, Geometry geometry, int count)
+	{
+		double resolution = Double.NaN;
+		int step = Math.max(count / RESOLUTION_PROBES, 1);
+		int index = 0;
+		for (int i = 0; i < geometry.latitudes.length; i++)
+		{
+			double[] lats = geometry.latitudes[i];
+			double[] lons = geometry.longitudes[i];
+			for (int j = 0; j < lats.length; j++, index++)
+			{
+				if (index % step != 0)
+					continue;
+				double r = elevationService.getResolution(lats[j], lons[j]);
+				if (Double.isNaN(resolution) || r < resolution)
+					resolution = r;
+			}
+		}
+		return Double.isNaN(resolution) ? DEFAULT_SPACING : resolution;
+	}
+
+	/**
+	 * Selects points that preserve profile shape using Largest-Triangle-Three-Buckets algorithm.
+	 *
+	 * @return indices of selected points
+	 */
+	static int[] downsample(float[] x, float[] y, int n, int threshold)
+	{
+		if (n <= threshold || threshold < 3)
+		{
+			int[] all = new int[n];
+			for (int i = 0; i < n; i++)
+				all[i] = i;
+			return all;
+		}
+
+		int[] selected = new int[threshold];
+		double bucketSize = (double) (n - 2) / (threshold - 2);
+		int a = 0;
+		selected[0] = 0;
+		for (int i = 0; i < threshold - 2; i++)
+		{
+			// Average of the next bucket is the third triangle vertex
+			int nextStart = (int) ((i + 1) * bucketSize) + 1;
+			int nextEnd = Math.min((int) ((i + 2) * bucketSize) + 1, n);
+			double avgX = 0, avgY = 0;
+			for (int j = nextStart; j < nextEnd; j++)
+			{
+				avgX += x[j];
+				avgY += y[j];
+			}
+			int count = nextEnd - nextStart;
+			avgX /= count;
+			avgY /= count;
+
+			int start = (int) (i * bucketSize) + 1;
+			int end = (int) ((i + 1) * bucketSize) + 1;
+			double maxArea = -1;
+			int next = start;
+			for (int j = start; j < end; j++)
+			{
+				double area = Math.abs((x[a] - avgX) * (y[j] - y[a]) - (x[a] - x[j]) * (avgY - y[a]));
+				if (area > maxArea)
+				{
+					maxArea = area;
+					next = j;
+				}
+			}
+			selected[i + 1] = next;
+			a = next;
+		}
+		selected[threshold - 1] = n - 1;
+		return selected;
+	}
+
+	/**
+	 * Copy of object geometry made on caller thread, split into independent parts.
+	 */
+	static class Geometry
+	{
+		final double[][] latitudes;
+		final double[][] longitudes;
+		final double[][] elevations;
+		long signature;
+
+		Geometry(int parts)
+		{
+			latitudes = new double[parts][];
+			longitudes = new double[parts][];
+			elevations = new double[parts][];
+			signature = parts;
+		}
+
+		void setPart(int part, int size)
+		{
+			latitudes[part] = new double[size];
+			longitudes[part] = new double[size];
+			elevations[part] = new double[size];
+			signature = signature * 31 + size;
+		}
+
+		void setPoint(int part, int index, double latitude, double longitude, double elevation)
+		{
+			latitudes[part][index] = latitude;
+			longitudes[part][index] = longitude;
+			elevations[part][index] = elevation;
+			signature = signature * 31 + Double.doubleToLongBits(latitude);
+			signature = signature * 31 + Double.doubleToLongBits(longitude);
+		}
+	}
+
+	private static class CacheEntry
+	{
+		final long signature;
+		final ElevationProfile profile;
+
+		CacheEntry(long signature, ElevationProfile profile)
+		{
+			this.signature = signature;
+			this.profile = profile;
+		}
+	}
+
+	private static class SampleBuffer
+	{
+		double[] latitudes;
+		double[] longitudes;
+		double[] elevations;
+		double[] distances;
+		int size;
+
+		SampleBuffer(int capacity)
+		{
+			latitudes = new double[capacity];
+			longitudes = new double[capacity];
+			elevations = new double[capacity];
+			distances = new double[capacity];
+		}
+
+		void add(double latitude, double longitude, double elevation, double distance)
+		{
+			if (size == latitudes.length)
+				resize(size * 2);
+			latitudes[size] = latitude;
+			longitudes[size] = longitude;
+			elevations[size] = elevation;
+			distances[size] = distance;
+			size++;
+		}
+
+		void trim()
+		{
+			if (size < latitudes.length)
+				resize(size);
+		}
+
+		private void resize(int capacity)
+		{
+			latitudes = Arrays.copyOf(latitudes, capacity);
+			longitudes = Arrays.copyOf(longitudes, capacity);
+			elevations = Arrays.copyOf(elevations, capacity);
+			distances = Arrays.copyOf(distances, capacity);
+		}
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.dem;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import android.util.Log;
+
+/**
+ * Provides terrain elevation from SRTM .hgt files (both 1" and 3" resolution) located in
+ * specified directory. Files are memory-mapped on first access, recently used files are
+ * kept open. Elevations are bilinear interpolated, voids are returned as NaN.
+ */
+public class ElevationService
+{
+	private static final String TAG = "ElevationService";
+
+	private static final int DEFAULT_OPEN_TILES = 8;
+	private static final double METERS_PER_DEGREE = 111195;
+
+	private final File directory;
+	private final LinkedHashMap<Integer, HgtTile> tiles;
+	private final Set<Integer> missing = new HashSet<>();
+
+	public ElevationService(File directory)
+	{
+		this(directory, DEFAULT_OPEN_TILES);
+	}
+
+	public ElevationService(File directory, final int maxOpenTiles)
+	{
+		this.directory = directory;
+		tiles = new LinkedHashMap<Integer, HgtTile>(maxOpenTiles + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, HgtTile> eldest)
+			{
+				return size() > maxOpenTiles;
+			}
+		};
+	}
+
+	public File getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * Returns elevation at given coordinates.
+	 *
+	 * @return elevation in meters or NaN if there is no data
+	 */
+	public float getElevation(double latitude, double longitude)
+	{
+		HgtTile tile = getTile(latitude, longitude);
+		if (tile == null)
+			return Float.NaN;
+		return tile.getElevation(latitude, longitude);
+	}
+
+	/**
+	 * Returns elevations for a set of points. Optimized for sequences of close points.
+	 *
+	 * @param latitudes point latitudes
+	 * @param longitudes point longitudes
+	 * @param elevations array to fill with elevations, NaN for points with no data
+	 */
+	public void getElevations(double[] latitudes, double[] longitudes, float[] elevations)
+	{
+		HgtTile tile = null;
+		for (int i = 0; i < latitudes.length; i++)
+		{
+			double lat = latitudes[i];
+			double lon = longitudes[i];
+			if (tile == null || !contains(tile, lat, lon))
+				tile = getTile(lat, lon);
+			elevations[i] = tile != null ? tile.getElevation(lat, lon) : Float.NaN;
+		}
+	}
+
+	/**
+	 * Returns elevations for a regular grid, rows are filled from north to south. Edge rows
+	 * and columns lie exactly on bounds.
+	 *
+	 * @param north north bound
+	 * @param west west bound
+	 * @param south south bound
+	 * @param east east bound
+	 * @param width number of columns, at least 2
+	 * @param height number of rows, at least 2
+	 * @param elevations array of width * height size to fill with elevations, NaN for points with no data
+	 */
+	public void getElevations(double north, double west, double south, double east, int width, int height, float[] elevations)
+	{
+		double dlat = (north - south) / (height - 1);
+		double dlon = (east - west) / (width - 1);
+		HgtTile tile = null;
+		int i = 0;
+		for (int r = 0; r < height; r++)
+		{
+			double lat = north - dlat * r;
+			for (int c = 0; c < width; c++)
+			{
+				double lon = west + dlon * c;
+				if (tile == null || !contains(tile, lat, lon))
+					tile = getTile(lat, lon);
+				elevations[i++] = tile != null ? tile.getElevation(lat, lon) : Float.NaN;
+			}
+		}
+	}
+
+	/**
+	 * Returns elevations for a row of evenly spaced points along a parallel. Edge points lie exactly on bounds.
+	 *
+	 * @param latitude row latitude
+	 * @param west west bound
+	 * @param east east bound
+	 * @param width number of points, at least 2
+	 * @param elevations array to fill with elevations, NaN for points with no data
+	 * @param offset index of first element of array to fill
+	 */
+	public void getElevations(double latitude, double west, double east, int width, float[] elevations, int offset)
+	{
+		double dlon = (east - west) / (width - 1);
+		HgtTile tile = null;
+		for (int c = 0; c < width; c++)
+		{
+			double lon = west + dlon * c;
+			if (tile == null || !contains(tile, latitude, lon))
+				tile = getTile(latitude, lon);
+			elevations[offset + c] = tile != null ? tile.getElevation(latitude, lon) : Float.NaN;
+		}
+	}
+
+	/**
+	 * Returns distance between adjacent DEM samples along a meridian at given coordinates.
+	 *
+	 * @return resolution in meters or NaN if there is no data
+	 */
+	public double getResolution(double latitude, double longitude)
+	{
+		HgtTile tile = getTile(latitude, longitude);
+		if (tile == null)
+			return Double.NaN;
+		return METERS_PER_DEGREE / (tile.size - 1);
+	}
+
+	/**
+	 * Checks if there is elevation data for given coordinates.
+	 */
+	public boolean hasData(double latitude, double longitude)
+	{
+		return getTile(latitude, longitude) != null;
+	}
+
+	/**
+	 * Releases open files and forgets missing ones, should be called when DEM files are added.
+	 */
+	public synchronized void reset()
+	{
+		tiles.clear();
+		missing.clear();
+	}
+
+	private static boolean contains(HgtTile tile, double lat, double lon)
+	{
+		return lat >= tile.lat && lat <= tile.lat + 1 && lon >= tile.lon && lon <= tile.lon + 1;
+	}
+
+	private synchronized HgtTile getTile(double latitude, double longitude)
+	{
+		if (latitude < -90 || latitude > 90 || Double.isNaN(latitude) || Double.isNaN(longitude))
+			return null;
+		int lat = (int) Math.floor(latitude);
+		int lon = (int) Math.floor(longitude);
+		HgtTile tile = getTile(lat, lon);
+		// Tile edges are duplicated in adjacent tiles
+		if (tile == null && lat == latitude)
+			tile = getTile(lat - 1, lon);
+		if (tile == null && lon == longitude)
+			tile = getTile(lat, lon - 1);
+		return tile;
+	}
+
+	private HgtTile getTile(int lat, int lon)
+	{
+		if (lat < -90 || lat >= 90)
+			return null;
+		if (lon >= 180)
+			lon -= 360;
+		if (lon < -180)
+			lon += 360;
+		Integer key = (lat + 90) * 360 + lon + 180;
+
+		HgtTile tile = tiles.get(key);
+		if (tile != null || missing.contains(key))
+			return tile;
+
+		File file = getFile(lat, lon);
+		if (file != null)
+		{
+			try
+			{
+				tile = HgtTile.open(file, lat, lon);
+				tiles.put(key, tile);
+				return tile;
+			}
+			catch (IOException e)
+			{
+				Log.e(TAG, "Failed to open " + file.getAbsolutePath(), e);
+			}
+		}
+		missing.add(key);
+		return null;
+	}
+
+	private File getFile(int lat, int lon)
+	{
+		String name = String.format(Locale.US, "%s%02d%s%03d.hgt", lat < 0 ? "S" : "N", Math.abs(lat), lon < 0 ? "W" : "E", Math.abs(lon));
+		File file = new File(directory, name);
+		if (file.exists())
+			return file;
+		file = new File(directory, name.toLowerCase(Locale.US));
+		if (file.exists())
+			return file;
+		return null;
+	}
+}
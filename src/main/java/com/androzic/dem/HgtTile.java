@@ -0,0 +1,170 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.dem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One degree SRTM tile memory-mapped from .hgt file. Samples are big-endian signed shorts
+ * stored row by row from north to south, both tile edges are duplicated in adjacent tiles.
+ */
+class HgtTile
+{
+	static final short VOID = -32768;
+
+	private static final int SIZE_3SEC = 1201;
+	private static final int SIZE_1SEC = 3601;
+
+	final int lat;
+	final int lon;
+	/**
+	 * Number of samples in a row (and of rows)
+	 */
+	final int size;
+	private final ShortBuffer data;
+
+	private HgtTile(int lat, int lon, int size, ShortBuffer data)
+	{
+		this.lat = lat;
+		this.lon = lon;
+		this.size = size;
+		this.data = data;
+	}
+
+	static HgtTile open(File file, int lat, int lon) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			int size;
+			if (length == SIZE_1SEC * SIZE_1SEC * 2)
+				size = SIZE_1SEC;
+			else if (length == SIZE_3SEC * SIZE_3SEC * 2)
+				size = SIZE_3SEC;
+			else
+				throw new IOException("Unsupported HGT file size: " + length);
+			// Mapping stays valid after channel is closed
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			buffer.order(ByteOrder.BIG_ENDIAN);
+			return new HgtTile(lat, lon, size, buffer.asShortBuffer());
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns raw sample, row is counted from north edge, column from west edge.
+	 */
+	short getSample(int row, int col)
+	{
+		return data.get(row * size + col);
+	}
+
+	/**
+	 * Returns bilinear interpolated elevation at given coordinates that must lie inside the tile.
+	 * Void samples are excluded from interpolation.
+	 *
+	 * @return elevation in meters or NaN if all surrounding samples are void
+	 */
+	float getElevation(double latitude, double longitude)
+	{
+		int last = size - 1;
+		double y = (lat + 1 - latitude) * last;
+		double x = (longitude - lon) * last;
+		int row = (int) y;
+		int col = (int) x;
+		if (row >= last)
+			row = last - 1;
+		if (col >= last)
+			col = last - 1;
+		if (row < 0)
+			row = 0;
+		if (col < 0)
+			col = 0;
+		double dy = y - row;
+		double dx = x - col;
+
+		int i = row * size + col;
+		short h00 = data.get(i);
+		short h01 = data.get(i + 1);
+		short h10 = data.get(i + size);
+		short h11 = data.get(i + size + 1);
+
+		if (h00 != VOID && h01 != VOID && h10 != VOID && h11 != VOID)
+		{
+			double top = h00 + (h01 - h00) * dx;
+			double bottom = h10 + (h11 - h10) * dx;
+			return (float) (top + (bottom - top) * dy);
+		}
+
+		// Renormalize weights over non-void samples
+		double sum = 0, weight = 0, w;
+		if (h00 != VOID)
+		{
+			w = (1 - dx) * (1 - dy);
+			sum += h00 * w;
+			weight += w;
+		}
+		if (h01 != VOID)
+		{
+			w = dx * (1 - dy);
+			sum += h01 * w;
+			weight += w;
+		}
+		if (h10 != VOID)
+		{
+			w = (1 - dx) * dy;
+			sum += h10 * w;
+			weight += w;
+		}
+		if (h11 != VOID)
+		{
+			w = dx * dy;
+			sum += h11 * w;
+			weight += w;
+		}
+		if (weight > 0)
+			return (float) (sum / weight);
+
+		// Point hits void sample exactly, use average of valid neighbours
+		int n = 0;
+		sum = 0;
+		for (short h : new short[] {h00, h01, h10, h11})
+		{
+			if (h != VOID)
+			{
+				sum += h;
+				n++;
+			}
+		}
+		return n > 0 ? (float) (sum / n) : Float.NaN;
+	}
+}
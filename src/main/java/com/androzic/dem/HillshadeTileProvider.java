@@ -0,0 +1,503 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.dem;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.androzic.map.OnMapTileStateChangeListener;
+
+/**
+ * Produces hillshade tiles in Web Mercator tiling scheme. Tiles are calculated from DEM in
+ * background, kept in memory and stored on disk per zoom level. Tiles are fully transparent
+ * on flat terrain, shadowed slopes are darkened and lit slopes are brightened.
+ * <p>
+ * Disk cache is kept in a folder named by signature of DEM files (names, sizes and modification
+ * times), so that tiles are recalculated when DEM changes, tiles of previous DEM are deleted.
+ * Cache size is limited, least recently used tiles are deleted first.
+ */
+public class HillshadeTileProvider
+{
+	private static final String TAG = "HillshadeTileProvider";
+
+	public static final int TILE_SIZE = 256;
+
+	private static final double EARTH_CIRCUMFERENCE = 40075016.686;
+	private static final double LIGHT_AZIMUTH = Math.toRadians(315);
+	private static final double LIGHT_ALTITUDE = Math.toRadians(45);
+	private static final int SHADOW_ALPHA = 160;
+	private static final int HIGHLIGHT_ALPHA = 80;
+	private static final int THREADS = 2;
+	private static final long MAX_DISK_CACHE_SIZE = 64 * 1024 * 1024;
+
+	private volatile ElevationService elevationService;
+	private final File cacheDir;
+	// Disk cache of current DEM, guarded by diskLock
+	private final Object diskLock = new Object();
+	private File tileDir;
+	private long diskCacheSize;
+	private final LruCache<Long, Bitmap> memoryCache;
+	/**
+	 * Tiles that have no DEM data
+	 */
+	private final Set<Long> empty = new HashSet<>();
+	private final Set<Long> pending = new HashSet<>();
+	private Set<Long> workingSet = new HashSet<>();
+	private final ExecutorService executor;
+	private volatile OnMapTileStateChangeListener listener;
+
+	public HillshadeTileProvider(ElevationService elevationService, File cacheDir, int memoryCacheSize)
+	{
+		this.elevationService = elevationService;
+		this.cacheDir = cacheDir;
+		memoryCache = new LruCache<Long, Bitmap>(memoryCacheSize) {
+			@Override
+			protected int sizeOf(Long key, Bitmap value)
+			{
+				return value.getRowBytes() * value.getHeight();
+			}
+		};
+		executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r)
+			{
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run()
+					{
+						Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+						r.run();
+					}
+				}, "Hillshade");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Switches to another elevation data source, e.g. when root folder is changed.
+	 */
+	public void setElevationService(ElevationService elevationService)
+	{
+		synchronized (this)
+		{
+			if (this.elevationService == elevationService)
+				return;
+			this.elevationService = elevationService;
+		}
+		reset();
+	}
+
+	public ElevationService getElevationService()
+	{
+		return elevationService;
+	}
+
+	public void setListener(OnMapTileStateChangeListener listener)
+	{
+		this.listener = listener;
+	}
+
+	public static long getKey(int x, int y, int z)
+	{
+		return ((long) z << 58) | ((long) x << 29) | y;
+	}
+
+	/**
+	 * Sets tiles that are currently needed, tiles that are not in this set are not calculated.
+	 */
+	public synchronized void setWorkingSet(Set<Long> keys)
+	{
+		workingSet = keys;
+	}
+
+	/**
+	 * Returns tile bitmap if it is ready, otherwise schedules its calculation and returns null.
+	 * Returns null also for tiles that have no DEM data.
+	 */
+	public Bitmap getTile(final int x, final int y, final int z)
+	{
+		final long key = getKey(x, y, z);
+		Bitmap bitmap = memoryCache.get(key);
+		if (bitmap != null)
+			return bitmap;
+		synchronized (this)
+		{
+			if (executor.isShutdown() || empty.contains(key) || pending.contains(key))
+				return null;
+			pending.add(key);
+		}
+		try
+		{
+			execute(key, x, y, z);
+		}
+		catch (RejectedExecutionException e)
+		{
+			// Provider has been destroyed meanwhile
+			synchronized (this)
+			{
+				pending.remove(key);
+			}
+		}
+		return null;
+	}
+
+	private void execute(final long key, final int x, final int y, final int z)
+	{
+		executor.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				synchronized (HillshadeTileProvider.this)
+				{
+					if (!workingSet.contains(key))
+					{
+						pending.remove(key);
+						return;
+					}
+				}
+				Bitmap bitmap = loadTile(x, y, z);
+				synchronized (HillshadeTileProvider.this)
+				{
+					pending.remove(key);
+					if (bitmap == null)
+					{
+						if (!Thread.currentThread().isInterrupted())
+							empty.add(key);
+						return;
+					}
+					memoryCache.put(key, bitmap);
+				}
+				if (listener != null)
+					listener.onTileObtained();
+			}
+		});
+	}
+
+	/**
+	 * Clears memory cache and forgets tiles without data, should be called when DEM files are
+	 * changed. Disk cache is checked against DEM files again when next tile is loaded.
+	 */
+	public void reset()
+	{
+		ElevationService service;
+		synchronized (this)
+		{
+			memoryCache.evictAll();
+			empty.clear();
+			service = elevationService;
+		}
+		service.reset();
+		synchronized (diskLock)
+		{
+			tileDir = null;
+		}
+	}
+
+	public void destroy()
+	{
+		executor.shutdownNow();
+		memoryCache.evictAll();
+	}
+
+	private Bitmap loadTile(int x, int y, int z)
+	{
+		File file = new File(getTileDir(), z + File.separator + x + File.separator + y + ".png");
+		if (file.exists())
+		{
+			Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+			if (bitmap != null)
+			{
+				// Keep recently used tiles in disk cache
+				//noinspection ResultOfMethodCallIgnored
+				file.setLastModified(System.currentTimeMillis());
+				return bitmap;
+			}
+		}
+
+		int[] pixels = calculateTile(x, y, z);
+		if (pixels == null)
+			return null;
+		Bitmap bitmap = Bitmap.createBitmap(pixels, TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+
+		File dir = file.getParentFile();
+		if (dir.exists() || dir.mkdirs())
+		{
+			try
+			{
+				FileOutputStream out = new FileOutputStream(file);
+				bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+				out.close();
+				onTileSaved(file.length());
+			}
+			catch (IOException e)
+			{
+				Log.e(TAG, "Failed to save tile " + file.getAbsolutePath(), e);
+			}
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Returns disk cache folder of current DEM, deletes cache of other DEM contents.
+	 */
+	private File getTileDir()
+	{
+		File directory = elevationService.getDirectory();
+		synchronized (diskLock)
+		{
+			if (tileDir == null)
+			{
+				tileDir = new File(cacheDir, getSignature(directory));
+				File[] dirs = cacheDir.listFiles();
+				if (dirs != null)
+				{
+					for (File dir : dirs)
+					{
+						if (!dir.equals(tileDir))
+							delete(dir);
+					}
+				}
+				diskCacheSize = 0;
+				for (File file : listFiles(tileDir, new ArrayList<File>()))
+					diskCacheSize += file.length();
+			}
+			return tileDir;
+		}
+	}
+
+	/**
+	 * Accounts saved tile and deletes least recently used tiles if cache has grown too large.
+	 */
+	private void onTileSaved(long size)
+	{
+		synchronized (diskLock)
+		{
+			diskCacheSize += size;
+			if (diskCacheSize <= MAX_DISK_CACHE_SIZE || tileDir == null)
+				return;
+			List<File> files = listFiles(tileDir, new ArrayList<File>());
+			final long[] modified = new long[files.size()];
+			for (int i = 0; i < modified.length; i++)
+				modified[i] = files.get(i).lastModified();
+			Integer[] order = new Integer[modified.length];
+			for (int i = 0; i < order.length; i++)
+				order[i] = i;
+			// Time is read once per file as it can change while sorting
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer lhs, Integer rhs)
+				{
+					return modified[lhs] < modified[rhs] ? -1 : modified[lhs] > modified[rhs] ? 1 : 0;
+				}
+			});
+			for (Integer i : order)
+			{
+				if (diskCacheSize <= MAX_DISK_CACHE_SIZE * 3 / 4)
+					break;
+				File file = files.get(i);
+				long length = file.length();
+				if (file.delete())
+					diskCacheSize -= length;
+			}
+		}
+	}
+
+	/**
+	 * Returns signature of DEM folder contents.
+	 */
+	static String getSignature(File directory)
+	{
+		List<String> entries = new ArrayList<>();
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				if (file.isFile() && file.getName().toLowerCase(Locale.US).endsWith(".hgt"))
+					entries.add(file.getName() + ":" + file.length() + ":" + file.lastModified());
+			}
+		}
+		Collections.sort(entries);
+		CRC32 crc = new CRC32();
+		crc.update(directory.getAbsolutePath().getBytes());
+		for (String entry : entries)
+			crc.update(entry.getBytes());
+		return Long.toHexString(crc.getValue());
+	}
+
+	private static List<File> listFiles(File dir, List<File> result)
+	{
+		File[] files = dir.listFiles();
+		if (files == null)
+			return result;
+		for (File file : files)
+		{
+			if (file.isDirectory())
+				listFiles(file, result);
+			else
+				result.add(file);
+		}
+		return result;
+	}
+
+	private static void delete(File file)
+	{
+		File[] files = file.listFiles();
+		if (files != null)
+		{
+			for (File child : files)
+				delete(child);
+		}
+		//noinspection ResultOfMethodCallIgnored
+		file.delete();
+	}
+
+	/**
+	 * Calculates shading with Horn's slope/aspect kernel.
+	 *
+	 * @return tile pixels or null if there is no DEM data for the tile
+	 */
+	int[] calculateTile(int tx, int ty, int z)
+	{
+		// Elevation grid is sampled at pixel centers and includes one pixel border around the tile
+		int size = TILE_SIZE + 2;
+		double worldSize = (double) TILE_SIZE * (1 << z);
+		double west = pixelXToLon(tx * TILE_SIZE - 0.5, worldSize);
+		double east = pixelXToLon(tx * TILE_SIZE + TILE_SIZE + 0.5, worldSize);
+		float[] elevations = new float[size * size];
+		double[] latitudes = new double[size];
+		boolean hasData = false;
+		for (int r = 0; r < size; r++)
+		{
+			latitudes[r] = pixelYToLat(ty * TILE_SIZE - 0.5 + r, worldSize);
+			elevationService.getElevations(latitudes[r], west, east, size, elevations, r * size);
+			if (!hasData)
+			{
+				for (int i = r * size; i < (r + 1) * size; i++)
+				{
+					if (!Float.isNaN(elevations[i]))
+					{
+						hasData = true;
+						break;
+					}
+				}
+			}
+			if (Thread.currentThread().isInterrupted())
+				return null;
+		}
+		if (!hasData)
+			return null;
+
+		double lx = Math.sin(LIGHT_AZIMUTH) * Math.cos(LIGHT_ALTITUDE);
+		double ly = Math.cos(LIGHT_AZIMUTH) * Math.cos(LIGHT_ALTITUDE);
+		double lz = Math.sin(LIGHT_ALTITUDE);
+
+		int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+		for (int y = 0; y < TILE_SIZE; y++)
+		{
+			// Mercator pixels are square, their ground size depends only on latitude
+			double pixelSize = Math.cos(Math.toRadians(latitudes[y + 1])) * EARTH_CIRCUMFERENCE / worldSize;
+			int row = (y + 1) * size + 1;
+			for (int x = 0; x < TILE_SIZE; x++)
+			{
+				int i = row + x;
+				float e = elevations[i];
+				if (Float.isNaN(e))
+					continue;
+				float a = value(elevations, i - size - 1, e);
+				float b = value(elevations, i - size, e);
+				float c = value(elevations, i - size + 1, e);
+				float d = value(elevations, i - 1, e);
+				float f = value(elevations, i + 1, e);
+				float g = value(elevations, i + size - 1, e);
+				float h = value(elevations, i + size, e);
+				float k = value(elevations, i + size + 1, e);
+
+				// Rows go from north to south
+				double dzdx = ((c + 2 * f + k) - (a + 2 * d + g)) / (8 * pixelSize);
+				double dzdy = ((a + 2 * b + c) - (g + 2 * h + k)) / (8 * pixelSize);
+				double shade = (lz - dzdx * lx - dzdy * ly) / Math.sqrt(1 + dzdx * dzdx + dzdy * dzdy);
+
+				if (shade < lz)
+				{
+					int alpha = (int) (SHADOW_ALPHA * (lz - Math.max(shade, 0)) / lz);
+					pixels[y * TILE_SIZE + x] = alpha << 24;
+				}
+				else if (shade > lz)
+				{
+					int alpha = (int) (HIGHLIGHT_ALPHA * (shade - lz) / (1 - lz));
+					pixels[y * TILE_SIZE + x] = (alpha << 24) | 0xFFFFFF;
+				}
+			}
+		}
+		return pixels;
+	}
+
+	private static float value(float[] elevations, int i, float fallback)
+	{
+		float e = elevations[i];
+		return Float.isNaN(e) ? fallback : e;
+	}
+
+	public static double pixelXToLon(double x, double worldSize)
+	{
+		return x / worldSize * 360 - 180;
+	}
+
+	public static double pixelYToLat(double y, double worldSize)
+	{
+		double n = Math.PI - 2 * Math.PI * y / worldSize;
+		return Math.toDegrees(Math.atan(Math.sinh(n)));
+	}
+
+	public static double lonToPixelX(double lon, double worldSize)
+	{
+		return (lon + 180) / 360 * worldSize;
+	}
+
+	public static double latToPixelY(double lat, double worldSize)
+	{
+		double rad = Math.toRadians(lat);
+		return (1 - Math.log(Math.tan(rad) + 1 / Math.cos(rad)) / Math.PI) / 2 * worldSize;
+	}
+}
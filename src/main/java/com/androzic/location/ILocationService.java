@@ -1,6 +1,9 @@
 package com.androzic.location;
 
+import java.util.List;
+
 import com.androzic.data.Track;
+import com.androzic.track.TrackStatistics;
 
 public interface ILocationService
 {
@@ -17,4 +20,11 @@ public interface ILocationService
 	void clearTrack();
 	long getTrackStartTime();
 	long getTrackEndTime();
+	TrackStatistics getTrackStatistics();
+	float getTrackCompressionRatio();
+	List<LocationDispatcher.Statistics> getDispatchStatistics();
+	int getSamplingMode();
+	long getSamplingInterval();
+	float getFixRate();
+	void setNavigationDistance(double distance);
 }
@@ -3,4 +3,9 @@ package com.androzic.location;
 public interface ITrackingListener
 {
     void onNewPoint(boolean continous, double lat, double lon, double elev, double speed, double track, double accuracy, long time);
+    /**
+     * Called with the newest track point that is not stored yet. It continues the track up to
+     * current position and is replaced by the next pending point or by the next stored point.
+     */
+    void onPendingPoint(double lat, double lon, long time);
 }
@@ -0,0 +1,377 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.location;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+import android.location.Location;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Delivers location updates and new track points to subscribers asynchronously. Each subscriber
+ * has its own mailbox drained by at most one task at a time, so slow subscriber does not delay
+ * others. Location updates are coalesced: if subscriber has not received previous update yet it
+ * gets only the latest one. Track points are not coalesced, points accumulated while subscriber
+ * was busy are delivered in one batch. Pending track point, that is not stored yet and continues
+ * the track up to the current position, is coalesced as location and is superseded by any stored
+ * point. Latency and drops are counted per subscriber.
+ */
+public class LocationDispatcher
+{
+	private static final String TAG = "LocationDispatcher";
+
+	private static final int MAX_PENDING_POINTS = 1000;
+
+	public static class LocationEvent
+	{
+		public final Location location;
+		public final boolean continous;
+		public final boolean geoid;
+		public final float smoothSpeed;
+		public final float avgSpeed;
+		public final long nanos;
+
+		LocationEvent(Location location, boolean continous, boolean geoid, float smoothSpeed, float avgSpeed)
+		{
+			this.location = location;
+			this.continous = continous;
+			this.geoid = geoid;
+			this.smoothSpeed = smoothSpeed;
+			this.avgSpeed = avgSpeed;
+			this.nanos = System.nanoTime();
+		}
+	}
+
+	public static class PointEvent
+	{
+		public final boolean continous;
+		public final double latitude;
+		public final double longitude;
+		public final double elevation;
+		public final float speed;
+		public final float bearing;
+		public final float accuracy;
+		public final long time;
+		public final long nanos;
+
+		PointEvent(boolean continous, double latitude, double longitude, double elevation, float speed, float bearing, float accuracy, long time)
+		{
+			this.continous = continous;
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.elevation = elevation;
+			this.speed = speed;
+			this.bearing = bearing;
+			this.accuracy = accuracy;
+			this.time = time;
+			this.nanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Delivery statistics of one subscriber.
+	 */
+	public static class Statistics
+	{
+		public String name;
+		public long delivered;
+		public long coalesced;
+		public long dropped;
+		public long batches;
+		public int maxBatch;
+		public long totalLatencyNanos;
+		public long maxLatencyNanos;
+
+		public double getMeanLatencyMillis()
+		{
+			return delivered > 0 ? totalLatencyNanos / 1e6 / delivered : 0;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name + ": " + delivered + " delivered, " + coalesced + " coalesced, " + dropped + " dropped, " + batches + " batches (max " + maxBatch + "), latency " + Math.round(getMeanLatencyMillis()) + " ms (max " + maxLatencyNanos / 1000000 + " ms)";
+		}
+	}
+
+	/**
+	 * Receives events in executor thread. Implementations override methods for events they are
+	 * interested in. RemoteException thrown by them means that remote subscriber is dead and
+	 * cancels subscription, other exceptions are bugs and are propagated to executor.
+	 */
+	public abstract static class Subscriber implements Runnable
+	{
+		private final String name;
+		private Executor executor;
+		private LocationDispatcher dispatcher;
+		private Object key;
+
+		private LocationEvent location;
+		private final LinkedList<PointEvent> points = new LinkedList<>();
+		private PointEvent pendingPoint;
+		private boolean scheduled;
+		private final Statistics statistics = new Statistics();
+
+		public Subscriber(String name)
+		{
+			this.name = name;
+		}
+
+		protected void onLocationChanged(LocationEvent event) throws RemoteException
+		{
+		}
+
+		protected void onNewPoint(PointEvent event) throws RemoteException
+		{
+		}
+
+		/**
+		 * Called with the newest track point that is not stored yet, it is replaced by the next
+		 * pending point or by the next stored point.
+		 */
+		protected void onPendingPoint(PointEvent event) throws RemoteException
+		{
+		}
+
+		synchronized void post(LocationEvent event)
+		{
+			if (location != null)
+				statistics.coalesced++;
+			location = event;
+			schedule();
+		}
+
+		synchronized void post(PointEvent event)
+		{
+			if (points.size() >= MAX_PENDING_POINTS)
+			{
+				points.removeFirst();
+				statistics.dropped++;
+			}
+			points.add(event);
+			// Stored point is not older than pending one
+			pendingPoint = null;
+			schedule();
+		}
+
+		synchronized void postPending(PointEvent event)
+		{
+			if (pendingPoint != null)
+				statistics.coalesced++;
+			pendingPoint = event;
+			schedule();
+		}
+
+		private void schedule()
+		{
+			if (!scheduled)
+			{
+				scheduled = true;
+				executor.execute(this);
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				LocationEvent event;
+				List<PointEvent> batch = null;
+				PointEvent pending;
+				synchronized (this)
+				{
+					if (location == null && points.isEmpty() && pendingPoint == null)
+					{
+						scheduled = false;
+						return;
+					}
+					event = location;
+					location = null;
+					pending = pendingPoint;
+					pendingPoint = null;
+					if (!points.isEmpty())
+					{
+						batch = new ArrayList<>(points);
+						points.clear();
+					}
+				}
+				try
+				{
+					// Points precede location that caused them
+					if (batch != null)
+					{
+						for (PointEvent point : batch)
+						{
+							account(point.nanos);
+							onNewPoint(point);
+						}
+						synchronized (this)
+						{
+							statistics.batches++;
+							if (batch.size() > statistics.maxBatch)
+								statistics.maxBatch = batch.size();
+						}
+					}
+					if (pending != null)
+					{
+						account(pending.nanos);
+						onPendingPoint(pending);
+					}
+					if (event != null)
+					{
+						account(event.nanos);
+						onLocationChanged(event);
+					}
+				}
+				catch (RemoteException e)
+				{
+					Log.e(TAG, "Delivery to " + name + " failed, unsubscribing", e);
+					dispatcher.remove(key, this);
+				}
+				catch (RuntimeException | Error e)
+				{
+					// Let following events be delivered if executor survives the exception
+					synchronized (this)
+					{
+						scheduled = false;
+					}
+					throw e;
+				}
+			}
+		}
+
+		private synchronized void account(long nanos)
+		{
+			long latency = System.nanoTime() - nanos;
+			statistics.delivered++;
+			statistics.totalLatencyNanos += latency;
+			if (latency > statistics.maxLatencyNanos)
+				statistics.maxLatencyNanos = latency;
+		}
+
+		private synchronized void clear()
+		{
+			location = null;
+			points.clear();
+			pendingPoint = null;
+		}
+
+		synchronized Statistics getStatistics()
+		{
+			Statistics s = new Statistics();
+			s.name = name;
+			s.delivered = statistics.delivered;
+			s.coalesced = statistics.coalesced;
+			s.dropped = statistics.dropped;
+			s.batches = statistics.batches;
+			s.maxBatch = statistics.maxBatch;
+			s.totalLatencyNanos = statistics.totalLatencyNanos;
+			s.maxLatencyNanos = statistics.maxLatencyNanos;
+			return s;
+		}
+	}
+
+	private final ConcurrentMap<Object, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+	/**
+	 * Subscribes for events, previous subscription with the same key is replaced.
+	 *
+	 * @param key subscription key, e.g. listener or binder
+	 * @param subscriber subscriber
+	 * @param executor executor that runs delivery tasks
+	 */
+	public void subscribe(Object key, Subscriber subscriber, Executor executor)
+	{
+		subscriber.key = key;
+		subscriber.dispatcher = this;
+		subscriber.executor = executor;
+		Subscriber previous = subscribers.put(key, subscriber);
+		if (previous != null)
+			previous.clear();
+	}
+
+	public void unsubscribe(Object key)
+	{
+		Subscriber subscriber = subscribers.get(key);
+		if (subscriber != null)
+			remove(key, subscriber);
+	}
+
+	private void remove(Object key, Subscriber subscriber)
+	{
+		if (subscribers.remove(key, subscriber))
+		{
+			subscriber.clear();
+			Log.i(TAG, subscriber.getStatistics().toString());
+		}
+	}
+
+	public int getSubscriberCount()
+	{
+		return subscribers.size();
+	}
+
+	public void publishLocation(Location location, boolean continous, boolean geoid, float smoothSpeed, float avgSpeed)
+	{
+		if (subscribers.isEmpty())
+			return;
+		// Subscribers read location in other threads while source may reuse it
+		LocationEvent event = new LocationEvent(new Location(location), continous, geoid, smoothSpeed, avgSpeed);
+		for (Subscriber subscriber : subscribers.values())
+			subscriber.post(event);
+	}
+
+	public void publishPoint(boolean continous, double latitude, double longitude, double elevation, float speed, float bearing, float accuracy, long time)
+	{
+		if (subscribers.isEmpty())
+			return;
+		PointEvent event = new PointEvent(continous, latitude, longitude, elevation, speed, bearing, accuracy, time);
+		for (Subscriber subscriber : subscribers.values())
+			subscriber.post(event);
+	}
+
+	/**
+	 * Publishes the newest track point that is not stored yet.
+	 */
+	public void publishPendingPoint(double latitude, double longitude, double elevation, float speed, float bearing, float accuracy, long time)
+	{
+		if (subscribers.isEmpty())
+			return;
+		PointEvent event = new PointEvent(true, latitude, longitude, elevation, speed, bearing, accuracy, time);
+		for (Subscriber subscriber : subscribers.values())
+			subscriber.postPending(event);
+	}
+
+	public List<Statistics> getStatistics()
+	{
+		List<Statistics> statistics = new ArrayList<>(subscribers.size());
+		for (Subscriber subscriber : subscribers.values())
+			statistics.add(subscriber.getStatistics());
+		return statistics;
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.location;
+
+import android.location.Location;
+
+/**
+ * Constant velocity Kalman filter of location fixes. Position and velocity are estimated in local
+ * metric plane, east and north axes are filtered independently. Fix position is weighted by its
+ * reported accuracy, reported speed and bearing are used as velocity measurement. Fixes that
+ * are too far from prediction are rejected. State is kept in primitive fields, no objects are
+ * allocated per fix.
+ */
+public class LocationFilter
+{
+	private static final double METERS_PER_DEGREE = 111319.49;
+	// Acceleration noise spectral density, m^2/s^3
+	private static final double PROCESS_NOISE = 2.0;
+	private static final double DEFAULT_ACCURACY = 10.0;
+	private static final double MIN_ACCURACY = 1.0;
+	private static final double SPEED_ACCURACY = 1.0;
+	// Chi-square quantile for two degrees of freedom at 99.9%
+	private static final double GATE = 13.8;
+	private static final int MAX_REJECTED = 3;
+	private static final long MAX_GAP = 30000;
+	private static final double REANCHOR_DISTANCE = 10000;
+	// Below this speed heading is not defined
+	private static final double MIN_HEADING_SPEED = 0.5;
+	private static final double AVERAGE_SPEED_PERIOD = 60.0;
+
+	private boolean initialized;
+	private long time;
+	private double originLat;
+	private double originLon;
+	private double lonScale;
+
+	// East axis state and covariance
+	private double x, vx, pxx, pxv, pvvx;
+	// North axis state and covariance
+	private double y, vy, pyy, pyv, pvvy;
+
+	private int rejected;
+	private double speed;
+	private double bearing;
+	private double averageSpeed;
+
+	public void reset()
+	{
+		initialized = false;
+		rejected = 0;
+		speed = 0;
+		bearing = 0;
+		averageSpeed = 0;
+	}
+
+	/**
+	 * Filters fix and replaces its position, speed and bearing with filtered values.
+	 *
+	 * @return false if fix was rejected as outlier, location still gets predicted values
+	 */
+	public boolean filter(Location location)
+	{
+		long t = location.getTime();
+		double accuracy = location.hasAccuracy() ? Math.max(location.getAccuracy(), MIN_ACCURACY) : DEFAULT_ACCURACY;
+		double r = accuracy * accuracy;
+
+		if (!initialized || t - time > MAX_GAP || t < time)
+		{
+			initialize(location, r);
+			apply(location);
+			return true;
+		}
+
+		double dt = (t - time) / 1000.0;
+		time = t;
+		predict(dt);
+
+		double mx = (lonDelta(location.getLongitude(), originLon)) * lonScale;
+		double my = (location.getLatitude() - originLat) * METERS_PER_DEGREE;
+		double ix = mx - x;
+		double iy = my - y;
+		double sx = pxx + r;
+		double sy = pyy + r;
+		boolean accepted = ix * ix / sx + iy * iy / sy <= GATE;
+		if (accepted)
+		{
+			rejected = 0;
+			// East axis position update
+			double k0 = pxx / sx;
+			double k1 = pxv / sx;
+			x += k0 * ix;
+			vx += k1 * ix;
+			pvvx -= k1 * pxv;
+			pxv *= 1 - k0;
+			pxx *= 1 - k0;
+			// North axis position update
+			k0 = pyy / sy;
+			k1 = pyv / sy;
+			y += k0 * iy;
+			vy += k1 * iy;
+			pvvy -= k1 * pyv;
+			pyv *= 1 - k0;
+			pyy *= 1 - k0;
+
+			if (location.hasSpeed() && (location.hasBearing() || location.getSpeed() == 0))
+			{
+				double b = Math.toRadians(location.getBearing());
+				double rv = SPEED_ACCURACY * SPEED_ACCURACY;
+				updateVelocity(location.getSpeed() * Math.sin(b), location.getSpeed() * Math.cos(b), rv);
+			}
+		}
+		else if (++rejected >= MAX_REJECTED)
+		{
+			// Prediction is likely wrong, not the fixes
+			initialize(location, r);
+			apply(location);
+			return true;
+		}
+
+		if (x * x + y * y > REANCHOR_DISTANCE * REANCHOR_DISTANCE)
+			reanchor();
+
+		double v = Math.sqrt(vx * vx + vy * vy);
+		averageSpeed += (v - averageSpeed) * (1 - Math.exp(-dt / AVERAGE_SPEED_PERIOD));
+		speed = v;
+		if (v >= MIN_HEADING_SPEED)
+			bearing = normalizeBearing(Math.toDegrees(Math.atan2(vx, vy)));
+
+		apply(location);
+		return accepted;
+	}
+
+	/**
+	 * Returns filtered speed of the last fix, m/s.
+	 */
+	public float getSpeed()
+	{
+		return (float) speed;
+	}
+
+	/**
+	 * Returns speed averaged over last minute, m/s.
+	 */
+	public float getAverageSpeed()
+	{
+		return (float) averageSpeed;
+	}
+
+	private void initialize(Location location, double r)
+	{
+		initialized = true;
+		rejected = 0;
+		time = location.getTime();
+		originLat = location.getLatitude();
+		originLon = location.getLongitude();
+		lonScale = METERS_PER_DEGREE * Math.cos(Math.toRadians(originLat));
+		x = 0;
+		y = 0;
+		pxx = r;
+		pyy = r;
+		pxv = 0;
+		pyv = 0;
+		double rv = SPEED_ACCURACY * SPEED_ACCURACY;
+		if (location.hasSpeed() && location.hasBearing())
+		{
+			double b = Math.toRadians(location.getBearing());
+			vx = location.getSpeed() * Math.sin(b);
+			vy = location.getSpeed() * Math.cos(b);
+			pvvx = rv;
+			pvvy = rv;
+		}
+		else
+		{
+			// Velocity is unknown, let the following fixes define it
+			vx = 0;
+			vy = 0;
+			pvvx = 100 * rv;
+			pvvy = 100 * rv;
+		}
+		speed = Math.sqrt(vx * vx + vy * vy);
+		if (speed >= MIN_HEADING_SPEED)
+			bearing = normalizeBearing(Math.toDegrees(Math.atan2(vx, vy)));
+		else if (location.hasBearing())
+			bearing = location.getBearing();
+		if (averageSpeed == 0)
+			averageSpeed = speed;
+	}
+
+	private void predict(double dt)
+	{
+		double dt2 = dt * dt;
+		double q00 = PROCESS_NOISE * dt2 * dt / 3;
+		double q01 = PROCESS_NOISE * dt2 / 2;
+		double q11 = PROCESS_NOISE * dt;
+
+		x += vx * dt;
+		pxx += 2 * dt * pxv + dt2 * pvvx + q00;
+		pxv += dt * pvvx + q01;
+		pvvx += q11;
+
+		y += vy * dt;
+		pyy += 2 * dt * pyv + dt2 * pvvy + q00;
+		pyv += dt * pvvy + q01;
+		pvvy += q11;
+	}
+
+	private void updateVelocity(double mvx, double mvy, double rv)
+	{
+		double ix = mvx - vx;
+		double iy = mvy - vy;
+		double sx = pvvx + rv;
+		double sy = pvvy + rv;
+		// Reject speed spikes
+		if (ix * ix / sx + iy * iy / sy > GATE)
+			return;
+
+		double k0 = pxv / sx;
+		double k1 = pvvx / sx;
+		x += k0 * ix;
+		vx += k1 * ix;
+		pxx -= k0 * pxv;
+		pxv -= k0 * pvvx;
+		pvvx -= k1 * pvvx;
+
+		k0 = pyv / sy;
+		k1 = pvvy / sy;
+		y += k0 * iy;
+		vy += k1 * iy;
+		pyy -= k0 * pyv;
+		pyv -= k0 * pvvy;
+		pvvy -= k1 * pvvy;
+	}
+
+	/**
+	 * Moves origin of local plane to current position to keep it precise.
+	 */
+	private void reanchor()
+	{
+		originLat += y / METERS_PER_DEGREE;
+		originLon = normalizeLongitude(originLon + x / lonScale);
+		lonScale = METERS_PER_DEGREE * Math.cos(Math.toRadians(originLat));
+		x = 0;
+		y = 0;
+	}
+
+	private void apply(Location location)
+	{
+		location.setLatitude(originLat + y / METERS_PER_DEGREE);
+		location.setLongitude(normalizeLongitude(originLon + x / lonScale));
+		location.setSpeed((float) speed);
+		location.setBearing((float) bearing);
+	}
+
+	private static double lonDelta(double lon, double origin)
+	{
+		return normalizeLongitude(lon - origin);
+	}
+
+	private static double normalizeLongitude(double lon)
+	{
+		if (lon > 180)
+			return lon - 360;
+		if (lon < -180)
+			return lon + 360;
+		return lon;
+	}
+
+	private static double normalizeBearing(double bearing)
+	{
+		return bearing < 0 ? bearing + 360 : bearing;
+	}
+}
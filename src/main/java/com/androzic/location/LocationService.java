@@ -21,20 +21,29 @@
 package com.androzic.location;
 
 import java.io.File;
+import java.util.Calendar;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
@@ -49,6 +58,7 @@ import android.os.Binder;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.PowerManager;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.os.SystemClock;
@@ -60,12 +70,17 @@ import com.androzic.Androzic;
 import com.androzic.R;
 import com.androzic.Splash;
 import com.androzic.data.Track;
+import com.androzic.track.TrackStatistics;
 
 public class LocationService extends BaseLocationService implements LocationListener, NmeaListener, GpsStatus.Listener, OnSharedPreferenceChangeListener
 {
 	private static final String TAG = "Location";
 	private static final int NOTIFICATION_ID = 24161;
 	private static final boolean DEBUG_ERRORS = false;
+	// Archive partition size is limited to fit in cursor window
+	private static final int MAX_ARCHIVE_POINTS = 10000;
+	// Free database pages are returned to file system in small steps not to block recording
+	private static final int VACUUM_PAGES = 64;
 
 	/**
 	 * Intent action to enable locating
@@ -78,6 +93,21 @@ public class LocationService extends BaseLocationService implements LocationList
 
 	public static final String ENABLE_TRACK = "enableTrack";
 	public static final String DISABLE_TRACK = "disableTrack";
+	/**
+	 * Intent action to replay recorded locations instead of using GPS, used for testing and
+	 * benchmarking. Run report is written to log. If tracking is enabled, replayed locations
+	 * are recorded to a scratch database that is discarded when replay ends.
+	 */
+	public static final String REPLAY_LOCATIONS = "replayLocations";
+	/**
+	 * Absolute path of myTrack.db, GPX, PLT or NMEA file to replay
+	 */
+	public static final String EXTRA_REPLAY_FILE = "file";
+	/**
+	 * Replay speed, from 1 to 100
+	 */
+	public static final String EXTRA_REPLAY_SPEED = "speed";
+	private static final String REPLAY_DATABASE = "replayTrack.db";
 
 	public static final String BROADCAST_TRACKING_STATUS = "com.androzic.trackingStatusChanged";
 
@@ -89,27 +119,39 @@ public class LocationService extends BaseLocationService implements LocationList
 	private Handler mockCallback = new Handler();
 
 	private LocationManager locationManager = null;
+	private String nmeaSourceAddress = "";
+	private NmeaLocationSource nmeaSource = null;
+	private final Handler nmeaSourceHandler = new Handler();
+	private int nmeaSourceSatellites = 0;
+	private String replayFile = null;
+	private float replaySpeed = 1f;
+	private ReplayLocationSource replaySource = null;
 
 	private int gpsStatus = GPS_OFF;
 
-	private float[] speed = new float[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
-	private float[] speedav = new float[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
-	private float[] speedavex = new float[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+	private final LocationFilter locationFilter = new LocationFilter();
+	private final SamplingPolicy samplingPolicy = new SamplingPolicy();
+	private double navigationDistance = Double.NaN;
 
 	private long lastLocationMillis = 0;
-	private long tics = 0;
-	private int pause = 1;
+	private float fixRate = 0f;
 
 	private Location lastKnownLocation = null;
 	private boolean isContinous = false;
-	private boolean justStarted = true;
 	private float smoothSpeed = 0.0f;
 	private float avgSpeed = 0.0f;
 	private float nmeaGeoidHeight = Float.NaN;
 	private float HDOP = Float.NaN;
 	private float VDOP = Float.NaN;
+	private final NmeaTokenizer nmeaTokenizer = new NmeaTokenizer();
 
 	private SQLiteDatabase trackDB = null;
+	private TrackStatistics trackStatistics = null;
+	// Points of past days are moved from track table to archive partitions in background
+	private final ExecutorService archiveExecutor = Executors.newSingleThreadExecutor();
+	// Guards reads spanning both archive and track table from compaction in between
+	private final ReentrantReadWriteLock archiveLock = new ReentrantReadWriteLock();
+	private volatile long compactionTime = 0;
 	private boolean trackingEnabled = false;
 	private String errorMsg = "";
 	private long errorTime = 0;
@@ -122,12 +164,24 @@ public class LocationService extends BaseLocationService implements LocationList
 	private long minTime = 2000; // 2 seconds (default)
 	private long maxTime = 300000; // 5 minutes
 	private int minDistance = 3; // 3 meters (default)
+	private final TrackCompressor trackCompressor = new TrackCompressor(5);
 
 	private final Binder binder = new LocalBinder();
 	private final RemoteCallbackList<ILocationCallback> locationRemoteCallbacks = new RemoteCallbackList<ILocationCallback>();
 	private final Set<ILocationListener> locationCallbacks = new HashSet<ILocationListener>();
-	private final RemoteCallbackList<ITrackingCallback> trackingRemoteCallbacks = new RemoteCallbackList<ITrackingCallback>();
-	private final Set<ITrackingListener> trackingCallbacks = new HashSet<ITrackingListener>();
+	private final LocationDispatcher locationDispatcher = new LocationDispatcher();
+	private final LocationDispatcher trackingDispatcher = new LocationDispatcher();
+	private final Handler handler = new Handler();
+	// Local listeners expect callbacks in main thread
+	private final Executor mainExecutor = new Executor() {
+		@Override
+		public void execute(Runnable command)
+		{
+			handler.post(command);
+		}
+	};
+	// Remote callbacks are served by separate threads to isolate slow ones
+	private final ExecutorService remoteExecutor = Executors.newCachedThreadPool();
 
 	@Override
 	public void onCreate()
@@ -139,12 +193,20 @@ public class LocationService extends BaseLocationService implements LocationList
 		SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
 		// Location preferences
 		onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_loc_gpstimeout));
+		onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_loc_nmeasource));
 		// Tracking preferences
 		onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_tracking_mintime));
 		onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_tracking_mindistance));
+		onSharedPreferenceChanged(sharedPreferences, getString(R.string.pref_tracking_maxerror));
 
 		sharedPreferences.registerOnSharedPreferenceChangeListener(this);
 
+		PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+		samplingPolicy.setScreenOn(powerManager.isScreenOn());
+		IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+		filter.addAction(Intent.ACTION_SCREEN_OFF);
+		registerReceiver(screenReceiver, filter);
+
 		Log.i(TAG, "Service started");
 	}
 
@@ -176,19 +238,37 @@ public class LocationService extends BaseLocationService implements LocationList
 				sendBroadcast(new Intent(BROADCAST_TRACKING_STATUS));
 			}
 		}
+		if (intent.getAction().equals(REPLAY_LOCATIONS) && intent.hasExtra(EXTRA_REPLAY_FILE))
+		{
+			if (locationsEnabled)
+				disconnect();
+			replayFile = intent.getStringExtra(EXTRA_REPLAY_FILE);
+			replaySpeed = intent.getFloatExtra(EXTRA_REPLAY_SPEED, 1f);
+			connect();
+			if (!locationsEnabled)
+			{
+				locationsEnabled = true;
+				sendBroadcast(new Intent(BROADCAST_LOCATING_STATUS));
+			}
+		}
 		if (intent.getAction().equals(ENABLE_TRACK) && !trackingEnabled)
 		{
 			errorMsg = "";
 			errorTime = 0;
 			trackingEnabled = true;
 			isContinous = false;
+			trackCompressor.reset();
 			openDatabase();
+			updateSamplingLimit();
 			sendBroadcast(new Intent(BROADCAST_TRACKING_STATUS));
 		}
 		if (intent.getAction().equals(DISABLE_TRACK) && trackingEnabled)
 		{
 			trackingEnabled = false;
+			storeLocation(trackCompressor.flush(), true);
+			Log.i(TAG, "Track compression: " + trackCompressor.getStored() + " of " + trackCompressor.getReceived() + " points stored");
 			closeDatabase();
+			updateSamplingLimit();
 			errorMsg = "";
 			errorTime = 0;
 			sendBroadcast(new Intent(BROADCAST_TRACKING_STATUS));
@@ -203,23 +283,41 @@ public class LocationService extends BaseLocationService implements LocationList
 	{
 		super.onDestroy();
 		PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(this);
+		unregisterReceiver(screenReceiver);
 		disconnect();
+		storeLocation(trackCompressor.flush(), true);
 		closeDatabase();
+		for (LocationDispatcher.Statistics statistics : getDispatchStatistics())
+			Log.i(TAG, statistics.toString());
+		remoteExecutor.shutdown();
+		archiveExecutor.shutdown();
 		Log.i(TAG, "Service stopped");
 	}
 
 	private final ILocationRemoteService.Stub locationRemoteBinder = new ILocationRemoteService.Stub() {
-		public void registerCallback(ILocationCallback cb)
+		public void registerCallback(final ILocationCallback cb)
 		{
 			Log.i(TAG, "Register callback");
 			if (cb != null)
+			{
 				locationRemoteCallbacks.register(cb);
+				locationDispatcher.subscribe(cb.asBinder(), new LocationDispatcher.Subscriber("remote location " + Binder.getCallingUid()) {
+					@Override
+					protected void onLocationChanged(LocationDispatcher.LocationEvent event) throws RemoteException
+					{
+						cb.onLocationChanged(event.location, event.continous, event.geoid, event.smoothSpeed, event.avgSpeed);
+					}
+				}, remoteExecutor);
+			}
 		}
 
 		public void unregisterCallback(ILocationCallback cb)
 		{
 			if (cb != null)
+			{
 				locationRemoteCallbacks.unregister(cb);
+				locationDispatcher.unsubscribe(cb.asBinder());
+			}
 		}
 
 		public boolean isLocating()
@@ -229,17 +327,25 @@ public class LocationService extends BaseLocationService implements LocationList
 	};
 
 	private final ITrackingRemoteService.Stub trackingRemoteBinder = new ITrackingRemoteService.Stub() {
-		public void registerCallback(ITrackingCallback cb)
+		public void registerCallback(final ITrackingCallback cb)
 		{
 			Log.i(TAG, "Register callback");
 			if (cb != null)
-				trackingRemoteCallbacks.register(cb);
+			{
+				trackingDispatcher.subscribe(cb.asBinder(), new LocationDispatcher.Subscriber("remote tracking " + Binder.getCallingUid()) {
+					@Override
+					protected void onNewPoint(LocationDispatcher.PointEvent event) throws RemoteException
+					{
+						cb.onNewPoint(event.continous, event.latitude, event.longitude, event.elevation, event.speed, event.bearing, event.accuracy, event.time);
+					}
+				}, remoteExecutor);
+			}
 		}
 
 		public void unregisterCallback(ITrackingCallback cb)
 		{
 			if (cb != null)
-				trackingRemoteCallbacks.unregister(cb);
+				trackingDispatcher.unsubscribe(cb.asBinder());
 		}
 	};
 
@@ -267,6 +373,19 @@ public class LocationService extends BaseLocationService implements LocationList
 		{
 			gpsLocationTimeout = 1000 * sharedPreferences.getInt(key, getResources().getInteger(R.integer.def_loc_gpstimeout));
 		}
+		else if (getString(R.string.pref_loc_nmeasource).equals(key))
+		{
+			String address = sharedPreferences.getString(key, "").trim();
+			if (!address.equals(nmeaSourceAddress))
+			{
+				nmeaSourceAddress = address;
+				if (locationsEnabled)
+				{
+					disconnect();
+					connect();
+				}
+			}
+		}
 		else if (getString(R.string.pref_tracking_mintime).equals(key))
 		{
 			try
@@ -276,6 +395,7 @@ public class LocationService extends BaseLocationService implements LocationList
 			catch (NumberFormatException e)
 			{
 			}
+			updateSamplingLimit();
 		}
 		else if (getString(R.string.pref_tracking_mindistance).equals(key))
 		{
@@ -287,6 +407,16 @@ public class LocationService extends BaseLocationService implements LocationList
 			{
 			}
 		}
+		else if (getString(R.string.pref_tracking_maxerror).equals(key))
+		{
+			try
+			{
+				trackCompressor.setTolerance(Integer.parseInt(sharedPreferences.getString(key, "5")));
+			}
+			catch (NumberFormatException e)
+			{
+			}
+		}
 		else if (getString(R.string.pref_folder_data).equals(key))
 		{
 			closeDatabase();
@@ -296,19 +426,30 @@ public class LocationService extends BaseLocationService implements LocationList
 
 	private void connect()
 	{
+		if (replayFile != null)
+		{
+			connectReplaySource();
+			return;
+		}
+		if (NmeaLocationSource.isValidAddress(nmeaSourceAddress))
+		{
+			connectNmeaSource();
+			return;
+		}
 		locationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
 		if (locationManager != null)
 		{
 			lastLocationMillis = 0;
-			pause = 1;
 			isContinous = false;
-			justStarted = true;
+			locationFilter.reset();
 			smoothSpeed = 0.0f;
 			avgSpeed = 0.0f;
+			fixRate = 0f;
+			samplingPolicy.reset(SystemClock.elapsedRealtime());
 			locationManager.addGpsStatusListener(this);
 			try
 			{
-				locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, this);
+				locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, samplingPolicy.getInterval(), samplingPolicy.getDistance(), this);
 				locationManager.addNmeaListener(this);
 				Log.d(TAG, "Gps provider set");
 			}
@@ -327,8 +468,17 @@ public class LocationService extends BaseLocationService implements LocationList
 
 	private void disconnect()
 	{
+		if (nmeaSource != null)
+		{
+			disconnectNmeaSource();
+		}
+		if (replaySource != null)
+		{
+			disconnectReplaySource();
+		}
 		if (locationManager != null)
 		{
+			logSamplingStatistics();
 			locationManager.removeNmeaListener(this);
 			locationManager.removeUpdates(this);
 			locationManager.removeGpsStatusListener(this);
@@ -342,6 +492,155 @@ public class LocationService extends BaseLocationService implements LocationList
 		}
 	}
 
+	/**
+	 * Uses external receiver instead of built-in GPS.
+	 */
+	private void connectNmeaSource()
+	{
+		lastLocationMillis = 0;
+		isContinous = false;
+		locationFilter.reset();
+		smoothSpeed = 0.0f;
+		avgSpeed = 0.0f;
+		fixRate = 0f;
+		samplingPolicy.reset(SystemClock.elapsedRealtime());
+		// External receivers report altitude above sea level
+		nmeaGeoidHeight = Float.NaN;
+		nmeaSourceSatellites = 0;
+		nmeaSource = new NmeaLocationSource(nmeaSourceAddress, LocationManager.GPS_PROVIDER, nmeaSourceHandler, nmeaSourceListener);
+		nmeaSource.start();
+		nmeaSourceHandler.postDelayed(nmeaSourceWatchdog, 1000);
+		Log.d(TAG, "NMEA source set: " + nmeaSourceAddress);
+		startForeground(NOTIFICATION_ID, getNotification());
+		updateProvider(LocationManager.GPS_PROVIDER, true);
+		updateGpsStatus(GPS_SEARCHING, 0, 0);
+	}
+
+	private void disconnectNmeaSource()
+	{
+		nmeaSourceHandler.removeCallbacks(nmeaSourceWatchdog);
+		nmeaSource.stop();
+		NmeaLocationSource.Statistics stats = nmeaSource.getStatistics();
+		Log.i(TAG, "NMEA source stopped, sentences: " + stats.sentences + " rejected: " + stats.rejected + " locations: " + stats.locations + " dropped: " + stats.dropped + " reconnects: " + stats.reconnects);
+		nmeaSource = null;
+		stopForeground(true);
+		tearTrack();
+		updateGpsStatus(GPS_OFF, 0, 0);
+	}
+
+	private final NmeaLocationSource.OnNmeaLocationListener nmeaSourceListener = new NmeaLocationSource.OnNmeaLocationListener() {
+		@Override
+		public void onSourceConnected(NmeaLocationSource source)
+		{
+			updateGpsStatus(GPS_SEARCHING, 0, 0);
+		}
+
+		@Override
+		public void onSourceDisconnected(NmeaLocationSource source)
+		{
+			tearTrack();
+			updateGpsStatus(GPS_SEARCHING, 0, 0);
+		}
+
+		@Override
+		public void onLocationChanged(NmeaLocationSource source, Location location)
+		{
+			int satellites = nmeaSourceSatellites;
+			Bundle extras = location.getExtras();
+			if (extras != null)
+			{
+				HDOP = extras.getFloat("hdop", HDOP);
+				VDOP = extras.getFloat("vdop", VDOP);
+				satellites = extras.getInt("numSatellites", satellites);
+			}
+			if (gpsStatus != GPS_OK || satellites != nmeaSourceSatellites)
+			{
+				nmeaSourceSatellites = satellites;
+				updateGpsStatus(GPS_OK, satellites, satellites);
+			}
+			LocationService.this.onLocationChanged(location);
+		}
+	};
+
+	/**
+	 * Built-in GPS reports lost fix by status events, external receiver is watched by fix time.
+	 */
+	private final Runnable nmeaSourceWatchdog = new Runnable() {
+		@Override
+		public void run()
+		{
+			if (gpsStatus == GPS_OK && SystemClock.elapsedRealtime() - lastLocationMillis > 3000)
+			{
+				tearTrack();
+				updateGpsStatus(GPS_SEARCHING, 0, 0);
+			}
+			nmeaSourceHandler.postDelayed(this, 1000);
+		}
+	};
+
+	private void connectReplaySource()
+	{
+		lastLocationMillis = 0;
+		isContinous = false;
+		locationFilter.reset();
+		smoothSpeed = 0.0f;
+		avgSpeed = 0.0f;
+		fixRate = 0f;
+		samplingPolicy.reset(SystemClock.elapsedRealtime());
+		nmeaGeoidHeight = Float.NaN;
+		// Finish recorded track, replayed track is recorded to scratch database
+		if (trackingEnabled)
+			tearTrack();
+		closeDatabase();
+		resetTrack();
+		deleteReplayDatabase(getReplayDatabase());
+		Androzic application = (Androzic) getApplication();
+		replaySource = new ReplayLocationSource(new File(replayFile), application.charset, LocationManager.GPS_PROVIDER, replaySpeed, nmeaSourceHandler, replayListener);
+		replaySource.start();
+		Log.d(TAG, "Replay started: " + replayFile);
+		startForeground(NOTIFICATION_ID, getNotification());
+		updateProvider(LocationManager.GPS_PROVIDER, true);
+		updateGpsStatus(GPS_SEARCHING, 0, 0);
+	}
+
+	private void disconnectReplaySource()
+	{
+		replaySource.stop();
+		stopForeground(true);
+		if (trackingEnabled)
+			tearTrack();
+		// Recorded track database is opened again when needed
+		closeDatabase();
+		resetTrack();
+		deleteReplayDatabase(getReplayDatabase());
+		replaySource = null;
+		replayFile = null;
+		updateGpsStatus(GPS_OFF, 0, 0);
+	}
+
+	private final ReplayLocationSource.OnReplayListener replayListener = new ReplayLocationSource.OnReplayListener() {
+		@Override
+		public void onLocationChanged(ReplayLocationSource source, Location location)
+		{
+			if (gpsStatus != GPS_OK)
+				updateGpsStatus(GPS_OK, 0, 0);
+			long start = System.nanoTime();
+			LocationService.this.onLocationChanged(location);
+			source.recordStage(ReplayLocationSource.STAGE_PROCESSING, System.nanoTime() - start);
+		}
+
+		@Override
+		public void onReplayFinished(ReplayLocationSource source, ReplayLocationSource.Report report)
+		{
+			Log.i(TAG, report.toString());
+			// Return to regular location source
+			replayFile = null;
+			disconnect();
+			if (locationsEnabled)
+				connect();
+		}
+	};
+
 	@SuppressWarnings("unused")
 	private Notification getNotification()
 	{
@@ -392,7 +691,7 @@ public class LocationService extends BaseLocationService implements LocationList
 
 	private void updateNotification()
 	{
-		if (locationManager != null)
+		if (locationManager != null || nmeaSource != null || replaySource != null)
 		{
 			NotificationManager notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
 			notificationManager.notify(NOTIFICATION_ID, getNotification());
@@ -420,15 +719,25 @@ public class LocationService extends BaseLocationService implements LocationList
 			return;
 		}
 		File path = new File(dir, "myTrack.db");
+		// Replayed locations are recorded to scratch database to keep recorded track intact
+		if (replaySource != null)
+			path = getReplayDatabase();
 		try
 		{
 			trackDB = SQLiteDatabase.openDatabase(path.getAbsolutePath(), null, SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+			// Takes effect on new database or after the next full vacuum
+			trackDB.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
 			Cursor cursor = trackDB.rawQuery("SELECT DISTINCT tbl_name FROM sqlite_master WHERE tbl_name = 'track'", null);
 			if (cursor.getCount() == 0)
 			{
 				trackDB.execSQL("CREATE TABLE track (_id INTEGER PRIMARY KEY, latitude REAL, longitude REAL, code INTEGER, elevation REAL, speed REAL, track REAL, accuracy REAL, datetime INTEGER)");
 			}
 			cursor.close();
+			trackDB.execSQL("CREATE TABLE IF NOT EXISTS archive (_id INTEGER PRIMARY KEY, starttime INTEGER, endtime INTEGER, size INTEGER, data BLOB)");
+			trackDB.execSQL("CREATE INDEX IF NOT EXISTS archive_starttime ON archive (starttime)");
+			trackDB.execSQL("CREATE INDEX IF NOT EXISTS archive_endtime ON archive (endtime)");
+			loadStatistics();
+			scheduleCompaction();
 		}
 		catch (SQLiteException e)
 		{
@@ -440,15 +749,68 @@ public class LocationService extends BaseLocationService implements LocationList
 		}
 	}
 
+	private File getReplayDatabase()
+	{
+		return new File(getCacheDir(), REPLAY_DATABASE);
+	}
+
+	private static void deleteReplayDatabase(File path)
+	{
+		for (String suffix : new String[] {"", "-journal"})
+		{
+			File file = new File(path.getPath() + suffix);
+			if (file.exists() && !file.delete())
+				Log.e(TAG, "Failed to delete " + file.getAbsolutePath());
+		}
+	}
+
 	private void closeDatabase()
 	{
 		if (trackDB != null)
 		{
 			trackDB.close();
 			trackDB = null;
+			trackStatistics = null;
 		}
 	}
 
+	/**
+	 * Loads statistics of recorded track, it is calculated once if it was not saved yet.
+	 */
+	private void loadStatistics()
+	{
+		trackDB.execSQL("CREATE TABLE IF NOT EXISTS statistics (_id INTEGER PRIMARY KEY, data BLOB)");
+		Cursor cursor = trackDB.rawQuery("SELECT data FROM statistics WHERE _id = 1", null);
+		trackStatistics = cursor.moveToFirst() ? TrackStatistics.fromByteArray(cursor.getBlob(0)) : null;
+		cursor.close();
+		if (trackStatistics != null)
+			return;
+
+		trackStatistics = new TrackStatistics();
+		TrackReader reader = new TrackReader(trackDB, 0);
+		while (reader.moveToNext())
+			trackStatistics.addPoint(reader.continous, reader.latitude, reader.longitude, reader.elevation, reader.time);
+		reader.close();
+		saveStatistics();
+	}
+
+	private void saveStatistics()
+	{
+		ContentValues values = new ContentValues();
+		values.put("_id", 1);
+		values.put("data", trackStatistics.toByteArray());
+		trackDB.replace("statistics", null, values);
+	}
+
+	public TrackStatistics getTrackStatistics()
+	{
+		if (trackDB == null)
+			openDatabase();
+		if (trackStatistics == null)
+			return new TrackStatistics();
+		return new TrackStatistics(trackStatistics);
+	}
+
 	public Track getTrack()
 	{
 		return getTrack(0);
@@ -461,21 +823,18 @@ public class LocationService extends BaseLocationService implements LocationList
 		Track track = new Track();
 		if (trackDB == null)
 			return track;
-		String limitStr = limit > 0 ? " LIMIT " + limit : "";
-		Cursor cursor = trackDB.rawQuery("SELECT * FROM track ORDER BY _id DESC" + limitStr, null);
-		for (boolean hasItem = cursor.moveToLast(); hasItem; hasItem = cursor.moveToPrevious())
-		{
-			double latitude = cursor.getDouble(cursor.getColumnIndex("latitude"));
-			double longitude = cursor.getDouble(cursor.getColumnIndex("longitude"));
-			double elevation = cursor.getDouble(cursor.getColumnIndex("elevation"));
-			double speed = cursor.getDouble(cursor.getColumnIndex("speed"));
-			double bearing = cursor.getDouble(cursor.getColumnIndex("track"));
-			double accuracy = cursor.getDouble(cursor.getColumnIndex("accuracy"));
-			int code = cursor.getInt(cursor.getColumnIndex("code"));
-			long time = cursor.getLong(cursor.getColumnIndex("datetime"));
-			track.addPoint(code == 0, latitude, longitude, elevation, speed, bearing, accuracy, time);
+		archiveLock.readLock().lock();
+		try
+		{
+			new TrackReader(trackDB, limit).readTo(track);
 		}
-		cursor.close();
+		finally
+		{
+			archiveLock.readLock().unlock();
+		}
+		// Whole track has persisted statistics
+		if (limit == 0 && trackStatistics != null && trackStatistics.pointCount == track.getPointCount())
+			TrackStatistics.put(track, trackStatistics);
 		return track;
 	}
 
@@ -486,20 +845,15 @@ public class LocationService extends BaseLocationService implements LocationList
 		Track track = new Track();
 		if (trackDB == null)
 			return track;
-		Cursor cursor = trackDB.rawQuery("SELECT * FROM track WHERE datetime >= ? AND datetime <= ? ORDER BY _id DESC", new String[] {String.valueOf(start), String.valueOf(end)});
-		for (boolean hasItem = cursor.moveToLast(); hasItem; hasItem = cursor.moveToPrevious())
-		{
-			double latitude = cursor.getDouble(cursor.getColumnIndex("latitude"));
-			double longitude = cursor.getDouble(cursor.getColumnIndex("longitude"));
-			double elevation = cursor.getDouble(cursor.getColumnIndex("elevation"));
-			double speed = cursor.getDouble(cursor.getColumnIndex("speed"));
-			double bearing = cursor.getDouble(cursor.getColumnIndex("track"));
-			double accuracy = cursor.getDouble(cursor.getColumnIndex("accuracy"));
-			int code = cursor.getInt(cursor.getColumnIndex("code"));
-			long time = cursor.getLong(cursor.getColumnIndex("datetime"));
-			track.addPoint(code == 0, latitude, longitude, elevation, speed, bearing, accuracy, time);
+		archiveLock.readLock().lock();
+		try
+		{
+			new TrackReader(trackDB, start, end).readTo(track);
+		}
+		finally
+		{
+			archiveLock.readLock().unlock();
 		}
-		cursor.close();
 		return track;
 	}
 
@@ -510,7 +864,8 @@ public class LocationService extends BaseLocationService implements LocationList
 			openDatabase();
 		if (trackDB == null)
 			return res;
-		Cursor cursor = trackDB.rawQuery("SELECT MIN(datetime) FROM track WHERE datetime > 0", null);
+		// Both subqueries are resolved by indexes
+		Cursor cursor = trackDB.rawQuery("SELECT MIN(t) FROM (SELECT MIN(starttime) AS t FROM archive WHERE starttime > 0 UNION ALL SELECT MIN(datetime) FROM track WHERE datetime > 0)", null);
 		if (cursor.moveToFirst())
 			res = cursor.getLong(0);
 		cursor.close();
@@ -524,7 +879,7 @@ public class LocationService extends BaseLocationService implements LocationList
 			openDatabase();
 		if (trackDB == null)
 			return res;
-		Cursor cursor = trackDB.rawQuery("SELECT MAX(datetime) FROM track", null);
+		Cursor cursor = trackDB.rawQuery("SELECT MAX(t) FROM (SELECT MAX(endtime) AS t FROM archive UNION ALL SELECT MAX(datetime) FROM track)", null);
 		if (cursor.moveToFirst())
 			res = cursor.getLong(0);
 		cursor.close();
@@ -536,7 +891,190 @@ public class LocationService extends BaseLocationService implements LocationList
 		if (trackDB == null)
 			openDatabase();
 		if (trackDB != null)
-			trackDB.execSQL("DELETE FROM track");
+		{
+			archiveLock.writeLock().lock();
+			try
+			{
+				trackDB.beginTransaction();
+				try
+				{
+					trackDB.execSQL("DELETE FROM track");
+					trackDB.execSQL("DELETE FROM archive");
+					trackStatistics.clear();
+					saveStatistics();
+					trackDB.setTransactionSuccessful();
+				}
+				finally
+				{
+					trackDB.endTransaction();
+				}
+			}
+			finally
+			{
+				archiveLock.writeLock().unlock();
+			}
+			// Return space occupied by long track to file system, database is empty so it is quick
+			// and it also switches old database to incremental vacuum
+			if (!archiveExecutor.isShutdown())
+			{
+				final SQLiteDatabase db = trackDB;
+				archiveExecutor.execute(new Runnable() {
+					@Override
+					public void run()
+					{
+						try
+						{
+							db.execSQL("VACUUM");
+						}
+						catch (SQLiteException | IllegalStateException e)
+						{
+							Log.e(TAG, "clearTrack", e);
+						}
+					}
+				});
+			}
+		}
+		trackCompressor.reset();
+	}
+
+	private void scheduleCompaction()
+	{
+		if (archiveExecutor.isShutdown())
+			return;
+		final SQLiteDatabase db = trackDB;
+		compactionTime = getDayStart(System.currentTimeMillis(), 1);
+		archiveExecutor.execute(new Runnable() {
+			@Override
+			public void run()
+			{
+				compactTrack(db);
+			}
+		});
+	}
+
+	/**
+	 * Moves points of past days from track table to archive, one or more partitions per day.
+	 * Each partition is moved in its own transaction, so recording is not blocked for long.
+	 */
+	private void compactTrack(SQLiteDatabase db)
+	{
+		long today = getDayStart(System.currentTimeMillis(), 0);
+		long total = 0;
+		try
+		{
+			db.execSQL("CREATE INDEX IF NOT EXISTS track_datetime ON track (datetime)");
+			int count;
+			while ((count = compactPartition(db, today)) > 0)
+				total += count;
+			if (total > 0)
+			{
+				Log.i(TAG, "Archived " + total + " track points");
+				shrinkDatabase(db);
+			}
+		}
+		catch (SQLiteException | IllegalStateException e)
+		{
+			// Database could be closed meanwhile, compaction will continue on next opening
+			Log.e(TAG, "compactTrack", e);
+		}
+	}
+
+	/**
+	 * Returns free pages to file system. Pages are freed in small portions so that points can be
+	 * recorded in between. Does nothing if database was created before incremental vacuum was
+	 * enabled, free pages are reused by new points anyway.
+	 */
+	private void shrinkDatabase(SQLiteDatabase db)
+	{
+		if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != 2)
+			return;
+		while (DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) > 0)
+		{
+			Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")", null);
+			//noinspection StatementWithEmptyBody
+			while (cursor.moveToNext())
+				;
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Archives the oldest day of track table which is before given time. Points with later time,
+	 * e.g. erroneous fixes from the future, are left in track table and archived when their day
+	 * passes.
+	 *
+	 * @return number of archived points
+	 */
+	private int compactPartition(SQLiteDatabase db, long before)
+	{
+		archiveLock.writeLock().lock();
+		try
+		{
+			TrackArchive.Encoder encoder = new TrackArchive.Encoder();
+			long lastId = -1;
+			long dayStart = 0;
+			long dayEnd = 0;
+			String[] args = new String[] {String.valueOf(before)};
+			Cursor cursor = db.rawQuery("SELECT _id, code, latitude, longitude, elevation, speed, track, accuracy, datetime FROM track WHERE datetime < ? ORDER BY _id LIMIT " + MAX_ARCHIVE_POINTS, args);
+			for (boolean hasItem = cursor.moveToFirst(); hasItem; hasItem = cursor.moveToNext())
+			{
+				long time = cursor.getLong(8);
+				if (lastId < 0)
+				{
+					dayStart = getDayStart(time, 0);
+					dayEnd = getDayStart(time, 1);
+				}
+				else if (time < dayStart || time >= dayEnd)
+				{
+					break;
+				}
+				encoder.add(cursor.getInt(1) == 0, cursor.getDouble(2), cursor.getDouble(3), cursor.getDouble(4), (float) cursor.getDouble(5), (float) cursor.getDouble(6), (float) cursor.getDouble(7), time);
+				lastId = cursor.getLong(0);
+			}
+			cursor.close();
+			if (lastId < 0)
+				return 0;
+
+			ContentValues values = new ContentValues();
+			values.put("starttime", encoder.getStartTime());
+			values.put("endtime", encoder.getEndTime());
+			values.put("size", encoder.getCount());
+			values.put("data", encoder.toByteArray());
+			db.beginTransaction();
+			try
+			{
+				db.insertOrThrow("archive", null, values);
+				// Points after archived ones are kept, they are from today or the future
+				db.delete("track", "_id <= ? AND datetime < ?", new String[] {String.valueOf(lastId), String.valueOf(before)});
+				db.setTransactionSuccessful();
+			}
+			finally
+			{
+				db.endTransaction();
+			}
+			return encoder.getCount();
+		}
+		finally
+		{
+			archiveLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns start of the day of given time in local time zone.
+	 *
+	 * @param offset number of days to add
+	 */
+	private static long getDayStart(long time, int offset)
+	{
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		calendar.add(Calendar.DAY_OF_MONTH, offset);
+		return calendar.getTimeInMillis();
 	}
 
 	public void addPoint(boolean continous, double latitude, double longitude, double elevation, float speed, float bearing, float accuracy, long time)
@@ -560,7 +1098,20 @@ public class LocationService extends BaseLocationService implements LocationList
 
 		try
 		{
-			trackDB.insertOrThrow("track", null, values);
+			trackDB.beginTransaction();
+			try
+			{
+				trackDB.insertOrThrow("track", null, values);
+				trackStatistics.addPoint(continous, latitude, longitude, elevation, time);
+				saveStatistics();
+				trackDB.setTransactionSuccessful();
+			}
+			finally
+			{
+				trackDB.endTransaction();
+			}
+			if (System.currentTimeMillis() >= compactionTime)
+				scheduleCompaction();
 		}
 		catch (SQLException e)
 		{
@@ -572,32 +1123,36 @@ public class LocationService extends BaseLocationService implements LocationList
 		}
 	}
 
-	private void writeLocation(final Location loc, final boolean continous)
+	/**
+	 * @param forced point has to be stored even if it lies on a straight line, e.g. keep-alive point
+	 */
+	private void writeLocation(final Location loc, final boolean continous, final boolean forced)
 	{
 		Log.d(TAG, "Fix needs writing");
 		lastWritenLocation = loc;
 		distanceFromLastWriting = 0;
-		addPoint(continous, loc.getLatitude(), loc.getLongitude(), loc.getAltitude(), loc.getSpeed(), loc.getBearing(), loc.getAccuracy(), loc.getTime());
-
-		for (ITrackingListener callback : trackingCallbacks)
-		{
-			callback.onNewPoint(continous, loc.getLatitude(), loc.getLongitude(), loc.getAltitude(), loc.getSpeed(), loc.getBearing(), loc.getAccuracy(), loc.getTime());
-		}
+		// Points of finished segment are continous
+		if (!continous || forced)
+		{
+			storeLocation(trackCompressor.flush(), true);
+			trackCompressor.reset();
+		}
+		// Compressor stores the first point of a track immediately
+		Location point = trackCompressor.add(loc);
+		if (point != null)
+			storeLocation(point, point == loc ? continous : true);
+		// Let the track be drawn up to the current position on long straight segments
+		Location pending = trackCompressor.getPending();
+		if (pending != null)
+			trackingDispatcher.publishPendingPoint(pending.getLatitude(), pending.getLongitude(), pending.getAltitude(), pending.getSpeed(), pending.getBearing(), pending.getAccuracy(), pending.getTime());
+	}
 
-		final int n = trackingRemoteCallbacks.beginBroadcast();
-		for (int i = 0; i < n; i++)
-		{
-			final ITrackingCallback callback = trackingRemoteCallbacks.getBroadcastItem(i);
-			try
-			{
-				callback.onNewPoint(continous, loc.getLatitude(), loc.getLongitude(), loc.getAltitude(), loc.getSpeed(), loc.getBearing(), loc.getAccuracy(), loc.getTime());
-			}
-			catch (RemoteException e)
-			{
-				Log.e(TAG, "Point broadcast error", e);
-			}
-		}
-		trackingRemoteCallbacks.finishBroadcast();
+	private void storeLocation(final Location loc, final boolean continous)
+	{
+		if (loc == null)
+			return;
+		addPoint(continous, loc.getLatitude(), loc.getLongitude(), loc.getAltitude(), loc.getSpeed(), loc.getBearing(), loc.getAccuracy(), loc.getTime());
+		trackingDispatcher.publishPoint(continous, loc.getLatitude(), loc.getLongitude(), loc.getAltitude(), loc.getSpeed(), loc.getBearing(), loc.getAccuracy(), loc.getTime());
 	}
 
 	private void writeTrack(Location loc, boolean continous, boolean geoid, float smoothspeed, float avgspeed)
@@ -618,13 +1173,26 @@ public class LocationService extends BaseLocationService implements LocationList
 		lastLocation = loc;
 
 		if (needsWrite)
-			writeLocation(loc, continous);
+			writeLocation(loc, continous, lastWritenLocation != null && timeFromLastWriting > maxTime);
 	}
 
 	private void tearTrack()
 	{
 		if (lastLocation != null && (lastWritenLocation == null || !lastLocation.toString().equals(lastWritenLocation.toString())))
-			writeLocation(lastLocation, isContinous);
+			writeLocation(lastLocation, isContinous, false);
+		storeLocation(trackCompressor.flush(), true);
+		isContinous = false;
+	}
+
+	/**
+	 * Forgets recording state so that next location starts a new track segment.
+	 */
+	private void resetTrack()
+	{
+		lastLocation = null;
+		lastWritenLocation = null;
+		distanceFromLastWriting = 0;
+		trackCompressor.reset();
 		isContinous = false;
 	}
 
@@ -635,8 +1203,8 @@ public class LocationService extends BaseLocationService implements LocationList
 		final boolean geoid = !Float.isNaN(nmeaGeoidHeight);
 		final float smoothspeed = smoothSpeed;
 		final float avgspeed = avgSpeed;
-
-		final Handler handler = new Handler();
+		// Pipeline latency is measured only while replaying
+		final ReplayLocationSource replay = replaySource;
 
 		if (trackingEnabled)
 		{
@@ -644,35 +1212,25 @@ public class LocationService extends BaseLocationService implements LocationList
 				@Override
 				public void run()
 				{
+					// Location source has been switched meanwhile, recording belongs to another database
+					if (replay != replaySource)
+						return;
+					long start = replay != null ? System.nanoTime() : 0;
 					writeTrack(location, continous, geoid, smoothspeed, avgspeed);
+					if (replay != null)
+						replay.recordStage(ReplayLocationSource.STAGE_RECORDING, System.nanoTime() - start);
 				}
 			});
 		}
-		for (final ILocationListener callback : locationCallbacks)
-		{
-			handler.post(new Runnable() {
-				@Override
-				public void run()
-				{
-					callback.onLocationChanged(location, continous, geoid, smoothspeed, avgspeed);
-				}
-			});
-		}
-		final int n = locationRemoteCallbacks.beginBroadcast();
-		for (int i = 0; i < n; i++)
-		{
-			final ILocationCallback callback = locationRemoteCallbacks.getBroadcastItem(i);
-			try
-			{
-				callback.onLocationChanged(location, continous, geoid, smoothspeed, avgspeed);
-			}
-			catch (RemoteException e)
-			{
-				Log.e(TAG, "Location broadcast error", e);
-			}
-		}
-		locationRemoteCallbacks.finishBroadcast();
-		Log.d(TAG, "Location dispatched: " + (locationCallbacks.size() + n));
+		locationDispatcher.publishLocation(location, continous, geoid, smoothspeed, avgspeed);
+		Log.d(TAG, "Location dispatched: " + locationDispatcher.getSubscriberCount());
+	}
+
+	private List<LocationDispatcher.Statistics> getDispatchStatistics()
+	{
+		List<LocationDispatcher.Statistics> statistics = locationDispatcher.getStatistics();
+		statistics.addAll(trackingDispatcher.getStatistics());
+		return statistics;
 	}
 
 	private void updateLocation(final ILocationListener callback)
@@ -685,7 +1243,6 @@ public class LocationService extends BaseLocationService implements LocationList
 	{
 		if (LocationManager.GPS_PROVIDER.equals(provider))
 			updateNotification();
-		final Handler handler = new Handler();
 		for (final ILocationListener callback : locationCallbacks)
 		{
 			handler.post(new Runnable() {
@@ -731,7 +1288,6 @@ public class LocationService extends BaseLocationService implements LocationList
 	{
 		gpsStatus = status;
 		updateNotification();
-		final Handler handler = new Handler();
 		for (final ILocationListener callback : locationCallbacks)
 		{
 			handler.post(new Runnable() {
@@ -759,14 +1315,58 @@ public class LocationService extends BaseLocationService implements LocationList
 		Log.d(TAG, "GPS status dispatched: " + (locationCallbacks.size() + n));
 	}
 
+	/**
+	 * Track points can be written as often as minTime, sampling should not be less frequent.
+	 */
+	private void updateSamplingLimit()
+	{
+		if (samplingPolicy.setMaxInterval(trackingEnabled ? minTime : 0))
+			applySamplingPolicy();
+	}
+
+	private void applySamplingPolicy()
+	{
+		// External receivers and replays have their own rate
+		if (locationManager == null)
+			return;
+		long interval = samplingPolicy.getInterval();
+		float distance = samplingPolicy.getDistance();
+		try
+		{
+			locationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, interval, distance, this);
+			Log.d(TAG, "Sampling mode " + samplingPolicy.getMode() + ": " + interval + " ms, " + distance + " m");
+		}
+		catch (IllegalArgumentException e)
+		{
+			Log.d(TAG, "Cannot set gps provider, likely no gps on device");
+		}
+	}
+
+	private void logSamplingStatistics()
+	{
+		long[] times = samplingPolicy.getTimeInModes(SystemClock.elapsedRealtime());
+		long[] fixes = samplingPolicy.getFixesInModes();
+		StringBuilder sb = new StringBuilder("Sampling statistics:");
+		for (int i = 0; i < SamplingPolicy.MODES; i++)
+			sb.append(' ').append(i).append(": ").append(times[i] / 1000).append(" s, ").append(fixes[i]).append(" fixes;");
+		Log.i(TAG, sb.toString());
+	}
+
+	private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent)
+		{
+			if (samplingPolicy.setScreenOn(Intent.ACTION_SCREEN_ON.equals(intent.getAction())))
+				applySamplingPolicy();
+		}
+	};
+
 	@Override
 	public void onLocationChanged(final Location location)
 	{
 		if (enableMockLocations)
 			return;
 		
-		tics++;
-
 		boolean sendUpdate = false;
 
 		long time = SystemClock.elapsedRealtime();
@@ -775,17 +1375,14 @@ public class LocationService extends BaseLocationService implements LocationList
 
 		Log.d(TAG, "Fix arrived");
 
-		long prevLocationMillis = lastLocationMillis;
-		float prevSpeed = lastKnownLocation.getSpeed();
-		float prevTrack = lastKnownLocation.getBearing();
-
-		lastKnownLocation = location;
-
-		if (lastKnownLocation.getSpeed() == 0 && prevTrack != 0)
+		if (lastLocationMillis > 0 && time > lastLocationMillis)
 		{
-			lastKnownLocation.setBearing(prevTrack);
+			// Fixes per second averaged over last minute
+			long interval = time - lastLocationMillis;
+			fixRate += (1000f / interval - fixRate) * (1 - Math.exp(-interval / 60000.0));
 		}
 
+		lastKnownLocation = location;
 		lastLocationMillis = time;
 		sendUpdate = true;
 
@@ -794,83 +1391,15 @@ public class LocationService extends BaseLocationService implements LocationList
 			lastKnownLocation.setAltitude(lastKnownLocation.getAltitude() + nmeaGeoidHeight);
 		}
 
-		if (justStarted)
-		{
-			justStarted = prevSpeed == 0;
-		}
-		else if (lastKnownLocation.getSpeed() > 0)
-		{
-			// filter speed outrages
-			double a = 2 * 9.8 * (lastLocationMillis - prevLocationMillis) / 1000;
-			if (Math.abs(lastKnownLocation.getSpeed() - prevSpeed) > a)
-				lastKnownLocation.setSpeed(prevSpeed);
-		}
-
-		// smooth speed
-		float smoothspeed = 0;
-		float curspeed = lastKnownLocation.getSpeed();
-		for (int i = speed.length - 1; i > 1; i--)
-		{
-			smoothspeed += speed[i];
-			speed[i] = speed[i - 1];
-		}
-		smoothspeed += speed[1];
-		if (speed[1] < speed[0] && speed[0] > curspeed)
-		{
-			speed[0] = (speed[1] + curspeed) / 2;
-		}
-		smoothspeed += speed[0];
-		speed[1] = speed[0];
-		lastKnownLocation.setSpeed(speed[1]);
-		speed[0] = curspeed;
-		if (speed[0] == 0 && speed[1] == 0)
-			smoothspeed = 0;
-		else
-			smoothspeed = smoothspeed / speed.length;
+		// Filtered location is used for display, navigation and recording
+		if (!locationFilter.filter(lastKnownLocation))
+			Log.d(TAG, "Fix rejected as outlier");
 
-		// average speed
-		float avspeed = 0;
-		for (int i = speedav.length - 1; i >= 0; i--)
-		{
-			avspeed += speedav[i];
-		}
-		avspeed = avspeed / speedav.length;
-		if (tics % pause == 0)
-		{
-			if (avspeed > 0)
-			{
-				float diff = curspeed / avspeed;
-				if (0.95 < diff && diff < 1.05)
-				{
-					for (int i = speedav.length - 1; i > 0; i--)
-					{
-						speedav[i] = speedav[i - 1];
-					}
-					speedav[0] = curspeed;
-				}
-			}
-			float fluct = 0;
-			for (int i = speedavex.length - 1; i > 0; i--)
-			{
-				fluct += speedavex[i] / curspeed;
-				speedavex[i] = speedavex[i - 1];
-			}
-			fluct += speedavex[0] / curspeed;
-			speedavex[0] = curspeed;
-			fluct = fluct / speedavex.length;
-			if (0.95 < fluct && fluct < 1.05)
-			{
-				for (int i = speedav.length - 1; i >= 0; i--)
-				{
-					speedav[i] = speedavex[i];
-				}
-				if (pause < 5)
-					pause++;
-			}
-		}
+		smoothSpeed = locationFilter.getSpeed();
+		avgSpeed = locationFilter.getAverageSpeed();
 
-		smoothSpeed = smoothspeed;
-		avgSpeed = avspeed;
+		if (samplingPolicy.update(time, smoothSpeed, navigationDistance))
+			applySamplingPolicy();
 
 		if (sendUpdate)
 			updateLocation();
@@ -881,65 +1410,26 @@ public class LocationService extends BaseLocationService implements LocationList
 	@Override
 	public void onNmeaReceived(long timestamp, String nmea)
 	{
-		if (nmea.indexOf('\n') == 0)
+		if (!nmeaTokenizer.tokenize(nmea))
 			return;
-		if (nmea.indexOf('\n') > 0)
-		{
-			nmea = nmea.substring(0, nmea.indexOf('\n') - 1);
-		}
-		int len = nmea.length();
-		if (len < 9)
-		{
-			return;
-		}
-		if (nmea.charAt(len - 3) == '*')
-		{
-			nmea = nmea.substring(0, len - 3);
-		}
-		String[] tokens = nmea.split(",");
-		String sentenceId = tokens[0].length() > 5 ? tokens[0].substring(3, 6) : "";
 
-		try
+		if (nmeaTokenizer.isType("GGA") && nmeaTokenizer.getFieldCount() > 11)
 		{
-			if (sentenceId.equals("GGA") && tokens.length > 11)
-			{
-				// String time = tokens[1];
-				// String latitude = tokens[2];
-				// String latitudeHemi = tokens[3];
-				// String longitude = tokens[4];
-				// String longitudeHemi = tokens[5];
-				// String fixQuality = tokens[6];
-				// String numSatellites = tokens[7];
-				// String horizontalDilutionOfPrecision = tokens[8];
-				// String altitude = tokens[9];
-				// String altitudeUnits = tokens[10];
-				String heightOfGeoid = tokens[11];
-				if (!"".equals(heightOfGeoid))
-					nmeaGeoidHeight = Float.parseFloat(heightOfGeoid);
-				// String heightOfGeoidUnits = tokens[12];
-				// String timeSinceLastDgpsUpdate = tokens[13];
-			}
-			else if (sentenceId.equals("GSA") && tokens.length > 17)
-			{
-				// String selectionMode = tokens[1]; // m=manual, a=auto 2d/3d
-				// String mode = tokens[2]; // 1=no fix, 2=2d, 3=3d
-				@SuppressWarnings("unused")
-				String pdop = tokens[15];
-				String hdop = tokens[16];
-				String vdop = tokens[17];
-				if (!"".equals(hdop))
-					HDOP = Float.parseFloat(hdop);
-				if (!"".equals(vdop))
-					VDOP = Float.parseFloat(vdop);
-			}
+			// 1 - time, 2,3 - latitude, 4,5 - longitude, 6 - fix quality, 7 - number of satellites,
+			// 8 - HDOP, 9,10 - altitude, 11,12 - height of geoid, 13 - time since last DGPS update
+			float heightOfGeoid = nmeaTokenizer.getFloat(11);
+			if (!Float.isNaN(heightOfGeoid))
+				nmeaGeoidHeight = heightOfGeoid;
 		}
-		catch (NumberFormatException e)
+		else if (nmeaTokenizer.isType("GSA") && nmeaTokenizer.getFieldCount() > 17)
 		{
-			Log.e(TAG, "NFE", e);
-		}
-		catch (ArrayIndexOutOfBoundsException e)
-		{
-			Log.e(TAG, "AIOOBE", e);
+			// 1 - selection mode, 2 - mode, 3-14 - satellites, 15 - PDOP, 16 - HDOP, 17 - VDOP
+			float hdop = nmeaTokenizer.getFloat(16);
+			float vdop = nmeaTokenizer.getFloat(17);
+			if (!Float.isNaN(hdop))
+				HDOP = hdop;
+			if (!Float.isNaN(vdop))
+				VDOP = vdop;
 		}
 	}
 
@@ -1008,7 +1498,8 @@ public class LocationService extends BaseLocationService implements LocationList
 					if (sat.usedInFix())
 						fSats++;
 				}
-				if (SystemClock.elapsedRealtime() - lastLocationMillis < 3000)
+				// Stationary receiver may not report fixes until it moves away
+				if (SystemClock.elapsedRealtime() - lastLocationMillis < samplingPolicy.getInterval() + 3000 || samplingPolicy.getMode() == SamplingPolicy.MODE_STATIONARY && fSats >= 3)
 				{
 					updateGpsStatus(GPS_OK, fSats, tSats);
 				}
@@ -1021,6 +1512,29 @@ public class LocationService extends BaseLocationService implements LocationList
 		}
 	}
 
+	private class LocalLocationSubscriber extends LocationDispatcher.Subscriber
+	{
+		private final ILocationListener callback;
+
+		LocalLocationSubscriber(ILocationListener callback)
+		{
+			super(callback.getClass().getName());
+			this.callback = callback;
+		}
+
+		@Override
+		protected void onLocationChanged(LocationDispatcher.LocationEvent event)
+		{
+			ReplayLocationSource replay = replaySource;
+			long start = replay != null ? System.nanoTime() : 0;
+			if (replay != null)
+				replay.recordStage(ReplayLocationSource.STAGE_DISPATCH, start - event.nanos);
+			callback.onLocationChanged(event.location, event.continous, event.geoid, event.smoothSpeed, event.avgSpeed);
+			if (replay != null)
+				replay.recordStage(ReplayLocationSource.STAGE_LISTENERS, System.nanoTime() - start);
+		}
+	}
+
 	public class LocalBinder extends Binder implements ILocationService
 	{
 		@Override
@@ -1029,24 +1543,38 @@ public class LocationService extends BaseLocationService implements LocationList
 			updateProvider(callback);
 			updateLocation(callback);
 			locationCallbacks.add(callback);
+			locationDispatcher.subscribe(callback, new LocalLocationSubscriber(callback), mainExecutor);
 		}
 
 		@Override
 		public void unregisterLocationCallback(ILocationListener callback)
 		{
 			locationCallbacks.remove(callback);
+			locationDispatcher.unsubscribe(callback);
 		}
 
 		@Override
-		public void registerTrackingCallback(com.androzic.location.ITrackingListener callback)
+		public void registerTrackingCallback(final com.androzic.location.ITrackingListener callback)
 		{
-			trackingCallbacks.add(callback);
+			trackingDispatcher.subscribe(callback, new LocationDispatcher.Subscriber(callback.getClass().getName()) {
+				@Override
+				protected void onNewPoint(LocationDispatcher.PointEvent event)
+				{
+					callback.onNewPoint(event.continous, event.latitude, event.longitude, event.elevation, event.speed, event.bearing, event.accuracy, event.time);
+				}
+
+				@Override
+				protected void onPendingPoint(LocationDispatcher.PointEvent event)
+				{
+					callback.onPendingPoint(event.latitude, event.longitude, event.time);
+				}
+			}, mainExecutor);
 		}
 
 		@Override
 		public void unregisterTrackingCallback(com.androzic.location.ITrackingListener callback)
 		{
-			trackingCallbacks.remove(callback);
+			trackingDispatcher.unsubscribe(callback);
 		}
 
 		@Override
@@ -1102,6 +1630,48 @@ public class LocationService extends BaseLocationService implements LocationList
 		{
 			return LocationService.this.getTrackEndTime();
 		}
+
+		@Override
+		public List<LocationDispatcher.Statistics> getDispatchStatistics()
+		{
+			return LocationService.this.getDispatchStatistics();
+		}
+
+		@Override
+		public TrackStatistics getTrackStatistics()
+		{
+			return LocationService.this.getTrackStatistics();
+		}
+
+		@Override
+		public float getTrackCompressionRatio()
+		{
+			return trackCompressor.getRatio();
+		}
+
+		@Override
+		public int getSamplingMode()
+		{
+			return samplingPolicy.getMode();
+		}
+
+		@Override
+		public long getSamplingInterval()
+		{
+			return samplingPolicy.getInterval();
+		}
+
+		@Override
+		public float getFixRate()
+		{
+			return fixRate;
+		}
+
+		@Override
+		public void setNavigationDistance(double distance)
+		{
+			navigationDistance = distance;
+		}
 	}
 	
 	/**
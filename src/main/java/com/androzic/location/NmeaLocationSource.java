@@ -0,0 +1,525 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.location;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Reads NMEA 0183 stream from external receiver and produces locations. Supported addresses are
+ * <code>tcp://host:port</code>, <code>udp://port</code> and <code>file:///path</code> (serial
+ * device or pipe). Stream is read on background thread, locations are delivered on the handler
+ * thread. If handler thread can not keep up only the latest location is delivered. Broken
+ * connections are reopened with increasing delay.
+ */
+public class NmeaLocationSource
+{
+	private static final String TAG = "NmeaLocationSource";
+
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final int READ_TIMEOUT = 10000;
+	private static final int MIN_RECONNECT_DELAY = 1000;
+	private static final int MAX_RECONNECT_DELAY = 30000;
+	// Standard limits sentence to 82 characters, longer lines are garbage
+	private static final int MAX_SENTENCE_LENGTH = 164;
+
+	public interface OnNmeaLocationListener
+	{
+		void onSourceConnected(NmeaLocationSource source);
+		void onSourceDisconnected(NmeaLocationSource source);
+		void onLocationChanged(NmeaLocationSource source, Location location);
+	}
+
+	/**
+	 * Source counters, rates are calculated over last second.
+	 */
+	public static class Statistics
+	{
+		public long sentences;
+		public long rejected;
+		public long locations;
+		public long dropped;
+		public long reconnects;
+		public float sentenceRate;
+		public float locationRate;
+	}
+
+	private final String address;
+	private final String provider;
+	private final Handler handler;
+	private final OnNmeaLocationListener listener;
+	private final AtomicReference<Location> pendingLocation = new AtomicReference<>();
+	private final Statistics statistics = new Statistics();
+
+	private Thread thread;
+	private volatile boolean running;
+	private volatile Connection connection;
+
+	/**
+	 * @param address stream address
+	 * @param provider provider name of produced locations
+	 * @param handler handler used to deliver events
+	 * @param listener listener of source events
+	 * @throws IllegalArgumentException if address is not supported
+	 */
+	public NmeaLocationSource(String address, String provider, Handler handler, OnNmeaLocationListener listener)
+	{
+		parseAddress(address);
+		this.address = address;
+		this.provider = provider;
+		this.handler = handler;
+		this.listener = listener;
+	}
+
+	/**
+	 * Checks if address has supported format.
+	 */
+	public static boolean isValidAddress(String address)
+	{
+		try
+		{
+			parseAddress(address);
+			return true;
+		}
+		catch (IllegalArgumentException e)
+		{
+			return false;
+		}
+	}
+
+	public String getAddress()
+	{
+		return address;
+	}
+
+	/**
+	 * Starts reading the stream. Stopped source can not be started again.
+	 */
+	public synchronized void start()
+	{
+		if (thread != null)
+			return;
+		running = true;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+				NmeaLocationSource.this.run();
+			}
+		}, TAG);
+		thread.start();
+	}
+
+	public synchronized void stop()
+	{
+		if (!running)
+			return;
+		running = false;
+		Connection c = connection;
+		if (c != null)
+			c.close();
+		thread.interrupt();
+		handler.removeCallbacks(deliverLocation);
+		pendingLocation.set(null);
+	}
+
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+	/**
+	 * Returns snapshot of source counters.
+	 */
+	public Statistics getStatistics()
+	{
+		Statistics copy = new Statistics();
+		synchronized (statistics)
+		{
+			copy.sentences = statistics.sentences;
+			copy.rejected = statistics.rejected;
+			copy.locations = statistics.locations;
+			copy.dropped = statistics.dropped;
+			copy.reconnects = statistics.reconnects;
+			copy.sentenceRate = statistics.sentenceRate;
+			copy.locationRate = statistics.locationRate;
+		}
+		return copy;
+	}
+
+	private void run()
+	{
+		NmeaParser parser = new NmeaParser(provider);
+		StringBuilder line = new StringBuilder(MAX_SENTENCE_LENGTH);
+		byte[] buffer = new byte[4096];
+		int delay = MIN_RECONNECT_DELAY;
+		boolean first = true;
+
+		while (running)
+		{
+			if (!first)
+			{
+				synchronized (statistics)
+				{
+					statistics.reconnects++;
+				}
+				try
+				{
+					Thread.sleep(delay);
+				}
+				catch (InterruptedException e)
+				{
+					break;
+				}
+				delay = Math.min(delay * 2, MAX_RECONNECT_DELAY);
+			}
+			first = false;
+
+			Connection c;
+			try
+			{
+				c = open(address);
+			}
+			catch (IOException e)
+			{
+				Log.w(TAG, "Failed to open " + address + ": " + e.getMessage());
+				continue;
+			}
+			connection = c;
+			if (!running)
+			{
+				c.close();
+				break;
+			}
+			Log.i(TAG, "Connected to " + address);
+			handler.post(new Runnable() {
+				@Override
+				public void run()
+				{
+					if (running)
+						listener.onSourceConnected(NmeaLocationSource.this);
+				}
+			});
+
+			line.setLength(0);
+			boolean overflow = false;
+			long rateTime = SystemClock.elapsedRealtime();
+			long rateSentences;
+			long rateLocations;
+			synchronized (statistics)
+			{
+				rateSentences = statistics.sentences;
+				rateLocations = statistics.locations;
+			}
+			try
+			{
+				int n;
+				while (running && (n = c.read(buffer)) >= 0)
+				{
+					for (int i = 0; i < n; i++)
+					{
+						char ch = (char) (buffer[i] & 0xFF);
+						if (ch == '\n' || ch == '\r')
+						{
+							if (overflow)
+							{
+								synchronized (statistics)
+								{
+									statistics.sentences++;
+									statistics.rejected++;
+								}
+							}
+							else if (line.length() > 0 && parse(parser, line))
+							{
+								delay = MIN_RECONNECT_DELAY;
+							}
+							line.setLength(0);
+							overflow = false;
+						}
+						else if (line.length() < MAX_SENTENCE_LENGTH)
+						{
+							line.append(ch);
+						}
+						else
+						{
+							overflow = true;
+						}
+					}
+
+					long now = SystemClock.elapsedRealtime();
+					if (now - rateTime >= 1000)
+					{
+						synchronized (statistics)
+						{
+							statistics.sentenceRate = (statistics.sentences - rateSentences) * 1000f / (now - rateTime);
+							statistics.locationRate = (statistics.locations - rateLocations) * 1000f / (now - rateTime);
+							rateSentences = statistics.sentences;
+							rateLocations = statistics.locations;
+						}
+						rateTime = now;
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				if (running)
+					Log.w(TAG, "Connection to " + address + " broken: " + e.getMessage());
+			}
+			finally
+			{
+				c.close();
+				connection = null;
+			}
+			synchronized (statistics)
+			{
+				statistics.sentenceRate = 0;
+				statistics.locationRate = 0;
+			}
+			handler.post(new Runnable() {
+				@Override
+				public void run()
+				{
+					if (running)
+						listener.onSourceDisconnected(NmeaLocationSource.this);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Parses sentence and queues produced location.
+	 *
+	 * @return true if sentence was valid
+	 */
+	private boolean parse(NmeaParser parser, StringBuilder line)
+	{
+		boolean hasLocation = parser.parseSentence(line);
+		boolean valid = parser.isSentenceValid();
+		synchronized (statistics)
+		{
+			statistics.sentences++;
+			if (!valid)
+				statistics.rejected++;
+			if (hasLocation)
+				statistics.locations++;
+		}
+		if (hasLocation)
+		{
+			if (pendingLocation.getAndSet(parser.getLocation()) == null)
+			{
+				handler.post(deliverLocation);
+			}
+			else
+			{
+				synchronized (statistics)
+				{
+					statistics.dropped++;
+				}
+			}
+		}
+		return valid;
+	}
+
+	private final Runnable deliverLocation = new Runnable() {
+		@Override
+		public void run()
+		{
+			Location location = pendingLocation.getAndSet(null);
+			if (location != null && running)
+				listener.onLocationChanged(NmeaLocationSource.this, location);
+		}
+	};
+
+	/**
+	 * Splits address into scheme, host and port or path.
+	 *
+	 * @throws IllegalArgumentException if address is not supported
+	 */
+	static String[] parseAddress(String address)
+	{
+		if (address == null)
+			throw new IllegalArgumentException("Empty address");
+		int i = address.indexOf("://");
+		if (i < 0)
+			throw new IllegalArgumentException("No scheme in address: " + address);
+		String scheme = address.substring(0, i);
+		String rest = address.substring(i + 3);
+		if ("file".equals(scheme))
+		{
+			if (rest.length() < 2 || rest.charAt(0) != '/')
+				throw new IllegalArgumentException("Bad file path: " + address);
+			return new String[] {scheme, rest};
+		}
+		if (!"tcp".equals(scheme) && !"udp".equals(scheme))
+			throw new IllegalArgumentException("Unsupported scheme: " + address);
+		String host = null;
+		String port = rest;
+		int p = rest.lastIndexOf(':');
+		if (p >= 0)
+		{
+			host = rest.substring(0, p);
+			port = rest.substring(p + 1);
+		}
+		if ("tcp".equals(scheme) && (host == null || host.length() == 0))
+			throw new IllegalArgumentException("No host in address: " + address);
+		try
+		{
+			int n = Integer.parseInt(port);
+			if (n <= 0 || n > 65535)
+				throw new IllegalArgumentException("Bad port: " + address);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Bad port: " + address);
+		}
+		return new String[] {scheme, host, port};
+	}
+
+	private static Connection open(String address) throws IOException
+	{
+		String[] parts = parseAddress(address);
+		if ("tcp".equals(parts[0]))
+		{
+			Socket socket = new Socket();
+			try
+			{
+				socket.connect(new InetSocketAddress(parts[1], Integer.parseInt(parts[2])), CONNECT_TIMEOUT);
+				socket.setSoTimeout(READ_TIMEOUT);
+			}
+			catch (IOException e)
+			{
+				socket.close();
+				throw e;
+			}
+			return new StreamConnection(socket.getInputStream(), socket);
+		}
+		else if ("udp".equals(parts[0]))
+		{
+			InetSocketAddress local = parts[1] == null || parts[1].length() == 0 ? new InetSocketAddress(Integer.parseInt(parts[2])) : new InetSocketAddress(parts[1], Integer.parseInt(parts[2]));
+			DatagramSocket socket = new DatagramSocket(null);
+			try
+			{
+				socket.setReuseAddress(true);
+				socket.bind(local);
+				socket.setSoTimeout(READ_TIMEOUT);
+			}
+			catch (IOException e)
+			{
+				socket.close();
+				throw e;
+			}
+			return new DatagramConnection(socket);
+		}
+		else
+		{
+			return new StreamConnection(new FileInputStream(parts[1]), null);
+		}
+	}
+
+	private interface Connection
+	{
+		/**
+		 * Reads available data, blocks if there is no data.
+		 *
+		 * @return number of bytes read or -1 if stream has ended
+		 */
+		int read(byte[] buffer) throws IOException;
+		void close();
+	}
+
+	private static class StreamConnection implements Connection
+	{
+		private final InputStream stream;
+		private final Socket socket;
+
+		StreamConnection(InputStream stream, Socket socket)
+		{
+			this.stream = stream;
+			this.socket = socket;
+		}
+
+		@Override
+		public int read(byte[] buffer) throws IOException
+		{
+			return stream.read(buffer);
+		}
+
+		@Override
+		public void close()
+		{
+			try
+			{
+				if (socket != null)
+					socket.close();
+				else
+					stream.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static class DatagramConnection implements Connection
+	{
+		private final DatagramSocket socket;
+		private DatagramPacket packet;
+
+		DatagramConnection(DatagramSocket socket)
+		{
+			this.socket = socket;
+		}
+
+		@Override
+		public int read(byte[] buffer) throws IOException
+		{
+			if (packet == null || packet.getData() != buffer)
+				packet = new DatagramPacket(buffer, buffer.length);
+			packet.setLength(buffer.length);
+			socket.receive(packet);
+			// Datagram is a complete set of sentences, terminate the last one if it is not
+			int length = packet.getLength();
+			if (length > 0 && length < buffer.length && buffer[length - 1] != '\n')
+				buffer[length++] = '\n';
+			return length;
+		}
+
+		@Override
+		public void close()
+		{
+			socket.close();
+		}
+	}
+}
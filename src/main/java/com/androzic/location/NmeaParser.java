@@ -25,6 +25,10 @@ import android.os.Bundle;
 import android.util.Log;
 
 /**
+ * Builds locations from NMEA sentences, location of an epoch is available when the next epoch
+ * starts. Date is taken from RMC sentences, streams of GGA sentences only are dated by system
+ * clock and the date is advanced when time of day wraps over midnight. Accuracy is estimated
+ * from HDOP.
  * {@hide}
  */
 public class NmeaParser {
@@ -34,12 +38,19 @@ public class NmeaParser {
     private static final TimeZone sUtcTimeZone = TimeZone.getTimeZone("UTC");
 
     private static final float KNOTS_TO_METERS_PER_SECOND = 0.51444444444f;
+    private static final int DAY = 24 * 60 * 60 * 1000;
+    /**
+     * User equivalent range error of consumer receivers, in meters
+     */
+    private static final float UERE = 5f;
 
     private final String mName;
 
     private int mYear = -1;
     private int mMonth;
     private int mDay;
+    private boolean mAssumedDate;
+    private int mLastTimeOfDay = -1;
 
     private long mTime = -1;
     private long mBaseTime;
@@ -54,15 +65,20 @@ public class NmeaParser {
     private float mSpeed;
 
     private boolean mNewWaypoint = false;
+    private boolean mValid;
     private Location mLocation = null;
     private Bundle mExtras;
 
+    private final NmeaTokenizer mTokenizer = new NmeaTokenizer();
+    private final Calendar mCalendar = new GregorianCalendar(sUtcTimeZone);
+
     public NmeaParser(String name) {
         mName = name;
     }
 
-    private boolean updateTime(String time) {
-        if (time.length() < 6) {
+    private boolean updateTime(int field) {
+        int timeOfDay = mTokenizer.getTimeOfDay(field);
+        if (timeOfDay < 0) {
             return false;
         }
         if (mYear == -1) {
@@ -78,22 +94,9 @@ public class NmeaParser {
             return false;
         }
 
-        int hour, minute;
-        float second;
-        try {
-            hour = Integer.parseInt(time.substring(0, 2));
-            minute = Integer.parseInt(time.substring(2, 4));
-            second = Float.parseFloat(time.substring(4, time.length()));
-        } catch (NumberFormatException nfe) {
-            Log.e(TAG, "Error parsing timestamp " + time);
-            return false;
-        }
-
-        int isecond = (int) second;
-        int millis = (int) ((second - isecond) * 1000);
-        Calendar c = new GregorianCalendar(sUtcTimeZone);
-        c.set(mYear, mMonth, mDay, hour, minute, isecond);
-        long newTime = c.getTimeInMillis() + millis;
+        mCalendar.clear();
+        mCalendar.set(mYear, mMonth, mDay);
+        long newTime = mCalendar.getTimeInMillis() + timeOfDay;
 
         if (mTime == -1) {
             mTime = 0;
@@ -106,7 +109,7 @@ public class NmeaParser {
         if (newTime != mTime) {
             mNewWaypoint = true;
             mLocation = new Location(mName);
-            mLocation.setTime(mTime);
+            mLocation.setTime(mBaseTime + mTime);
             mLocation.setLatitude(mLatitude);
             mLocation.setLongitude(mLongitude);
             if (mHasAltitude) {
@@ -118,6 +121,9 @@ public class NmeaParser {
             if (mHasSpeed) {
                 mLocation.setSpeed(mSpeed);
             }
+            if (mExtras != null && mExtras.containsKey("hdop")) {
+                mLocation.setAccuracy(mExtras.getFloat("hdop") * UERE);
+            }
             mLocation.setExtras(mExtras);
             mExtras = null;
 
@@ -129,130 +135,108 @@ public class NmeaParser {
         return true;
     }
 
-    private boolean updateDate(String date) {
-        if (date.length() != 6) {
-            return false;
-        }
-        int month, day, year;
-        try {
-            day = Integer.parseInt(date.substring(0, 2));
-            month = Integer.parseInt(date.substring(2, 4));
-            year = 2000 + Integer.parseInt(date.substring(4, 6));
-        } catch (NumberFormatException nfe) {
-            Log.e(TAG, "Error parsing date " + date);
+    private boolean updateDate(int field) {
+        int day = mTokenizer.getDigits(field, 0, 2);
+        int month = mTokenizer.getDigits(field, 2, 2);
+        int year = mTokenizer.getDigits(field, 4, 2);
+        if (day < 0 || month < 0 || year < 0) {
+            Log.e(TAG, "Error parsing date " + mTokenizer.getString(field));
             return false;
         }
 
-        mYear = year;
-        mMonth = month;
+        // Times based on wrong assumed date are not comparable with actual ones
+        if (mAssumedDate && (mYear != 2000 + year || mMonth != month - 1 || mDay != day)) {
+            mTime = -1;
+        }
+        mYear = 2000 + year;
+        // Calendar months are zero based
+        mMonth = month - 1;
         mDay = day;
+        mAssumedDate = false;
         return true;
     }
 
-    private boolean updateTime(String time, String date) {
-        if (!updateDate(date)) {
-                return false;
+    /**
+     * GGA sentences have no date, if there were no RMC sentences date is taken from system
+     * clock so that time is the closest to current time.
+     */
+    private void assumeDate(int field) {
+        int timeOfDay = mTokenizer.getTimeOfDay(field);
+        if (timeOfDay < 0) {
+            return;
+        }
+        if (mYear == -1) {
+            long now = System.currentTimeMillis();
+            long time = now - now % DAY + timeOfDay;
+            if (time - now > DAY / 2) {
+                time -= DAY;
+            } else if (now - time > DAY / 2) {
+                time += DAY;
+            }
+            mCalendar.setTimeInMillis(time);
+            mYear = mCalendar.get(Calendar.YEAR);
+            mMonth = mCalendar.get(Calendar.MONTH);
+            mDay = mCalendar.get(Calendar.DAY_OF_MONTH);
+            mAssumedDate = true;
+        } else if (mAssumedDate && timeOfDay < mLastTimeOfDay - DAY / 2) {
+            mCalendar.clear();
+            mCalendar.set(mYear, mMonth, mDay);
+            mCalendar.add(Calendar.DAY_OF_MONTH, 1);
+            mYear = mCalendar.get(Calendar.YEAR);
+            mMonth = mCalendar.get(Calendar.MONTH);
+            mDay = mCalendar.get(Calendar.DAY_OF_MONTH);
         }
-        return updateTime(time);
+        mLastTimeOfDay = timeOfDay;
     }
 
-    private boolean updateIntExtra(String name, String value) {
-        int val;
-        try {
-            val = Integer.parseInt(value);
-        } catch (NumberFormatException nfe) {
-            Log.e(TAG, "Exception parsing int " + name + ": " + value, nfe);
-            return false;
-        }
-        if (mExtras == null) {
-            mExtras = new Bundle();
+    private boolean updateTime(int timeField, int dateField) {
+        if (!updateDate(dateField)) {
+                return false;
         }
-        mExtras.putInt(name, val);
-        return true;
+        return updateTime(timeField);
     }
 
-    private boolean updateFloatExtra(String name, String value) {
-        float val;
-        try {
-            val = Float.parseFloat(value);
-        } catch (NumberFormatException nfe) {
-            Log.e(TAG, "Exception parsing float " + name + ": " + value, nfe);
+    private boolean updateIntExtra(String name, int field) {
+        int val = mTokenizer.getInt(field, Integer.MIN_VALUE);
+        if (val == Integer.MIN_VALUE) {
             return false;
         }
         if (mExtras == null) {
             mExtras = new Bundle();
         }
-        mExtras.putFloat(name, val);
+        mExtras.putInt(name, val);
         return true;
     }
 
-    private boolean updateDoubleExtra(String name, String value) {
-        double val;
-        try {
-            val = Double.parseDouble(value);
-        } catch (NumberFormatException nfe) {
-            Log.e(TAG, "Exception parsing double " + name + ": " + value, nfe);
+    private boolean updateFloatExtra(String name, int field) {
+        float val = mTokenizer.getFloat(field);
+        if (Float.isNaN(val)) {
             return false;
         }
         if (mExtras == null) {
             mExtras = new Bundle();
         }
-        mExtras.putDouble(name, val);
+        mExtras.putFloat(name, val);
         return true;
     }
 
-    private double convertFromHHMM(String coord) {
-        double val = Double.parseDouble(coord);
-        int degrees = ((int) Math.floor(val)) / 100;
-        double minutes = val - (degrees * 100);
-        double dcoord = degrees + minutes / 60.0;
-        return dcoord;
-    }
-
-    private boolean updateLatLon(String latitude, String latitudeHemi,
-        String longitude, String longitudeHemi) {
-        if (latitude.length() == 0 || longitude.length() == 0) {
-            return false;
-        }
-
+    private boolean updateLatLon(int latitudeField, int longitudeField) {
         // Lat/long values are expressed as {D}DDMM.MMMM
-        double lat, lon;
-        try {
-            lat = convertFromHHMM(latitude);
-            if (latitudeHemi.charAt(0) == 'S') {
-                lat = -lat;
-            }
-        } catch (NumberFormatException nfe1) {
-            Log.e(TAG, "Exception parsing lat/long: " + nfe1, nfe1);
-            return false;
-        }
+        double lat = mTokenizer.getCoordinate(latitudeField);
+        double lon = mTokenizer.getCoordinate(longitudeField);
 
-        try {
-            lon = convertFromHHMM(longitude);
-            if (longitudeHemi.charAt(0) == 'W') {
-                lon = -lon;
-            }
-        } catch (NumberFormatException nfe2) {
-            Log.e(TAG, "Exception parsing lat/long: " + nfe2, nfe2);
+        // Only update if both were parsed cleanly
+        if (Double.isNaN(lat) || Double.isNaN(lon)) {
             return false;
         }
-
-        // Only update if both were parsed cleanly
         mLatitude = lat;
         mLongitude = lon;
         return true;
     }
 
-    private boolean updateAltitude(String altitude) {
-        if (altitude.length() == 0) {
-            return false;
-        }
-        double alt;
-        try {
-            alt = Double.parseDouble(altitude);
-        } catch (NumberFormatException nfe) {
-            Log.e(TAG, "Exception parsing altitude " + altitude + ": " + nfe,
-                  nfe);
+    private boolean updateAltitude(int field) {
+        double alt = mTokenizer.getDouble(field);
+        if (Double.isNaN(alt)) {
             return false;
         }
 
@@ -261,13 +245,9 @@ public class NmeaParser {
         return true;
     }
 
-    private boolean updateBearing(String bearing) {
-        float brg;
-        try {
-            brg = Float.parseFloat(bearing);
-        } catch (NumberFormatException nfe) {
-            Log.e(TAG, "Exception parsing bearing " + bearing + ": " + nfe,
-                  nfe);
+    private boolean updateBearing(int field) {
+        float brg = mTokenizer.getFloat(field);
+        if (Float.isNaN(brg)) {
             return false;
         }
 
@@ -276,129 +256,72 @@ public class NmeaParser {
         return true;
     }
 
-    private boolean updateSpeed(String speed) {
-        float spd;
-        try {
-            spd = Float.parseFloat(speed) * KNOTS_TO_METERS_PER_SECOND;
-        } catch (NumberFormatException nfe) {
-            Log.e(TAG, "Exception parsing speed " + speed + ": " + nfe, nfe);
+    private boolean updateSpeed(int field) {
+        float spd = mTokenizer.getFloat(field);
+        if (Float.isNaN(spd)) {
             return false;
         }
 
         mHasSpeed = true;
-        mSpeed = spd;
+        mSpeed = spd * KNOTS_TO_METERS_PER_SECOND;
         return true;
     }
 
-    public boolean parseSentence(String s) {
-        int len = s.length();
-        if (len < 9) {
+    /**
+     * Parses sentence, sentences with wrong checksum are ignored.
+     *
+     * @return true if new location is available
+     */
+    public boolean parseSentence(CharSequence s) {
+        mValid = mTokenizer.tokenize(s);
+        if (!mValid) {
             return false;
         }
-        if (s.charAt(len - 3) == '*') {
-            // String checksum = s.substring(len - 4, len);
-            s = s.substring(0, len - 3);
-        }
-        String[] tokens = s.split(",");
-        String sentenceId = tokens[0].substring(3, 6);
-
-        int idx = 1;
-        try {
-            if (sentenceId.equals("GGA")) {
-                String time = tokens[idx++];
-                String latitude = tokens[idx++];
-                String latitudeHemi = tokens[idx++];
-                String longitude = tokens[idx++];
-                String longitudeHemi = tokens[idx++];
-                String fixQuality = tokens[idx++];
-                String numSatellites = tokens[idx++];
-                String horizontalDilutionOfPrecision = tokens[idx++];
-                String altitude = tokens[idx++];
-                String altitudeUnits = tokens[idx++];
-                String heightOfGeoid = tokens[idx++];
-                String heightOfGeoidUnits = tokens[idx++];
-                String timeSinceLastDgpsUpdate = tokens[idx++];
-
-                updateTime(time);
-                updateLatLon(latitude, latitudeHemi,
-                        longitude, longitudeHemi);
-                updateAltitude(altitude);
-                // updateQuality(fixQuality);
-                updateIntExtra("numSatellites", numSatellites);
-                updateFloatExtra("hdop", horizontalDilutionOfPrecision);
-
-                if (mNewWaypoint) {
-                    mNewWaypoint = false;
-                    return true;
-                }
-            } else if (sentenceId.equals("GSA")) {
-                // DOP and active satellites
-                String selectionMode = tokens[idx++]; // m=manual, a=auto 2d/3d
-                String mode = tokens[idx++]; // 1=no fix, 2=2d, 3=3d
-                for (int i = 0; i < 12; i++) {
-                    String id = tokens[idx++];
-                }
-                String pdop = tokens[idx++];
-                String hdop = tokens[idx++];
-                String vdop = tokens[idx++];
-
-                // TODO - publish satellite ids
-                updateFloatExtra("pdop", pdop);
-                updateFloatExtra("hdop", hdop);
-                updateFloatExtra("vdop", vdop);
-            } else if (sentenceId.equals("GSV")) {
-                // Satellites in view
-                String numMessages = tokens[idx++];
-                String messageNum = tokens[idx++];
-                String svsInView = tokens[idx++];
-                for (int i = 0; i < 4; i++) {
-                    if (idx + 2 < tokens.length) {
-                        String prnNumber = tokens[idx++];
-                        String elevation = tokens[idx++];
-                        String azimuth = tokens[idx++];
-                        if (idx < tokens.length) {
-                            String snr = tokens[idx++];
-                        }
-                    }
-                }
-                // TODO - publish this info
-            } else if (sentenceId.equals("RMC")) {
-                // Recommended minimum navigation information
-                String time = tokens[idx++];
-                String fixStatus = tokens[idx++];
-                String latitude = tokens[idx++];
-                String latitudeHemi = tokens[idx++];
-                String longitude = tokens[idx++];
-                String longitudeHemi = tokens[idx++];
-                String speed = tokens[idx++];
-                String bearing = tokens[idx++];
-                String utcDate = tokens[idx++];
-                String magneticVariation = tokens[idx++];
-                String magneticVariationDir = tokens[idx++];
-                String mode = tokens[idx++];
-
-                if (fixStatus.charAt(0) == 'A') {
-                    updateTime(time, utcDate);
-                    updateLatLon(latitude, latitudeHemi,
-                        longitude, longitudeHemi);
-                    updateBearing(bearing);
-                    updateSpeed(speed);
-                }
 
-                if (mNewWaypoint) {
-                    return true;
+        if (mTokenizer.isType("GGA")) {
+            // time, latitude, N/S, longitude, E/W, fix quality, number of satellites,
+            // HDOP, altitude, M, height of geoid, M, time since last DGPS update
+            if (mTokenizer.getInt(6, 0) > 0) {
+                if (mYear == -1 || mAssumedDate) {
+                    assumeDate(1);
                 }
-            } else {
-                Log.e(TAG, "Unknown sentence: " + s);
+                updateTime(1);
+                updateLatLon(2, 4);
+                updateAltitude(9);
+                updateIntExtra("numSatellites", 7);
+                updateFloatExtra("hdop", 8);
             }
-        } catch (ArrayIndexOutOfBoundsException e) {
-            // do nothing - sentence will have no effect
-            Log.e(TAG, "AIOOBE", e);
 
-            for (int i = 0; i < tokens.length; i++) {
-                Log.e(TAG, "Got token #" + i + " = " + tokens[i]);
+            if (mNewWaypoint) {
+                mNewWaypoint = false;
+                return true;
+            }
+        } else if (mTokenizer.isType("GSA")) {
+            // DOP and active satellites: selection mode, mode, 12 satellite ids,
+            // PDOP, HDOP, VDOP
+            // TODO - publish satellite ids
+            updateFloatExtra("pdop", 15);
+            updateFloatExtra("hdop", 16);
+            updateFloatExtra("vdop", 17);
+        } else if (mTokenizer.isType("GSV")) {
+            // Satellites in view
+            // TODO - publish this info
+        } else if (mTokenizer.isType("RMC")) {
+            // Recommended minimum navigation information: time, fix status, latitude, N/S,
+            // longitude, E/W, speed, bearing, date, magnetic variation, E/W, mode
+            if (mTokenizer.getChar(2) == 'A') {
+                updateTime(1, 9);
+                updateLatLon(3, 5);
+                updateBearing(8);
+                updateSpeed(7);
+            }
+
+            if (mNewWaypoint) {
+                mNewWaypoint = false;
+                return true;
             }
         }
+        // Other sentences are ignored
 
         return false;
     }
@@ -431,6 +354,13 @@ public class NmeaParser {
 //
 //    updateSpeed(groundSpeedKph);
 
+    /**
+     * Returns false if last sentence was malformed or had wrong checksum.
+     */
+    public boolean isSentenceValid() {
+        return mValid;
+    }
+
     public Location getLocation() {
         return mLocation;
     }
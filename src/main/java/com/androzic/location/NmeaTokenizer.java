@@ -0,0 +1,326 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.location;
+
+/**
+ * Splits NMEA sentence into fields without creating strings. Sentence is copied into internal
+ * buffer which is reused for subsequent sentences, fields are referenced by offsets and numbers
+ * are parsed in place. Not thread safe, each thread should use its own instance.
+ */
+public class NmeaTokenizer
+{
+	private static final int MAX_FIELDS = 64;
+	private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18};
+
+	private char[] buffer = new char[128];
+	private int length;
+	private final int[] starts = new int[MAX_FIELDS];
+	private final int[] ends = new int[MAX_FIELDS];
+	private int count;
+	private boolean hasChecksum;
+
+	/**
+	 * Tokenizes sentence. Leading '$' or '!' and trailing line terminators are optional. If sentence
+	 * has checksum it is validated.
+	 *
+	 * @param sentence NMEA sentence
+	 * @return false if sentence is malformed or checksum does not match
+	 */
+	public boolean tokenize(CharSequence sentence)
+	{
+		count = 0;
+		hasChecksum = false;
+
+		int len = sentence.length();
+		while (len > 0 && (sentence.charAt(len - 1) == '\n' || sentence.charAt(len - 1) == '\r'))
+			len--;
+		int start = 0;
+		if (len > 0 && (sentence.charAt(0) == '$' || sentence.charAt(0) == '!'))
+			start = 1;
+		// Address field (talker and type) is required
+		if (len - start < 5)
+			return false;
+
+		length = len - start;
+		if (buffer.length < length)
+			buffer = new char[Math.max(length, buffer.length * 2)];
+		for (int i = 0; i < length; i++)
+			buffer[i] = sentence.charAt(start + i);
+
+		int end = length;
+		if (length > 3 && buffer[length - 3] == '*')
+		{
+			int high = hex(buffer[length - 2]);
+			int low = hex(buffer[length - 1]);
+			if (high < 0 || low < 0)
+				return false;
+			int checksum = 0;
+			for (int i = 0; i < length - 3; i++)
+				checksum ^= buffer[i];
+			if (checksum != (high << 4 | low))
+				return false;
+			hasChecksum = true;
+			end = length - 3;
+		}
+
+		int fieldStart = 0;
+		for (int i = 0; i <= end; i++)
+		{
+			if (i == end || buffer[i] == ',')
+			{
+				if (count == MAX_FIELDS)
+					return false;
+				starts[count] = fieldStart;
+				ends[count] = i;
+				count++;
+				fieldStart = i + 1;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if last sentence had valid checksum.
+	 */
+	public boolean hasChecksum()
+	{
+		return hasChecksum;
+	}
+
+	/**
+	 * Returns number of fields including address field.
+	 */
+	public int getFieldCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Checks sentence type ignoring talker id, e.g. "GGA" matches GPGGA, GNGGA and GLGGA.
+	 */
+	public boolean isType(String type)
+	{
+		if (count == 0)
+			return false;
+		int len = ends[0] - starts[0];
+		int tl = type.length();
+		if (len != tl + 2)
+			return false;
+		for (int i = 0; i < tl; i++)
+			if (buffer[2 + i] != type.charAt(i))
+				return false;
+		return true;
+	}
+
+	public boolean isEmpty(int field)
+	{
+		return field >= count || ends[field] == starts[field];
+	}
+
+	/**
+	 * Returns first character of the field or '\0' if field is empty.
+	 */
+	public char getChar(int field)
+	{
+		if (isEmpty(field))
+			return '\0';
+		return buffer[starts[field]];
+	}
+
+	/**
+	 * Parses integer field.
+	 *
+	 * @return field value or def if field is empty or malformed
+	 */
+	public int getInt(int field, int def)
+	{
+		if (isEmpty(field))
+			return def;
+		return parseInt(starts[field], ends[field], def);
+	}
+
+	/**
+	 * Parses part of the field as non-negative integer, e.g. hours of time field.
+	 *
+	 * @return value or -1 if there are not enough digits
+	 */
+	public int getDigits(int field, int offset, int digits)
+	{
+		if (field >= count || ends[field] - starts[field] < offset + digits)
+			return -1;
+		int start = starts[field] + offset;
+		int value = 0;
+		for (int i = start; i < start + digits; i++)
+		{
+			int d = buffer[i] - '0';
+			if (d < 0 || d > 9)
+				return -1;
+			value = value * 10 + d;
+		}
+		return value;
+	}
+
+	/**
+	 * Parses decimal field.
+	 *
+	 * @return field value or NaN if field is empty or malformed
+	 */
+	public double getDouble(int field)
+	{
+		if (isEmpty(field))
+			return Double.NaN;
+		return parseDouble(starts[field], ends[field]);
+	}
+
+	/**
+	 * Parses decimal field.
+	 *
+	 * @return field value or NaN if field is empty or malformed
+	 */
+	public float getFloat(int field)
+	{
+		return (float) getDouble(field);
+	}
+
+	/**
+	 * Parses coordinate in {D}DDMM.MMMM format with hemisphere in the next field.
+	 *
+	 * @return coordinate in degrees or NaN if field is empty or malformed
+	 */
+	public double getCoordinate(int field)
+	{
+		double value = getDouble(field);
+		if (Double.isNaN(value))
+			return value;
+		int degrees = (int) (value / 100);
+		double coordinate = degrees + (value - degrees * 100) / 60.0;
+		char hemisphere = getChar(field + 1);
+		if (hemisphere == 'S' || hemisphere == 'W')
+			coordinate = -coordinate;
+		return coordinate;
+	}
+
+	/**
+	 * Parses time field in hhmmss.sss format.
+	 *
+	 * @return milliseconds since midnight or -1 if field is empty or malformed
+	 */
+	public int getTimeOfDay(int field)
+	{
+		int hours = getDigits(field, 0, 2);
+		int minutes = getDigits(field, 2, 2);
+		if (hours < 0 || minutes < 0 || ends[field] - starts[field] < 6)
+			return -1;
+		double seconds = parseDouble(starts[field] + 4, ends[field]);
+		if (Double.isNaN(seconds))
+			return -1;
+		return (hours * 60 + minutes) * 60000 + (int) Math.round(seconds * 1000);
+	}
+
+	/**
+	 * Returns field as string, allocates, use only for logging and rare fields.
+	 */
+	public String getString(int field)
+	{
+		if (field >= count)
+			return "";
+		return new String(buffer, starts[field], ends[field] - starts[field]);
+	}
+
+	@Override
+	public String toString()
+	{
+		return new String(buffer, 0, length);
+	}
+
+	private int parseInt(int start, int end, int def)
+	{
+		boolean negative = false;
+		if (buffer[start] == '-' || buffer[start] == '+')
+		{
+			negative = buffer[start] == '-';
+			start++;
+		}
+		if (start == end || end - start > 9)
+			return def;
+		int value = 0;
+		for (int i = start; i < end; i++)
+		{
+			int d = buffer[i] - '0';
+			if (d < 0 || d > 9)
+				return def;
+			value = value * 10 + d;
+		}
+		return negative ? -value : value;
+	}
+
+	private double parseDouble(int start, int end)
+	{
+		boolean negative = false;
+		if (buffer[start] == '-' || buffer[start] == '+')
+		{
+			negative = buffer[start] == '-';
+			start++;
+		}
+		long mantissa = 0;
+		int digits = 0;
+		int fraction = -1;
+		for (int i = start; i < end; i++)
+		{
+			char c = buffer[i];
+			if (c == '.' && fraction < 0)
+			{
+				fraction = 0;
+				continue;
+			}
+			int d = c - '0';
+			if (d < 0 || d > 9)
+				return Double.NaN;
+			// Digits beyond long precision do not matter for NMEA values
+			if (digits < 18)
+			{
+				mantissa = mantissa * 10 + d;
+				digits++;
+				if (fraction >= 0)
+					fraction++;
+			}
+			else if (fraction < 0)
+			{
+				return Double.NaN;
+			}
+		}
+		if (digits == 0)
+			return Double.NaN;
+		double value = fraction > 0 ? mantissa / POW10[fraction] : mantissa;
+		return negative ? -value : value;
+	}
+
+	private static int hex(char c)
+	{
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (c >= 'A' && c <= 'F')
+			return c - 'A' + 10;
+		if (c >= 'a' && c <= 'f')
+			return c - 'a' + 10;
+		return -1;
+	}
+}
@@ -0,0 +1,517 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.location;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.location.Location;
+import android.os.Handler;
+import android.util.Log;
+
+import com.androzic.data.Track;
+import com.androzic.util.GpxFiles;
+import com.androzic.util.OziExplorerFiles;
+
+/**
+ * Replays recorded locations for pipeline testing and benchmarking. Accepts track database
+ * (myTrack.db), GPX and PLT tracks and NMEA logs. Track database and NMEA logs are read
+ * location by location while replaying. Original time spacing is kept and compressed
+ * by replay speed, location times are shifted to replay start. Locations are delivered on the
+ * handler thread, if it can not keep up only the latest location is delivered. Consumers report
+ * time spent in their stages, summary is provided when replay ends.
+ */
+public class ReplayLocationSource
+{
+	private static final String TAG = "ReplayLocationSource";
+
+	public static final float MIN_SPEED = 1f;
+	public static final float MAX_SPEED = 100f;
+
+	public static final int STAGE_DELIVERY = 0;
+	public static final int STAGE_PROCESSING = 1;
+	public static final int STAGE_RECORDING = 2;
+	public static final int STAGE_DISPATCH = 3;
+	public static final int STAGE_LISTENERS = 4;
+	private static final String[] STAGE_NAMES = {"delivery", "processing", "recording", "dispatch", "listeners"};
+
+	public interface OnReplayListener
+	{
+		void onLocationChanged(ReplayLocationSource source, Location location);
+		void onReplayFinished(ReplayLocationSource source, Report report);
+	}
+
+	/**
+	 * Latency of one pipeline stage.
+	 */
+	public static class Stage
+	{
+		public final String name;
+		public long count;
+		public long totalNanos;
+		public long maxNanos;
+
+		Stage(String name)
+		{
+			this.name = name;
+		}
+
+		public double getMeanMillis()
+		{
+			return count > 0 ? totalNanos / 1e6 / count : 0;
+		}
+
+		public double getMaxMillis()
+		{
+			return maxNanos / 1e6;
+		}
+	}
+
+	public static class Report
+	{
+		public String file;
+		public float speed;
+		public int locations;
+		public int delivered;
+		public int dropped;
+		public long duration;
+		public Stage[] stages;
+		public String error;
+
+		/**
+		 * Returns sustained rate of delivered locations per second of wall time.
+		 */
+		public double getRate()
+		{
+			return duration > 0 ? delivered * 1000.0 / duration : 0;
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format(Locale.US, "Replay of %s at %.0fx: %d of %d locations in %.1f s, %.1f fixes/s, %d dropped", file, speed, delivered, locations, duration / 1000.0, getRate(), dropped));
+			if (error != null)
+				sb.append(", error: ").append(error);
+			for (Stage stage : stages)
+				sb.append(String.format(Locale.US, "\n  %s: %d, mean %.2f ms, max %.2f ms", stage.name, stage.count, stage.getMeanMillis(), stage.getMaxMillis()));
+			return sb.toString();
+		}
+	}
+
+	private final File file;
+	private final String charset;
+	private final String provider;
+	private final float speed;
+	private final Handler handler;
+	private final OnReplayListener listener;
+	private final AtomicReference<Pending> pending = new AtomicReference<>();
+	private final Stage[] stages = new Stage[STAGE_NAMES.length];
+
+	private Thread thread;
+	private volatile boolean running;
+	private int locations;
+	private int delivered;
+	private int dropped;
+
+	/**
+	 * @param file recorded locations
+	 * @param charset charset of PLT files
+	 * @param provider provider name of replayed locations
+	 * @param speed replay speed, from 1 to 100
+	 * @param handler handler used to deliver events
+	 * @param listener listener of replay events
+	 */
+	public ReplayLocationSource(File file, String charset, String provider, float speed, Handler handler, OnReplayListener listener)
+	{
+		this.file = file;
+		this.charset = charset;
+		this.provider = provider;
+		this.speed = Math.max(MIN_SPEED, Math.min(MAX_SPEED, speed));
+		this.handler = handler;
+		this.listener = listener;
+		for (int i = 0; i < stages.length; i++)
+			stages[i] = new Stage(STAGE_NAMES[i]);
+	}
+
+	public synchronized void start()
+	{
+		if (thread != null)
+			return;
+		running = true;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				replay();
+			}
+		}, TAG);
+		thread.start();
+	}
+
+	/**
+	 * Stops replay, no report is delivered.
+	 */
+	public synchronized void stop()
+	{
+		if (!running)
+			return;
+		running = false;
+		thread.interrupt();
+		handler.removeCallbacks(deliverLocation);
+		pending.set(null);
+	}
+
+	/**
+	 * Accounts time spent by location in pipeline stage. Can be called from any thread.
+	 */
+	public void recordStage(int stage, long nanos)
+	{
+		Stage s = stages[stage];
+		synchronized (s)
+		{
+			s.count++;
+			s.totalNanos += nanos;
+			if (nanos > s.maxNanos)
+				s.maxNanos = nanos;
+		}
+	}
+
+	private void replay()
+	{
+		String error = null;
+		long start = System.currentTimeMillis();
+		Input input = null;
+		try
+		{
+			input = open(file, charset, provider);
+			long first = 0;
+			long startNanos = 0;
+			int count = 0;
+			Location location;
+			while (running && (location = input.next()) != null)
+			{
+				// Replay starts when the first location is read
+				if (count == 0)
+				{
+					first = location.getTime();
+					start = System.currentTimeMillis();
+					startNanos = System.nanoTime();
+				}
+				count++;
+				synchronized (this)
+				{
+					locations = count;
+				}
+				long offset = location.getTime() - first;
+				long due = startNanos + (long) (offset * 1e6 / speed);
+				long wait = due - System.nanoTime();
+				if (wait > 0)
+				{
+					try
+					{
+						Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+					}
+					catch (InterruptedException e)
+					{
+						break;
+					}
+				}
+				if (!running)
+					break;
+				location.setTime(start + offset);
+				if (pending.getAndSet(new Pending(location, System.nanoTime())) == null)
+				{
+					handler.post(deliverLocation);
+				}
+				else
+				{
+					synchronized (this)
+					{
+						dropped++;
+					}
+				}
+			}
+			if (count == 0)
+				error = "No locations";
+		}
+		catch (Exception e)
+		{
+			Log.e(TAG, "Failed to read " + file.getAbsolutePath(), e);
+			error = e.getMessage() != null ? e.getMessage() : e.toString();
+		}
+		finally
+		{
+			if (input != null)
+				input.close();
+		}
+		if (!running)
+			return;
+
+		final Report report = new Report();
+		report.file = file.getName();
+		report.speed = speed;
+		report.error = error;
+		report.duration = System.currentTimeMillis() - start;
+		handler.post(new Runnable() {
+			@Override
+			public void run()
+			{
+				if (!running)
+					return;
+				// Let the last location pass before finishing
+				if (pending.get() != null)
+				{
+					handler.post(this);
+					return;
+				}
+				running = false;
+				synchronized (ReplayLocationSource.this)
+				{
+					report.locations = locations;
+					report.delivered = delivered;
+					report.dropped = dropped;
+				}
+				report.stages = new Stage[stages.length];
+				for (int i = 0; i < stages.length; i++)
+				{
+					synchronized (stages[i])
+					{
+						Stage stage = new Stage(stages[i].name);
+						stage.count = stages[i].count;
+						stage.totalNanos = stages[i].totalNanos;
+						stage.maxNanos = stages[i].maxNanos;
+						report.stages[i] = stage;
+					}
+				}
+				listener.onReplayFinished(ReplayLocationSource.this, report);
+			}
+		});
+	}
+
+	private final Runnable deliverLocation = new Runnable() {
+		@Override
+		public void run()
+		{
+			Pending p = pending.getAndSet(null);
+			if (p == null || !running)
+				return;
+			recordStage(STAGE_DELIVERY, System.nanoTime() - p.nanos);
+			synchronized (ReplayLocationSource.this)
+			{
+				delivered++;
+			}
+			listener.onLocationChanged(ReplayLocationSource.this, p.location);
+		}
+	};
+
+	/**
+	 * Sequence of recorded locations read on demand.
+	 */
+	interface Input
+	{
+		/**
+		 * @return next location or null if there are no more locations
+		 */
+		Location next() throws Exception;
+		void close();
+	}
+
+	/**
+	 * Opens recorded locations, format is detected by file extension. GPX and PLT tracks are
+	 * parsed as a whole by their loaders, locations are still created one by one.
+	 */
+	static Input open(File file, String charset, String provider) throws Exception
+	{
+		String name = file.getName().toLowerCase(Locale.US);
+		if (name.endsWith(".db"))
+			return new DatabaseInput(file, provider);
+		if (name.endsWith(".gpx"))
+			return new TrackInput(GpxFiles.loadTracksFromFile(file), provider);
+		if (name.endsWith(".plt"))
+			return new TrackInput(Collections.singletonList(OziExplorerFiles.loadTrackFromFile(file, charset)), provider);
+		return new NmeaInput(file, provider);
+	}
+
+	/**
+	 * Converts track to locations, speed and bearing are derived from neighbour points.
+	 * Points without time are spaced one second apart.
+	 */
+	static List<Location> fromTrack(Track track, String provider)
+	{
+		List<Location> locations = new ArrayList<>();
+		TrackInput input = new TrackInput(Collections.singletonList(track), provider);
+		Location location;
+		while ((location = input.next()) != null)
+			locations.add(location);
+		return locations;
+	}
+
+	private static class TrackInput implements Input
+	{
+		private final String provider;
+		private final Iterator<Track> tracks;
+		private Iterator<Track.TrackPoint> points;
+		private Location prev;
+
+		TrackInput(List<Track> tracks, String provider)
+		{
+			this.provider = provider;
+			this.tracks = tracks.iterator();
+		}
+
+		@Override
+		public Location next()
+		{
+			while (points == null || !points.hasNext())
+			{
+				if (!tracks.hasNext())
+					return null;
+				points = tracks.next().getAllPoints().iterator();
+			}
+			Track.TrackPoint tp = points.next();
+			Location location = new Location(provider);
+			location.setLatitude(tp.latitude);
+			location.setLongitude(tp.longitude);
+			if (!Double.isNaN(tp.elevation))
+				location.setAltitude(tp.elevation);
+			if (prev == null || tp.time > prev.getTime())
+				location.setTime(tp.time);
+			else
+				location.setTime(prev.getTime() + 1000);
+			if (prev != null)
+			{
+				float distance = prev.distanceTo(location);
+				location.setSpeed(distance * 1000f / (location.getTime() - prev.getTime()));
+				if (distance > 0)
+					location.setBearing(prev.bearingTo(location));
+			}
+			prev = location;
+			return location;
+		}
+
+		@Override
+		public void close()
+		{
+		}
+	}
+
+	private static class DatabaseInput implements Input
+	{
+		private final String provider;
+		private final SQLiteDatabase db;
+		private final TrackReader reader;
+		private long prevTime;
+
+		DatabaseInput(File file, String provider) throws SQLiteException
+		{
+			this.provider = provider;
+			db = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+			reader = new TrackReader(db, 0);
+		}
+
+		@Override
+		public Location next()
+		{
+			if (!reader.moveToNext())
+				return null;
+			Location location = new Location(provider);
+			location.setLatitude(reader.latitude);
+			location.setLongitude(reader.longitude);
+			location.setAltitude(reader.elevation);
+			location.setSpeed(reader.speed);
+			location.setBearing(reader.bearing);
+			location.setAccuracy(reader.accuracy);
+			long time = reader.time;
+			if (time <= prevTime)
+				time = prevTime + 1000;
+			location.setTime(time);
+			prevTime = time;
+			return location;
+		}
+
+		@Override
+		public void close()
+		{
+			reader.close();
+			db.close();
+		}
+	}
+
+	private static class NmeaInput implements Input
+	{
+		private final NmeaParser parser;
+		private final BufferedReader reader;
+
+		NmeaInput(File file, String provider) throws IOException
+		{
+			parser = new NmeaParser(provider);
+			reader = new BufferedReader(new FileReader(file));
+		}
+
+		@Override
+		public Location next() throws IOException
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				if (parser.parseSentence(line))
+					return parser.getLocation();
+			}
+			return null;
+		}
+
+		@Override
+		public void close()
+		{
+			try
+			{
+				reader.close();
+			}
+			catch (IOException e)
+			{
+				Log.e(TAG, "close", e);
+			}
+		}
+	}
+
+	private static class Pending
+	{
+		final Location location;
+		final long nanos;
+
+		Pending(Location location, long nanos)
+		{
+			this.location = location;
+			this.nanos = nanos;
+		}
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.location;
+
+/**
+ * Chooses GPS update interval and distance from movement and navigation state. Mode switches
+ * have hysteresis: thresholds differ for entering and leaving a mode and slower modes are
+ * entered only after current mode has been held for some time, faster modes are entered
+ * immediately. Time spent in each mode is accounted for power measurements.
+ */
+public class SamplingPolicy
+{
+	public static final int MODE_STATIONARY = 0;
+	public static final int MODE_SLOW = 1;
+	public static final int MODE_FAST = 2;
+	public static final int MODE_APPROACH = 3;
+	public static final int MODES = 4;
+
+	// Update interval (ms) and distance (m) of each mode with screen on
+	private static final long[] INTERVALS = {10000, 2000, 1000, 1000};
+	private static final float[] DISTANCES = {10, 0, 0, 0};
+	private static final int SCREEN_OFF_FACTOR = 3;
+
+	private static final float STATIONARY_SPEED = 0.5f;
+	private static final float MOVING_SPEED = 1.5f;
+	private static final long STATIONARY_TIME = 60000;
+	private static final float FAST_ENTER_SPEED = 6f;
+	private static final float FAST_LEAVE_SPEED = 4f;
+	// Approach zone is distance covered in given time but not less than minimum
+	private static final double APPROACH_ENTER_DISTANCE = 300;
+	private static final double APPROACH_LEAVE_DISTANCE = 450;
+	private static final long APPROACH_TIME = 60000;
+	private static final long MIN_HOLD_TIME = 15000;
+
+	private int mode = MODE_SLOW;
+	private boolean screenOn = true;
+	private long maxInterval = Long.MAX_VALUE;
+	private long modeTime;
+	private long slowSince;
+	private final long[] timeInMode = new long[MODES];
+	private final long[] fixesInMode = new long[MODES];
+
+	public SamplingPolicy()
+	{
+		reset(0);
+	}
+
+	/**
+	 * Starts over in default mode.
+	 *
+	 * @param now current time, ms
+	 */
+	public void reset(long now)
+	{
+		mode = MODE_SLOW;
+		modeTime = now;
+		slowSince = -1;
+	}
+
+	/**
+	 * Updates policy with new fix.
+	 *
+	 * @param now current time, ms
+	 * @param speed filtered speed, m/s
+	 * @param navigationDistance distance to next navigation waypoint, m, NaN if not navigating
+	 * @return true if update interval or distance has changed
+	 */
+	public boolean update(long now, float speed, double navigationDistance)
+	{
+		long interval = getInterval();
+		float distance = getDistance();
+		fixesInMode[mode]++;
+
+		int target = mode;
+		double approach = Math.max(speed * APPROACH_TIME / 1000, APPROACH_ENTER_DISTANCE);
+		if (!Double.isNaN(navigationDistance) && (navigationDistance < approach || mode == MODE_APPROACH && navigationDistance < approach + APPROACH_LEAVE_DISTANCE - APPROACH_ENTER_DISTANCE))
+		{
+			target = MODE_APPROACH;
+		}
+		else if (speed >= FAST_ENTER_SPEED || mode == MODE_FAST && speed > FAST_LEAVE_SPEED)
+		{
+			target = MODE_FAST;
+		}
+		else if (speed < STATIONARY_SPEED || mode == MODE_STATIONARY && speed < MOVING_SPEED)
+		{
+			// Stationarity is detected only after staying slow for some time
+			if (slowSince < 0)
+				slowSince = now;
+			target = mode == MODE_STATIONARY || now - slowSince >= STATIONARY_TIME ? MODE_STATIONARY : MODE_SLOW;
+		}
+		else
+		{
+			target = MODE_SLOW;
+		}
+		if (speed >= STATIONARY_SPEED && target != MODE_STATIONARY)
+			slowSince = -1;
+
+		// Faster modes are entered immediately, slower only after holding current mode
+		if (target != mode && (INTERVALS[target] <= INTERVALS[mode] || now - modeTime >= MIN_HOLD_TIME))
+			setMode(target, now);
+
+		return interval != getInterval() || distance != getDistance();
+	}
+
+	/**
+	 * Sets screen state, with screen off updates are less frequent.
+	 *
+	 * @return true if update interval or distance has changed
+	 */
+	public boolean setScreenOn(boolean on)
+	{
+		long interval = getInterval();
+		screenOn = on;
+		return interval != getInterval();
+	}
+
+	/**
+	 * Limits update interval, e.g. by track recording interval.
+	 *
+	 * @return true if update interval has changed
+	 */
+	public boolean setMaxInterval(long max)
+	{
+		long interval = getInterval();
+		maxInterval = max > 0 ? max : Long.MAX_VALUE;
+		return interval != getInterval();
+	}
+
+	public int getMode()
+	{
+		return mode;
+	}
+
+	/**
+	 * Returns requested interval between updates, ms.
+	 */
+	public long getInterval()
+	{
+		long interval = INTERVALS[mode];
+		// Screen state does not matter when approaching waypoint
+		if (!screenOn && mode != MODE_APPROACH)
+			interval *= SCREEN_OFF_FACTOR;
+		// Stationary mode is allowed to exceed the limit as position does not change
+		if (mode != MODE_STATIONARY)
+			interval = Math.min(interval, Math.max(maxInterval, INTERVALS[mode]));
+		return interval;
+	}
+
+	/**
+	 * Returns requested distance between updates, m.
+	 */
+	public float getDistance()
+	{
+		return DISTANCES[mode];
+	}
+
+	/**
+	 * Returns time spent in each mode including current one, ms.
+	 */
+	public long[] getTimeInModes(long now)
+	{
+		long[] times = timeInMode.clone();
+		times[mode] += now - modeTime;
+		return times;
+	}
+
+	/**
+	 * Returns number of fixes received in each mode.
+	 */
+	public long[] getFixesInModes()
+	{
+		return fixesInMode.clone();
+	}
+
+	private void setMode(int mode, long now)
+	{
+		timeInMode[this.mode] += now - modeTime;
+		this.mode = mode;
+		modeTime = now;
+	}
+}
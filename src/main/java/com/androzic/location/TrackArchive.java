@@ -0,0 +1,194 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.location;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Dense binary encoding of archived track partition. Every value is stored as difference from the
+ * value of previous point in variable length zigzag format, so that typical point takes about
+ * a dozen bytes instead of a hundred in database row. Coordinates are kept with 1e-7 degree
+ * precision, elevation, bearing and accuracy with 0.1 and speed with 0.01 precision.
+ */
+public class TrackArchive
+{
+	private static final int VERSION = 1;
+
+	private static final double COORDINATE_SCALE = 1e7;
+	private static final double ELEVATION_SCALE = 10;
+	private static final double SPEED_SCALE = 100;
+	private static final double BEARING_SCALE = 10;
+	private static final double ACCURACY_SCALE = 10;
+
+	/**
+	 * Encodes points one by one in track order.
+	 */
+	public static class Encoder
+	{
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+		private int count;
+		private long startTime;
+		private long endTime;
+		private long latitude, longitude, elevation, speed, bearing, accuracy, time;
+
+		public Encoder()
+		{
+			out.write(VERSION);
+		}
+
+		public void add(boolean continous, double latitude, double longitude, double elevation, float speed, float bearing, float accuracy, long time)
+		{
+			long lat = Math.round(latitude * COORDINATE_SCALE);
+			long lon = Math.round(longitude * COORDINATE_SCALE);
+			long elev = Math.round(elevation * ELEVATION_SCALE);
+			long spd = Math.round(speed * SPEED_SCALE);
+			long brg = Math.round(bearing * BEARING_SCALE);
+			long acc = Math.round(accuracy * ACCURACY_SCALE);
+
+			out.write(continous ? 0 : 1);
+			writeLong(lat - this.latitude);
+			writeLong(lon - this.longitude);
+			writeLong(elev - this.elevation);
+			writeLong(spd - this.speed);
+			writeLong(brg - this.bearing);
+			writeLong(acc - this.accuracy);
+			writeLong(time - this.time);
+
+			this.latitude = lat;
+			this.longitude = lon;
+			this.elevation = elev;
+			this.speed = spd;
+			this.bearing = brg;
+			this.accuracy = acc;
+			this.time = time;
+
+			// Zero time means unknown time
+			if (time > 0 && (startTime == 0 || time < startTime))
+				startTime = time;
+			if (time > endTime)
+				endTime = time;
+			count++;
+		}
+
+		public int getCount()
+		{
+			return count;
+		}
+
+		/**
+		 * Returns the earliest known time of encoded points, zero if none is known.
+		 */
+		public long getStartTime()
+		{
+			return startTime;
+		}
+
+		public long getEndTime()
+		{
+			return endTime;
+		}
+
+		public byte[] toByteArray()
+		{
+			return out.toByteArray();
+		}
+
+		private void writeLong(long value)
+		{
+			long v = (value << 1) ^ (value >> 63);
+			while ((v & ~0x7FL) != 0)
+			{
+				out.write((int) (v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			out.write((int) v);
+		}
+	}
+
+	/**
+	 * Decodes points in cursor-like manner, point fields are valid after {@link #moveToNext()}
+	 * returns true.
+	 */
+	public static class Decoder
+	{
+		private final byte[] data;
+		private int position;
+		private long lat, lon, elev, spd, brg, acc;
+
+		public boolean continous;
+		public double latitude;
+		public double longitude;
+		public double elevation;
+		public float speed;
+		public float bearing;
+		public float accuracy;
+		public long time;
+
+		/**
+		 * @throws IllegalArgumentException if data is not recognized
+		 */
+		public Decoder(byte[] data)
+		{
+			if (data == null || data.length == 0 || data[0] != VERSION)
+				throw new IllegalArgumentException("Unknown track archive format");
+			this.data = data;
+			position = 1;
+		}
+
+		public boolean moveToNext()
+		{
+			if (position >= data.length)
+				return false;
+			continous = data[position++] == 0;
+			lat += readLong();
+			lon += readLong();
+			elev += readLong();
+			spd += readLong();
+			brg += readLong();
+			acc += readLong();
+			time += readLong();
+			latitude = lat / COORDINATE_SCALE;
+			longitude = lon / COORDINATE_SCALE;
+			elevation = elev / ELEVATION_SCALE;
+			speed = (float) (spd / SPEED_SCALE);
+			bearing = (float) (brg / BEARING_SCALE);
+			accuracy = (float) (acc / ACCURACY_SCALE);
+			return true;
+		}
+
+		private long readLong()
+		{
+			long v = 0;
+			int shift = 0;
+			while (true)
+			{
+				if (position >= data.length)
+					throw new IllegalArgumentException("Truncated track archive");
+				int b = data[position++];
+				v |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					break;
+				shift += 7;
+			}
+			return (v >>> 1) ^ -(v & 1);
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.location;
+
+import android.location.Location;
+
+/**
+ * Online track compression with bounded error. Every track segment starts at the last stored point
+ * (anchor). Each following point narrows the cone of directions from the anchor in which a segment
+ * passes within cross-track share of tolerance of it. While the newest point lies inside the cone
+ * and is not much closer to the anchor than the farthest point since anchor, it is kept pending and
+ * the previous pending point is dropped. When it does not, the pending point is stored and becomes
+ * the new anchor. Dropped points lie within cross-track share of tolerance aside of the stored
+ * segment and at most along-track share beyond its end, so every dropped point is within tolerance
+ * of the stored path. The stored path lags the newest point by at most one point, that point is
+ * available as pending. Each point is processed in constant time.
+ */
+public class TrackCompressor
+{
+	private static final double METERS_PER_DEGREE = 111319.49;
+	/**
+	 * Shares of tolerance for cross-track and along-track deviation, their squares add up to one
+	 */
+	private static final double CROSS_TRACK_SHARE = 0.8;
+	private static final double ALONG_TRACK_SHARE = 0.6;
+
+	private double tolerance;
+
+	private Location anchor;
+	private Location pending;
+	private double lonScale;
+	private boolean hasCone;
+	private double base;
+	private double low;
+	private double high;
+	private double maxDistance;
+
+	private long received;
+	private long stored;
+
+	/**
+	 * @param tolerance maximum distance of dropped points from stored path in meters, zero disables compression
+	 */
+	public TrackCompressor(double tolerance)
+	{
+		this.tolerance = tolerance;
+	}
+
+	public void setTolerance(double tolerance)
+	{
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Adds new point to the track.
+	 *
+	 * @return point that should be stored now, or null if none
+	 */
+	public Location add(Location location)
+	{
+		received++;
+		if (anchor == null || tolerance <= 0)
+		{
+			setAnchor(location);
+			pending = null;
+			stored++;
+			return location;
+		}
+		if (fits(location))
+		{
+			pending = location;
+			return null;
+		}
+		// Pending point is never null here as any point fits empty cone
+		Location result = pending;
+		setAnchor(pending);
+		fits(location);
+		pending = location;
+		stored++;
+		return result;
+	}
+
+	/**
+	 * Finishes current segment, e.g. when track is interrupted.
+	 *
+	 * @return pending point that should be stored, or null if none
+	 */
+	public Location flush()
+	{
+		Location result = pending;
+		pending = null;
+		if (result != null)
+		{
+			setAnchor(result);
+			stored++;
+		}
+		return result;
+	}
+
+	/**
+	 * Starts new track, pending point is discarded.
+	 */
+	public void reset()
+	{
+		anchor = null;
+		pending = null;
+	}
+
+	/**
+	 * Returns true if there is a point that was not stored yet.
+	 */
+	public boolean hasPending()
+	{
+		return pending != null;
+	}
+
+	/**
+	 * Returns the newest point that was not stored yet, it continues stored path and is replaced
+	 * by the next point.
+	 */
+	public Location getPending()
+	{
+		return pending;
+	}
+
+	public long getReceived()
+	{
+		return received;
+	}
+
+	public long getStored()
+	{
+		return stored;
+	}
+
+	/**
+	 * Returns ratio of received points to stored points.
+	 */
+	public float getRatio()
+	{
+		return stored > 0 ? (float) received / stored : 1f;
+	}
+
+	private void setAnchor(Location location)
+	{
+		anchor = location;
+		lonScale = METERS_PER_DEGREE * Math.cos(Math.toRadians(location.getLatitude()));
+		hasCone = false;
+		maxDistance = 0;
+	}
+
+	/**
+	 * Checks if segment from anchor to location passes within tolerance of all points since anchor
+	 * and narrows the cone by location.
+	 */
+	private boolean fits(Location location)
+	{
+		double lon = location.getLongitude() - anchor.getLongitude();
+		if (lon > 180)
+			lon -= 360;
+		else if (lon < -180)
+			lon += 360;
+		double dx = lon * lonScale;
+		double dy = (location.getLatitude() - anchor.getLatitude()) * METERS_PER_DEGREE;
+		double distance = Math.sqrt(dx * dx + dy * dy);
+		double cross = tolerance * CROSS_TRACK_SHARE;
+		// Points farther than segment end are not covered by the cone, this also
+		// catches turning back along the same line
+		if (distance + tolerance * ALONG_TRACK_SHARE < maxDistance)
+			return false;
+		if (distance <= cross)
+		{
+			// Points close to anchor are close to any segment, but segment in arbitrary
+			// direction does not pass by farther points
+			if (hasCone)
+				return false;
+			if (distance > maxDistance)
+				maxDistance = distance;
+			return true;
+		}
+
+		double direction = Math.atan2(dy, dx);
+		double width = Math.asin(cross / distance);
+		if (!hasCone)
+		{
+			hasCone = true;
+			base = direction;
+			low = -width;
+			high = width;
+		}
+		else
+		{
+			double angle = direction - base;
+			if (angle > Math.PI)
+				angle -= 2 * Math.PI;
+			else if (angle <= -Math.PI)
+				angle += 2 * Math.PI;
+			if (angle < low || angle > high)
+				return false;
+			low = Math.max(low, angle - width);
+			high = Math.min(high, angle + width);
+		}
+		if (distance > maxDistance)
+			maxDistance = distance;
+		return true;
+	}
+}
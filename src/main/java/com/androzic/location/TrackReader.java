@@ -0,0 +1,229 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.location;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.androzic.data.Track;
+
+/**
+ * Reads points of recorded track database (myTrack.db) in track order: archived partitions of past
+ * days first, then points of track table. Points are streamed one by one, so that whole track is
+ * never held in memory unless it is collected into {@link Track}. Databases created before
+ * archiving was introduced are read as well.
+ */
+public class TrackReader
+{
+	private static final String TAG = "TrackReader";
+
+	private static final String COLUMNS = "latitude, longitude, elevation, speed, track, accuracy, code, datetime";
+
+	private final SQLiteDatabase db;
+	private final long start;
+	private final long end;
+
+	private Cursor archive;
+	private TrackArchive.Decoder decoder;
+	private long skip;
+	private Cursor points;
+	private String pointsQuery;
+	private String[] pointsArgs;
+
+	public boolean continous;
+	public double latitude;
+	public double longitude;
+	public double elevation;
+	public float speed;
+	public float bearing;
+	public float accuracy;
+	public long time;
+
+	/**
+	 * Reads given number of last track points.
+	 *
+	 * @param limit number of points to read, 0 to read whole track
+	 */
+	public TrackReader(SQLiteDatabase db, long limit)
+	{
+		this.db = db;
+		start = Long.MIN_VALUE;
+		end = Long.MAX_VALUE;
+
+		long remaining = Long.MAX_VALUE;
+		pointsQuery = "SELECT " + COLUMNS + " FROM track ORDER BY _id";
+		if (limit > 0)
+		{
+			Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM track", null);
+			long count = cursor.moveToFirst() ? cursor.getLong(0) : 0;
+			cursor.close();
+			if (count >= limit)
+			{
+				pointsQuery += " LIMIT -1 OFFSET " + (count - limit);
+				remaining = 0;
+			}
+			else
+			{
+				remaining = limit - count;
+			}
+		}
+		if (remaining > 0 && hasArchive(db))
+		{
+			// Only partitions containing requested points are read
+			long first = 0;
+			long size = 0;
+			Cursor cursor = db.rawQuery("SELECT _id, size FROM archive ORDER BY _id DESC", null);
+			for (boolean hasItem = cursor.moveToFirst(); hasItem && size < remaining; hasItem = cursor.moveToNext())
+			{
+				first = cursor.getLong(0);
+				size += cursor.getLong(1);
+			}
+			cursor.close();
+			if (size > 0)
+			{
+				skip = size > remaining ? size - remaining : 0;
+				archive = db.rawQuery("SELECT data FROM archive WHERE _id >= ? ORDER BY _id", new String[] {String.valueOf(first)});
+			}
+		}
+	}
+
+	/**
+	 * Reads track points recorded in given time period.
+	 */
+	public TrackReader(SQLiteDatabase db, long start, long end)
+	{
+		this.db = db;
+		this.start = start;
+		this.end = end;
+		String[] args = new String[] {String.valueOf(start), String.valueOf(end)};
+		// Only partitions overlapping requested period are read
+		if (hasArchive(db))
+			archive = db.rawQuery("SELECT data FROM archive WHERE endtime >= ? AND starttime <= ? ORDER BY _id", args);
+		pointsQuery = "SELECT " + COLUMNS + " FROM track WHERE datetime >= ? AND datetime <= ? ORDER BY _id";
+		pointsArgs = args;
+	}
+
+	/**
+	 * Moves to the next track point.
+	 *
+	 * @return false if there are no more points
+	 */
+	public boolean moveToNext()
+	{
+		while (archive != null)
+		{
+			if (decoder != null && decoder.moveToNext())
+			{
+				if (skip > 0)
+				{
+					skip--;
+					continue;
+				}
+				if (decoder.time < start || decoder.time > end)
+					continue;
+				continous = decoder.continous;
+				latitude = decoder.latitude;
+				longitude = decoder.longitude;
+				elevation = decoder.elevation;
+				speed = decoder.speed;
+				bearing = decoder.bearing;
+				accuracy = decoder.accuracy;
+				time = decoder.time;
+				return true;
+			}
+			decoder = null;
+			if (!archive.moveToNext())
+			{
+				archive.close();
+				archive = null;
+				break;
+			}
+			try
+			{
+				decoder = new TrackArchive.Decoder(archive.getBlob(0));
+			}
+			catch (IllegalArgumentException e)
+			{
+				Log.e(TAG, "moveToNext", e);
+			}
+		}
+		if (pointsQuery != null)
+		{
+			points = db.rawQuery(pointsQuery, pointsArgs);
+			pointsQuery = null;
+		}
+		if (points == null)
+			return false;
+		if (!points.moveToNext())
+		{
+			points.close();
+			points = null;
+			return false;
+		}
+		latitude = points.getDouble(0);
+		longitude = points.getDouble(1);
+		elevation = points.getDouble(2);
+		speed = points.getFloat(3);
+		bearing = points.getFloat(4);
+		accuracy = points.getFloat(5);
+		continous = points.getInt(6) == 0;
+		time = points.getLong(7);
+		return true;
+	}
+
+	public void close()
+	{
+		if (archive != null)
+			archive.close();
+		archive = null;
+		decoder = null;
+		if (points != null)
+			points.close();
+		points = null;
+		pointsQuery = null;
+	}
+
+	/**
+	 * Adds all remaining points to the track and closes reader.
+	 */
+	public Track readTo(Track track)
+	{
+		try
+		{
+			while (moveToNext())
+				track.addPoint(continous, latitude, longitude, elevation, speed, bearing, accuracy, time);
+		}
+		finally
+		{
+			close();
+		}
+		return track;
+	}
+
+	private static boolean hasArchive(SQLiteDatabase db)
+	{
+		Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'table' AND name = 'archive'", null);
+		boolean result = cursor.getCount() > 0;
+		cursor.close();
+		return result;
+	}
+}
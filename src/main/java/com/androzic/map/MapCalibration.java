@@ -0,0 +1,307 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import java.util.List;
+
+import com.jhlabs.Point2D;
+import com.jhlabs.map.proj.Projection;
+
+/**
+ * Converts between map pixels and WGS84 coordinates of calibrated map. Exact conversion goes
+ * through map projection. If lat/lon to pixel relation is affine within given tolerance over
+ * the whole map (e.g. Lat/Lon maps or small maps in conformal projections) conversion is done
+ * with precomputed matrix without touching projection.
+ * <p>
+ * Affine approximation can also be fitted directly to conversion of existing map, so that it
+ * never deviates from the map itself by more than given tolerance.
+ */
+public class MapCalibration
+{
+	/**
+	 * Default tolerance of affine approximation, in pixels
+	 */
+	public static final double DEFAULT_TOLERANCE = 0.5;
+
+	private static final int SAMPLES = 16;
+
+	/**
+	 * Exact conversion from map pixels to WGS84 coordinates.
+	 */
+	public interface Conversion
+	{
+		boolean getLatLonByXY(int x, int y, double[] ll);
+	}
+
+	private final Projection projection;
+	// Pixel from projected coordinates and back
+	private final double[] xy2en;
+	private final double[] en2xy;
+	// Pixel from degrees and back, null if map is not affine
+	private double[] ll2xy;
+	private double[] xy2ll;
+	private double maxError = Double.NaN;
+
+	private final Point2D.Double src = new Point2D.Double();
+	private final Point2D.Double dst = new Point2D.Double();
+
+	private MapCalibration(Projection projection, double[] en2xy)
+	{
+		this.projection = projection;
+		this.en2xy = en2xy;
+		this.xy2en = en2xy != null ? invert(en2xy) : null;
+	}
+
+	/**
+	 * Creates calibration from map calibration points. Projection should be initialized and
+	 * calibration points should be in WGS84 datum.
+	 *
+	 * @param points calibration points, at least three, not on one line
+	 * @param projection map projection
+	 * @param width map width in pixels
+	 * @param height map height in pixels
+	 * @param tolerance maximum allowed error of affine approximation in pixels
+	 * @return calibration or null if calibration points are degenerate
+	 */
+	public static MapCalibration create(List<MapPoint> points, Projection projection, int width, int height, double tolerance)
+	{
+		int n = points.size();
+		if (n < 3)
+			return null;
+
+		double[] e = new double[n];
+		double[] nn = new double[n];
+		double[] x = new double[n];
+		double[] y = new double[n];
+		Point2D.Double dst = new Point2D.Double();
+		for (int i = 0; i < n; i++)
+		{
+			MapPoint mp = points.get(i);
+			projection.transform(mp.lon, mp.lat, dst);
+			e[i] = dst.x;
+			nn[i] = dst.y;
+			x[i] = mp.x;
+			y[i] = mp.y;
+		}
+		double[] en2xy = fit(e, nn, x, y);
+		if (en2xy == null || invert(en2xy) == null)
+			return null;
+
+		final MapCalibration calibration = new MapCalibration(projection, en2xy);
+		calibration.fitAffine(new Conversion() {
+			@Override
+			public boolean getLatLonByXY(int x, int y, double[] ll)
+			{
+				return calibration.getLatLonByXYExact(x, y, ll);
+			}
+		}, width, height, tolerance);
+		return calibration;
+	}
+
+	/**
+	 * Fits affine approximation to exact conversion of a map. Resulting calibration has no exact
+	 * path and is returned only if approximation is within tolerance over the whole map.
+	 *
+	 * @param exact exact map conversion
+	 * @param width map width in pixels
+	 * @param height map height in pixels
+	 * @param tolerance maximum allowed error of affine approximation in pixels
+	 * @return calibration or null if map is not affine
+	 */
+	public static MapCalibration createAffine(Conversion exact, int width, int height, double tolerance)
+	{
+		MapCalibration calibration = new MapCalibration(null, null);
+		calibration.fitAffine(exact, width, height, tolerance);
+		return calibration.isAffine() ? calibration : null;
+	}
+
+	/**
+	 * Returns true if conversion is done without projection.
+	 */
+	public boolean isAffine()
+	{
+		return ll2xy != null;
+	}
+
+	/**
+	 * Returns maximum error of affine approximation over the map, in pixels.
+	 */
+	public double getMaxError()
+	{
+		return maxError;
+	}
+
+	public boolean getXYByLatLon(double lat, double lon, int[] xy)
+	{
+		// Matrices are set once on creation, affine path needs no locking
+		if (ll2xy != null)
+		{
+			xy[0] = (int) Math.round(ll2xy[0] + ll2xy[1] * lon + ll2xy[2] * lat);
+			xy[1] = (int) Math.round(ll2xy[3] + ll2xy[4] * lon + ll2xy[5] * lat);
+			return true;
+		}
+		return getXYByLatLonExact(lat, lon, xy);
+	}
+
+	public boolean getLatLonByXY(int x, int y, double[] ll)
+	{
+		if (xy2ll != null)
+		{
+			ll[1] = xy2ll[0] + xy2ll[1] * x + xy2ll[2] * y;
+			ll[0] = xy2ll[3] + xy2ll[4] * x + xy2ll[5] * y;
+			return true;
+		}
+		return getLatLonByXYExact(x, y, ll);
+	}
+
+	public synchronized boolean getXYByLatLonExact(double lat, double lon, int[] xy)
+	{
+		projection.transform(lon, lat, dst);
+		xy[0] = (int) Math.round(en2xy[0] + en2xy[1] * dst.x + en2xy[2] * dst.y);
+		xy[1] = (int) Math.round(en2xy[3] + en2xy[4] * dst.x + en2xy[5] * dst.y);
+		return true;
+	}
+
+	public synchronized boolean getLatLonByXYExact(int x, int y, double[] ll)
+	{
+		inverse(x, y, ll);
+		return true;
+	}
+
+	private void inverse(double x, double y, double[] ll)
+	{
+		src.x = xy2en[0] + xy2en[1] * x + xy2en[2] * y;
+		src.y = xy2en[3] + xy2en[4] * x + xy2en[5] * y;
+		projection.inverseTransform(src, dst);
+		ll[0] = dst.y;
+		ll[1] = dst.x;
+	}
+
+	/**
+	 * Fits affine transform to exact conversion sampled over the map and checks its error.
+	 */
+	private void fitAffine(Conversion exact, int width, int height, double tolerance)
+	{
+		int n = (SAMPLES + 1) * (SAMPLES + 1);
+		double[] lat = new double[n];
+		double[] lon = new double[n];
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double[] ll = new double[2];
+		int i = 0;
+		for (int r = 0; r <= SAMPLES; r++)
+		{
+			for (int c = 0; c <= SAMPLES; c++)
+			{
+				x[i] = (int) ((long) width * c / SAMPLES);
+				y[i] = (int) ((long) height * r / SAMPLES);
+				if (!exact.getLatLonByXY((int) x[i], (int) y[i], ll) || Double.isNaN(ll[0]) || Double.isNaN(ll[1]))
+					return;
+				lat[i] = ll[0];
+				lon[i] = ll[1];
+				i++;
+			}
+		}
+		double[] forward = fit(lon, lat, x, y);
+		if (forward == null)
+			return;
+		double[] backward = invert(forward);
+		if (backward == null)
+			return;
+
+		double error = 0;
+		for (i = 0; i < n; i++)
+		{
+			double dx = forward[0] + forward[1] * lon[i] + forward[2] * lat[i] - x[i];
+			double dy = forward[3] + forward[4] * lon[i] + forward[5] * lat[i] - y[i];
+			error = Math.max(error, Math.sqrt(dx * dx + dy * dy));
+		}
+		maxError = error;
+		if (error <= tolerance)
+		{
+			ll2xy = forward;
+			xy2ll = backward;
+		}
+	}
+
+	/**
+	 * Least squares fit of tx = a0 + a1 * u + a2 * v, ty = a3 + a4 * u + a5 * v.
+	 *
+	 * @return coefficients or null if points are degenerate
+	 */
+	static double[] fit(double[] u, double[] v, double[] tx, double[] ty)
+	{
+		int n = u.length;
+		// Center values to keep normal equations well conditioned
+		double mu = 0, mv = 0, mx = 0, my = 0;
+		for (int i = 0; i < n; i++)
+		{
+			mu += u[i];
+			mv += v[i];
+			mx += tx[i];
+			my += ty[i];
+		}
+		mu /= n;
+		mv /= n;
+		mx /= n;
+		my /= n;
+
+		double suu = 0, suv = 0, svv = 0, sux = 0, svx = 0, suy = 0, svy = 0;
+		for (int i = 0; i < n; i++)
+		{
+			double du = u[i] - mu;
+			double dv = v[i] - mv;
+			double dx = tx[i] - mx;
+			double dy = ty[i] - my;
+			suu += du * du;
+			suv += du * dv;
+			svv += dv * dv;
+			sux += du * dx;
+			svx += dv * dx;
+			suy += du * dy;
+			svy += dv * dy;
+		}
+		double det = suu * svv - suv * suv;
+		if (det == 0 || Math.abs(det) < 1e-12 * suu * svv)
+			return null;
+
+		double a1 = (sux * svv - svx * suv) / det;
+		double a2 = (svx * suu - sux * suv) / det;
+		double a4 = (suy * svv - svy * suv) / det;
+		double a5 = (svy * suu - suy * suv) / det;
+		return new double[] {mx - a1 * mu - a2 * mv, a1, a2, my - a4 * mu - a5 * mv, a4, a5};
+	}
+
+	/**
+	 * Inverts affine transform returned by {@link #fit}.
+	 */
+	static double[] invert(double[] a)
+	{
+		double det = a[1] * a[5] - a[2] * a[4];
+		if (det == 0)
+			return null;
+		double b1 = a[5] / det;
+		double b2 = -a[2] / det;
+		double b4 = -a[4] / det;
+		double b5 = a[1] / det;
+		return new double[] {-b1 * a[0] - b2 * a[3], b1, b2, -b4 * a[0] - b5 * a[3], b4, b5};
+	}
+}
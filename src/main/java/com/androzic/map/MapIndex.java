@@ -38,8 +38,8 @@ import android.annotation.SuppressLint;
 
 import com.androzic.data.Bounds;
 import com.androzic.map.forge.ForgeMap;
+import com.androzic.map.ozf.AsyncOzfMap;
 import com.androzic.map.ozf.Grid;
-import com.androzic.map.ozf.OzfMap;
 import com.androzic.util.FileList;
 import com.androzic.util.MapFilenameFilter;
 import com.esotericsoftware.kryo.Kryo;
@@ -309,7 +309,8 @@ public class MapIndex implements Serializable
 		Kryo kryo = new Kryo();
 		kryo.register(MapIndex.class);
 		kryo.register(BaseMap.class);
-		kryo.register(OzfMap.class);
+		// Maps are stored as asynchronous ones, fields of both classes are the same
+		kryo.register(AsyncOzfMap.class);
 		kryo.register(ForgeMap.class);
 		kryo.register(Grid.class);
 		kryo.register(MapPoint.class);
@@ -333,7 +334,8 @@ public class MapIndex implements Serializable
 		Kryo kryo = new Kryo();
 		kryo.register(MapIndex.class);
 		kryo.register(BaseMap.class);
-		kryo.register(OzfMap.class);
+		// Maps are stored as asynchronous ones, fields of both classes are the same
+		kryo.register(AsyncOzfMap.class);
 		kryo.register(ForgeMap.class);
 		kryo.register(Grid.class);
 		kryo.register(MapPoint.class);
@@ -20,20 +20,49 @@
 
 package com.androzic.map;
 
+import java.io.File;
 import java.util.List;
 
+import android.app.Activity;
+import android.app.ProgressDialog;
+import android.content.DialogInterface;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.app.Fragment;
+import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.androzic.Androzic;
 import com.androzic.R;
+import com.androzic.data.Bounds;
+import com.androzic.map.forge.ForgeMap;
+import com.androzic.util.FileUtils;
 
 public class MapInformation extends Fragment
 {
+	// Build outlives activity, it is kept in retained fragment and its dialog is recreated
+	private final Handler handler = new Handler();
+	private TilePackBuilder builder;
+	private ProgressDialog progressDialog;
+	private int progressZoom;
+	private int progressDone;
+	private int progressTotal;
+
+	@Override
+	public void onCreate(Bundle savedInstanceState)
+	{
+		super.onCreate(savedInstanceState);
+		setRetainInstance(true);
+		setHasOptionsMenu(true);
+	}
+
 	@Override
 	public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState)
 	{
@@ -55,4 +84,151 @@ public class MapInformation extends Fragment
 		
 		return view;
     }
+
+	@Override
+	public void onResume()
+	{
+		super.onResume();
+		if (builder != null)
+			showProgress();
+	}
+
+	@Override
+	public void onPause()
+	{
+		super.onPause();
+		dismissProgress();
+	}
+
+	@Override
+	public void onCreateOptionsMenu(Menu menu, MenuInflater inflater)
+	{
+		inflater.inflate(R.menu.mapinfo_menu, menu);
+		super.onCreateOptionsMenu(menu, inflater);
+	}
+
+	@Override
+	public void onPrepareOptionsMenu(final Menu menu)
+	{
+		BaseMap map = Androzic.getApplication().getCurrentMap();
+		// Vector maps share renderer with map view and can not be rendered in background,
+		// online maps have no map file
+		menu.findItem(R.id.action_build_tiles).setVisible(builder == null && map != null && map.path != null && !(map instanceof ForgeMap));
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item)
+	{
+		switch (item.getItemId())
+		{
+			case R.id.action_build_tiles:
+				buildTiles();
+				return true;
+			default:
+				return super.onOptionsItemSelected(item);
+		}
+	}
+
+	/**
+	 * Renders current map into MBTiles file in maps folder. Zoom levels from native map zoom
+	 * and two levels below are built, existing tiles are kept so that build can be resumed.
+	 */
+	private void buildTiles()
+	{
+		final Androzic application = Androzic.getApplication();
+		final BaseMap map = application.getCurrentMap();
+		final Bounds bounds = map.getBounds();
+		final int maxZoom = TilePackBuilder.getNativeZoom(map);
+		final int minZoom = Math.max(0, maxZoom - 2);
+		final File file = new File(application.getMapPath(), FileUtils.sanitizeFilename(map.title) + ".mbtiles");
+		final TilePackBuilder tilePackBuilder = new TilePackBuilder(new File(map.path), application.charset, file);
+		builder = tilePackBuilder;
+		progressZoom = minZoom;
+		progressDone = 0;
+		progressTotal = 0;
+		showProgress();
+
+		tilePackBuilder.setProgressListener(new TilePackBuilder.ProgressListener() {
+			@Override
+			public void onProgress(final int zoom, final int done, final int total)
+			{
+				handler.post(new Runnable() {
+					public void run()
+					{
+						progressZoom = zoom;
+						progressDone = done;
+						progressTotal = total;
+						updateProgress();
+					}
+				});
+			}
+		});
+
+		// Thread does not reference activity, result is reported to the fragment in any state
+		new Thread(new Runnable() {
+			public void run()
+			{
+				String message = null;
+				try
+				{
+					if (tilePackBuilder.build(bounds.minLat, bounds.minLon, bounds.maxLat, bounds.maxLon, minZoom, maxZoom))
+						message = application.getString(R.string.msg_tilesbuilt, file.getName());
+					else if (tilePackBuilder.getIncompleteCount() > 0)
+						message = application.getString(R.string.msg_tilesincomplete);
+				}
+				catch (Throwable e)
+				{
+					Log.e("MapInformation", "Failed to build tile pack", e);
+					message = application.getString(R.string.err_write);
+				}
+				final String result = message;
+				handler.post(new Runnable() {
+					public void run()
+					{
+						builder = null;
+						dismissProgress();
+						if (result != null)
+							Toast.makeText(application, result, Toast.LENGTH_LONG).show();
+					}
+				});
+			}
+		}, "TilePackBuilder").start();
+	}
+
+	private void showProgress()
+	{
+		Activity activity = getActivity();
+		if (activity == null || progressDialog != null)
+			return;
+		progressDialog = new ProgressDialog(activity);
+		progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+		progressDialog.setMessage(getString(R.string.msg_wait));
+		progressDialog.setCancelable(false);
+		progressDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
+			@Override
+			public void onClick(DialogInterface dialog, int which)
+			{
+				if (builder != null)
+					builder.cancel();
+			}
+		});
+		progressDialog.show();
+		updateProgress();
+	}
+
+	private void updateProgress()
+	{
+		if (progressDialog == null || progressTotal == 0)
+			return;
+		progressDialog.setMessage(getString(R.string.msg_buildingtiles, progressZoom));
+		progressDialog.setMax(progressTotal);
+		progressDialog.setProgress(progressDone);
+	}
+
+	private void dismissProgress()
+	{
+		if (progressDialog != null)
+			progressDialog.dismiss();
+		progressDialog = null;
+	}
 }
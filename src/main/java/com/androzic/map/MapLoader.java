@@ -34,6 +34,7 @@ import android.util.Log;
 
 import com.androzic.map.forge.ForgeMap;
 import com.androzic.map.mbtiles.MBTilesMap;
+import com.androzic.map.ozf.AsyncOzfMap;
 import com.androzic.map.ozf.Grid;
 import com.androzic.map.ozf.OzfMap;
 import com.androzic.map.rmaps.SQLiteMap;
@@ -116,7 +117,7 @@ public class MapLoader
 
 	    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), charset));
 	    
-	    OzfMap map = new OzfMap(file.getCanonicalPath());
+	    OzfMap map = new AsyncOzfMap(file.getCanonicalPath());
 	    try
 	    {
 		    String[] fields;
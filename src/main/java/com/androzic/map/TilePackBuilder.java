@@ -0,0 +1,740 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.Log;
+
+import com.androzic.data.Bounds;
+import com.androzic.map.forge.ForgeMap;
+import com.androzic.map.ozf.AsyncOzfMap;
+import com.androzic.ui.Viewport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders raster map file (OZF, SQLite or MBTiles map) into MBTiles file, the fastest map format we
+ * can load. Map is rendered tile by tile in several threads and reprojected to spherical mercator.
+ * Each thread renders its own instance of the map loaded from map file, so it does not interfere
+ * with the map shown on screen. Tiles already present in output file are skipped, so interrupted
+ * build can be resumed by running it again with the same parameters. Tiles which source did not
+ * settle are not stored, they are retried once at the end of zoom level and left for the next run
+ * if they still fail.
+ * <p>
+ * Vector maps are not supported as their renderer is shared by all map instances, online maps
+ * are not supported as they have no map file. Building is a long operation and should not be run
+ * on UI thread.
+ */
+public class TilePackBuilder
+{
+	private static final String TAG = "TilePackBuilder";
+
+	public interface ProgressListener
+	{
+		void onProgress(int zoom, int done, int total);
+	}
+
+	private static final int TILE_SIZE = 256;
+	/**
+	 * Margin of map area under the tile, covers curvature of tile edges on the map
+	 */
+	private static final int SOURCE_MARGIN = 4;
+	/**
+	 * Map area under the tile is limited to keep memory usage bounded
+	 */
+	private static final int MAX_SOURCE_SIZE = TILE_SIZE * 4;
+	private static final int MESH = 8;
+	private static final int BATCH_SIZE = 32;
+	/**
+	 * Tiled maps load their tiles asynchronously, so source is redrawn until no new tiles arrive
+	 * and two consecutive renderings are identical
+	 */
+	private static final long SETTLE_TIME = 500;
+	/**
+	 * Blank source is accepted only after it stays unchanged for several settle periods as it
+	 * usually means that map tiles are not loaded yet, though map can be transparent there
+	 */
+	private static final int BLANK_SETTLE_ROUNDS = 4;
+	private static final int MAX_REDRAWS = 20;
+	private static final double EARTH_CIRCUMFERENCE = 40075016.686;
+
+	private final File mapFile;
+	private final String charset;
+	private final File file;
+	private int threads;
+	private ProgressListener progressListener;
+
+	private String title;
+	private SQLiteDatabase db;
+	private final List<ContentValues> batch = new ArrayList<>(BATCH_SIZE);
+	private final AtomicInteger incomplete = new AtomicInteger();
+	private volatile boolean cancelled;
+	private final List<Thread> running = new ArrayList<>();
+
+	/**
+	 * @param mapFile source map file
+	 * @param charset charset of map file
+	 * @param file output file
+	 */
+	public TilePackBuilder(File mapFile, String charset, File file)
+	{
+		this.mapFile = mapFile;
+		this.charset = charset;
+		this.file = file;
+		this.threads = Runtime.getRuntime().availableProcessors();
+	}
+
+	public void setThreads(int threads)
+	{
+		this.threads = threads > 0 ? threads : 1;
+	}
+
+	public void setProgressListener(ProgressListener listener)
+	{
+		progressListener = listener;
+	}
+
+	/**
+	 * Stops running build, tiles rendered so far are kept in output file.
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+		synchronized (running)
+		{
+			for (Thread thread : running)
+				thread.interrupt();
+		}
+	}
+
+	/**
+	 * Returns number of tiles that were not built because map did not settle while rendering them.
+	 */
+	public int getIncompleteCount()
+	{
+		return incomplete.get();
+	}
+
+	/**
+	 * Returns zoom level which resolution is the closest to map resolution.
+	 */
+	public static int getNativeZoom(BaseMap map)
+	{
+		Bounds bounds = map.getBounds();
+		double lat = (bounds.minLat + bounds.maxLat) / 2;
+		double zoom = Math.log(Math.cos(Math.toRadians(lat)) * EARTH_CIRCUMFERENCE / TILE_SIZE / map.getAbsoluteMPP()) / Math.log(2);
+		return (int) Math.max(0, Math.min(Math.round(zoom), 22));
+	}
+
+	/**
+	 * Builds tiles covering bounding box for specified zoom levels.
+	 *
+	 * @return true if all tiles were built, false if build was cancelled or some tiles did not settle
+	 */
+	public boolean build(final double minLat, final double minLon, final double maxLat, final double maxLon, int minZoom, int maxZoom) throws Throwable
+	{
+		TileSelector selector = new TileSelector() {
+			@Override
+			public Set<Long> select(int zoom)
+			{
+				return selectArea(minLat, minLon, maxLat, maxLon, zoom);
+			}
+		};
+		return build(selector, minLat, minLon, maxLat, maxLon, minZoom, maxZoom);
+	}
+
+	/**
+	 * Builds tiles along route for specified zoom levels.
+	 *
+	 * @param route route points as lat/lon pairs
+	 * @param corridor half width of route corridor in meters
+	 * @return true if all tiles were built, false if build was cancelled or some tiles did not settle
+	 */
+	public boolean build(final double[][] route, final double corridor, int minZoom, int maxZoom) throws Throwable
+	{
+		double minLat = 90, minLon = 180, maxLat = -90, maxLon = -180;
+		for (double[] p : route)
+		{
+			minLat = Math.min(minLat, p[0]);
+			maxLat = Math.max(maxLat, p[0]);
+			minLon = Math.min(minLon, p[1]);
+			maxLon = Math.max(maxLon, p[1]);
+		}
+
+		TileSelector selector = new TileSelector() {
+			@Override
+			public Set<Long> select(int zoom)
+			{
+				return selectRoute(route, corridor, zoom);
+			}
+		};
+		return build(selector, minLat, minLon, maxLat, maxLon, minZoom, maxZoom);
+	}
+
+	/**
+	 * Returns keys of tiles covering bounding box.
+	 */
+	static Set<Long> selectArea(double minLat, double minLon, double maxLat, double maxLon, int zoom)
+	{
+		Set<Long> tiles = new LinkedHashSet<>();
+		int x1 = lonToTileX(minLon, zoom), x2 = lonToTileX(maxLon, zoom);
+		int y1 = latToTileY(maxLat, zoom), y2 = latToTileY(minLat, zoom);
+		for (int y = y1; y <= y2; y++)
+			for (int x = x1; x <= x2; x++)
+				tiles.add(key(x, y));
+		return tiles;
+	}
+
+	/**
+	 * Returns keys of tiles covering route corridor.
+	 */
+	static Set<Long> selectRoute(double[][] route, double corridor, int zoom)
+	{
+		Set<Long> tiles = new LinkedHashSet<>();
+		double[] p1 = new double[2], p2 = new double[2];
+		for (int i = 0; i < route.length; i++)
+		{
+			toPixels(route[i][0], route[i][1], zoom, p1);
+			if (i > 0)
+				toPixels(route[i - 1][0], route[i - 1][1], zoom, p2);
+			else
+				System.arraycopy(p1, 0, p2, 0, 2);
+			double r = corridor / groundResolution(route[i][0], zoom);
+			double length = Math.hypot(p1[0] - p2[0], p1[1] - p2[1]);
+			int steps = (int) Math.ceil(length / (TILE_SIZE / 2)) + 1;
+			for (int s = 0; s < steps; s++)
+			{
+				double px = p2[0] + (p1[0] - p2[0]) * s / steps;
+				double py = p2[1] + (p1[1] - p2[1]) * s / steps;
+				int x1 = (int) Math.floor((px - r) / TILE_SIZE), x2 = (int) Math.floor((px + r) / TILE_SIZE);
+				int y1 = (int) Math.floor((py - r) / TILE_SIZE), y2 = (int) Math.floor((py + r) / TILE_SIZE);
+				for (int y = Math.max(y1, 0); y <= Math.min(y2, (1 << zoom) - 1); y++)
+					for (int x = Math.max(x1, 0); x <= Math.min(x2, (1 << zoom) - 1); x++)
+						tiles.add(key(x, y));
+			}
+		}
+		return tiles;
+	}
+
+	private boolean build(TileSelector selector, double minLat, double minLon, double maxLat, double maxLon, int minZoom, int maxZoom) throws Throwable
+	{
+		cancelled = false;
+		incomplete.set(0);
+		List<Worker> workers = new ArrayList<>(threads);
+		try
+		{
+			for (int i = 0; i < threads; i++)
+				workers.add(new Worker(loadMap()));
+			title = workers.get(0).map.title;
+			openDatabase(minLat, minLon, maxLat, maxLon, minZoom, maxZoom);
+			try
+			{
+				double centerLat = (minLat + maxLat) / 2;
+				for (int zoom = minZoom; zoom <= maxZoom && !cancelled; zoom++)
+				{
+					Set<Long> tiles = selector.select(zoom);
+					tiles.removeAll(getExistingTiles(zoom));
+					if (tiles.isEmpty())
+						continue;
+					Log.i(TAG, "Zoom " + zoom + ": " + tiles.size() + " tiles");
+					double mpp = groundResolution(centerLat, zoom);
+					Queue<Long> unsettled = buildZoom(workers, zoom, mpp, tiles, tiles.size(), 0);
+					// Retry tiles once, they are built when map is less busy
+					if (!unsettled.isEmpty() && !cancelled)
+						unsettled = buildZoom(workers, zoom, mpp, unsettled, tiles.size(), tiles.size() - unsettled.size());
+					incomplete.addAndGet(unsettled.size());
+				}
+				flush();
+			}
+			finally
+			{
+				db.close();
+				db = null;
+			}
+		}
+		finally
+		{
+			for (Worker worker : workers)
+				worker.map.destroy();
+		}
+		Log.i(TAG, "Build finished, " + incomplete.get() + " tiles did not settle");
+		return !cancelled && incomplete.get() == 0;
+	}
+
+	private BaseMap loadMap() throws Exception
+	{
+		BaseMap map = MapLoader.load(mapFile, charset);
+		if (map instanceof ForgeMap)
+		{
+			map.destroy();
+			throw new IllegalArgumentException("Vector maps are not supported");
+		}
+		map.initialize();
+		if (map.loadError != null)
+			throw new IllegalArgumentException("Failed to load map", map.loadError);
+		// Decode OZF tiles while drawing, so that map does not need to settle
+		if (map instanceof AsyncOzfMap)
+			((AsyncOzfMap) map).setSynchronous(true);
+		return map;
+	}
+
+	/**
+	 * Builds tiles of zoom level in worker threads.
+	 *
+	 * @return tiles that did not settle
+	 */
+	private Queue<Long> buildZoom(List<Worker> workers, final int zoom, double mpp, Collection<Long> tiles, final int total, int done) throws Throwable
+	{
+		final Queue<Long> queue = new ConcurrentLinkedQueue<>(tiles);
+		final Queue<Long> unsettled = new ConcurrentLinkedQueue<>();
+		final AtomicInteger counter = new AtomicInteger(done);
+
+		for (Worker worker : workers)
+			worker.map.activate(worker, mpp, true);
+		try
+		{
+			List<Thread> threads = new ArrayList<>(workers.size());
+			for (final Worker worker : workers)
+			{
+				threads.add(new Thread(new Runnable() {
+					@Override
+					public void run()
+					{
+						Long key;
+						while (!cancelled && (key = queue.poll()) != null)
+						{
+							int x = (int) (key >>> 32);
+							int y = (int) (long) key;
+							try
+							{
+								byte[] data = worker.renderTile(x, y, zoom);
+								if (data != null)
+									store(x, y, zoom, data);
+							}
+							catch (UnsettledException e)
+							{
+								unsettled.add(key);
+							}
+							if (progressListener != null)
+								progressListener.onProgress(zoom, counter.incrementAndGet(), total);
+						}
+					}
+				}, "TilePackBuilder"));
+			}
+			synchronized (running)
+			{
+				running.addAll(threads);
+			}
+			for (Thread thread : threads)
+				thread.start();
+			for (Thread thread : threads)
+			{
+				while (thread.isAlive())
+				{
+					try
+					{
+						thread.join();
+					}
+					catch (InterruptedException e)
+					{
+						cancel();
+					}
+				}
+			}
+			synchronized (running)
+			{
+				running.removeAll(threads);
+			}
+		}
+		finally
+		{
+			for (Worker worker : workers)
+				worker.map.deactivate();
+		}
+		return unsettled;
+	}
+
+	/**
+	 * Thrown when map source has not settled in time.
+	 */
+	private static class UnsettledException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * Renders tiles of its own map instance in one thread.
+	 */
+	private class Worker implements OnMapTileStateChangeListener
+	{
+		final BaseMap map;
+		private int tileEvents;
+
+		Worker(BaseMap map)
+		{
+			this.map = map;
+		}
+
+		@Override
+		public synchronized void onTileObtained()
+		{
+			tileEvents++;
+			notifyAll();
+		}
+
+		/**
+		 * Renders map area under tile and warps it to tile with a mesh computed from exact map projection.
+		 *
+		 * @return PNG compressed tile or null if map does not cover the tile
+		 * @throws UnsettledException if map source has not settled
+		 */
+		byte[] renderTile(int tx, int ty, int zoom) throws UnsettledException
+		{
+			double[] ll = new double[2];
+			double[] pxy = new double[2];
+
+			// Check that map covers the tile
+			boolean covers = false;
+			for (int i = 0; i <= 2 && !covers; i++)
+			{
+				for (int j = 0; j <= 2 && !covers; j++)
+				{
+					fromPixels((tx + i * 0.5) * TILE_SIZE, (ty + j * 0.5) * TILE_SIZE, zoom, ll);
+					covers = map.coversLatLon(ll[0], ll[1]);
+				}
+			}
+			if (!covers)
+				return null;
+
+			// Map area under the tile, it differs from tile in size as map scale is fixed for zoom
+			// level while mercator scale changes with latitude
+			int[] xy = new int[2];
+			int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+			for (int i = 0; i <= 2; i++)
+			{
+				for (int j = 0; j <= 2; j++)
+				{
+					fromPixels((tx + i * 0.5) * TILE_SIZE, (ty + j * 0.5) * TILE_SIZE, zoom, ll);
+					map.getXYByLatLon(ll[0], ll[1], xy);
+					minX = Math.min(minX, xy[0]);
+					minY = Math.min(minY, xy[1]);
+					maxX = Math.max(maxX, xy[0]);
+					maxY = Math.max(maxY, xy[1]);
+				}
+			}
+			int width = getSourceSize(minX, maxX);
+			int height = getSourceSize(minY, maxY);
+			if (width > MAX_SOURCE_SIZE || height > MAX_SOURCE_SIZE)
+			{
+				Log.w(TAG, "Map area under tile " + zoom + "/" + tx + "/" + ty + " is too large: " + width + "x" + height);
+				throw new UnsettledException();
+			}
+			int[] center = new int[] {(minX + maxX) / 2, (minY + maxY) / 2};
+			map.getLatLonByXY(center[0], center[1], ll);
+
+			Viewport viewport = new Viewport();
+			viewport.mapCenter[0] = ll[0];
+			viewport.mapCenter[1] = ll[1];
+			viewport.mapCenterXY[0] = center[0];
+			viewport.mapCenterXY[1] = center[1];
+			viewport.width = width;
+			viewport.height = height;
+			viewport.canvasWidth = width;
+			viewport.canvasHeight = height;
+
+			Bitmap source = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			Bitmap previous = null;
+			Canvas sourceCanvas = new Canvas(source);
+			boolean tiled = map instanceof TileMap;
+			boolean settled = false;
+			try
+			{
+				int quiet = 0;
+				for (int i = 0; i < MAX_REDRAWS && !cancelled; i++)
+				{
+					int events;
+					synchronized (this)
+					{
+						events = tileEvents;
+					}
+					source.eraseColor(Color.TRANSPARENT);
+					map.drawMap(viewport, false, false, sourceCanvas);
+					if (!tiled)
+					{
+						settled = true;
+						break;
+					}
+					// Source is settled when no tiles arrive and rendering does not change
+					if (!waitForTiles(events) && previous != null && previous.sameAs(source))
+						quiet++;
+					else
+						quiet = 0;
+					if (quiet > 0 && (quiet >= BLANK_SETTLE_ROUNDS || !isBlank(source)))
+					{
+						settled = true;
+						break;
+					}
+					if (previous == null)
+						previous = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+					previous.eraseColor(Color.TRANSPARENT);
+					new Canvas(previous).drawBitmap(source, 0, 0, null);
+				}
+			}
+			catch (OutOfMemoryError e)
+			{
+				settled = false;
+			}
+			finally
+			{
+				if (previous != null)
+					previous.recycle();
+			}
+			if (!settled)
+			{
+				source.recycle();
+				throw new UnsettledException();
+			}
+
+			// Mesh maps uniform grid on source to tile pixels
+			float[] verts = new float[(MESH + 1) * (MESH + 1) * 2];
+			int v = 0;
+			int left = center[0] - width / 2;
+			int top = center[1] - height / 2;
+			for (int j = 0; j <= MESH; j++)
+			{
+				for (int i = 0; i <= MESH; i++)
+				{
+					int sx = width * i / MESH;
+					int sy = height * j / MESH;
+					map.getLatLonByXY(left + sx, top + sy, ll);
+					toPixels(ll[0], ll[1], zoom, pxy);
+					verts[v++] = (float) (pxy[0] - tx * TILE_SIZE);
+					verts[v++] = (float) (pxy[1] - ty * TILE_SIZE);
+				}
+			}
+
+			Bitmap tile = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+			Canvas canvas = new Canvas(tile);
+			canvas.drawBitmapMesh(source, MESH, MESH, verts, 0, null, 0, new Paint(Paint.FILTER_BITMAP_FLAG));
+			source.recycle();
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(32768);
+			tile.compress(Bitmap.CompressFormat.PNG, 100, out);
+			tile.recycle();
+			return out.toByteArray();
+		}
+
+		/**
+		 * Waits for new map tiles to arrive.
+		 *
+		 * @return true if new tiles were obtained after specified event count
+		 */
+		private synchronized boolean waitForTiles(int events)
+		{
+			long deadline = System.currentTimeMillis() + SETTLE_TIME;
+			long wait;
+			while (tileEvents == events && (wait = deadline - System.currentTimeMillis()) > 0)
+			{
+				try
+				{
+					wait(wait);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return tileEvents != events;
+		}
+	}
+
+	/**
+	 * Returns even size of map area spanning given pixel range with margins. Even size keeps area
+	 * centered on the viewport center.
+	 */
+	static int getSourceSize(int min, int max)
+	{
+		int size = max - min + SOURCE_MARGIN * 2;
+		return size + (size & 1);
+	}
+
+	/**
+	 * Returns true if nothing is drawn on bitmap.
+	 */
+	private static boolean isBlank(Bitmap bitmap)
+	{
+		int width = bitmap.getWidth();
+		int[] row = new int[width];
+		for (int y = 0; y < bitmap.getHeight(); y++)
+		{
+			bitmap.getPixels(row, 0, width, 0, y, width, 1);
+			for (int pixel : row)
+			{
+				if (Color.alpha(pixel) != 0)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private void openDatabase(double minLat, double minLon, double maxLat, double maxLon, int minZoom, int maxZoom)
+	{
+		db = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null, SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+		db.execSQL("CREATE TABLE IF NOT EXISTS metadata (name TEXT, value TEXT)");
+		db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS name ON metadata (name)");
+		db.execSQL("CREATE TABLE IF NOT EXISTS tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+		db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles (zoom_level, tile_column, tile_row)");
+
+		// Extend metadata if file is being complemented
+		Cursor cursor = db.rawQuery("SELECT MIN(zoom_level), MAX(zoom_level) FROM tiles", null);
+		if (cursor.moveToFirst() && !cursor.isNull(0))
+		{
+			minZoom = Math.min(minZoom, cursor.getInt(0));
+			maxZoom = Math.max(maxZoom, cursor.getInt(1));
+		}
+		cursor.close();
+
+		setMetadata("name", title);
+		setMetadata("type", "baselayer");
+		setMetadata("version", "1.1");
+		setMetadata("description", title);
+		setMetadata("format", "png");
+		setMetadata("minzoom", String.valueOf(minZoom));
+		setMetadata("maxzoom", String.valueOf(maxZoom));
+		setMetadata("bounds", String.format(Locale.US, "%f,%f,%f,%f", minLon, minLat, maxLon, maxLat));
+	}
+
+	private void setMetadata(String name, String value)
+	{
+		ContentValues values = new ContentValues();
+		values.put("name", name);
+		values.put("value", value);
+		db.insertWithOnConflict("metadata", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+	}
+
+	private Set<Long> getExistingTiles(int zoom)
+	{
+		Set<Long> tiles = new HashSet<>();
+		Cursor cursor = db.rawQuery("SELECT tile_column, tile_row FROM tiles WHERE zoom_level = ?", new String[] {String.valueOf(zoom)});
+		while (cursor.moveToNext())
+			tiles.add(key(cursor.getInt(0), (1 << zoom) - 1 - cursor.getInt(1)));
+		cursor.close();
+		return tiles;
+	}
+
+	private void store(int x, int y, int zoom, byte[] data)
+	{
+		ContentValues values = new ContentValues();
+		values.put("zoom_level", zoom);
+		values.put("tile_column", x);
+		values.put("tile_row", (1 << zoom) - 1 - y); // MBTiles use TMS tile numbering
+		values.put("tile_data", data);
+		synchronized (batch)
+		{
+			batch.add(values);
+			if (batch.size() >= BATCH_SIZE)
+				flush();
+		}
+	}
+
+	private void flush()
+	{
+		synchronized (batch)
+		{
+			if (batch.isEmpty())
+				return;
+			db.beginTransaction();
+			try
+			{
+				for (ContentValues values : batch)
+					db.insertWithOnConflict("tiles", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+				db.setTransactionSuccessful();
+			}
+			finally
+			{
+				db.endTransaction();
+			}
+			batch.clear();
+		}
+	}
+
+	private interface TileSelector
+	{
+		Set<Long> select(int zoom);
+	}
+
+	static long key(int x, int y)
+	{
+		return ((long) x << 32) | (y & 0xffffffffL);
+	}
+
+	static double groundResolution(double lat, int zoom)
+	{
+		return Math.cos(Math.toRadians(lat)) * EARTH_CIRCUMFERENCE / (TILE_SIZE << zoom);
+	}
+
+	static int lonToTileX(double lon, int zoom)
+	{
+		int x = (int) Math.floor((lon + 180) / 360 * (1 << zoom));
+		return Math.max(0, Math.min(x, (1 << zoom) - 1));
+	}
+
+	static int latToTileY(double lat, int zoom)
+	{
+		double[] p = new double[2];
+		toPixels(lat, 0, zoom, p);
+		int y = (int) Math.floor(p[1] / TILE_SIZE);
+		return Math.max(0, Math.min(y, (1 << zoom) - 1));
+	}
+
+	static void toPixels(double lat, double lon, int zoom, double[] xy)
+	{
+		double size = (double) TILE_SIZE * (1 << zoom);
+		double sin = Math.sin(Math.toRadians(Math.max(-85.0511, Math.min(85.0511, lat))));
+		xy[0] = (lon + 180) / 360 * size;
+		xy[1] = (0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI)) * size;
+	}
+
+	static void fromPixels(double x, double y, int zoom, double[] ll)
+	{
+		double size = (double) TILE_SIZE * (1 << zoom);
+		ll[0] = 90 - 360 * Math.atan(Math.exp((y / size - 0.5) * 2 * Math.PI)) / Math.PI;
+		ll[1] = x / size * 360 - 180;
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.forge;
+
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.map.reader.MapDataStore;
+import org.mapsforge.map.reader.MapReadResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Combines several map data stores and returns all data from them. Unlike MultiMapDataStore
+ * each tile is read only from stores which bounding boxes intersect the tile. If several
+ * stores overlap the tile they are read in parallel.
+ */
+public class BoundedMultiMapDataStore implements MapDataStore
+{
+	private static final int READ_THREADS = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+
+	private final List<MapDataStore> mapDataStores = new ArrayList<>();
+	private final List<BoundingBox> boundingBoxes = new ArrayList<>();
+	private BoundingBox boundingBox;
+	private LatLong startPosition;
+	private Byte startZoomLevel;
+	private ExecutorService executor;
+
+	public synchronized void addMapDataStore(MapDataStore mapDataStore, boolean useStartZoomLevel, boolean useStartPosition)
+	{
+		if (mapDataStores.contains(mapDataStore))
+			throw new IllegalArgumentException("Duplicate map database");
+
+		mapDataStores.add(mapDataStore);
+		BoundingBox bb = mapDataStore.boundingBox();
+		boundingBoxes.add(bb);
+		if (useStartZoomLevel)
+			startZoomLevel = mapDataStore.startZoomLevel();
+		if (useStartPosition)
+			startPosition = mapDataStore.startPosition();
+		if (boundingBox == null)
+			boundingBox = bb;
+		else
+			boundingBox = boundingBox.extend(bb);
+	}
+
+	@Override
+	public synchronized BoundingBox boundingBox()
+	{
+		return boundingBox;
+	}
+
+	@Override
+	public synchronized void close()
+	{
+		for (MapDataStore mapDataStore : mapDataStores)
+			mapDataStore.close();
+		mapDataStores.clear();
+		boundingBoxes.clear();
+		if (executor != null)
+		{
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	@Override
+	public long getDataTimestamp(Tile tile)
+	{
+		long timestamp = 0;
+		for (MapDataStore mapDataStore : getStores(tile))
+			timestamp = Math.max(timestamp, mapDataStore.getDataTimestamp(tile));
+		return timestamp;
+	}
+
+	@Override
+	public MapReadResult readMapData(final Tile tile)
+	{
+		List<MapDataStore> stores = getStores(tile);
+		int n = stores.size();
+		if (n == 0)
+			return new MapReadResult();
+		if (n == 1)
+		{
+			MapReadResult result = stores.get(0).readMapData(tile);
+			return result != null ? result : new MapReadResult();
+		}
+
+		// Read all but one store in background and the last one in current thread
+		List<Future<MapReadResult>> futures = new ArrayList<>(n - 1);
+		ExecutorService executor = getExecutor();
+		for (int i = 0; i < n - 1; i++)
+		{
+			final MapDataStore mapDataStore = stores.get(i);
+			futures.add(executor.submit(new Callable<MapReadResult>() {
+				@Override
+				public MapReadResult call()
+				{
+					return mapDataStore.readMapData(tile);
+				}
+			}));
+		}
+		MapReadResult last = stores.get(n - 1).readMapData(tile);
+
+		MapReadResult mapReadResult = new MapReadResult();
+		// Tile is water only if all stores that have data for it consider it water
+		boolean isWater = true;
+		boolean hasResult = false;
+		for (Future<MapReadResult> future : futures)
+		{
+			try
+			{
+				MapReadResult result = future.get();
+				if (result != null)
+				{
+					mapReadResult.add(result, false);
+					isWater &= result.isWater;
+					hasResult = true;
+				}
+			}
+			catch (InterruptedException e)
+			{
+				for (Future<MapReadResult> f : futures)
+					f.cancel(true);
+				Thread.currentThread().interrupt();
+				return mapReadResult;
+			}
+			catch (ExecutionException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		if (last != null)
+		{
+			mapReadResult.add(last, false);
+			isWater &= last.isWater;
+			hasResult = true;
+		}
+		mapReadResult.isWater = hasResult && isWater;
+		return mapReadResult;
+	}
+
+	@Override
+	public synchronized LatLong startPosition()
+	{
+		if (startPosition != null)
+			return startPosition;
+		if (boundingBox != null)
+			return boundingBox.getCenterPoint();
+		return null;
+	}
+
+	@Override
+	public synchronized Byte startZoomLevel()
+	{
+		return startZoomLevel;
+	}
+
+	/**
+	 * Returns stores which bounding boxes intersect the tile.
+	 */
+	private synchronized List<MapDataStore> getStores(Tile tile)
+	{
+		BoundingBox tileBoundingBox = tile.getBoundingBox();
+		List<MapDataStore> stores = new ArrayList<>(2);
+		for (int i = 0; i < mapDataStores.size(); i++)
+		{
+			if (boundingBoxes.get(i).intersects(tileBoundingBox))
+				stores.add(mapDataStores.get(i));
+		}
+		return stores;
+	}
+
+	private synchronized ExecutorService getExecutor()
+	{
+		if (executor == null)
+		{
+			executor = Executors.newFixedThreadPool(READ_THREADS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "MapDataReader");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+}
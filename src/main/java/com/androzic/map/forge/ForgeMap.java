@@ -23,12 +23,15 @@ package com.androzic.map.forge;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Path;
+import android.support.v4.util.LruCache;
 import android.text.format.DateFormat;
 
 import com.androzic.Androzic;
 import com.androzic.BaseApplication;
 import com.androzic.Log;
+import com.androzic.R;
 import com.androzic.map.OnMapTileStateChangeListener;
 import com.androzic.map.TileMap;
 import com.androzic.ui.Viewport;
@@ -38,32 +41,35 @@ import org.mapsforge.core.model.LatLong;
 import org.mapsforge.core.model.Point;
 import org.mapsforge.core.model.Tile;
 import org.mapsforge.map.android.graphics.AndroidGraphicFactory;
+import org.mapsforge.map.android.rendertheme.BufferedAssetsRenderTheme;
 import org.mapsforge.map.layer.ForgeLayer;
 import org.mapsforge.map.layer.Redrawer;
 import org.mapsforge.map.layer.TilePosition;
+import org.mapsforge.map.layer.cache.CompressedInMemoryTileCache;
 import org.mapsforge.map.layer.cache.FileSystemTileCache;
 import org.mapsforge.map.layer.cache.InMemoryTileCache;
 import org.mapsforge.map.layer.cache.MutableTwoLevelTileCache;
 import org.mapsforge.map.layer.cache.TileCache;
 import org.mapsforge.map.layer.queue.Job;
-import org.mapsforge.map.layer.queue.JobQueue;
 import org.mapsforge.map.layer.renderer.DatabaseRenderer;
 import org.mapsforge.map.layer.renderer.MapWorker;
 import org.mapsforge.map.layer.renderer.RendererJob;
 import org.mapsforge.map.model.DisplayModel;
 import org.mapsforge.map.model.MapViewPosition;
 import org.mapsforge.map.reader.MapFile;
-import org.mapsforge.map.reader.MultiMapDataStore;
 import org.mapsforge.map.reader.header.MapFileException;
 import org.mapsforge.map.reader.header.MapFileInfo;
 import org.mapsforge.map.rendertheme.XmlRenderTheme;
 import org.mapsforge.map.rendertheme.rule.RenderThemeFuture;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 public class ForgeMap extends TileMap
 {
@@ -73,18 +79,32 @@ public class ForgeMap extends TileMap
 	public static final byte[] MAGIC = "mapsforge binary OSM".getBytes();
 
 	public static float textScale = 1f;
+	// Zero until set from preferences, then default from resources is used
+	private static int renderThreads = 0;
+
+	/**
+	 * Time in seconds for which tiles are prefetched ahead of movement
+	 */
+	private static final int PREDICTION_TIME = 60;
+	/**
+	 * Minimum speed in m/s at which prediction is done
+	 */
+	private static final float PREDICTION_MIN_SPEED = 1.5f;
+	private static final int PLACEHOLDER_CACHE_SIZE = 16;
 
 	private transient static Androzic application;
 	private transient static RenderThemeFuture renderTheme;
+	private transient static String renderThemeId;
+	private transient static ThemeCache themeCache = new ThemeCache();
+	// Disk cache of evicted theme that is still used by tile cache, destroyed when it is replaced
+	private transient static TileCache retiredCache;
 	private transient static DisplayModel displayModel = new DisplayModel();
 	private transient static MapViewPosition mapViewPosition;
 	private transient static MutableTwoLevelTileCache tileCache;
 	private transient static TileCache memoryTileCache;
-	private transient static TileCache fileSystemTileCache;
-	private transient static MultiMapDataStore mapDataStore = new MultiMapDataStore(MultiMapDataStore.DataPolicy.RETURN_ALL);
-	private transient static DatabaseRenderer databaseRenderer;
-	private transient static JobQueue<RendererJob> jobQueue;
-	private transient static MapWorker mapWorker;
+	private transient static BoundedMultiMapDataStore mapDataStore = new BoundedMultiMapDataStore();
+	private transient static PredictiveJobQueue<RendererJob> jobQueue;
+	private transient static MapWorker[] mapWorkers;
 	private transient static MapRedrawer mapRedrawer = new MapRedrawer();
 	private transient static int activeCount = 0;
 
@@ -92,6 +112,13 @@ public class ForgeMap extends TileMap
 	private transient MapFileInfo mapInfo;
 	private transient LatLong mapCenter;
 
+	private transient Matrix tileMatrix;
+	private transient Paint tilePaint;
+
+	private transient int zoomDirection;
+	private transient long predictionKey;
+
+	private transient LruCache<Tile, Placeholder> placeholders;
 
 	private transient int[] minCR;
 	private transient int[] maxCR;
@@ -167,7 +194,7 @@ public class ForgeMap extends TileMap
 			application = Androzic.getApplication();
 
 		if (renderTheme == null)
-			compileRenderTheme(application.xmlRenderTheme);
+			selectRenderTheme(application.xmlRenderTheme, application.getRenderThemeStyle());
 
 		mapDataStore.addMapDataStore(mapFile, false, false);
 
@@ -182,16 +209,17 @@ public class ForgeMap extends TileMap
 
 	public static void reset()
 	{
-		mapDataStore = new MultiMapDataStore(MultiMapDataStore.DataPolicy.RETURN_ALL);
+		mapDataStore = new BoundedMultiMapDataStore();
 	}
 
 	public static void clear()
 	{
-		if (fileSystemTileCache != null)
-		{
-			fileSystemTileCache.destroy();
-			fileSystemTileCache = null;
-		}
+		themeCache.evictAll();
+		if (tileCache != null)
+			tileCache.setSecondLevelCache(null, null);
+		destroyRetiredCache();
+		renderTheme = null;
+		renderThemeId = null;
 		mapDataStore.close();
 		reset();
 		application = null;
@@ -208,20 +236,16 @@ public class ForgeMap extends TileMap
 			if (tileCache == null)
 			{
 				tileCache = new MutableTwoLevelTileCache();
-				tileCache.setSecondLevelCache(getSecondLevelCache());
+				tileCache.setCompressedCache(new CompressedInMemoryTileCache(getCompressedCacheSize(), AndroidGraphicFactory.INSTANCE));
+				tileCache.setRedrawer(mapRedrawer);
+				updateSecondLevelCache();
 			}
 
-			if (databaseRenderer == null)
-				databaseRenderer = new DatabaseRenderer(mapDataStore, AndroidGraphicFactory.INSTANCE, tileCache);
-
 			if (jobQueue == null)
-				jobQueue = new JobQueue<>(mapViewPosition, displayModel);
+				jobQueue = new PredictiveJobQueue<>(mapViewPosition, displayModel);
 
-			if (mapWorker == null)
-			{
-				mapWorker = new MapWorker(tileCache, jobQueue, databaseRenderer, new ForgeLayer(mapRedrawer));
-				mapWorker.start();
-			}
+			if (mapWorkers == null)
+				startWorkers();
 
 			activeCount++;
 			if (Math.abs(1 - mpp / getMPP()) < 0.1)
@@ -237,35 +261,83 @@ public class ForgeMap extends TileMap
 		synchronized (MAGIC)
 		{
 			super.deactivate();
+			if (placeholders != null)
+				placeholders.evictAll();
 			activeCount--;
 
 			if (activeCount > 0)
 				return;
 
-			try
+			stopWorkers();
+			tileCache = null;
+			destroyRetiredCache();
+			if (memoryTileCache != null)
 			{
-				Log.w("FM", "  stop mapworker thread");
-				mapWorker.interrupt();
-				mapWorker.join();
+				memoryTileCache.destroy();
+				memoryTileCache = null;
 			}
-			catch (InterruptedException ignore)
-			{
-			}
-			finally
+			jobQueue = null;
+		}
+	}
+
+	/**
+	 * Sets the number of tile rendering threads. If maps are active, rendering threads are restarted.
+	 */
+	public static void setRenderThreads(int threads)
+	{
+		synchronized (MAGIC)
+		{
+			if (threads < 1)
+				threads = 1;
+			if (threads == renderThreads)
+				return;
+			renderThreads = threads;
+			if (mapWorkers != null)
 			{
-				mapWorker = null;
-				databaseRenderer = null;
-				tileCache = null;
-				if (memoryTileCache != null)
-				{
-					memoryTileCache.destroy();
-					memoryTileCache = null;
-				}
-				jobQueue = null;
+				stopWorkers();
+				startWorkers();
 			}
 		}
 	}
 
+	/**
+	 * Starts rendering threads. Each thread has its own renderer as renderer is not thread safe,
+	 * while tile cache and job queue are shared.
+	 */
+	private static void startWorkers()
+	{
+		if (renderThreads == 0)
+			renderThreads = Androzic.getApplication().getResources().getInteger(R.integer.def_vectormaprenderthreads);
+		Log.w("FM", "  start " + renderThreads + " mapworker thread(s)");
+		ForgeLayer layer = new ForgeLayer(mapRedrawer);
+		mapWorkers = new MapWorker[renderThreads];
+		for (int i = 0; i < renderThreads; i++)
+		{
+			DatabaseRenderer databaseRenderer = new DatabaseRenderer(mapDataStore, AndroidGraphicFactory.INSTANCE, tileCache);
+			mapWorkers[i] = new MapWorker(tileCache, jobQueue, databaseRenderer, layer);
+			mapWorkers[i].start();
+		}
+	}
+
+	private static void stopWorkers()
+	{
+		Log.w("FM", "  stop mapworker threads");
+		for (MapWorker mapWorker : mapWorkers)
+			mapWorker.interrupt();
+		try
+		{
+			for (MapWorker mapWorker : mapWorkers)
+				mapWorker.join();
+		}
+		catch (InterruptedException ignore)
+		{
+		}
+		finally
+		{
+			mapWorkers = null;
+		}
+	}
+
 	@Override
 	public synchronized boolean drawMap(Viewport viewport, boolean cropBorder, boolean drawBorder, Canvas c) throws OutOfMemoryError
 	{
@@ -331,6 +403,13 @@ public class ForgeMap extends TileMap
 		float h2my = viewport.canvasHeight / 2 - map_xy[1];
 		int twh = Math.round(tile_wh);
 
+		// Tiles are scaled while drawing to avoid allocation of scaled bitmaps on every frame
+		if (tileMatrix == null)
+		{
+			tileMatrix = new Matrix();
+			tilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		}
+
 		List<TilePosition> tilePositions = new ArrayList<>();
 		for (int i = r_min; i <= r_max; i++)
 			for (int j = c_min; j <= c_max; j++)
@@ -344,6 +423,8 @@ public class ForgeMap extends TileMap
 			tileCache.setWorkingSet(jobs);
 		}
 
+		predictTiles(viewport, c_min, c_max, r_min, r_max, tile_wh);
+
 		for (int k = tilePositions.size() - 1; k >= 0; k--)
 		{
 			TilePosition tilePosition = tilePositions.get(k);
@@ -353,11 +434,19 @@ public class ForgeMap extends TileMap
 			Bitmap tile = getTile(mapTile);
 			if (tile != null && !tile.isRecycled())
 			{
-				if (tile.getWidth() != twh)
-					tile = Bitmap.createScaledBitmap(tile, twh, twh, true);
 				float tx = w2mx + (float) (point.x) * tile_wh;
 				float ty = h2my + (float) (point.y) * tile_wh;
-				c.drawBitmap(tile, tx, ty, null);
+				if (tile.getWidth() != twh)
+				{
+					float scale = tile_wh / tile.getWidth();
+					tileMatrix.setScale(scale, scale);
+					tileMatrix.postTranslate(tx, ty);
+					c.drawBitmap(tile, tileMatrix, tilePaint);
+				}
+				else
+				{
+					c.drawBitmap(tile, tx, ty, null);
+				}
 			}
 		}
 
@@ -384,19 +473,16 @@ public class ForgeMap extends TileMap
 		org.mapsforge.core.graphics.Bitmap bitmap = loadTile(tile);
 		Bitmap tileBitmap = null;
 		if (bitmap != null)
+		{
 			tileBitmap = AndroidGraphicFactory.getBitmap(bitmap);
+			// Real tile is available, placeholder is not needed any more
+			if (placeholders != null)
+				placeholders.remove(tile);
+		}
 
 		if (tileBitmap == null)
 			tileBitmap = generateTile(tile);
 
-		if (tileBitmap != null)
-		{
-			if (dynZoom != 1.0)
-			{
-				int ss = (int) (dynZoom * tileSize);
-				tileBitmap = Bitmap.createScaledBitmap(tileBitmap, ss, ss, true);
-			}
-		}
 		return tileBitmap;
 	}
 
@@ -412,11 +498,18 @@ public class ForgeMap extends TileMap
 
 	public Bitmap generateTile(Tile tile)
 	{
+		if (placeholders == null)
+			placeholders = new PlaceholderCache(PLACEHOLDER_CACHE_SIZE);
+
+		// Look only for parent tiles that are closer than the one used for cached placeholder
+		Placeholder placeholder = placeholders.get(tile);
+		byte minParentZoom = placeholder != null ? (byte) (placeholder.parentZoom + 1) : 0;
+
 		byte parentTileZoom = (byte) (tile.zoomLevel - 1);
 		int parentTileX = tile.tileX / 2, parentTileY = tile.tileY / 2, scale = 2;
 
 		// Search for parent tile
-		for (; parentTileZoom >= 0; parentTileZoom--, parentTileX /= 2, parentTileY /= 2, scale *= 2)
+		for (; parentTileZoom >= minParentZoom; parentTileZoom--, parentTileX /= 2, parentTileY /= 2, scale *= 2)
 		{
 			Tile parentTile;
 			try
@@ -442,16 +535,72 @@ public class ForgeMap extends TileMap
 				int fromX = (tile.tileX % scale) * miniTileWidth;
 				int fromY = (tile.tileY % scale) * miniTileHeight;
 
-				// Create mini bitmap which will be stretched to tile
-				Bitmap miniTileBitmap = Bitmap.createBitmap(tileBitmap, fromX, fromY, miniTileWidth, miniTileHeight);
-
-				// Create tile bitmap from mini bitmap
-				tileBitmap = Bitmap.createBitmap(miniTileBitmap, 0, 0, miniTileWidth, miniTileHeight, matrix, false);
-				miniTileBitmap.recycle();
+				// Stretch part of parent tile to tile
+				tileBitmap = Bitmap.createBitmap(tileBitmap, fromX, fromY, miniTileWidth, miniTileHeight, matrix, false);
+				placeholders.put(tile, new Placeholder(tileBitmap, parentTileZoom));
 				return tileBitmap;
 			}
 		}
-		return null;
+		return placeholder != null ? placeholder.bitmap : null;
+	}
+
+	/**
+	 * Schedules low priority rendering of tiles that are about to become visible: tiles
+	 * ahead of movement and tiles of adjacent zoom level in the direction of last zoom change.
+	 */
+	private void predictTiles(Viewport viewport, int c_min, int c_max, int r_min, int r_max, float tile_wh)
+	{
+		int dc = 0, dr = 0;
+		if (viewport.speed > PREDICTION_MIN_SPEED && !Double.isNaN(viewport.bearing))
+		{
+			double distance = viewport.speed * PREDICTION_TIME / getMPP() / tile_wh;
+			double b = Math.toRadians(viewport.bearing);
+			// Do not leave gaps between visible and predicted areas
+			dc = (int) Math.round(Math.sin(b) * Math.min(distance, c_max - c_min + 1));
+			dr = (int) Math.round(-Math.cos(b) * Math.min(distance, r_max - r_min + 1));
+		}
+
+		long key = ((((long) c_min * 31 + r_min) * 31 + dc) * 31 + dr) * 31 + srcZoom * 3 + zoomDirection;
+		if (key == predictionKey)
+			return;
+		predictionKey = key;
+
+		Set<RendererJob> jobs = new HashSet<>();
+
+		if (dc != 0 || dr != 0)
+		{
+			for (int i = Math.max(r_min + dr, minCR[1]); i <= Math.min(r_max + dr, maxCR[1]); i++)
+				for (int j = Math.max(c_min + dc, minCR[0]); j <= Math.min(c_max + dc, maxCR[0]); j++)
+					if (i < r_min || i > r_max || j < c_min || j > c_max)
+						addPredictedJob(jobs, j, i, srcZoom);
+		}
+
+		if (zoomDirection > 0 && srcZoom < maxZoom)
+		{
+			// Children of central half of the screen
+			int cw = (c_max - c_min) / 4, rh = (r_max - r_min) / 4;
+			for (int i = (r_min + rh) * 2; i <= (r_max - rh) * 2 + 1; i++)
+				for (int j = (c_min + cw) * 2; j <= (c_max - cw) * 2 + 1; j++)
+					addPredictedJob(jobs, j, i, (byte) (srcZoom + 1));
+		}
+		else if (zoomDirection < 0 && srcZoom > minZoom)
+		{
+			// Parents of visible tiles
+			for (int i = r_min / 2 - 1; i <= r_max / 2 + 1; i++)
+				for (int j = c_min / 2 - 1; j <= c_max / 2 + 1; j++)
+					addPredictedJob(jobs, j, i, (byte) (srcZoom - 1));
+		}
+
+		jobQueue.predict(jobs);
+	}
+
+	private void addPredictedJob(Set<RendererJob> jobs, int x, int y, byte zoom)
+	{
+		if (x < 0 || y < 0 || x >= 1 << zoom || y >= 1 << zoom)
+			return;
+		RendererJob job = getJob(new Tile(x, y, zoom, tileSize));
+		if (!tileCache.containsKey(job))
+			jobs.add(job);
 	}
 
 	private static RendererJob getJob(Tile tile)
@@ -462,13 +611,19 @@ public class ForgeMap extends TileMap
 	@Override
 	public synchronized void setZoom(double z)
 	{
+		byte oldZoom = srcZoom;
 		super.setZoom(z);
+		if (srcZoom != oldZoom)
+			zoomDirection = srcZoom > oldZoom ? 1 : -1;
 		if (isCurrent && mapViewPosition.getZoomLevel() != srcZoom)
 			mapViewPosition.setZoomLevel(srcZoom);
 	}
 
+	/**
+	 * Synchronized with drawing as replaced caches recycle bitmaps that could be drawn.
+	 */
 	@Override
-	public void recalculateCache()
+	public synchronized void recalculateCache()
 	{
 		if (!isCurrent)
 			return;
@@ -491,6 +646,13 @@ public class ForgeMap extends TileMap
 		Log.i("ForgeMap", "Cache size: " + cacheSize);
 		Log.i("ForgeMap", "Capacity: " + tileCache.getCapacityFirstLevel());
 
+		if (placeholders == null || placeholders.maxSize() < nx * ny)
+		{
+			if (placeholders != null)
+				placeholders.evictAll();
+			placeholders = new PlaceholderCache(Math.max(nx * ny, PLACEHOLDER_CACHE_SIZE));
+		}
+
 		if (cacheSize > tileCache.getCapacityFirstLevel())
 		{
 			TileCache oldCache = memoryTileCache;
@@ -501,10 +663,39 @@ public class ForgeMap extends TileMap
 		}
 	}
 
+	/**
+	 * Compressed tiles are about ten times smaller than decoded ones, give them up to 1/8 of heap
+	 */
+	private static long getCompressedCacheSize()
+	{
+		return Math.min(Runtime.getRuntime().maxMemory() / 8, 32 * 1024 * 1024);
+	}
+
+	private static void updateSecondLevelCache()
+	{
+		TileCache cache = getSecondLevelCache();
+		File cacheDirectory = cache != null ? themeCache.get(renderThemeId).cacheDirectory : null;
+		tileCache.setSecondLevelCache(cache, cacheDirectory);
+		if (retiredCache != cache)
+			destroyRetiredCache();
+	}
+
+	private static void destroyRetiredCache()
+	{
+		if (retiredCache != null)
+		{
+			retiredCache.destroy();
+			retiredCache = null;
+		}
+	}
+
 	private static TileCache getSecondLevelCache()
 	{
-		if (fileSystemTileCache != null)
-			return fileSystemTileCache;
+		CompiledTheme theme = themeCache.get(renderThemeId);
+		if (theme == null)
+			return null;
+		if (theme.fileSystemTileCache != null)
+			return theme.fileSystemTileCache;
 
 		BaseApplication application = BaseApplication.getApplication();
 		if (application == null)
@@ -514,7 +705,8 @@ public class ForgeMap extends TileMap
 		if (cache == null) // cache is not available now
 			return null;
 
-		File cacheDirectory = new File(cache, "mapsforge");
+		// Tiles rendered with different themes are kept separately
+		File cacheDirectory = new File(new File(cache, "mapsforge"), renderThemeId);
 		if (!cacheDirectory.exists() && !cacheDirectory.mkdirs())
 			return null;
 
@@ -524,8 +716,9 @@ public class ForgeMap extends TileMap
 
 		try
 		{
-			fileSystemTileCache = new FileSystemTileCache(tileCacheFiles, cacheDirectory, AndroidGraphicFactory.INSTANCE, false);
-			return fileSystemTileCache;
+			theme.fileSystemTileCache = new FileSystemTileCache(tileCacheFiles, cacheDirectory, AndroidGraphicFactory.INSTANCE, false);
+			theme.cacheDirectory = cacheDirectory;
+			return theme.fileSystemTileCache;
 		}
 		catch (IllegalArgumentException e)
 		{
@@ -544,17 +737,84 @@ public class ForgeMap extends TileMap
 	public static void onRenderThemeChanged()
 	{
 		Androzic application = Androzic.getApplication();
-		compileRenderTheme(application.xmlRenderTheme);
+		if (!selectRenderTheme(application.xmlRenderTheme, application.getRenderThemeStyle()))
+			return;
+		// Tiles are keyed by theme, so instead of purging tiles just switch to the cache of selected theme
 		if (tileCache != null)
-			tileCache.purge();
-		else if (fileSystemTileCache != null)
-			fileSystemTileCache.purge();
+			updateSecondLevelCache();
+	}
+
+	/**
+	 * Makes specified theme current, compiling it if it was not used recently.
+	 *
+	 * @param style selected theme style and overlays
+	 * @return true if theme has changed
+	 */
+	private static boolean selectRenderTheme(XmlRenderTheme xmlRenderTheme, String style)
+	{
+		String id = getRenderThemeId(xmlRenderTheme, style);
+		if (id.equals(renderThemeId) && renderTheme != null)
+			return false;
+
+		CompiledTheme theme = themeCache.get(id);
+		if (theme == null)
+		{
+			Log.i("ForgeMap", "Compile render theme " + id);
+			theme = new CompiledTheme(new RenderThemeFuture(AndroidGraphicFactory.INSTANCE, xmlRenderTheme, displayModel));
+			new Thread(theme.renderTheme).run();
+			themeCache.put(id, theme);
+		}
+		renderThemeId = id;
+		renderTheme = theme.renderTheme;
+		return true;
 	}
 
-	private static void compileRenderTheme(XmlRenderTheme xmlRenderTheme)
+	private static String getRenderThemeId(XmlRenderTheme xmlRenderTheme, String style)
 	{
-		renderTheme = new RenderThemeFuture(AndroidGraphicFactory.INSTANCE, xmlRenderTheme, displayModel);
-		new Thread(renderTheme).run();
+		CRC32 crc = new CRC32();
+		String source;
+		if (xmlRenderTheme instanceof BufferedAssetsRenderTheme)
+			source = Long.toHexString(((BufferedAssetsRenderTheme) xmlRenderTheme).getChecksum());
+		else
+			source = getRenderThemeChecksum(xmlRenderTheme);
+		crc.update((source + "|" + style + "|" + textScale + "|" + displayModel.getScaleFactor()).getBytes());
+		return Long.toHexString(crc.getValue());
+	}
+
+	/**
+	 * Returns checksum of theme content so that theme id and its disk cache are the same after restart
+	 */
+	private static String getRenderThemeChecksum(XmlRenderTheme xmlRenderTheme)
+	{
+		CRC32 crc = new CRC32();
+		InputStream in = null;
+		try
+		{
+			in = xmlRenderTheme.getRenderThemeAsStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1)
+				crc.update(buffer, 0, n);
+		}
+		catch (IOException e)
+		{
+			Log.e("ForgeMap", "Failed to read render theme: " + e.getMessage());
+			return xmlRenderTheme.getClass().getName() + "|" + xmlRenderTheme.getRelativePathPrefix();
+		}
+		finally
+		{
+			if (in != null)
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException ignore)
+				{
+				}
+			}
+		}
+		return Long.toHexString(crc.getValue());
 	}
 
 	public List<String> info()
@@ -586,6 +846,76 @@ public class ForgeMap extends TileMap
 		return info;
 	}
 
+	private static class CompiledTheme
+	{
+		final RenderThemeFuture renderTheme;
+		TileCache fileSystemTileCache;
+		File cacheDirectory;
+
+		CompiledTheme(RenderThemeFuture renderTheme)
+		{
+			this.renderTheme = renderTheme;
+		}
+	}
+
+	/**
+	 * Keeps recently used compiled themes together with their disk tile caches. Evicted themes are
+	 * released, their disk caches are destroyed unless they are still used by tile cache.
+	 */
+	private static class ThemeCache extends LruCache<String, CompiledTheme>
+	{
+		ThemeCache()
+		{
+			super(3);
+		}
+
+		@Override
+		protected void entryRemoved(boolean evicted, String key, CompiledTheme oldValue, CompiledTheme newValue)
+		{
+			oldValue.renderTheme.decrementRefCount();
+			if (oldValue.fileSystemTileCache == null)
+				return;
+			if (tileCache != null && tileCache.getSecondLevelCache() == oldValue.fileSystemTileCache)
+			{
+				destroyRetiredCache();
+				retiredCache = oldValue.fileSystemTileCache;
+			}
+			else
+			{
+				oldValue.fileSystemTileCache.destroy();
+			}
+		}
+	}
+
+	private static class Placeholder
+	{
+		final Bitmap bitmap;
+		final byte parentZoom;
+
+		Placeholder(Bitmap bitmap, byte parentZoom)
+		{
+			this.bitmap = bitmap;
+			this.parentZoom = parentZoom;
+		}
+	}
+
+	/**
+	 * Holds tiles generated from parent tiles while real tiles are rendered
+	 */
+	private static class PlaceholderCache extends LruCache<Tile, Placeholder>
+	{
+		PlaceholderCache(int maxSize)
+		{
+			super(maxSize);
+		}
+
+		@Override
+		protected void entryRemoved(boolean evicted, Tile key, Placeholder oldValue, Placeholder newValue)
+		{
+			oldValue.bitmap.recycle();
+		}
+	}
+
 	private static class MapRedrawer implements Redrawer
 	{
 		private OnMapTileStateChangeListener listener;
@@ -0,0 +1,99 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015  Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.forge;
+
+import org.mapsforge.map.layer.queue.Job;
+import org.mapsforge.map.layer.queue.JobQueue;
+import org.mapsforge.map.model.DisplayModel;
+import org.mapsforge.map.model.MapViewPosition;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Job queue that additionally accepts speculative (predicted) jobs. Predicted jobs are
+ * scheduled by the underlying queue as usual, so they get lower priority due to their
+ * distance from map center. When prediction changes, jobs that are no longer predicted
+ * are cancelled and silently skipped when workers pull them from the queue.
+ */
+class PredictiveJobQueue<T extends Job> extends JobQueue<T>
+{
+	private static final int MAX_CANCELLED = 256;
+
+	private final Set<T> predictedJobs = new HashSet<>();
+	private final Set<T> cancelledJobs = new HashSet<>();
+
+	PredictiveJobQueue(MapViewPosition mapViewPosition, DisplayModel displayModel)
+	{
+		super(mapViewPosition, displayModel);
+	}
+
+	/**
+	 * Replaces currently predicted jobs with new ones, cancelling those that are not
+	 * predicted any more.
+	 */
+	synchronized void predict(Collection<T> jobs)
+	{
+		for (T job : predictedJobs)
+		{
+			if (!jobs.contains(job))
+				cancelledJobs.add(job);
+		}
+		predictedJobs.clear();
+
+		// Cancelled jobs could be already trimmed from queue, do not let them pile up
+		if (cancelledJobs.size() > MAX_CANCELLED)
+			cancelledJobs.clear();
+
+		for (T job : jobs)
+		{
+			predictedJobs.add(job);
+			cancelledJobs.remove(job);
+			super.add(job);
+		}
+	}
+
+	@Override
+	public synchronized void add(T job)
+	{
+		// Job is really required now
+		cancelledJobs.remove(job);
+		predictedJobs.remove(job);
+		super.add(job);
+	}
+
+	@Override
+	public synchronized T get() throws InterruptedException
+	{
+		while (true)
+		{
+			T job = super.get();
+			if (!cancelledJobs.remove(job))
+			{
+				predictedJobs.remove(job);
+				return job;
+			}
+			// Release cancelled job and take next one
+			remove(job);
+		}
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import com.androzic.map.OnMapTileStateChangeListener;
+
+/**
+ * Online map that tells tile server selector which tiles were downloaded by tile loader, so that
+ * servers are selected by their actual performance. Loader notifies map listener in its own
+ * thread right after tile is downloaded, whether tile is drawn or not.
+ */
+public class MonitoredOnlineMap extends OnlineMap
+{
+	private static final long serialVersionUID = 1L;
+
+	private final transient TileServerSelector selector;
+
+	public MonitoredOnlineMap(TileProvider provider, byte zoom, TileServerSelector selector)
+	{
+		super(provider, zoom);
+		this.selector = selector;
+	}
+
+	@Override
+	public void activate(final OnMapTileStateChangeListener listener, double mpp, boolean current) throws Throwable
+	{
+		super.activate(new OnMapTileStateChangeListener() {
+			@Override
+			public void onTileObtained()
+			{
+				selector.onTileDownloaded();
+				if (listener != null)
+					listener.onTileObtained();
+			}
+		}, mpp, current);
+	}
+}
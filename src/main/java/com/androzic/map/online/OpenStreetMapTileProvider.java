@@ -24,8 +24,8 @@ import android.support.annotation.Nullable;
 
 public class OpenStreetMapTileProvider extends TileProvider
 {
-	private String[] servers = {"a", "b", "c"};
-	private int nextServer = 0;
+	private static final TileUriTemplate template = new TileUriTemplate("http://{s}.tile.openstreetmap.org/{z}/{x}/{y}.png");
+	private final TileServerSelector selector = new TileServerSelector(template, new String[] {"a", "b", "c"});
 
 	public OpenStreetMapTileProvider()
 	{
@@ -48,9 +48,11 @@ public class OpenStreetMapTileProvider extends TileProvider
 	@Override
 	public String getTileUri(int x, int y, byte z)
 	{
-		nextServer++;
-		if (servers.length <= nextServer)
-			nextServer = 0;
-		return String.format("http://%s.tile.openstreetmap.org/%d/%d/%d.png", servers[nextServer], z, x, y);
+		return selector.getTileUri(x, y, z);
+	}
+
+	public TileServerSelector getServerSelector()
+	{
+		return selector;
 	}
 }
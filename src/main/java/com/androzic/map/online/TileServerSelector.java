@@ -0,0 +1,326 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+
+/**
+ * Selects tile server by measured latency and error rate. Servers are chosen at random with
+ * probability proportional to their score, which is the higher the faster and more reliable the
+ * server is. Failing servers are excluded for exponentially growing period. Latency is measured
+ * by probing servers in background periodically and by tracking tile downloads. Tile loader
+ * thread downloads tile right after it gets its URI: download is successful when loader reports
+ * obtained tile and failed when the same thread requests next URI without reporting.
+ */
+public class TileServerSelector
+{
+	private static final double LATENCY_WEIGHT = 0.3;
+	private static final double ERROR_WEIGHT = 0.1;
+	/**
+	 * Latency of unmeasured servers and lower limit of latency in score calculation, so that
+	 * new servers get their share of requests
+	 */
+	private static final double MIN_LATENCY = 10;
+	/**
+	 * Lower limit of success rate in score calculation, so that recovered servers get requests
+	 */
+	private static final double MIN_SUCCESS_RATE = 0.05;
+	private static final long INITIAL_BACKOFF = 5000;
+	private static final long MAX_BACKOFF = 5 * 60 * 1000;
+	private static final long PROBE_INTERVAL = 5 * 60 * 1000;
+	private static final int PROBE_TIMEOUT = 10000;
+	/**
+	 * Every n-th request goes to the least recently measured server to keep estimations fresh
+	 */
+	private static final int EXPLORE_INTERVAL = 50;
+
+	private final TileUriTemplate template;
+	private final String[] servers;
+	private final double[] latency;
+	private final double[] errorRate;
+	private final int[] failures;
+	private final long[] backoffUntil;
+	private final long[] lastReport;
+	private final long probeInterval;
+	// Download in progress in tile loader thread
+	private final ThreadLocal<Request> download = new ThreadLocal<>();
+	private final Random random = new Random();
+	private int counter;
+	private volatile long lastProbe;
+	private boolean probing;
+
+	private static class Request
+	{
+		final int server;
+		final long start;
+
+		Request(int server, long start)
+		{
+			this.server = server;
+			this.start = start;
+		}
+	}
+
+	public TileServerSelector(TileUriTemplate template, String[] servers)
+	{
+		this(template, servers, PROBE_INTERVAL);
+	}
+
+	/**
+	 * @param probeInterval interval of background probing in milliseconds, 0 to disable probing
+	 */
+	public TileServerSelector(TileUriTemplate template, String[] servers, long probeInterval)
+	{
+		this.template = template;
+		this.servers = servers;
+		this.probeInterval = probeInterval;
+		int n = servers.length;
+		latency = new double[n];
+		errorRate = new double[n];
+		failures = new int[n];
+		backoffUntil = new long[n];
+		lastReport = new long[n];
+		for (int i = 0; i < n; i++)
+			errorRate[i] = -1;
+	}
+
+	/**
+	 * Returns tile URI, should be called by tile loader right before tile is downloaded.
+	 */
+	public String getTileUri(int x, int y, byte z)
+	{
+		int server = select();
+		long now = System.currentTimeMillis();
+		// Loader thread has not reported previous tile, so its download has failed
+		Request previous = download.get();
+		if (previous != null)
+			report(previous.server, now - previous.start, false);
+		download.set(new Request(server, now));
+		if (probeInterval > 0 && lastProbe + probeInterval < now)
+			probeAsync();
+		return template.build(servers[server], x, y, z);
+	}
+
+	/**
+	 * Should be called by tile loader thread when downloaded tile is obtained.
+	 */
+	public void onTileDownloaded()
+	{
+		Request request = download.get();
+		if (request == null)
+			return;
+		download.remove();
+		report(request.server, System.currentTimeMillis() - request.start, true);
+	}
+
+	/**
+	 * Returns index of server to use for next request.
+	 */
+	public synchronized int select()
+	{
+		long now = System.currentTimeMillis();
+		counter = (counter + 1) % EXPLORE_INTERVAL;
+
+		if (counter == 0)
+		{
+			int oldest = -1;
+			for (int i = 0; i < servers.length; i++)
+			{
+				if (backoffUntil[i] <= now && (oldest < 0 || lastReport[i] < lastReport[oldest]))
+					oldest = i;
+			}
+			if (oldest >= 0)
+				return oldest;
+		}
+
+		double total = 0;
+		double[] scores = new double[servers.length];
+		for (int i = 0; i < servers.length; i++)
+		{
+			if (backoffUntil[i] > now)
+				continue;
+			scores[i] = getScore(i);
+			total += scores[i];
+		}
+		if (total > 0)
+		{
+			double r = random.nextDouble() * total;
+			int last = -1;
+			for (int i = 0; i < servers.length; i++)
+			{
+				if (scores[i] == 0)
+					continue;
+				last = i;
+				r -= scores[i];
+				if (r < 0)
+					return i;
+			}
+			return last;
+		}
+
+		// All servers are failing, use the one that will recover first
+		int best = 0;
+		for (int i = 1; i < servers.length; i++)
+			if (backoffUntil[i] < backoffUntil[best])
+				best = i;
+		return best;
+	}
+
+	/**
+	 * Returns expected number of successful requests per millisecond.
+	 */
+	private double getScore(int server)
+	{
+		double successRate = errorRate[server] < 0 ? 1. : 1. - errorRate[server];
+		return Math.max(successRate, MIN_SUCCESS_RATE) / Math.max(latency[server], MIN_LATENCY);
+	}
+
+	/**
+	 * Reports result of server request.
+	 *
+	 * @param server server index
+	 * @param time request time in milliseconds
+	 * @param success true if request was successful
+	 */
+	public synchronized void report(int server, long time, boolean success)
+	{
+		long now = System.currentTimeMillis();
+		lastReport[server] = now;
+		double error = success ? 0. : 1.;
+		if (errorRate[server] < 0)
+			errorRate[server] = error;
+		else
+			errorRate[server] += (error - errorRate[server]) * ERROR_WEIGHT;
+		if (success)
+		{
+			failures[server] = 0;
+			backoffUntil[server] = 0;
+			if (latency[server] == 0)
+				latency[server] = time;
+			else
+				latency[server] += (time - latency[server]) * LATENCY_WEIGHT;
+		}
+		else
+		{
+			failures[server]++;
+			long backoff = INITIAL_BACKOFF << Math.min(failures[server] - 1, 16);
+			backoffUntil[server] = now + Math.min(backoff, MAX_BACKOFF);
+		}
+	}
+
+	public synchronized double getLatency(int server)
+	{
+		return latency[server];
+	}
+
+	public synchronized double getErrorRate(int server)
+	{
+		return errorRate[server] < 0 ? 0. : errorRate[server];
+	}
+
+	public synchronized boolean isHealthy(int server)
+	{
+		return backoffUntil[server] <= System.currentTimeMillis();
+	}
+
+	/**
+	 * Requests top level tile from every server and reports the results. Blocks until all servers respond or time out.
+	 */
+	public void probe()
+	{
+		synchronized (this)
+		{
+			lastProbe = System.currentTimeMillis();
+		}
+		for (int i = 0; i < servers.length; i++)
+		{
+			String uri = template.build(servers[i], 0, 0, (byte) 0);
+			long start = System.currentTimeMillis();
+			boolean success = request(uri);
+			report(i, System.currentTimeMillis() - start, success);
+		}
+	}
+
+	private void probeAsync()
+	{
+		synchronized (this)
+		{
+			if (probing)
+				return;
+			probing = true;
+			lastProbe = System.currentTimeMillis();
+		}
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				try
+				{
+					probe();
+				}
+				finally
+				{
+					synchronized (TileServerSelector.this)
+					{
+						probing = false;
+					}
+				}
+			}
+		}, "TileServerProbe");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static boolean request(String uri)
+	{
+		HttpURLConnection connection = null;
+		try
+		{
+			connection = (HttpURLConnection) new URL(uri).openConnection();
+			connection.setConnectTimeout(PROBE_TIMEOUT);
+			connection.setReadTimeout(PROBE_TIMEOUT);
+			connection.setRequestProperty("User-Agent", "Androzic");
+			connection.setUseCaches(false);
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+				return false;
+			InputStream in = connection.getInputStream();
+			byte[] buffer = new byte[1024];
+			//noinspection StatementWithEmptyBody
+			while (in.read(buffer) != -1)
+				;
+			in.close();
+			return true;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+		finally
+		{
+			if (connection != null)
+				connection.disconnect();
+		}
+	}
+}
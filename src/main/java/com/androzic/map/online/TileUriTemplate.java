@@ -0,0 +1,100 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.online;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tile URI template compiled once into literal parts and placeholders. Supported placeholders
+ * are {s} (server), {x}, {y} and {z}.
+ */
+public class TileUriTemplate
+{
+	private static final int SERVER = 0;
+	private static final int X = 1;
+	private static final int Y = 2;
+	private static final int Z = 3;
+	private static final String[] PLACEHOLDERS = {"{s}", "{x}", "{y}", "{z}"};
+
+	private final String[] literals;
+	private final int[] placeholders;
+	private final int length;
+
+	public TileUriTemplate(String template)
+	{
+		List<String> literalList = new ArrayList<>();
+		List<Integer> placeholderList = new ArrayList<>();
+		int start = 0;
+		while (true)
+		{
+			int pos = -1;
+			int placeholder = -1;
+			for (int i = 0; i < PLACEHOLDERS.length; i++)
+			{
+				int p = template.indexOf(PLACEHOLDERS[i], start);
+				if (p >= 0 && (pos < 0 || p < pos))
+				{
+					pos = p;
+					placeholder = i;
+				}
+			}
+			if (pos < 0)
+				break;
+			literalList.add(template.substring(start, pos));
+			placeholderList.add(placeholder);
+			start = pos + PLACEHOLDERS[placeholder].length();
+		}
+		literalList.add(template.substring(start));
+
+		literals = literalList.toArray(new String[literalList.size()]);
+		placeholders = new int[placeholderList.size()];
+		for (int i = 0; i < placeholders.length; i++)
+			placeholders[i] = placeholderList.get(i);
+		length = template.length() + 16;
+	}
+
+	public String build(String server, int x, int y, byte z)
+	{
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < placeholders.length; i++)
+		{
+			sb.append(literals[i]);
+			switch (placeholders[i])
+			{
+				case SERVER:
+					sb.append(server);
+					break;
+				case X:
+					sb.append(x);
+					break;
+				case Y:
+					sb.append(y);
+					break;
+				case Z:
+					sb.append(z);
+					break;
+			}
+		}
+		sb.append(literals[literals.length - 1]);
+		return sb.toString();
+	}
+}
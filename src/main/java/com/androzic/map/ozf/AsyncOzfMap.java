@@ -0,0 +1,240 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.ozf;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import com.androzic.map.MapCalibration;
+import com.androzic.map.OnMapTileStateChangeListener;
+import com.androzic.ui.Viewport;
+
+/**
+ * OZF map which tiles are decoded in background by {@link TileDecoder}. Drawing thread gets only
+ * tiles that are already decoded, missing tiles are requested with priority by distance from the
+ * screen center and map is redrawn when they are ready. Native decoder is called for one tile of
+ * a map at a time, different maps are decoded in parallel.
+ * <p>
+ * If map is affine in lat/lon within half a pixel at current zoom, coordinate conversions use
+ * precomputed {@link MapCalibration} instead of map projection.
+ */
+public class AsyncOzfMap extends OzfMap
+{
+	private static final long serialVersionUID = 1L;
+
+	private final transient Object decodeLock = new Object();
+	private transient boolean decoding;
+	private transient OnMapTileStateChangeListener tileListener;
+	// Incremented around zoom change, decoded tile is discarded if it has changed meanwhile
+	private transient volatile int zoomGeneration;
+	private transient boolean synchronous;
+	private transient volatile long frame;
+	private transient volatile long drawnFrame;
+	private transient volatile float centerX;
+	private transient volatile float centerY;
+	// Affine approximation of conversions at current zoom, null if map is not affine
+	private transient volatile MapCalibration calibration;
+	private transient volatile boolean calibrated;
+
+	protected AsyncOzfMap()
+	{
+	}
+
+	public AsyncOzfMap(String path)
+	{
+		super(path);
+	}
+
+	/**
+	 * Makes map decode missing tiles while drawing, in calling thread. Used for offscreen rendering
+	 * which needs complete map on every draw.
+	 */
+	public synchronized void setSynchronous(boolean synchronous)
+	{
+		this.synchronous = synchronous;
+	}
+
+	// Decode lock is never taken while map lock is held as decoding can lock the map
+	@Override
+	public void activate(OnMapTileStateChangeListener listener, double mpp, boolean current) throws Throwable
+	{
+		synchronized (this)
+		{
+			tileListener = listener;
+			super.activate(listener, mpp, current);
+		}
+		synchronized (decodeLock)
+		{
+			decoding = true;
+		}
+	}
+
+	@Override
+	public void deactivate()
+	{
+		// Wait for current decoding to finish before native file is closed
+		synchronized (decodeLock)
+		{
+			decoding = false;
+		}
+		TileDecoder.getInstance().evict(this);
+		synchronized (this)
+		{
+			super.deactivate();
+		}
+	}
+
+	@Override
+	public synchronized void setZoom(double z)
+	{
+		zoomGeneration++;
+		super.setZoom(z);
+		calibration = null;
+		calibrated = false;
+		zoomGeneration++;
+	}
+
+	@Override
+	public boolean getXYByLatLon(double lat, double lon, int[] xy)
+	{
+		MapCalibration c = getCalibration();
+		if (c != null)
+			return c.getXYByLatLon(lat, lon, xy);
+		return super.getXYByLatLon(lat, lon, xy);
+	}
+
+	@Override
+	public boolean getLatLonByXY(int x, int y, double[] ll)
+	{
+		MapCalibration c = getCalibration();
+		if (c != null)
+			return c.getLatLonByXY(x, y, ll);
+		return super.getLatLonByXY(x, y, ll);
+	}
+
+	/**
+	 * Fits affine approximation to map conversion on first use after map is loaded or zoomed.
+	 */
+	private MapCalibration getCalibration()
+	{
+		if (!calibrated)
+		{
+			synchronized (this)
+			{
+				if (!calibrated)
+				{
+					calibration = MapCalibration.createAffine(new MapCalibration.Conversion() {
+						@Override
+						public boolean getLatLonByXY(int x, int y, double[] ll)
+						{
+							return AsyncOzfMap.super.getLatLonByXY(x, y, ll);
+						}
+					}, getScaledWidth(), getScaledHeight(), MapCalibration.DEFAULT_TOLERANCE);
+					calibrated = true;
+				}
+			}
+		}
+		return calibration;
+	}
+
+	@Override
+	public synchronized boolean drawMap(Viewport viewport, boolean cropBorder, boolean drawBorder, Canvas c) throws OutOfMemoryError
+	{
+		if (isActive)
+		{
+			int[] xy = new int[2];
+			getXYByLatLon(viewport.mapCenter[0], viewport.mapCenter[1], xy);
+			float tile_wh = (float) (tileSize * dynZoom);
+			centerX = (xy[0] - viewport.lookAheadXY[0]) / tile_wh - .5f;
+			centerY = (xy[1] - viewport.lookAheadXY[1]) / tile_wh - .5f;
+		}
+		frame++;
+		boolean result = super.drawMap(viewport, cropBorder, drawBorder, c);
+		// Tiles not requested by this frame are not needed any more
+		drawnFrame = frame;
+		return result;
+	}
+
+	@Override
+	public Bitmap getTile(int x, int y) throws OutOfMemoryError
+	{
+		if (synchronous)
+			return super.getTile(x, y);
+		TileDecoder decoder = TileDecoder.getInstance();
+		TileDecoder.Key key = new TileDecoder.Key(this, srcZoom, x, y);
+		// Map keeps returned tile in its own cache and asks for it again only after eviction
+		Bitmap bitmap = decoder.take(key);
+		if (bitmap == null)
+		{
+			float dx = x - centerX;
+			float dy = y - centerY;
+			decoder.request(new DecodeJob(key, dx * dx + dy * dy, frame, zoomGeneration));
+		}
+		return bitmap;
+	}
+
+	private class DecodeJob extends TileDecoder.Job
+	{
+		private volatile long frame;
+		private volatile int generation;
+
+		DecodeJob(TileDecoder.Key key, float distance, long frame, int generation)
+		{
+			super(key, distance);
+			this.frame = frame;
+			this.generation = generation;
+		}
+
+		@Override
+		void update(TileDecoder.Job job)
+		{
+			DecodeJob other = (DecodeJob) job;
+			frame = other.frame;
+			generation = other.generation;
+		}
+
+		@Override
+		boolean isCancelled()
+		{
+			return frame < drawnFrame || generation != zoomGeneration;
+		}
+
+		@Override
+		Bitmap decode()
+		{
+			synchronized (decodeLock)
+			{
+				if (!decoding || generation != zoomGeneration)
+					return null;
+				Bitmap bitmap = AsyncOzfMap.super.getTile(key.x, key.y);
+				return generation == zoomGeneration ? bitmap : null;
+			}
+		}
+
+		@Override
+		void onDecoded()
+		{
+			OnMapTileStateChangeListener listener = tileListener;
+			if (listener != null)
+				listener.onTileObtained();
+		}
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.map.ozf;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * Decodes map tiles in background threads shared by all maps. Pending tiles are decoded in order
+ * of their distance from the screen center, tiles that were not requested by the last drawn frame
+ * of their map are skipped. Decoded tile is held only until its map takes it, from then on it is
+ * owned by map own tile cache, so tiles are never cached twice. Tiles that are not taken, e.g.
+ * when map was moved meanwhile, are dropped by size limited LRU and recycled, as nothing else can
+ * reference them.
+ */
+class TileDecoder
+{
+	private static final String TAG = "TileDecoder";
+
+	private static final int THREADS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 3));
+
+	private static TileDecoder instance;
+
+	static final class Key
+	{
+		final Object map;
+		final int zoom;
+		final int x;
+		final int y;
+
+		Key(Object map, int zoom, int x, int y)
+		{
+			this.map = map;
+			this.zoom = zoom;
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (this == o)
+				return true;
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return map == other.map && zoom == other.zoom && x == other.x && y == other.y;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = System.identityHashCode(map);
+			result = 31 * result + zoom;
+			result = 31 * result + x;
+			result = 31 * result + y;
+			return result;
+		}
+	}
+
+	/**
+	 * Tile decoding request. Implementations decode tile and notify the map when it is ready.
+	 */
+	abstract static class Job implements Comparable<Job>
+	{
+		final Key key;
+		float distance;
+		long sequence;
+
+		Job(Key key, float distance)
+		{
+			this.key = key;
+			this.distance = distance;
+		}
+
+		/**
+		 * Updates job with newer request of the same tile.
+		 */
+		abstract void update(Job job);
+
+		/**
+		 * Returns true if tile is not needed any more.
+		 */
+		abstract boolean isCancelled();
+
+		/**
+		 * Decodes tile in worker thread.
+		 *
+		 * @return tile bitmap or null if tile can not be decoded or result is outdated
+		 */
+		abstract Bitmap decode();
+
+		/**
+		 * Called in worker thread when decoded tile is ready to be taken.
+		 */
+		abstract void onDecoded();
+
+		@Override
+		public int compareTo(Job another)
+		{
+			int c = Float.compare(distance, another.distance);
+			if (c != 0)
+				return c;
+			return sequence < another.sequence ? -1 : sequence > another.sequence ? 1 : 0;
+		}
+	}
+
+	// Decoded tiles not taken by their maps yet
+	private final LruCache<Key, Bitmap> decoded;
+	private final Map<Key, Job> pending = new HashMap<>();
+	private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>();
+	private long sequence;
+
+	static synchronized TileDecoder getInstance()
+	{
+		if (instance == null)
+			instance = new TileDecoder();
+		return instance;
+	}
+
+	private TileDecoder()
+	{
+		// Tiles are taken on the next frame, limit is needed only for abandoned ones
+		int size = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, 16 * 1024 * 1024);
+		decoded = new LruCache<Key, Bitmap>(size) {
+			@Override
+			protected int sizeOf(Key key, Bitmap value)
+			{
+				return value.getRowBytes() * value.getHeight();
+			}
+
+			@Override
+			protected void entryRemoved(boolean evicted, Key key, Bitmap oldValue, Bitmap newValue)
+			{
+				if (evicted)
+					oldValue.recycle();
+			}
+		};
+		for (int i = 0; i < THREADS; i++)
+		{
+			Thread thread = new Thread(new Worker(), "OzfDecoder-" + i);
+			thread.setDaemon(true);
+			thread.setPriority(Thread.NORM_PRIORITY - 1);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Takes decoded tile, caller becomes its owner.
+	 *
+	 * @return tile bitmap or null if it is not decoded yet
+	 */
+	Bitmap take(Key key)
+	{
+		return decoded.remove(key);
+	}
+
+	/**
+	 * Requests tile decoding. If the tile is already pending its request is updated and its
+	 * position in queue is changed according to new distance.
+	 */
+	synchronized void request(Job job)
+	{
+		Job existing = pending.get(job.key);
+		if (existing != null)
+		{
+			queue.remove(existing);
+			existing.update(job);
+			existing.distance = job.distance;
+			queue.add(existing);
+			return;
+		}
+		job.sequence = sequence++;
+		pending.put(job.key, job);
+		queue.add(job);
+	}
+
+	/**
+	 * Removes all pending and not taken tiles of the map.
+	 */
+	synchronized void evict(Object map)
+	{
+		Iterator<Map.Entry<Key, Job>> iterator = pending.entrySet().iterator();
+		while (iterator.hasNext())
+		{
+			Map.Entry<Key, Job> entry = iterator.next();
+			if (entry.getKey().map == map)
+			{
+				queue.remove(entry.getValue());
+				iterator.remove();
+			}
+		}
+		for (Key key : decoded.snapshot().keySet())
+		{
+			if (key.map == map)
+			{
+				Bitmap bitmap = decoded.remove(key);
+				if (bitmap != null)
+					bitmap.recycle();
+			}
+		}
+	}
+
+	private synchronized void finish(Job job)
+	{
+		if (pending.get(job.key) == job)
+			pending.remove(job.key);
+	}
+
+	private class Worker implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			while (true)
+			{
+				Job job;
+				try
+				{
+					job = queue.take();
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				try
+				{
+					if (job.isCancelled() || decoded.get(job.key) != null)
+						continue;
+					Bitmap bitmap = job.decode();
+					if (bitmap == null)
+						continue;
+					Bitmap previous = decoded.put(job.key, bitmap);
+					if (previous != null && previous != bitmap)
+						previous.recycle();
+					job.onDecoded();
+				}
+				catch (OutOfMemoryError e)
+				{
+					Log.e(TAG, "Out of memory while decoding tile");
+					decoded.evictAll();
+				}
+				finally
+				{
+					finish(job);
+				}
+			}
+		}
+	}
+}
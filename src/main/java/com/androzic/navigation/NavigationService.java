@@ -209,6 +209,7 @@ public class NavigationService extends BaseNavigationService implements OnShared
 	{
 		if (locationService != null)
 		{
+			locationService.setNavigationDistance(Double.NaN);
 			locationService.unregisterLocationCallback(locationListener);
 			unbindService(locationConnection);
 			locationService = null;
@@ -616,7 +617,12 @@ public class NavigationService extends BaseNavigationService implements OnShared
 			lastKnownLocation = loc;
 			
 			if (navWaypoint != null)
-				calculateNavigationStatus(loc, smoothspeed, avgspeed);			
+			{
+				calculateNavigationStatus(loc, smoothspeed, avgspeed);
+				// Location service samples more often when waypoint is near
+				if (locationService != null)
+					locationService.setNavigationDistance(navDistance);
+			}
 		}
 
 		@Override
@@ -24,6 +24,7 @@ import android.content.ComponentName;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
+import android.graphics.Canvas;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
 
@@ -32,12 +33,25 @@ import com.androzic.data.Track;
 import com.androzic.location.ILocationService;
 import com.androzic.location.ITrackingListener;
 import com.androzic.location.LocationService;
+import com.androzic.ui.Viewport;
 
 public class CurrentTrackOverlay extends TrackOverlay
 {
 	private ILocationService trackingService = null;
 	private boolean isBound = false;
 
+	// Path is extended with new points and rebuilt only when map changes
+	private final TrackPath trackPath = new TrackPath(this);
+	private volatile boolean pathValid = false;
+	// Points appended to the track and to the path, guarded by track
+	private long appended;
+	private long consumed;
+	// Newest position that is not stored in the track yet, guarded by track
+	private boolean hasTail;
+	private double tailLatitude;
+	private double tailLongitude;
+	private final int[] tailXY = new int[2];
+
     public CurrentTrackOverlay()
     {
     	super();
@@ -55,11 +69,62 @@ public class CurrentTrackOverlay extends TrackOverlay
 	{
     	clear();
 		this.track = track;
+		hasTail = false;
+		pathValid = false;
 	}
 
 	public void clear()
 	{
-		track.clear();
+		synchronized (track)
+		{
+			track.clear();
+			hasTail = false;
+		}
+		pathValid = false;
+	}
+
+	@Override
+	public void onMapChanged()
+	{
+		pathValid = false;
+		super.onMapChanged();
+	}
+
+	@Override
+	public void onPrepareBuffer(final Viewport viewport, final Canvas c)
+	{
+		if (!track.show)
+			return;
+
+		boolean tail;
+		synchronized (track)
+		{
+			int size = track.getPointCount();
+			long added = appended - consumed;
+			long removed = trackPath.getCount() + added - size;
+			if (!pathValid || added > size || removed < 0)
+			{
+				trackPath.rebuild(track);
+				pathValid = true;
+			}
+			else
+			{
+				// Track drops oldest points when it grows over the limit
+				if (removed > 0)
+					trackPath.trim((int) removed, track);
+				for (int i = (int) (size - added); i < size; i++)
+					trackPath.append(track.getPoint(i));
+			}
+			consumed = appended;
+			tail = hasTail && size > 0;
+			if (tail)
+				application.getXYbyLatLon(tailLatitude, tailLongitude, tailXY);
+		}
+
+		final int[] cxy = viewport.mapCenterXY;
+		trackPath.draw(c, paint, cxy[0], cxy[1], viewport.canvasWidth / 2, viewport.canvasHeight / 2);
+		if (tail)
+			trackPath.drawTail(c, paint, cxy[0], cxy[1], tailXY[0], tailXY[1]);
 	}
 
 	public void onBeforeDestroy()
@@ -107,7 +172,22 @@ public class CurrentTrackOverlay extends TrackOverlay
     {
         public void onNewPoint(boolean continous, double lat, double lon, double elev, double speed, double trk, double accuracy, long time)
         {
-        	track.addPoint(continous, lat, lon, elev, speed, trk, accuracy, time);
+        	synchronized (track)
+        	{
+        		track.addPoint(continous, lat, lon, elev, speed, trk, accuracy, time);
+        		appended++;
+        		hasTail = false;
+        	}
+        }
+
+        public void onPendingPoint(double lat, double lon, long time)
+        {
+        	synchronized (track)
+        	{
+        		tailLatitude = lat;
+        		tailLongitude = lon;
+        		hasTail = true;
+        	}
         }
     };
 
@@ -0,0 +1,218 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.overlay;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import android.content.SharedPreferences;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.os.Handler;
+
+import com.androzic.MapHolder;
+import com.androzic.R;
+import com.androzic.map.BaseMap;
+import com.androzic.ui.Viewport;
+
+/**
+ * Base class for map grids. Grid lines are built in background only for visible area with
+ * margin, built grids are cached per map and scale. Map scale can change while grid is being
+ * built, such grid is discarded and is requested again for the new scale.
+ */
+public abstract class GridOverlay extends MapOverlay
+{
+	private static final int CACHE_SIZE = 4;
+
+	Paint linePaint;
+
+	private final Handler handler;
+	private final LinkedList<GridLines> grids = new LinkedList<>();
+	private GridLines pending;
+	private int generation;
+	private final Rect visible = new Rect();
+
+	GridOverlay()
+	{
+		super();
+
+		linePaint = new Paint();
+		linePaint.setAntiAlias(true);
+		linePaint.setStrokeWidth(1);
+		linePaint.setStyle(Paint.Style.STROKE);
+		linePaint.setColor(application.getResources().getColor(R.color.distanceline));
+
+		handler = new Handler(application.getLongOperationsThreadLooper());
+	}
+
+	/**
+	 * Builds grid lines that intersect specified area. Called on background thread.
+	 *
+	 * @param map map to build grid for
+	 * @param area area in map pixel coordinates
+	 * @return grid lines in map pixel coordinates
+	 */
+	protected abstract List<Path> buildGrid(BaseMap map, Rect area);
+
+	/**
+	 * Drops built grids, should be called when grid parameters change.
+	 */
+	protected synchronized void invalidate()
+	{
+		grids.clear();
+		pending = null;
+		generation++;
+	}
+
+	@Override
+	public void onPreferencesChanged(SharedPreferences settings)
+	{
+	}
+
+	@Override
+	public void onBeforeDestroy()
+	{
+		super.onBeforeDestroy();
+		handler.removeCallbacksAndMessages(null);
+		invalidate();
+	}
+
+	@Override
+	public void onPrepareBuffer(final Viewport viewport, final Canvas c)
+	{
+		BaseMap map = application.getCurrentMap();
+		if (map == null)
+			return;
+
+		int width = map.getScaledWidth();
+		int height = map.getScaledHeight();
+		final int[] cxy = viewport.mapCenterXY;
+		int w2 = viewport.canvasWidth / 2;
+		int h2 = viewport.canvasHeight / 2;
+		visible.set(cxy[0] - w2, cxy[1] - h2, cxy[0] + w2, cxy[1] + h2);
+		if (!visible.intersect(0, 0, width, height))
+			return;
+
+		GridLines grid = getGrid(map, visible);
+		if (grid == null || !grid.area.contains(visible))
+		{
+			// Build grid with margin to avoid rebuilding on every small move
+			Rect area = new Rect(cxy[0] - w2 * 2, cxy[1] - h2 * 2, cxy[0] + w2 * 2, cxy[1] + h2 * 2);
+			area.intersect(0, 0, width, height);
+			requestGrid(map, visible, area);
+		}
+		if (grid == null)
+			return;
+
+		c.save();
+		c.translate(-cxy[0], -cxy[1]);
+		c.clipRect(0, 0, width, height);
+		for (Path path : grid.paths)
+			c.drawPath(path, linePaint);
+		c.restore();
+	}
+
+	@Override
+	public void onPrepareBufferEx(final Viewport viewport, final Canvas c)
+	{
+	}
+
+	/**
+	 * Returns grid built for current map scale, preferring the one that covers visible area.
+	 */
+	private synchronized GridLines getGrid(BaseMap map, Rect visible)
+	{
+		double mpp = map.getMPP();
+		GridLines found = null;
+		for (GridLines grid : grids)
+		{
+			if (grid.map == map && grid.mpp == mpp)
+			{
+				if (grid.area.contains(visible))
+				{
+					found = grid;
+					break;
+				}
+				if (found == null)
+					found = grid;
+			}
+		}
+		if (found != null && found != grids.getFirst())
+		{
+			grids.remove(found);
+			grids.addFirst(found);
+		}
+		return found;
+	}
+
+	private synchronized void requestGrid(final BaseMap map, Rect visible, final Rect area)
+	{
+		final double mpp = map.getMPP();
+		if (pending != null && pending.map == map && pending.mpp == mpp && pending.area.contains(visible))
+			return;
+
+		final GridLines grid = new GridLines(map, mpp, area);
+		final int gen = generation;
+		pending = grid;
+		handler.removeCallbacksAndMessages(null);
+		handler.post(new Runnable() {
+			@Override
+			public void run()
+			{
+				if (map.getMPP() == mpp)
+					grid.paths = buildGrid(map, area);
+				synchronized (GridOverlay.this)
+				{
+					if (gen != generation)
+						return;
+					if (pending == grid)
+						pending = null;
+					// Lines are projected with current map scale, they are wrong if it has changed
+					if (grid.paths == null || map.getMPP() != mpp)
+						return;
+					grids.addFirst(grid);
+					while (grids.size() > CACHE_SIZE)
+						grids.removeLast();
+				}
+				MapHolder mapHolder = application.getMapHolder();
+				if (mapHolder != null)
+					mapHolder.refreshMap();
+			}
+		});
+	}
+
+	private static class GridLines
+	{
+		final BaseMap map;
+		final double mpp;
+		final Rect area;
+		List<Path> paths;
+
+		GridLines(BaseMap map, double mpp, Rect area)
+		{
+			this.map = map;
+			this.mpp = mpp;
+			this.area = area;
+		}
+	}
+}
@@ -1,120 +1,162 @@
 package com.androzic.overlay;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
 
 import android.content.SharedPreferences;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.Paint;
 
-import com.androzic.Androzic;
+import com.androzic.MapHolder;
+import com.androzic.dem.ElevationService;
+import com.androzic.dem.HillshadeTileProvider;
 import com.androzic.map.BaseMap;
+import com.androzic.map.OnMapTileStateChangeListener;
 import com.androzic.ui.Viewport;
 
+/**
+ * Draws terrain shading from tiles produced by {@link HillshadeTileProvider}. Tiles are in
+ * Web Mercator projection and are warped to current map projection while drawing.
+ */
 public class HillShadeOverlay extends MapOverlay
 {
+	private static final int MIN_ZOOM = 8;
+	private static final int MAX_ZOOM = 15;
+	private static final int MAX_TILES = 64;
+	private static final int MESH_SIZE = 4;
+	private static final double EARTH_CIRCUMFERENCE = 40075016.686;
+	private static final double MAX_LATITUDE = 85.05112878;
+
 	private Paint paint;
-	private RandomAccessFile demReader;
+	private HillshadeTileProvider tileProvider;
+	private final float[] verts = new float[(MESH_SIZE + 1) * (MESH_SIZE + 1) * 2];
+	private final int[] xy = new int[2];
+	private final double[] ll = new double[2];
 
 	public HillShadeOverlay()
 	{
 		super();
 		paint = new Paint();
-		paint.setAntiAlias(false);
-		paint.setStrokeWidth(1);
-		paint.setStyle(Paint.Style.STROKE);
-		paint.setColor(Color.BLACK);
-		try
-		{
-	    	Androzic application = Androzic.getApplication();
-			File demFile = new File(application.dataPath, "N44E034.hgt");
-			demReader = new RandomAccessFile(demFile, "r");
-			enabled = true;
-		}
-		catch (FileNotFoundException e)
-		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		paint.setFilterBitmap(true);
+		int cacheSize = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, 8 * 1024 * 1024);
+		tileProvider = new HillshadeTileProvider(application.getElevationService(), new File(application.getCacheDir(), "hillshade"), cacheSize);
+		tileProvider.setListener(new OnMapTileStateChangeListener() {
+			@Override
+			public void onTileObtained()
+			{
+				MapHolder mapHolder = application.getMapHolder();
+				if (mapHolder != null)
+					mapHolder.refreshMap();
+			}
+		});
+		enabled = true;
 	}
 
 	@Override
-	public synchronized void onMapChanged()
+	public void onPreferencesChanged(SharedPreferences settings)
 	{
 	}
 
 	@Override
-	public void onPreferencesChanged(SharedPreferences settings)
+	public void onBeforeDestroy()
 	{
+		super.onBeforeDestroy();
+		tileProvider.destroy();
 	}
 
 	@Override
-	public void onBeforeDestroy()
+	public void onPrepareBuffer(final Viewport viewport, final Canvas c)
 	{
-		super.onBeforeDestroy();
-		try
-		{
-			demReader.close();
-			demReader = null;
-		}
-		catch (IOException e)
+		BaseMap map = application.getCurrentMap();
+		if (map == null)
+			return;
+
+		// Elevation service is recreated when root folder is changed
+		ElevationService elevationService = application.getElevationService();
+		if (elevationService != tileProvider.getElevationService())
+			tileProvider.setElevationService(elevationService);
+
+		double mpp = map.getMPP();
+		double lat = Math.min(Math.abs(viewport.mapCenter[0]), MAX_LATITUDE);
+		int zoom = (int) Math.round(Math.log(EARTH_CIRCUMFERENCE * Math.cos(Math.toRadians(lat)) / (HillshadeTileProvider.TILE_SIZE * mpp)) / Math.log(2));
+		if (zoom < MIN_ZOOM)
+			return;
+		if (zoom > MAX_ZOOM)
+			zoom = MAX_ZOOM;
+
+		// Find visible area, canvas is larger than the screen
+		final int[] cxy = viewport.mapCenterXY;
+		int w2 = viewport.canvasWidth / 2;
+		int h2 = viewport.canvasHeight / 2;
+		double minLat = MAX_LATITUDE, maxLat = -MAX_LATITUDE, minLon = 180, maxLon = -180;
+		for (int i = 0; i < 4; i++)
 		{
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			map.getLatLonByXY(cxy[0] + (i % 2 == 0 ? -w2 : w2), cxy[1] + (i < 2 ? -h2 : h2), ll);
+			minLat = Math.min(minLat, ll[0]);
+			maxLat = Math.max(maxLat, ll[0]);
+			minLon = Math.min(minLon, ll[1]);
+			maxLon = Math.max(maxLon, ll[1]);
 		}
-	}
+		minLat = Math.max(minLat, -MAX_LATITUDE);
+		maxLat = Math.min(maxLat, MAX_LATITUDE);
+		if (minLat > maxLat)
+			return;
 
-	//TODO This should go into Application
-	private int getHeight(double latitude, double longitude)
-	{
-		int lat = (int) Math.floor(latitude);
-		int lon = (int) Math.floor(longitude);
-		int x3 = (int) ((latitude - lat) * 1200);
-		int y3 = (int) ((longitude - lon) * 1200);
-		if (demReader != null)
+		int size = HillshadeTileProvider.TILE_SIZE;
+		double worldSize = (double) size * (1 << zoom);
+		int last = (1 << zoom) - 1;
+		int minX = Math.max((int) (HillshadeTileProvider.lonToPixelX(minLon, worldSize) / size), 0);
+		int maxX = Math.min((int) (HillshadeTileProvider.lonToPixelX(maxLon, worldSize) / size), last);
+		int minY = Math.max((int) (HillshadeTileProvider.latToPixelY(maxLat, worldSize) / size), 0);
+		int maxY = Math.min((int) (HillshadeTileProvider.latToPixelY(minLat, worldSize) / size), last);
+		if ((maxX - minX + 1) * (maxY - minY + 1) > MAX_TILES)
+			return;
+
+		Set<Long> workingSet = new HashSet<>();
+		for (int x = minX; x <= maxX; x++)
+			for (int y = minY; y <= maxY; y++)
+				workingSet.add(HillshadeTileProvider.getKey(x, y, zoom));
+		tileProvider.setWorkingSet(workingSet);
+
+		c.save();
+		c.translate(-cxy[0], -cxy[1]);
+		for (int x = minX; x <= maxX; x++)
 		{
-			try
+			for (int y = minY; y <= maxY; y++)
 			{
-				demReader.seek(x3 * 1201 * 2 + y3 * 2);
-				int height = demReader.readShort();
-				return height;
-			}
-			catch (IOException e)
-			{
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				Bitmap bitmap = tileProvider.getTile(x, y, zoom);
+				if (bitmap != null)
+					drawTile(map, c, bitmap, x, y, worldSize);
 			}
 		}
-		return Integer.MIN_VALUE;
+		c.restore();
 	}
 
-	@Override
-	public void onPrepareBuffer(final Viewport viewport, final Canvas c)
+	/**
+	 * Warps tile to map projection with a coarse mesh, it is precise enough for tile sized areas.
+	 */
+	private void drawTile(BaseMap map, Canvas c, Bitmap bitmap, int tx, int ty, double worldSize)
 	{
-		Androzic application = Androzic.getApplication();
-		final int[] cxy = viewport.mapCenterXY;
-		cxy[0] -= viewport.width / 2;
-		cxy[1] -= viewport.height / 2;
-    	BaseMap map = application.getCurrentMap();
-		int w = viewport.width;
-		int h = viewport.height;
-    	double[] cll = new double[2];
-		for (int x = 0; x < w; x++)
-			for (int y = 0; y < h; y++)
+		int size = HillshadeTileProvider.TILE_SIZE;
+		int i = 0;
+		for (int row = 0; row <= MESH_SIZE; row++)
+		{
+			double lat = HillshadeTileProvider.pixelYToLat(ty * size + size * row / MESH_SIZE, worldSize);
+			for (int col = 0; col <= MESH_SIZE; col++)
 			{
-		    	map.getLatLonByXY(cxy[0] + x, cxy[1] + y, cll);
-		    	int height = getHeight(cll[0], cll[1]);
-				paint.setAlpha(height);
-		    	c.drawPoint(x - viewport.width / 2, y - viewport.height / 2, paint);
+				double lon = HillshadeTileProvider.pixelXToLon(tx * size + size * col / MESH_SIZE, worldSize);
+				map.getXYByLatLon(lat, lon, xy);
+				verts[i++] = xy[0];
+				verts[i++] = xy[1];
 			}
+		}
+		c.drawBitmapMesh(bitmap, MESH_SIZE, MESH_SIZE, verts, 0, null, 0, paint);
 	}
 
 	@Override
 	public void onPrepareBufferEx(final Viewport viewport, final Canvas c)
 	{
 	}
-
 }
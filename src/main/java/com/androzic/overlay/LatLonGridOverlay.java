@@ -21,138 +21,88 @@
 package com.androzic.overlay;
 
 import java.util.ArrayList;
+import java.util.List;
 
-import android.content.SharedPreferences;
-import android.graphics.Canvas;
-import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Rect;
 
-import com.androzic.R;
-import com.androzic.data.Bounds;
 import com.androzic.map.BaseMap;
 import com.androzic.map.ozf.Grid;
-import com.androzic.ui.Viewport;
 
-public class LatLonGridOverlay extends MapOverlay
+public class LatLonGridOverlay extends GridOverlay
 {
-	Paint linePaint;
-//	Paint circlePaint;
-	ArrayList<int[][]> grid = new ArrayList<int[][]>();
-	Rect clip;
+	/**
+	 * Limits number of lines in each direction, too dense grids show only every k-th line
+	 */
+	private static final int MAX_LINES = 200;
+
 	double spacing;
 	
 	public LatLonGridOverlay()
 	{
 		super();
-
-        linePaint = new Paint();
-        linePaint.setAntiAlias(true);
-        linePaint.setStrokeWidth(1);
-        linePaint.setStyle(Paint.Style.STROKE);
-        linePaint.setColor(application.getResources().getColor(R.color.distanceline));
-/*
-        circlePaint = new Paint();
-        circlePaint.setAntiAlias(true);
-        circlePaint.setStrokeWidth(1);
-        circlePaint.setStyle(Paint.Style.FILL_AND_STROKE);
-        circlePaint.setColor(context.getResources().getColor(R.color.distanceline));
-        circlePaint.setAlpha(255);
-*/
 	}
 
 	public void setGrid(Grid grid)
 	{
 		spacing = grid.spacing;
 		linePaint.setColor(grid.spacing >= 1 ? grid.color1 : grid.spacing >= 0.0166666666666667 ? grid.color2 : grid.color3);
+		invalidate();
 		enabled = true;
 	}
 
 	@Override
-	public synchronized void onMapChanged()
+	protected List<Path> buildGrid(BaseMap map, Rect area)
 	{
-		grid.clear();
-    	BaseMap map = application.getCurrentMap();
-    	if (map == null)
-    		return;
-    	clip = new Rect(0, 0, map.getScaledWidth(), map.getScaledHeight());
-    	Bounds bounds  = map.getBounds();
+		List<Path> paths = new ArrayList<>();
 
-    	double lat = bounds.minLat - (bounds.minLat % spacing);
-    	double lon = bounds.minLon - (bounds.minLon % spacing);
-    	double mlat = (bounds.minLat + bounds.maxLat) / 2;
-    	double mlon = (bounds.minLon + bounds.maxLon) / 2;
-    	
-		int[] xy = new int[2];
-    	while (lon <= bounds.maxLon)
-    	{
-    		int[][] curve = new int[3][2];
-    		map.getXYByLatLon(bounds.minLat, lon, xy);
-    		curve[0][0] = xy[0];
-    		curve[0][1] = xy[1];
-    		map.getXYByLatLon(mlat, lon, xy);
-    		curve[1][0] = xy[0];
-    		curve[1][1] = xy[1];
-    		map.getXYByLatLon(bounds.maxLat, lon, xy);
-    		curve[2][0] = xy[0];
-    		curve[2][1] = xy[1];
-    		int[] cp = interpolate(curve[0][0], curve[0][1], curve[1][0], curve[1][1], curve[2][0], curve[2][1], 0.5);
-    		curve[1][0] = cp[0];
-    		curve[1][1] = cp[1];
-    		grid.add(curve);
-    		lon += spacing;
-    		if (lon >= 180) lon -= 180;
-    	}
-    	while (lat <= bounds.maxLat)
-    	{
-    		int[][] curve = new int[3][2];
-    		map.getXYByLatLon(lat, bounds.minLon, xy);
-    		curve[0][0] = xy[0];
-    		curve[0][1] = xy[1];
-    		map.getXYByLatLon(lat, mlon, xy);
-    		curve[1][0] = xy[0];
-    		curve[1][1] = xy[1];
-    		map.getXYByLatLon(lat, bounds.maxLon, xy);
-    		curve[2][0] = xy[0];
-    		curve[2][1] = xy[1];
-    		int[] cp = interpolate(curve[0][0], curve[0][1], curve[1][0], curve[1][1], curve[2][0], curve[2][1], 0.5);
-    		curve[1][0] = cp[0];
-    		curve[1][1] = cp[1];
-    		grid.add(curve);
-    		lat += spacing;
-    	}
-	}
+		// Find coordinate bounds of the area, edge middle points are used to account for curvature
+		double minLat = Double.MAX_VALUE, maxLat = -Double.MAX_VALUE, minLon = Double.MAX_VALUE, maxLon = -Double.MAX_VALUE;
+		double[] ll = new double[2];
+		for (int i = 0; i < 3; i++)
+		{
+			for (int j = 0; j < 3; j++)
+			{
+				if (i == 1 && j == 1)
+					continue;
+				map.getLatLonByXY(area.left + area.width() * i / 2, area.top + area.height() * j / 2, ll);
+				minLat = Math.min(minLat, ll[0]);
+				maxLat = Math.max(maxLat, ll[0]);
+				minLon = Math.min(minLon, ll[1]);
+				maxLon = Math.max(maxLon, ll[1]);
+			}
+		}
+		double lines = Math.max(maxLon - minLon, maxLat - minLat) / spacing;
+		double step = lines > MAX_LINES ? spacing * Math.ceil(lines / MAX_LINES) : spacing;
 
-	@Override
-	public void onPrepareBuffer(final Viewport viewport, final Canvas c)
-	{
-		c.save();
-		c.translate(-viewport.mapCenterXY[0], -viewport.mapCenterXY[1]);
-		if (clip != null)
+		double mlat = (minLat + maxLat) / 2;
+		double mlon = (minLon + maxLon) / 2;
+		int[][] curve = new int[3][2];
+
+		for (double lon = Math.ceil(minLon / step) * step; lon <= maxLon; lon += step)
 		{
-			c.clipRect(clip);
+			map.getXYByLatLon(minLat, lon, curve[0]);
+			map.getXYByLatLon(mlat, lon, curve[1]);
+			map.getXYByLatLon(maxLat, lon, curve[2]);
+			paths.add(createCurve(curve));
 		}
-		for (int[][] curve : grid)
+		for (double lat = Math.ceil(minLat / step) * step; lat <= maxLat; lat += step)
 		{
-			//c.drawCircle(curve[0][0], curve[0][1], 2, circlePaint);
-			//c.drawCircle(curve[1][0], curve[1][1], 2, circlePaint);
-			//c.drawCircle(curve[2][0], curve[2][1], 2, circlePaint);
-	    	Path p = new Path();
-	    	p.moveTo(curve[0][0], curve[0][1]);
-	    	p.quadTo(curve[1][0], curve[1][1], curve[2][0], curve[2][1]);
-	    	c.drawPath(p, linePaint);
+			map.getXYByLatLon(lat, minLon, curve[0]);
+			map.getXYByLatLon(lat, mlon, curve[1]);
+			map.getXYByLatLon(lat, maxLon, curve[2]);
+			paths.add(createCurve(curve));
 		}
-		c.restore();
+		return paths;
 	}
 
-	@Override
-	public void onPrepareBufferEx(final Viewport viewport, final Canvas c)
-	{
-	}
-
-	@Override
-	public void onPreferencesChanged(SharedPreferences settings)
+	private Path createCurve(int[][] curve)
 	{
+		int[] cp = interpolate(curve[0][0], curve[0][1], curve[1][0], curve[1][1], curve[2][0], curve[2][1], 0.5);
+		Path path = new Path();
+		path.moveTo(curve[0][0], curve[0][1]);
+		path.quadTo(cp[0], cp[1], curve[2][0], curve[2][1]);
+		return path;
 	}
 
     // interpolate three points with second point at specified parameter value
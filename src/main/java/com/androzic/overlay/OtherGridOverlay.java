@@ -21,37 +21,29 @@
 package com.androzic.overlay;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-import android.content.SharedPreferences;
-import android.graphics.Canvas;
-import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Rect;
-import android.util.Log;
 
-import com.androzic.R;
 import com.androzic.map.BaseMap;
 import com.androzic.map.ozf.Grid;
-import com.androzic.ui.Viewport;
-import com.androzic.util.Geo;
 
-public class OtherGridOverlay extends MapOverlay
+public class OtherGridOverlay extends GridOverlay
 {
-	ArrayList<Path> paths = new ArrayList<>();
-	Paint linePaint;
-	Rect clip;
+	private static final double EARTH_RADIUS = 6371000;
+	/**
+	 * Guards against endless walks on maps with degenerate projection
+	 */
+	private static final int MAX_STEPS = 100000;
+
 	int spacing = 100000;
 	int maxMPP = 0;
 	
 	public OtherGridOverlay()
 	{
 		super();
-
-        linePaint = new Paint();
-        linePaint.setAntiAlias(true);
-        linePaint.setStrokeWidth(1);
-        linePaint.setStyle(Paint.Style.STROKE);
-        linePaint.setColor(application.getResources().getColor(R.color.distanceline));
 	}
 
 	public void setGrid(Grid grid)
@@ -59,266 +51,166 @@ public class OtherGridOverlay extends MapOverlay
 		spacing = (int) grid.spacing;
 		maxMPP = grid.maxMPP;
 		linePaint.setColor(grid.spacing >= 1000 ? grid.color1 : grid.color2);
+		invalidate();
 		enabled = true;
 	}
 
 	@Override
-	public synchronized void onMapChanged()
+	protected List<Path> buildGrid(BaseMap map, Rect area)
 	{
-		paths.clear();
-    	BaseMap map = application.getCurrentMap();
-    	if (map == null)
-    		return;
-    	
-    	Log.e("GRID", "mpp: "+maxMPP+" "+(map.getMPP()));
-		if (maxMPP > 0 && maxMPP < (map.getMPP()))
-			return;
+		List<Path> paths = new ArrayList<>();
+		if (maxMPP > 0 && maxMPP < map.getMPP())
+			return paths;
 
-    	clip = new Rect(0, 0, map.getScaledWidth(), map.getScaledHeight());
+		// Grid is anchored at map center so that lines do not move when area changes
+		double[] anchor = new double[2];
+		map.getLatLonByXY(map.getScaledWidth() / 2, map.getScaledHeight() / 2, anchor);
 
-    	ArrayList<int[]> points = new ArrayList<>();
-    	ArrayList<double[]> refPoints = new ArrayList<>();
+		buildLines(map, area, anchor, true, paths);
+		buildLines(map, area, anchor, false, paths);
+		return paths;
+	}
 
-    	// find map center coordinates
-    	double[] cll = new double[2];
-		int[] cxy = new int[] { map.getScaledWidth() / 2,  map.getScaledHeight() / 2};
-    	map.getLatLonByXY(cxy[0], cxy[1], cll);
-    	
-    	// build vertical reference path
-    	int y = cxy[1];
-    	double[] ll = new double[] { cll[0], cll[1] };
-		refPoints.add(new double[] {cll[0], cll[1]});
-		points.add(cxy);
-    	while (y < map.getScaledHeight())
-    	{
-        	int[] pxy = new int[2];
-        	double[] pll = Geo.projection(ll[0], ll[1], spacing * 3, 180);
-	    	map.getXYByLatLon(pll[0], pll[1], pxy);
-    		refPoints.add(pll);
-    		points.add(pxy);
-        	ll[0] = pll[0];
-        	ll[1] = pll[1];
-    		y = pxy[1];
-    	}
-    	ll = new double[] { cll[0], cll[1] };
-    	while (y > 0)
-    	{
-        	int[] pxy = new int[2];
-    		double[] pll = Geo.projection(ll[0], ll[1], spacing * 3, 0);
-	    	map.getXYByLatLon(pll[0], pll[1], pxy);
-    		refPoints.add(0, pll);
-    		points.add(0, pxy);
-        	ll[0] = pll[0];
-        	ll[1] = pll[1];
-    		y = pxy[1];
-    	}
-   		Path path = new Path();
-   		for (int[] p : points)
-   		{
-   			if (path.isEmpty())
-   			{
-   				path.moveTo(p[0], p[1]);
-   				path.lineTo(p[0], p[1]);
-   			}
-   			else
-   			{
-   				path.lineTo(p[0], p[1]);
-   			}
-   		}
-   		paths.add(path);
+	/**
+	 * Builds grid lines that intersect the area. Reference path goes through the anchor along
+	 * the lines, other lines are built by offsetting reference path points across it.
+	 *
+	 * @param vertical true to build north-south lines, false to build east-west lines
+	 */
+	private void buildLines(BaseMap map, Rect area, double[] anchor, boolean vertical, List<Path> paths)
+	{
+		int along = vertical ? 1 : 0;
+		int across = 1 - along;
+		int margin = Math.max(area.width(), area.height());
+
+		double[] reference = buildReferencePath(map, anchor, along, vertical ? 180 : 90,
+				(vertical ? area.top : area.left) - margin, (vertical ? area.bottom : area.right) + margin);
+		int n = reference.length / 2;
+		if (n < 2)
+			return;
 
-   		// build vertical paths
-   		int i = 1;
-   		boolean onmap = true;
-    	while (onmap)
-    	{
-    		points.clear();
-    		onmap = false;
-    		for (double[] pll : refPoints)
-    		{
-            	int[] pxy = new int[2];
-        		double[] dll = Geo.projection(pll[0], pll[1], spacing * i, 90);
-       	    	map.getXYByLatLon(dll[0], dll[1], pxy);
-        	    points.add(pxy);
-        	    onmap |= pxy[0] <= map.getScaledWidth();
-    		}
-    		path = new Path();
-    		for (int[] p : points)
-    		{
-    			if (path.isEmpty())
-    			{
-    				path.moveTo(p[0], p[1]);
-    				path.lineTo(p[0], p[1]);
-    			}
-    			else
-    			{
-    				path.lineTo(p[0], p[1]);
-    			}
-    		}
-    		paths.add(path);
-    		i++;
-    	}
-   		i = 1;
-   		onmap = true;
-    	while (onmap)
-    	{
-    		points.clear();
-    		onmap = false;
-    		for (double[] pll : refPoints)
-    		{
-            	int[] pxy = new int[2];
-        		double[] dll = Geo.projection(pll[0], pll[1], spacing * i, 270);
-       	    	map.getXYByLatLon(dll[0], dll[1], pxy);
-        	    points.add(pxy);
-        	    onmap |= pxy[0] >= 0;
-    		}
-    		path = new Path();
-    		for (int[] p : points)
-    		{
-    			if (path.isEmpty())
-    			{
-    				path.moveTo(p[0], p[1]);
-    				path.lineTo(p[0], p[1]);
-    			}
-    			else
-    			{
-    				path.lineTo(p[0], p[1]);
-    			}
-    		}
-    		paths.add(path);
-    		i++;
-    	}
-    	// build horizontal reference path
-    	refPoints.clear();
-    	points.clear();
-    	int x = cxy[0];
-    	ll = new double[] { cll[0], cll[1] };
-		refPoints.add(new double[] {cll[0], cll[1]});
-		points.add(cxy);
-    	while (x < map.getScaledWidth())
-    	{
-        	int[] pxy = new int[2];
-        	double[] pll = Geo.projection(ll[0], ll[1], spacing * 3, 90);
-	    	map.getXYByLatLon(pll[0], pll[1], pxy);
-    		refPoints.add(pll);
-    		points.add(pxy);
-        	ll[0] = pll[0];
-        	ll[1] = pll[1];
-    		x = pxy[0];
-    	}
-    	ll = new double[] { cll[0], cll[1] };
-    	while (x > 0)
-    	{
-        	int[] pxy = new int[2];
-    		double[] pll = Geo.projection(ll[0], ll[1], spacing * 3, 270);
-	    	map.getXYByLatLon(pll[0], pll[1], pxy);
-    		refPoints.add(0, pll);
-    		points.add(0, pxy);
-        	ll[0] = pll[0];
-        	ll[1] = pll[1];
-    		x = pxy[0];
-    	}
-   		path = new Path();
-   		for (int[] p : points)
-   		{
-   			if (path.isEmpty())
-   			{
-   				path.moveTo(p[0], p[1]);
-   				path.lineTo(p[0], p[1]);
-   			}
-   			else
-   			{
-   				path.lineTo(p[0], p[1]);
-   			}
-   		}
-   		paths.add(path);
+		int min = (vertical ? area.left : area.top) - margin;
+		int max = (vertical ? area.right : area.bottom) + margin;
+		double[] ll = new double[2];
+		int[] xy = new int[2];
+		int middle = n / 2 * 2;
 
-   		// build horizontal paths
-   		i = 1;
-   		onmap = true;
-    	while (onmap)
-    	{
-    		points.clear();
-    		onmap = false;
-    		for (double[] pll : refPoints)
-    		{
-            	int[] pxy = new int[2];
-        		double[] dll = Geo.projection(pll[0], pll[1], spacing * i, 180);
-       	    	map.getXYByLatLon(dll[0], dll[1], pxy);
-        	    points.add(pxy);
-        	    onmap |= pxy[1] <= map.getScaledHeight();
-    		}
-    		path = new Path();
-    		for (int[] p : points)
-    		{
-    			if (path.isEmpty())
-    			{
-    				path.moveTo(p[0], p[1]);
-    				path.lineTo(p[0], p[1]);
-    			}
-    			else
-    			{
-    				path.lineTo(p[0], p[1]);
-    			}
-    		}
-    		paths.add(path);
-    		i++;
-    	}
-   		i = 1;
-   		onmap = true;
-    	while (onmap)
-    	{
-    		points.clear();
-    		onmap = false;
-    		for (double[] pll : refPoints)
-    		{
-            	int[] pxy = new int[2];
-        		double[] dll = Geo.projection(pll[0], pll[1], spacing * i, 0);
-       	    	map.getXYByLatLon(dll[0], dll[1], pxy);
-        	    points.add(pxy);
-        	    onmap |= pxy[1] >= 0;
-    		}
-    		path = new Path();
-    		for (int[] p : points)
-    		{
-    			if (path.isEmpty())
-    			{
-    				path.moveTo(p[0], p[1]);
-    				path.lineTo(p[0], p[1]);
-    			}
-    			else
-    			{
-    				path.lineTo(p[0], p[1]);
-    			}
-    		}
-    		paths.add(path);
-    		i++;
-    	}
-   	}
-	
-	@Override
-	public void onPreferencesChanged(SharedPreferences settings)
-	{
+		// First walk lines in direction of increasing coordinate, then in opposite direction
+		for (int direction = 0; direction < 2; direction++)
+		{
+			double bearing = vertical ? (direction == 0 ? 90 : 270) : (direction == 0 ? 180 : 0);
+			for (int i = direction; i < MAX_STEPS; i++)
+			{
+				// Check middle point before building the whole line
+				project(reference[middle], reference[middle + 1], spacing * i, bearing, ll);
+				map.getXYByLatLon(ll[0], ll[1], xy);
+				int c = xy[across];
+				if (direction == 0 ? c > max : c < min)
+					break;
+				if (direction == 0 ? c < min : c > max)
+					continue;
+
+				Path path = new Path();
+				for (int k = 0; k < n; k++)
+				{
+					project(reference[k * 2], reference[k * 2 + 1], spacing * i, bearing, ll);
+					map.getXYByLatLon(ll[0], ll[1], xy);
+					if (k == 0)
+						path.moveTo(xy[0], xy[1]);
+					else
+						path.lineTo(xy[0], xy[1]);
+				}
+				paths.add(path);
+			}
+		}
 	}
 
-	@Override
-	public void onPrepareBuffer(final Viewport viewport, final Canvas c)
+	/**
+	 * Builds reference path that goes through anchor, only points within bounds are included.
+	 *
+	 * @param axis pixel coordinate that grows along path
+	 * @param bearing bearing of path in direction of growing coordinate
+	 * @return latitude and longitude pairs
+	 */
+	private double[] buildReferencePath(BaseMap map, double[] anchor, int axis, double bearing, int min, int max)
 	{
-		c.save();
-		c.translate(-viewport.mapCenterXY[0], -viewport.mapCenterXY[1]);
-		if (clip != null)
+		double step = spacing * 3;
+		double[] before = new double[32];
+		double[] after = new double[32];
+		int nb = 0, na = 0;
+		double[] ll = new double[2];
+		int[] xy = new int[2];
+
+		map.getXYByLatLon(anchor[0], anchor[1], xy);
+		boolean anchorInside = xy[axis] >= min && xy[axis] <= max;
+
+		// Walk backward from anchor
+		ll[0] = anchor[0];
+		ll[1] = anchor[1];
+		for (int i = 0; i < MAX_STEPS; i++)
 		{
-			c.clipRect(clip);
+			project(ll[0], ll[1], step, (bearing + 180) % 360, ll);
+			map.getXYByLatLon(ll[0], ll[1], xy);
+			if (xy[axis] < min)
+				break;
+			if (xy[axis] <= max)
+			{
+				if (nb == before.length)
+					before = Arrays.copyOf(before, nb * 2);
+				before[nb++] = ll[0];
+				before[nb++] = ll[1];
+			}
 		}
-		for (Path path : paths)
+		// Walk forward from anchor
+		ll[0] = anchor[0];
+		ll[1] = anchor[1];
+		for (int i = 0; i < MAX_STEPS; i++)
 		{
-			c.drawPath(path, linePaint);
+			project(ll[0], ll[1], step, bearing, ll);
+			map.getXYByLatLon(ll[0], ll[1], xy);
+			if (xy[axis] > max)
+				break;
+			if (xy[axis] >= min)
+			{
+				if (na == after.length)
+					after = Arrays.copyOf(after, na * 2);
+				after[na++] = ll[0];
+				after[na++] = ll[1];
+			}
 		}
-		c.restore();
+
+		double[] path = new double[nb + na + (anchorInside ? 2 : 0)];
+		int j = 0;
+		for (int i = nb - 2; i >= 0; i -= 2)
+		{
+			path[j++] = before[i];
+			path[j++] = before[i + 1];
+		}
+		if (anchorInside)
+		{
+			path[j++] = anchor[0];
+			path[j++] = anchor[1];
+		}
+		System.arraycopy(after, 0, path, j, na);
+		return path;
 	}
 
-	@Override
-	public void onPrepareBufferEx(final Viewport viewport, final Canvas c)
+	/**
+	 * Calculates destination point on a sphere, result is stored in provided array.
+	 */
+	static void project(double lat, double lon, double distance, double bearing, double[] result)
 	{
+		double d = distance / EARTH_RADIUS;
+		double b = Math.toRadians(bearing);
+		double lat1 = Math.toRadians(lat);
+		double lon1 = Math.toRadians(lon);
+		double sinLat1 = Math.sin(lat1);
+		double cosLat1 = Math.cos(lat1);
+		double sinD = Math.sin(d);
+		double cosD = Math.cos(d);
+		double lat2 = Math.asin(sinLat1 * cosD + cosLat1 * sinD * Math.cos(b));
+		double lon2 = lon1 + Math.atan2(Math.sin(b) * sinD * cosLat1, cosD - sinLat1 * Math.sin(lat2));
+		result[0] = Math.toDegrees(lat2);
+		result[1] = (Math.toDegrees(lon2) + 540) % 360 - 180;
 	}
 }
@@ -44,6 +44,7 @@ public class OverlayManager
 	private Androzic application;
 	private Handler executionHandler;
 
+	public HillShadeOverlay hillShadeOverlay;
 	public LatLonGridOverlay llGridOverlay;
 	public OtherGridOverlay grGridOverlay;
 	public CurrentTrackOverlay currentTrackOverlay;
@@ -134,6 +135,19 @@ public class OverlayManager
 		}
 	}
 
+	public void setHillShadeOverlayEnabled(boolean enabled)
+	{
+		if (enabled && hillShadeOverlay == null)
+		{
+			hillShadeOverlay = new HillShadeOverlay();
+		}
+		else if (!enabled && hillShadeOverlay != null)
+		{
+			hillShadeOverlay.onBeforeDestroy();
+			hillShadeOverlay = null;
+		}
+	}
+
 	public void setDistanceOverlayEnabled(boolean enabled)
 	{
 		if (enabled && distanceOverlay == null)
@@ -152,6 +166,8 @@ public class OverlayManager
 		List<MapOverlay> overlays = new ArrayList<MapOverlay>();
 		if (order == ORDER_DRAW_PREFERENCE)
 		{
+			if (hillShadeOverlay != null)
+				overlays.add(hillShadeOverlay);
 			if (llGridOverlay != null)
 				overlays.add(llGridOverlay);
 			if (grGridOverlay != null)
@@ -191,6 +207,8 @@ public class OverlayManager
 				overlays.add(grGridOverlay);
 			if (llGridOverlay != null)
 				overlays.add(llGridOverlay);
+			if (hillShadeOverlay != null)
+				overlays.add(hillShadeOverlay);
 		}
 		return overlays;
 	}
@@ -298,6 +316,7 @@ public class OverlayManager
 		setCurrentTrackOverlayEnabled(false);
 		setAccuracyOverlayEnabled(false);
 		setDistanceOverlayEnabled(false);
+		setHillShadeOverlayEnabled(false);
 
 		if (llGridOverlay != null)
 			llGridOverlay.onBeforeDestroy();
@@ -161,18 +161,7 @@ public class TrackOverlay extends MapOverlay
 						continue;
 					for (Track.TrackPoint tp : points)
 					{
-						if (tp.dirty)
-						{
-							application.getXYbyLatLon(tp.latitude, tp.longitude, xy);
-							tp.x = xy[0];
-							tp.y = xy[1];
-							tp.dirty = false;
-						}
-						else
-						{
-							xy[0] = tp.x;
-							xy[1] = tp.y;
-						}
+						project(tp, xy);
 		
 						if (first)
 						{
@@ -211,6 +200,25 @@ public class TrackOverlay extends MapOverlay
 		c.drawPath(path, paint);
 	}
 
+	/**
+	 * Returns map pixel coordinates of track point, they are cached in point until map changes.
+	 */
+	void project(Track.TrackPoint tp, int[] xy)
+	{
+		if (tp.dirty)
+		{
+			application.getXYbyLatLon(tp.latitude, tp.longitude, xy);
+			tp.x = xy[0];
+			tp.y = xy[1];
+			tp.dirty = false;
+		}
+		else
+		{
+			xy[0] = tp.x;
+			xy[1] = tp.y;
+		}
+	}
+
 	@Override
 	public void onPrepareBufferEx(final Viewport viewport, final Canvas c)
 	{
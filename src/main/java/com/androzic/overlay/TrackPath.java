@@ -0,0 +1,234 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.overlay;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+
+import com.androzic.data.Track;
+
+/**
+ * Append-only geometry of growing track in map pixel coordinates. Path is split into chunks of
+ * fixed number of points, new points extend the last chunk, chunks outside of viewport are not
+ * drawn. Points removed from track start drop whole chunks, only the first remaining chunk is
+ * rebuilt. Geometry has to be rebuilt when map projection changes. Not thread safe.
+ * <p>
+ * Map pixel coordinates can exceed float precision on high zoom levels, so every chunk is stored
+ * relative to its first point and is translated by the difference of integer coordinates when drawn.
+ */
+class TrackPath
+{
+	private static final int CHUNK_SIZE = 256;
+
+	private static class Chunk
+	{
+		final Path path = new Path();
+		int count;
+		boolean started;
+		int originX, originY;
+		int lastX, lastY;
+		int left = Integer.MAX_VALUE;
+		int top = Integer.MAX_VALUE;
+		int right = Integer.MIN_VALUE;
+		int bottom = Integer.MIN_VALUE;
+
+		/**
+		 * Starts chunk at the last point of previous chunk, point is not counted.
+		 */
+		void start(int x, int y)
+		{
+			originX = x;
+			originY = y;
+			path.moveTo(0, 0);
+			started = true;
+			include(x, y);
+		}
+
+		void add(boolean continous, int x, int y)
+		{
+			if (!started)
+			{
+				originX = x;
+				originY = y;
+			}
+			if (!started || !continous)
+				path.moveTo(x - originX, y - originY);
+			else if (x != lastX || y != lastY)
+				path.lineTo(x - originX, y - originY);
+			started = true;
+			count++;
+			include(x, y);
+		}
+
+		private void include(int x, int y)
+		{
+			lastX = x;
+			lastY = y;
+			if (x < left)
+				left = x;
+			if (x > right)
+				right = x;
+			if (y < top)
+				top = y;
+			if (y > bottom)
+				bottom = y;
+		}
+	}
+
+	private final TrackOverlay overlay;
+	private final List<Chunk> chunks = new ArrayList<>();
+	private final int[] xy = new int[2];
+	private int count;
+
+	TrackPath(TrackOverlay overlay)
+	{
+		this.overlay = overlay;
+	}
+
+	/**
+	 * Returns number of track points represented by path.
+	 */
+	int getCount()
+	{
+		return count;
+	}
+
+	void clear()
+	{
+		chunks.clear();
+		count = 0;
+	}
+
+	/**
+	 * Rebuilds path from all points of the track.
+	 */
+	void rebuild(Track track)
+	{
+		clear();
+		for (Track.TrackSegment segment : track.getSegments())
+		{
+			synchronized (segment)
+			{
+				for (Track.TrackPoint tp : segment.getPoints())
+					append(tp);
+			}
+		}
+	}
+
+	/**
+	 * Extends path with new point.
+	 */
+	void append(Track.TrackPoint tp)
+	{
+		overlay.project(tp, xy);
+		Chunk chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+		if (chunk == null || chunk.count == CHUNK_SIZE)
+		{
+			Chunk next = new Chunk();
+			if (chunk != null)
+				next.start(chunk.lastX, chunk.lastY);
+			chunks.add(next);
+			chunk = next;
+		}
+		chunk.add(tp.continous, xy[0], xy[1]);
+		count++;
+	}
+
+	/**
+	 * Removes points from path start.
+	 *
+	 * @param removed number of points removed from track start
+	 * @param track track after removal
+	 */
+	void trim(int removed, Track track)
+	{
+		boolean changed = false;
+		while (!chunks.isEmpty() && chunks.get(0).count <= removed)
+		{
+			Chunk chunk = chunks.remove(0);
+			removed -= chunk.count;
+			count -= chunk.count;
+			changed = true;
+		}
+		if (chunks.isEmpty() || !changed && removed == 0)
+			return;
+		// New first chunk should not start at removed point
+		Chunk first = new Chunk();
+		int keep = chunks.get(0).count - removed;
+		for (int i = 0; i < keep; i++)
+		{
+			Track.TrackPoint tp = track.getPoint(i);
+			overlay.project(tp, xy);
+			first.add(tp.continous, xy[0], xy[1]);
+		}
+		chunks.set(0, first);
+		count -= removed;
+	}
+
+	/**
+	 * Draws line from the last point of path to given point, e.g. to position that is not in
+	 * the track yet. Canvas origin should be at map area center.
+	 *
+	 * @param cx map area center X in map pixels
+	 * @param cy map area center Y in map pixels
+	 * @param x point X in map pixels
+	 * @param y point Y in map pixels
+	 */
+	void drawTail(Canvas c, Paint paint, int cx, int cy, int x, int y)
+	{
+		if (chunks.isEmpty())
+			return;
+		Chunk chunk = chunks.get(chunks.size() - 1);
+		if (!chunk.started)
+			return;
+		c.drawLine(chunk.lastX - cx, chunk.lastY - cy, x - cx, y - cy, paint);
+	}
+
+	/**
+	 * Draws chunks visible in given map area. Canvas origin should be at map area center.
+	 *
+	 * @param cx map area center X in map pixels
+	 * @param cy map area center Y in map pixels
+	 * @param w2 half width of map area
+	 * @param h2 half height of map area
+	 */
+	void draw(Canvas c, Paint paint, int cx, int cy, int w2, int h2)
+	{
+		int margin = (int) Math.ceil(paint.getStrokeWidth());
+		int left = cx - w2;
+		int top = cy - h2;
+		int right = cx + w2;
+		int bottom = cy + h2;
+		for (Chunk chunk : chunks)
+		{
+			if (chunk.right + margin < left || chunk.left - margin > right || chunk.bottom + margin < top || chunk.top - margin > bottom)
+				continue;
+			c.save();
+			c.translate(chunk.originX - cx, chunk.originY - cy);
+			c.drawPath(chunk.path, paint);
+			c.restore();
+		}
+	}
+}
@@ -55,11 +55,13 @@ import com.androzic.FragmentHolder;
 import com.androzic.R;
 import com.androzic.data.Route;
 import com.androzic.data.Waypoint;
+import com.androzic.dem.ElevationProfile;
+import com.androzic.dem.ElevationProfileService;
 import com.androzic.navigation.NavigationService;
 import com.androzic.util.StringFormatter;
 import com.androzic.waypoint.OnWaypointActionListener;
 
-public class RouteDetails extends ListFragment implements OnSharedPreferenceChangeListener, MenuBuilder.Callback, MenuPresenter.Callback
+public class RouteDetails extends ListFragment implements OnSharedPreferenceChangeListener, MenuBuilder.Callback, MenuPresenter.Callback, ElevationProfileService.OnElevationProfileListener
 {
 	private static final String TAG = "RouteDetails";
 
@@ -187,6 +189,9 @@ public class RouteDetails extends ListFragment implements OnSharedPreferenceChan
 		}
 		
 		PreferenceManager.getDefaultSharedPreferences(application).unregisterOnSharedPreferenceChangeListener(this);
+
+		application.getElevationProfileService().cancel(route);
+		((AppCompatActivity) getActivity()).getSupportActionBar().setSubtitle(null);
 	}
 
 	@Override
@@ -334,6 +339,19 @@ public class RouteDetails extends ListFragment implements OnSharedPreferenceChan
 			getListView().setSelection(application.navigationService.navRouteCurrentIndex());
 
 		activity.supportInvalidateOptionsMenu();
+
+		activity.getSupportActionBar().setSubtitle(null);
+		if (route.length() > 1)
+			application.getElevationProfileService().getProfile(route, this);
+	}
+
+	@Override
+	public void onElevationProfileReady(Object source, ElevationProfile profile)
+	{
+		if (source != route || !isVisible() || !profile.hasData())
+			return;
+		AppCompatActivity activity = (AppCompatActivity) getActivity();
+		activity.getSupportActionBar().setSubtitle("\u2197 " + StringFormatter.elevationH(profile.ascent) + "  \u2198 " + StringFormatter.elevationH(profile.descent));
 	}
 
 	@Override
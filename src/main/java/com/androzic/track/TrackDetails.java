@@ -44,11 +44,12 @@ import com.androzic.Androzic;
 import com.androzic.FragmentHolder;
 import com.androzic.R;
 import com.androzic.data.Track;
-import com.androzic.util.Geo;
-import com.androzic.util.MeanValue;
+import com.androzic.dem.ElevationProfile;
+import com.androzic.dem.ElevationProfileService;
+import com.androzic.ui.ElevationProfileView;
 import com.androzic.util.StringFormatter;
 
-public class TrackDetails extends Fragment
+public class TrackDetails extends Fragment implements ElevationProfileService.OnElevationProfileListener
 {
 	private FragmentHolder fragmentHolderCallback;
 	private OnTrackActionListener trackActionsCallback;
@@ -105,6 +106,15 @@ public class TrackDetails extends Fragment
 			updateTrackDetails();
 	}
 
+	@Override
+	public void onStop()
+	{
+		super.onStop();
+
+		if (track != null)
+			Androzic.getApplication().getElevationProfileService().cancel(track);
+	}
+
 	@Override
 	public void onResume()
 	{
@@ -221,48 +231,60 @@ public class TrackDetails extends Fragment
 		}
 		((TextView) view.findViewById(R.id.time_span)).setText(timeSpan);
 
-		// Gather statistics
-		int segmentCount = 0;
-		double minElevation = Double.MAX_VALUE;
-		double maxElevation = Double.MIN_VALUE;
-		double maxSpeed = 0;
-				
-		MeanValue mv = new MeanValue();
+		// Statistics are calculated once per track and then updated with new points
+		TrackStatistics statistics = TrackStatistics.of(track);
 
-		for (Track.TrackSegment segment : track.getSegments())
-		{
-			Track.TrackPoint ptp = null;
-			if (segment.independent)
-				segmentCount++;
+		String movingTime = DateUtils.formatElapsedTime(statistics.movingTime / 1000);
+		((TextView) view.findViewById(R.id.moving_time)).setText(String.format(Locale.getDefault(), "%s: %s", resources.getString(R.string.moving_time), movingTime));
 
-			for (Track.TrackPoint tp : segment.getPoints())
-			{
-				if (ptp != null)
-				{
-					double d = Geo.distance(tp.latitude, tp.longitude, ptp.latitude, ptp.longitude);
-					double speed = d / ((tp.time - ptp.time) / 1000);
-					if (speed == Double.POSITIVE_INFINITY)
-						continue;
-					mv.addValue(speed);
-					if (speed > maxSpeed)
-						maxSpeed = speed;
-				}
-				ptp = tp;
-				if (tp.elevation < minElevation && tp.elevation != 0)
-					minElevation = tp.elevation;
-				if (tp.elevation > maxElevation)
-					maxElevation = tp.elevation;
-			}
-		}
-
-		double averageSpeed = mv.getMeanValue();
-
-		((TextView) view.findViewById(R.id.segment_count)).setText(resources.getQuantityString(R.plurals.numberOfSegments, segmentCount, segmentCount));
+		((TextView) view.findViewById(R.id.segment_count)).setText(resources.getQuantityString(R.plurals.numberOfSegments, statistics.segmentCount, statistics.segmentCount));
 
+		double maxElevation = statistics.hasElevation() ? statistics.maxElevation : 0;
+		double minElevation = statistics.hasElevation() ? statistics.minElevation : 0;
 		((TextView) view.findViewById(R.id.max_elevation)).setText(StringFormatter.elevationH(maxElevation));
 		((TextView) view.findViewById(R.id.min_elevation)).setText(StringFormatter.elevationH(minElevation));
 
-		((TextView) view.findViewById(R.id.max_speed)).setText(String.format(Locale.getDefault(), "%s: %s", resources.getString(R.string.max_speed), StringFormatter.speedH(maxSpeed)));
-		((TextView) view.findViewById(R.id.average_speed)).setText(String.format(Locale.getDefault(), "%s: %s", resources.getString(R.string.average_speed), StringFormatter.speedH(averageSpeed)));
+		((TextView) view.findViewById(R.id.max_speed)).setText(String.format(Locale.getDefault(), "%s: %s", resources.getString(R.string.max_speed), StringFormatter.speedH(statistics.maxSpeed)));
+		((TextView) view.findViewById(R.id.average_speed)).setText(String.format(Locale.getDefault(), "%s: %s", resources.getString(R.string.average_speed), StringFormatter.speedH(statistics.getAverageSpeed())));
+
+		// Recorded elevation is preferred, elevation profile is used only if track has no elevation
+		TextView ascent = (TextView) view.findViewById(R.id.ascent);
+		TextView descent = (TextView) view.findViewById(R.id.descent);
+		if (statistics.hasElevation())
+		{
+			ascent.setText(String.format(Locale.getDefault(), "%s: %s", resources.getString(R.string.ascent), StringFormatter.elevationH(statistics.elevationGain)));
+			ascent.setVisibility(View.VISIBLE);
+			descent.setText(String.format(Locale.getDefault(), "%s: %s", resources.getString(R.string.descent), StringFormatter.elevationH(statistics.elevationLoss)));
+			descent.setVisibility(View.VISIBLE);
+		}
+		else
+		{
+			ascent.setVisibility(View.GONE);
+			descent.setVisibility(View.GONE);
+		}
+		view.findViewById(R.id.elevation_profile).setVisibility(View.GONE);
+		Androzic.getApplication().getElevationProfileService().getProfile(track, this);
+	}
+
+	@Override
+	public void onElevationProfileReady(Object source, ElevationProfile profile)
+	{
+		View view = getView();
+		if (source != track || view == null || !profile.hasData())
+			return;
+
+		ElevationProfileView chart = (ElevationProfileView) view.findViewById(R.id.elevation_profile);
+		chart.setProfile(profile);
+		chart.setVisibility(View.VISIBLE);
+
+		if (TrackStatistics.of(track).hasElevation())
+			return;
+		Resources resources = getResources();
+		TextView ascent = (TextView) view.findViewById(R.id.ascent);
+		ascent.setText(String.format(Locale.getDefault(), "%s: %s", resources.getString(R.string.ascent), StringFormatter.elevationH(profile.ascent)));
+		ascent.setVisibility(View.VISIBLE);
+		TextView descent = (TextView) view.findViewById(R.id.descent);
+		descent.setText(String.format(Locale.getDefault(), "%s: %s", resources.getString(R.string.descent), StringFormatter.elevationH(profile.descent)));
+		descent.setVisibility(View.VISIBLE);
 	}
 }
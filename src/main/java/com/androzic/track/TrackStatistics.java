@@ -0,0 +1,385 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.track;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.androzic.data.Track;
+import com.androzic.util.Geo;
+
+/**
+ * Track statistics accumulated point by point, each point is accounted in constant time.
+ * Elevation gain and loss are counted only after elevation changes by more than threshold from
+ * the last turning point, so that GPS elevation noise does not add up. Time between points is
+ * counted as moving if speed between them is above walking crawl.
+ */
+public class TrackStatistics
+{
+	private static final int VERSION = 1;
+	// Elevation change in meters that is considered as real
+	public static final double ELEVATION_THRESHOLD = 5;
+	// Speed in m/s below which track is considered as standing still
+	public static final double MOVING_SPEED = 0.3;
+
+	public int pointCount;
+	public int segmentCount;
+	public double distance;
+	public double minElevation = Double.NaN;
+	public double maxElevation = Double.NaN;
+	public double elevationGain;
+	public double elevationLoss;
+	public double maxSpeed;
+	public long startTime;
+	public long endTime;
+	// Time within segments, pauses between segments are not counted
+	public long totalTime;
+	public long movingTime;
+	public double movingDistance;
+
+	private boolean hasLast;
+	private double lastLatitude;
+	private double lastLongitude;
+	private long lastTime;
+	private double elevationReference = Double.NaN;
+
+	// Statistics of loaded tracks, recomputed only if track is changed not by appending
+	private static final Map<Track, Cached> cache = new WeakHashMap<>();
+
+	/**
+	 * Cached statistics remembers position of the last accounted point, track is considered
+	 * appended only if the first and the last accounted points are still in place.
+	 */
+	private static class Cached
+	{
+		TrackStatistics statistics;
+		Track.TrackPoint firstPoint;
+		Track.TrackPoint lastPoint;
+		int segment;
+		int position;
+	}
+
+	public TrackStatistics()
+	{
+	}
+
+	public TrackStatistics(TrackStatistics other)
+	{
+		pointCount = other.pointCount;
+		segmentCount = other.segmentCount;
+		distance = other.distance;
+		minElevation = other.minElevation;
+		maxElevation = other.maxElevation;
+		elevationGain = other.elevationGain;
+		elevationLoss = other.elevationLoss;
+		maxSpeed = other.maxSpeed;
+		startTime = other.startTime;
+		endTime = other.endTime;
+		totalTime = other.totalTime;
+		movingTime = other.movingTime;
+		movingDistance = other.movingDistance;
+		hasLast = other.hasLast;
+		lastLatitude = other.lastLatitude;
+		lastLongitude = other.lastLongitude;
+		lastTime = other.lastTime;
+		elevationReference = other.elevationReference;
+	}
+
+	public void clear()
+	{
+		pointCount = 0;
+		segmentCount = 0;
+		distance = 0;
+		minElevation = Double.NaN;
+		maxElevation = Double.NaN;
+		elevationGain = 0;
+		elevationLoss = 0;
+		maxSpeed = 0;
+		startTime = 0;
+		endTime = 0;
+		totalTime = 0;
+		movingTime = 0;
+		movingDistance = 0;
+		hasLast = false;
+		elevationReference = Double.NaN;
+	}
+
+	public void addPoint(Track.TrackPoint tp)
+	{
+		addPoint(tp.continous, tp.latitude, tp.longitude, tp.elevation, tp.time);
+	}
+
+	public void addPoint(boolean continous, double latitude, double longitude, double elevation, long time)
+	{
+		if (pointCount == 0)
+			startTime = time;
+		pointCount++;
+		if (time > endTime)
+			endTime = time;
+
+		if (hasLast && continous)
+		{
+			double d = Geo.distance(lastLatitude, lastLongitude, latitude, longitude);
+			distance += d;
+			long dt = time - lastTime;
+			if (dt > 0 && lastTime > 0)
+			{
+				totalTime += dt;
+				double speed = d * 1000 / dt;
+				if (speed > maxSpeed)
+					maxSpeed = speed;
+				if (speed >= MOVING_SPEED)
+				{
+					movingTime += dt;
+					movingDistance += d;
+				}
+			}
+		}
+		else
+		{
+			segmentCount++;
+		}
+		hasLast = true;
+		lastLatitude = latitude;
+		lastLongitude = longitude;
+		lastTime = time;
+
+		// Zero elevation usually means no elevation
+		if (Double.isNaN(elevation) || elevation == 0)
+			return;
+		if (Double.isNaN(minElevation) || elevation < minElevation)
+			minElevation = elevation;
+		if (Double.isNaN(maxElevation) || elevation > maxElevation)
+			maxElevation = elevation;
+		if (Double.isNaN(elevationReference))
+		{
+			elevationReference = elevation;
+		}
+		else if (elevation - elevationReference > ELEVATION_THRESHOLD)
+		{
+			elevationGain += elevation - elevationReference;
+			elevationReference = elevation;
+		}
+		else if (elevationReference - elevation > ELEVATION_THRESHOLD)
+		{
+			elevationLoss += elevationReference - elevation;
+			elevationReference = elevation;
+		}
+	}
+
+	/**
+	 * Returns average speed over time spent within track segments, m/s.
+	 */
+	public double getAverageSpeed()
+	{
+		return totalTime > 0 ? distance * 1000 / totalTime : 0;
+	}
+
+	/**
+	 * Returns average speed while moving, m/s.
+	 */
+	public double getMovingSpeed()
+	{
+		return movingTime > 0 ? movingDistance * 1000 / movingTime : 0;
+	}
+
+	public boolean hasElevation()
+	{
+		return !Double.isNaN(minElevation);
+	}
+
+	public byte[] toByteArray()
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(160);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try
+		{
+			out.writeInt(VERSION);
+			out.writeInt(pointCount);
+			out.writeInt(segmentCount);
+			out.writeDouble(distance);
+			out.writeDouble(minElevation);
+			out.writeDouble(maxElevation);
+			out.writeDouble(elevationGain);
+			out.writeDouble(elevationLoss);
+			out.writeDouble(maxSpeed);
+			out.writeLong(startTime);
+			out.writeLong(endTime);
+			out.writeLong(totalTime);
+			out.writeLong(movingTime);
+			out.writeDouble(movingDistance);
+			out.writeBoolean(hasLast);
+			out.writeDouble(lastLatitude);
+			out.writeDouble(lastLongitude);
+			out.writeLong(lastTime);
+			out.writeDouble(elevationReference);
+		}
+		catch (IOException e)
+		{
+			// Can not happen with byte array
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Restores statistics saved by {@link #toByteArray()}.
+	 *
+	 * @return statistics or null if data is not recognized
+	 */
+	public static TrackStatistics fromByteArray(byte[] data)
+	{
+		if (data == null)
+			return null;
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		TrackStatistics statistics = new TrackStatistics();
+		try
+		{
+			if (in.readInt() != VERSION)
+				return null;
+			statistics.pointCount = in.readInt();
+			statistics.segmentCount = in.readInt();
+			statistics.distance = in.readDouble();
+			statistics.minElevation = in.readDouble();
+			statistics.maxElevation = in.readDouble();
+			statistics.elevationGain = in.readDouble();
+			statistics.elevationLoss = in.readDouble();
+			statistics.maxSpeed = in.readDouble();
+			statistics.startTime = in.readLong();
+			statistics.endTime = in.readLong();
+			statistics.totalTime = in.readLong();
+			statistics.movingTime = in.readLong();
+			statistics.movingDistance = in.readDouble();
+			statistics.hasLast = in.readBoolean();
+			statistics.lastLatitude = in.readDouble();
+			statistics.lastLongitude = in.readDouble();
+			statistics.lastTime = in.readLong();
+			statistics.elevationReference = in.readDouble();
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		return statistics;
+	}
+
+	/**
+	 * Returns statistics of the track. It is computed once, points appended to the track later are
+	 * accounted incrementally. If track is changed otherwise statistics is recomputed. Track editors
+	 * that modify points in place should call {@link #invalidate(Track)}.
+	 */
+	public static TrackStatistics of(Track track)
+	{
+		synchronized (track)
+		{
+			Cached cached;
+			synchronized (cache)
+			{
+				cached = cache.get(track);
+			}
+			List<Track.TrackSegment> segments = track.getSegments();
+			if (cached == null || !isAppended(cached, track, segments))
+			{
+				cached = new Cached();
+				cached.statistics = new TrackStatistics();
+				synchronized (cache)
+				{
+					cache.put(track, cached);
+				}
+			}
+			// Continue from the last accounted point, segments are walked directly as random
+			// access to track points is not constant time
+			for (int i = cached.segment; i < segments.size(); i++)
+			{
+				List<Track.TrackPoint> points = segments.get(i).getPoints();
+				int j = i == cached.segment ? cached.position : 0;
+				for (; j < points.size(); j++)
+				{
+					Track.TrackPoint tp = points.get(j);
+					if (cached.firstPoint == null)
+						cached.firstPoint = tp;
+					cached.statistics.addPoint(tp);
+					cached.lastPoint = tp;
+				}
+				cached.segment = i;
+				cached.position = j;
+			}
+			return new TrackStatistics(cached.statistics);
+		}
+	}
+
+	/**
+	 * Sets known statistics of the track, e.g. persisted with it.
+	 */
+	public static void put(Track track, TrackStatistics statistics)
+	{
+		synchronized (track)
+		{
+			Cached cached = new Cached();
+			cached.statistics = new TrackStatistics(statistics);
+			List<Track.TrackSegment> segments = track.getSegments();
+			for (int i = segments.size() - 1; i >= 0; i--)
+			{
+				List<Track.TrackPoint> points = segments.get(i).getPoints();
+				if (points.isEmpty())
+					continue;
+				cached.segment = i;
+				cached.position = points.size();
+				cached.lastPoint = points.get(points.size() - 1);
+				cached.firstPoint = track.getPoint(0);
+				break;
+			}
+			synchronized (cache)
+			{
+				cache.put(track, cached);
+			}
+		}
+	}
+
+	/**
+	 * Drops cached statistics of the track, it will be recomputed on next request.
+	 */
+	public static void invalidate(Track track)
+	{
+		synchronized (cache)
+		{
+			cache.remove(track);
+		}
+	}
+
+	private static boolean isAppended(Cached cached, Track track, List<Track.TrackSegment> segments)
+	{
+		if (cached.lastPoint == null)
+			return cached.statistics.pointCount == 0;
+		if (cached.segment >= segments.size() || cached.statistics.pointCount > track.getPointCount())
+			return false;
+		List<Track.TrackPoint> points = segments.get(cached.segment).getPoints();
+		if (cached.position > points.size() || points.get(cached.position - 1) != cached.lastPoint)
+			return false;
+		return track.getPoint(0) == cached.firstPoint;
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Androzic - android navigation client that uses OziExplorer maps (ozf2, ozfx3).
+ * Copyright (C) 2010-2015 Andrey Novikov <http://andreynovikov.info/>
+ *
+ * This file is part of Androzic application.
+ *
+ * Androzic is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Androzic is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Androzic. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.androzic.ui;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.support.v4.content.ContextCompat;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.androzic.R;
+import com.androzic.dem.ElevationProfile;
+import com.androzic.util.StringFormatter;
+
+/**
+ * Draws elevation profile as a filled chart with distance along horizontal axis. Highest and
+ * lowest elevations are labeled.
+ */
+public class ElevationProfileView extends View
+{
+	private ElevationProfile profile;
+
+	private final Paint linePaint = new Paint();
+	private final Paint fillPaint = new Paint();
+	private final Paint textPaint = new Paint();
+	private final Path line = new Path();
+	private final Path fill = new Path();
+
+	public ElevationProfileView(Context context)
+	{
+		super(context);
+		init();
+	}
+
+	public ElevationProfileView(Context context, AttributeSet attrs)
+	{
+		super(context, attrs);
+		init();
+	}
+
+	public ElevationProfileView(Context context, AttributeSet attrs, int defStyle)
+	{
+		super(context, attrs, defStyle);
+		init();
+	}
+
+	private void init()
+	{
+		float density = getResources().getDisplayMetrics().density;
+		int color = ContextCompat.getColor(getContext(), R.color.theme_accent_color);
+		linePaint.setAntiAlias(true);
+		linePaint.setStyle(Paint.Style.STROKE);
+		linePaint.setStrokeWidth(2 * density);
+		linePaint.setColor(color);
+		fillPaint.setAntiAlias(true);
+		fillPaint.setStyle(Paint.Style.FILL);
+		fillPaint.setColor(color);
+		fillPaint.setAlpha(0x40);
+		textPaint.setAntiAlias(true);
+		textPaint.setTextSize(12 * density);
+		textPaint.setColor(0xffffffff);
+	}
+
+	public void setProfile(ElevationProfile profile)
+	{
+		this.profile = profile;
+		rebuildPath();
+		invalidate();
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh)
+	{
+		super.onSizeChanged(w, h, oldw, oldh);
+		rebuildPath();
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas)
+	{
+		if (profile == null || !profile.hasData())
+			return;
+		canvas.drawPath(fill, fillPaint);
+		canvas.drawPath(line, linePaint);
+		float left = getPaddingLeft();
+		float top = getPaddingTop() - textPaint.ascent();
+		float bottom = getHeight() - getPaddingBottom() - textPaint.descent();
+		canvas.drawText(StringFormatter.elevationH(profile.maxElevation), left, top, textPaint);
+		canvas.drawText(StringFormatter.elevationH(profile.minElevation), left, bottom, textPaint);
+	}
+
+	private void rebuildPath()
+	{
+		line.reset();
+		fill.reset();
+		if (profile == null || !profile.hasData())
+			return;
+
+		float[] distances = profile.distances;
+		float[] elevations = profile.elevations;
+		int n = distances.length;
+		// Leave room for labels
+		float textHeight = textPaint.descent() - textPaint.ascent();
+		float left = getPaddingLeft();
+		float width = getWidth() - getPaddingRight() - left;
+		float top = getPaddingTop() + textHeight;
+		float height = getHeight() - getPaddingBottom() - textHeight - top;
+		if (width <= 0 || height <= 0)
+			return;
+
+		double high = profile.maxElevation;
+		double range = profile.maxElevation - profile.minElevation;
+		// Flat profiles are drawn in the middle
+		if (range < 1)
+		{
+			high = (profile.maxElevation + profile.minElevation + 1) / 2;
+			range = 1;
+		}
+		float length = distances[n - 1] > 0 ? distances[n - 1] : 1;
+		for (int i = 0; i < n; i++)
+		{
+			float x = left + width * distances[i] / length;
+			float y = top + height * (float) ((high - elevations[i]) / range);
+			if (i == 0)
+			{
+				line.moveTo(x, y);
+				fill.moveTo(x, top + height);
+			}
+			else
+			{
+				line.lineTo(x, y);
+			}
+			fill.lineTo(x, y);
+		}
+		fill.lineTo(left + width * distances[n - 1] / length, top + height);
+		fill.close();
+	}
+}
@@ -48,6 +48,7 @@ import com.androzic.data.Route;
 import com.androzic.data.Track;
 import com.androzic.data.Track.TrackPoint;
 import com.androzic.data.Waypoint;
+import com.androzic.track.TrackStatistics;
 
 /**
  * Helper class to read and write GPX files.
@@ -103,6 +104,9 @@ public class GpxFiles
 		{
 			tracks.get(0).filepath = file.getCanonicalPath();
 		}
+		// Calculate statistics while in loader thread
+		for (Track track : tracks)
+			TrackStatistics.of(track);
 		
 		return tracks;
 	}
@@ -50,6 +50,7 @@ import com.androzic.data.Route;
 import com.androzic.data.Track;
 import com.androzic.data.Track.TrackPoint;
 import com.androzic.data.Waypoint;
+import com.androzic.track.TrackStatistics;
 
 /**
  * Helper class to read and write KML files.
@@ -96,6 +97,9 @@ public class KmlFiles
 		SAXParserFactory factory = SAXParserFactory.newInstance();
 		SAXParser parser = factory.newSAXParser();
 		parser.parse(file, new KmlParser(file.getName(), null, tracks));
+		// Calculate statistics while in loader thread
+		for (Track track : tracks)
+			TrackStatistics.of(track);
 		return tracks;
 	}
 
@@ -40,6 +40,7 @@ import com.androzic.data.Track;
 import com.androzic.data.Track.TrackPoint;
 import com.androzic.data.Waypoint;
 import com.androzic.map.MapLoader;
+import com.androzic.track.TrackStatistics;
 import com.jhlabs.map.Datum;
 import com.jhlabs.map.Ellipsoid;
 
@@ -348,6 +349,8 @@ public class OziExplorerFiles
 		track.filepath = file.getCanonicalPath();
 		if ("".equals(track.name))
 			track.name = track.filepath;
+		// Calculate statistics while in loader thread
+		TrackStatistics.of(track);
 
 		return track;
 	}
@@ -24,6 +24,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.zip.CRC32;
 
 import org.mapsforge.map.rendertheme.XmlRenderTheme;
 import org.mapsforge.map.rendertheme.XmlRenderThemeMenuCallback;
@@ -41,6 +42,7 @@ public class BufferedAssetsRenderTheme implements XmlRenderTheme
 	private final XmlRenderThemeMenuCallback menuCallback;
 	private final String relativePathPrefix;
 	private final byte[] data;
+	private final long checksum;
 
 	public BufferedAssetsRenderTheme(Context context, String relativePathPrefix, String fileName, XmlRenderThemeMenuCallback menuCallback) throws IOException
 	{
@@ -55,6 +57,9 @@ public class BufferedAssetsRenderTheme implements XmlRenderTheme
 			baos.write(buffer, 0, read);
 		in.close();
 		data = baos.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		checksum = crc.getValue();
 		this.menuCallback = menuCallback;
 	}
 
@@ -70,6 +75,14 @@ public class BufferedAssetsRenderTheme implements XmlRenderTheme
 		return this.relativePathPrefix;
 	}
 
+	/**
+	 * Returns checksum of theme source, it identifies theme content.
+	 */
+	public long getChecksum()
+	{
+		return this.checksum;
+	}
+
 	@Override
 	public InputStream getRenderThemeAsStream()
 	{
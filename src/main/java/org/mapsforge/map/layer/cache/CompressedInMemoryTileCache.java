@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015 Andrey Novikov
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.map.layer.cache;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.map.layer.queue.Job;
+import org.mapsforge.map.model.common.Observable;
+import org.mapsforge.map.model.common.Observer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory LRU tile cache that holds tiles in compressed form. Cache size is limited
+ * by total amount of compressed data. Tiles are decoded on every get.
+ */
+public class CompressedInMemoryTileCache implements TileCache
+{
+	private final GraphicFactory graphicFactory;
+	private final LinkedHashMap<Job, byte[]> cache;
+	private final Observable observable;
+	private final long maxBytes;
+	private long bytes;
+
+	public CompressedInMemoryTileCache(long maxBytes, GraphicFactory graphicFactory)
+	{
+		this.maxBytes = maxBytes;
+		this.graphicFactory = graphicFactory;
+		this.cache = new LinkedHashMap<>(64, 0.75f, true);
+		this.observable = new Observable();
+	}
+
+	@Override
+	public synchronized boolean containsKey(Job key)
+	{
+		return this.cache.containsKey(key);
+	}
+
+	@Override
+	public synchronized void destroy()
+	{
+		purge();
+	}
+
+	@Override
+	public TileBitmap get(Job key)
+	{
+		byte[] data;
+		synchronized (this)
+		{
+			data = this.cache.get(key);
+		}
+		if (data == null)
+			return null;
+		try
+		{
+			return this.graphicFactory.createTileBitmap(new ByteArrayInputStream(data), key.tile.tileSize, key.hasAlpha);
+		}
+		catch (IOException e)
+		{
+			remove(key);
+			return null;
+		}
+	}
+
+	@Override
+	public synchronized int getCapacity()
+	{
+		return this.cache.size();
+	}
+
+	@Override
+	public int getCapacityFirstLevel()
+	{
+		return getCapacity();
+	}
+
+	@Override
+	public TileBitmap getImmediately(Job key)
+	{
+		return null;
+	}
+
+	@Override
+	public synchronized void purge()
+	{
+		this.cache.clear();
+		this.bytes = 0;
+	}
+
+	@Override
+	public void put(Job key, TileBitmap bitmap)
+	{
+		if (key == null || bitmap == null)
+			return;
+
+		synchronized (this)
+		{
+			if (this.cache.containsKey(key))
+				return;
+		}
+
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream(32768);
+		try
+		{
+			bitmap.compress(outputStream);
+		}
+		catch (IOException e)
+		{
+			return;
+		}
+		put(key, outputStream.toByteArray());
+	}
+
+	/**
+	 * Puts already compressed tile.
+	 */
+	public void put(Job key, byte[] data)
+	{
+		synchronized (this)
+		{
+			byte[] old = this.cache.put(key, data);
+			if (old != null)
+				this.bytes -= old.length;
+			this.bytes += data.length;
+			trim();
+		}
+		this.observable.notifyObservers();
+	}
+
+	/**
+	 * Returns amount of compressed data held in cache, in bytes.
+	 */
+	public synchronized long getSize()
+	{
+		return this.bytes;
+	}
+
+	@Override
+	public void setWorkingSet(Set<Job> workingSet)
+	{
+	}
+
+	@Override
+	public void addObserver(Observer observer)
+	{
+		this.observable.addObserver(observer);
+	}
+
+	@Override
+	public void removeObserver(Observer observer)
+	{
+		this.observable.removeObserver(observer);
+	}
+
+	private synchronized void remove(Job key)
+	{
+		byte[] old = this.cache.remove(key);
+		if (old != null)
+			this.bytes -= old.length;
+	}
+
+	private void trim()
+	{
+		Iterator<Map.Entry<Job, byte[]>> iterator = this.cache.entrySet().iterator();
+		while (this.bytes > this.maxBytes && iterator.hasNext())
+		{
+			Map.Entry<Job, byte[]> entry = iterator.next();
+			this.bytes -= entry.getValue().length;
+			iterator.remove();
+		}
+	}
+}
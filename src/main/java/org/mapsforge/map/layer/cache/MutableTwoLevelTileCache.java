@@ -17,24 +17,45 @@
 package org.mapsforge.map.layer.cache;
 
 import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.map.layer.Redrawer;
 import org.mapsforge.map.layer.queue.Job;
 import org.mapsforge.map.model.common.Observable;
 import org.mapsforge.map.model.common.Observer;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+/**
+ * Two level tile cache with replaceable levels and optional intermediate level holding
+ * compressed tiles. Tiles are put to intermediate level and promoted from it to the first level
+ * asynchronously, so that tile compression and decompression never happen in the caller thread.
+ * If tile is already stored in file system cache its file bytes are reused instead of compressing
+ * it once more. Redrawer is notified when promoted tile becomes available.
+ */
 public class MutableTwoLevelTileCache implements TileCache
 {
 	private TileCache firstLevelTileCache;
+	private TileCache compressedTileCache;
 	private TileCache secondLevelTileCache;
+	private File secondLevelDirectory;
+	private Redrawer redrawer;
 	private final Set<Job> workingSet;
+	private final Set<Job> pendingPromotions;
 	private final Observable observable;
+	private ExecutorService promotionExecutor;
 
 	public MutableTwoLevelTileCache()
 	{
 		this.workingSet = Collections.synchronizedSet(new HashSet<Job>());
+		this.pendingPromotions = Collections.synchronizedSet(new HashSet<Job>());
 		this.observable = new Observable();
 	}
 
@@ -46,11 +67,37 @@ public class MutableTwoLevelTileCache implements TileCache
 		updateWorkingSets();
 	}
 
-	public void setSecondLevelCache(TileCache secondLevelTileCache)
+	public void setCompressedCache(TileCache compressedTileCache)
+	{
+		if (this.compressedTileCache != null)
+			this.compressedTileCache.destroy();
+		this.compressedTileCache = compressedTileCache;
+	}
+
+	/**
+	 * Sets second level cache. Previous second level cache is not destroyed, its lifecycle is
+	 * managed by the caller as it can be reused later.
+	 *
+	 * @param cacheDirectory directory of {@link FileSystemTileCache}, tile files from it are used
+	 *                       as compressed tiles, can be null
+	 */
+	public void setSecondLevelCache(TileCache secondLevelTileCache, File cacheDirectory)
 	{
-		if (this.secondLevelTileCache != null)
-			this.secondLevelTileCache.destroy();
 		this.secondLevelTileCache = secondLevelTileCache;
+		this.secondLevelDirectory = cacheDirectory;
+	}
+
+	public TileCache getSecondLevelCache()
+	{
+		return this.secondLevelTileCache;
+	}
+
+	/**
+	 * Sets redrawer that is called when tile promoted from intermediate level becomes available.
+	 */
+	public void setRedrawer(Redrawer redrawer)
+	{
+		this.redrawer = redrawer;
 	}
 
 	@Override
@@ -60,6 +107,8 @@ public class MutableTwoLevelTileCache implements TileCache
 			return false;
 		if (this.firstLevelTileCache.containsKey(key))
 			return true;
+		if (this.compressedTileCache != null && this.compressedTileCache.containsKey(key))
+			return true;
 		if (this.secondLevelTileCache == null)
 			return false;
 		return this.secondLevelTileCache.containsKey(key);
@@ -68,8 +117,18 @@ public class MutableTwoLevelTileCache implements TileCache
 	@Override
 	public void destroy()
 	{
+		synchronized (this.pendingPromotions)
+		{
+			if (this.promotionExecutor != null)
+			{
+				this.promotionExecutor.shutdown();
+				this.promotionExecutor = null;
+			}
+		}
 		if (this.firstLevelTileCache != null)
 			this.firstLevelTileCache.destroy();
+		if (this.compressedTileCache != null)
+			this.compressedTileCache.destroy();
 		if (this.secondLevelTileCache != null)
 			this.secondLevelTileCache.destroy();
 	}
@@ -84,6 +143,16 @@ public class MutableTwoLevelTileCache implements TileCache
 		if (returnBitmap != null)
 			return returnBitmap;
 
+		if (this.compressedTileCache != null)
+		{
+			returnBitmap = this.compressedTileCache.get(key);
+			if (returnBitmap != null)
+			{
+				this.firstLevelTileCache.put(key, returnBitmap);
+				return returnBitmap;
+			}
+		}
+
 		if (this.secondLevelTileCache == null)
 			return null;
 
@@ -91,6 +160,7 @@ public class MutableTwoLevelTileCache implements TileCache
 		if (returnBitmap != null)
 		{
 			this.firstLevelTileCache.put(key, returnBitmap);
+			compress(key, returnBitmap);
 			return returnBitmap;
 		}
 		return null;
@@ -127,6 +197,8 @@ public class MutableTwoLevelTileCache implements TileCache
 	{
 		if (this.firstLevelTileCache != null)
 			this.firstLevelTileCache.purge();
+		if (this.compressedTileCache != null)
+			this.compressedTileCache.purge();
 		if (this.secondLevelTileCache != null)
 			this.secondLevelTileCache.purge();
 	}
@@ -142,6 +214,7 @@ public class MutableTwoLevelTileCache implements TileCache
 		}
 		if (this.secondLevelTileCache != null)
 			this.secondLevelTileCache.put(key, bitmap);
+		compress(key, bitmap);
 		this.observable.notifyObservers();
 	}
 
@@ -158,21 +231,146 @@ public class MutableTwoLevelTileCache implements TileCache
 		if (this.firstLevelTileCache == null)
 			return;
 		this.firstLevelTileCache.setWorkingSet(this.workingSet);
-		if (this.secondLevelTileCache == null)
+		if (this.compressedTileCache == null && this.secondLevelTileCache == null)
 			return;
-		for (Job job : workingSet)
+		synchronized (this.workingSet)
 		{
-			if (!firstLevelTileCache.containsKey(job) && secondLevelTileCache.containsKey(job))
+			for (Job job : workingSet)
 			{
-				TileBitmap tileBitmap = secondLevelTileCache.get(job);
-				if (tileBitmap != null)
+				if (firstLevelTileCache.containsKey(job))
+					continue;
+				if (compressedTileCache != null && compressedTileCache.containsKey(job))
+				{
+					promote(job);
+				}
+				else if (secondLevelTileCache != null && secondLevelTileCache.containsKey(job))
 				{
-					firstLevelTileCache.put(job, tileBitmap);
+					TileBitmap tileBitmap = secondLevelTileCache.get(job);
+					if (tileBitmap != null)
+					{
+						firstLevelTileCache.put(job, tileBitmap);
+						compress(job, tileBitmap);
+					}
 				}
 			}
 		}
 	}
 
+	/**
+	 * Puts tile to intermediate level in background. Bitmap is retained until it is compressed.
+	 */
+	private void compress(final Job job, final TileBitmap bitmap)
+	{
+		final TileCache compressed = this.compressedTileCache;
+		if (compressed == null || compressed.containsKey(job))
+			return;
+		final File directory = this.secondLevelDirectory;
+		bitmap.incrementRefCount();
+		synchronized (this.pendingPromotions)
+		{
+			if (this.promotionExecutor == null)
+				this.promotionExecutor = Executors.newSingleThreadExecutor();
+			this.promotionExecutor.execute(new Runnable() {
+				@Override
+				public void run()
+				{
+					try
+					{
+						byte[] data = directory != null ? readTileFile(directory, job) : null;
+						if (data != null && compressed instanceof CompressedInMemoryTileCache)
+							((CompressedInMemoryTileCache) compressed).put(job, data);
+						else
+							compressed.put(job, bitmap);
+					}
+					finally
+					{
+						bitmap.decrementRefCount();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Reads tile file stored by {@link FileSystemTileCache}, file layout mirrors the one used by it.
+	 *
+	 * @return file contents or null if tile is not stored
+	 */
+	private static byte[] readTileFile(File directory, Job job)
+	{
+		File file = new File(directory, job.getKey() + ".tile");
+		if (!file.isFile())
+			return null;
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream((int) file.length());
+		InputStream inputStream = null;
+		try
+		{
+			inputStream = new FileInputStream(file);
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = inputStream.read(buffer)) > 0)
+				outputStream.write(buffer, 0, n);
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		finally
+		{
+			if (inputStream != null)
+			{
+				try
+				{
+					inputStream.close();
+				}
+				catch (IOException ignore)
+				{
+				}
+			}
+		}
+		return outputStream.toByteArray();
+	}
+
+	/**
+	 * Decodes compressed tile in background and puts it to the first level cache
+	 * if it is still in working set.
+	 */
+	private void promote(final Job job)
+	{
+		synchronized (this.pendingPromotions)
+		{
+			if (!this.pendingPromotions.add(job))
+				return;
+			if (this.promotionExecutor == null)
+				this.promotionExecutor = Executors.newSingleThreadExecutor();
+			this.promotionExecutor.execute(new Runnable() {
+				@Override
+				public void run()
+				{
+					try
+					{
+						TileCache firstLevel = firstLevelTileCache;
+						TileCache compressed = compressedTileCache;
+						if (firstLevel == null || compressed == null || !workingSet.contains(job) || firstLevel.containsKey(job))
+							return;
+						TileBitmap tileBitmap = compressed.get(job);
+						if (tileBitmap == null)
+							return;
+						firstLevel.put(job, tileBitmap);
+						tileBitmap.decrementRefCount();
+						Redrawer r = redrawer;
+						if (r != null)
+							r.redrawLayers();
+					}
+					finally
+					{
+						pendingPromotions.remove(job);
+					}
+				}
+			});
+		}
+	}
+
 	@Override
 	public void addObserver(Observer observer)
 	{
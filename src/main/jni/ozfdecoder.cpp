@@ -104,7 +104,11 @@ jintArray Java_com_androzic_map_ozf_OzfDecoder_getTileNative(JNIEnv* env, jclass
 	unsigned char* data = (unsigned char*) malloc(OZF_TILE_WIDTH*OZF_TILE_HEIGHT);
 
 	if (tile == NULL || data == NULL)
+	{
+		free(tile);
+		free(data);
 		return NULL;
+	}
 
 	// read tile from ozf file
 	ozf_get_tile(file, type, (unsigned char) key, depth, offset, i, data);
@@ -161,12 +165,18 @@ jintArray Java_com_androzic_map_ozf_OzfDecoder_getTileNative(JNIEnv* env, jclass
 	jintArray pixels = env->NewIntArray(w * h);
 
 	if (pixels == NULL)
+	{
+		free(tile);
 		return NULL;
+	}
 
 	jint* ptr = (jint *) env->GetPrimitiveArrayCritical(pixels, (jboolean *)0);
 
 	if (ptr == NULL)
+	{
+		free(tile);
 		return NULL;
+	}
 
 	int n = w * h * sizeof(int);
 
@@ -240,6 +250,9 @@ int ozf_decompress_tile(Bytef *dest, uLongf* destLen, const Bytef *source, uLong
 
 void ozf_get_tile(FILE*	file, int type, unsigned char key, int encryption_depth, int scale_offset, int i, unsigned char* decompressed)
 {
+	// file position is shared, lock it so that tiles can be decoded from several threads
+	flockfile(file);
+
 	fseek(file, scale_offset, SEEK_SET);
 	fseek(file, sizeof(ozf_image_header), SEEK_CUR);
 	fseek(file, i * sizeof(long), SEEK_CUR);
@@ -260,11 +273,16 @@ void ozf_get_tile(FILE*	file, int type, unsigned char key, int encryption_depth,
 	unsigned char* tile = (unsigned char*) malloc(tilesize);
 
 	if (tile == NULL)
+	{
+		funlockfile(file);
 		return;
+	}
 
 	fseek(file, tile_pos, SEEK_SET);
 	fread(tile, tilesize, 1, file);
 
+	funlockfile(file);
+
 	if (type == OZF_STREAM_ENCRYPTED)
 	{
 		if (encryption_depth == -1)
@@ -276,6 +294,7 @@ void ozf_get_tile(FILE*	file, int type, unsigned char key, int encryption_depth,
 	if (!(tile[0] == 0x78 && tile[1] == 0xda))  // zlib signature
 	{
 		__android_log_print(ANDROID_LOG_ERROR, "OZF", "zlib signature verification failed");
+		free(tile);
 		return;
 	}
 